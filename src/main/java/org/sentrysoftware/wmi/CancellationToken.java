@@ -0,0 +1,162 @@
+package org.sentrysoftware.wmi;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Handle to cancel an operation (WQL query, remote command) from another thread.
+ * <p>
+ * The operation checks the token regularly (e.g. between two batches of objects of a WQL query)
+ * and stops with a {@link CancellationException} once the token has been cancelled, after releasing
+ * its resources. Operations that cannot check the token themselves (like asynchronous queries)
+ * register a listener with {@link #onCancel(Runnable)}.
+ * <p>
+ * Interrupting the thread that runs the operation has the same effect as cancelling its token
+ * (the interrupt status of the thread is preserved).
+ * <p>
+ * Example:
+ * <pre><code>
+ * final CancellationToken token = CancellationToken.newInstance();
+ * executor.submit(() -&gt; wmiWbemServices.executeWql(wqlQuery, deadline, token));
+ * ...
+ * token.cancel(); // The query stops at the next batch boundary
+ * </code></pre>
+ */
+public class CancellationToken {
+
+	/**
+	 * Token for the operations that are not meant to be cancelled
+	 * (they still stop when their thread is interrupted)
+	 */
+	public static final CancellationToken NONE = new CancellationToken() {
+		@Override
+		public void cancel() {
+			throw new UnsupportedOperationException("CancellationToken.NONE cannot be cancelled");
+		}
+
+		@Override
+		public Registration onCancel(final Runnable listener) {
+			return () -> { };
+		}
+	};
+
+	/**
+	 * Registration of a listener, to be closed once the listener is no longer needed
+	 */
+	@FunctionalInterface
+	public interface Registration extends AutoCloseable {
+		/**
+		 * Unregister the listener
+		 */
+		@Override
+		void close();
+	}
+
+	/** Whether the token has been cancelled */
+	private volatile boolean isCancelled = false;
+
+	/** Called when the token is cancelled */
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Private constructor: use {@link #newInstance()}
+	 */
+	private CancellationToken() { }
+
+	/**
+	 * @return a new token, not cancelled
+	 */
+	public static CancellationToken newInstance() {
+		return new CancellationToken();
+	}
+
+	/**
+	 * Cancel the operations using this token and call the registered listeners.
+	 * Calling this method more than once has no effect.
+	 */
+	public void cancel() {
+
+		synchronized (this) {
+			if (isCancelled) {
+				return;
+			}
+			isCancelled = true;
+		}
+
+		for (final Runnable listener : listeners) {
+			try {
+				listener.run();
+			} catch (final RuntimeException e) {
+				/* Do nothing -- The other listeners must be called anyway */
+			}
+		}
+		listeners.clear();
+	}
+
+	/**
+	 * @return whether this token has been cancelled
+	 */
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * Register a listener to be called when this token is cancelled (called right away
+	 * if the token is already cancelled). The listener is called on the thread that cancels the token,
+	 * so it must not block.
+	 *
+	 * @param listener The listener (mandatory)
+	 * @return the registration, to be closed when the operation is complete
+	 */
+	public Registration onCancel(final Runnable listener) {
+
+		Utils.checkNonNull(listener, "listener");
+
+		synchronized (this) {
+			if (!isCancelled) {
+				listeners.add(listener);
+				return () -> listeners.remove(listener);
+			}
+		}
+
+		listener.run();
+		return () -> { };
+	}
+
+	/**
+	 * Throws a CancellationException if this token has been cancelled, or if the current thread
+	 * has been interrupted (the interrupt status is left unchanged).
+	 *
+	 * @throws CancellationException if the operation must stop
+	 */
+	public void throwIfCancelled() {
+		if (isCancelled) {
+			throw new CancellationException("The operation was cancelled");
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("The thread was interrupted");
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.sentrysoftware.wmi;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Point in time by which an operation must be complete, measured with the monotonic
+ * {@link System#nanoTime()} clock (not affected by changes of the system time).
+ * <p>
+ * A deadline is created once for a whole operation and passed down to each of its steps,
+ * which use the time that is left, instead of each step getting the full timeout:
+ * <pre><code>
+ * final Deadline deadline = Deadline.newInstance(30000);
+ * final List&lt;Map&lt;String, Object&gt;&gt; result = wmiWbemServices.executeWql(wqlQuery, deadline);
+ * final String dir = WindowsTempShare.getWindowsDirectory(executor, deadline.getRemainingTime("No time left"));
+ * </code></pre>
+ * Instances are immutable and can be shared between threads.
+ */
+public class Deadline {
+
+	/** The timeout in milliseconds this deadline was created with */
+	private final long timeout;
+
+	/** The deadline, in {@link System#nanoTime()} units */
+	private final long deadlineNanos;
+
+	/**
+	 * @param timeout Timeout in milliseconds
+	 * @param deadlineNanos The deadline, in {@link System#nanoTime()} units
+	 */
+	private Deadline(final long timeout, final long deadlineNanos) {
+		this.timeout = timeout;
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Create a deadline in the specified number of milliseconds from now.
+	 *
+	 * @param timeout Timeout in milliseconds (throws an IllegalArgumentException if negative or zero)
+	 * @return a new Deadline instance
+	 */
+	public static Deadline newInstance(final long timeout) {
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+		return new Deadline(timeout, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+	}
+
+	/**
+	 * Get a deadline that is not later than the specified timeout from now, nor later than this deadline
+	 * (e.g. to limit one step of an operation).
+	 *
+	 * @param timeout Timeout in milliseconds (throws an IllegalArgumentException if negative or zero)
+	 * @return the earliest of this deadline and the specified timeout from now
+	 */
+	public Deadline narrow(final long timeout) {
+		final Deadline other = newInstance(timeout);
+		return other.deadlineNanos - deadlineNanos < 0 ? other : this;
+	}
+
+	/**
+	 * @return the timeout in milliseconds this deadline was created with
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the number of milliseconds left before the deadline (0 if it has passed)
+	 */
+	public long getRemainingMillis() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+	}
+
+	/**
+	 * @return the number of milliseconds elapsed since this deadline was created
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (deadlineNanos - TimeUnit.MILLISECONDS.toNanos(timeout)));
+	}
+
+	/**
+	 * @return whether the deadline has passed
+	 */
+	public boolean isExpired() {
+		return deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Get the remaining time before the deadline, to be used as the timeout of the next step.
+	 *
+	 * @param message The message of the TimeoutException
+	 * @return the number of milliseconds left before the deadline (at least 1)
+	 * @throws TimeoutException if the deadline has passed
+	 */
+	public long getRemainingTime(final String message) throws TimeoutException {
+		final long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+		if (remaining <= 0) {
+			throw new TimeoutException(message);
+		}
+		return remaining;
+	}
+
+	/**
+	 * Throws a TimeoutException if the deadline has passed.
+	 *
+	 * @param message The message of the TimeoutException
+	 * @throws TimeoutException if the deadline has passed
+	 */
+	public void check(final String message) throws TimeoutException {
+		if (isExpired()) {
+			throw new TimeoutException(message);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Deadline [timeout=%d ms, remaining=%d ms]", timeout, getRemainingMillis());
+	}
+
+}
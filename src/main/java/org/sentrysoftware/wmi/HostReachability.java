@@ -0,0 +1,444 @@
+package org.sentrysoftware.wmi;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.exceptions.HostUnreachableException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap pre-flight check before connecting to WMI on a remote host: a non-blocking connection to the
+ * RPC endpoint mapper port (TCP 135), with a short timeout.
+ * <p>
+ * A host that does not accept the TCP connection in time (host down, firewall, port closed) would make
+ * <code>IWbemLocator::ConnectServer</code> block until the DCOM timeout. With this check, it fails in a fraction of a second.
+ * The timeout covers the resolution of the hostname too (a stale name can take seconds to resolve):
+ * the name is resolved on a small pool of threads. A name that could not be resolved in time (slow DNS, or all
+ * the threads busy with such lookups) doesn't say anything about the host: the check is inconclusive, the host
+ * is considered reachable and the connection to WMI is attempted.
+ * The outcome of the check (connection accepted, refused or timed out, unknown host) is cached per host
+ * for a short time, so thousands of endpoints can be checked without probing each of them before every connection.
+ * Inconclusive checks are not cached.
+ * <p>
+ * The check is disabled by default. It is enabled for {@link org.sentrysoftware.wmi.wbem.WmiWbemServices#getInstance(String, String, char[])}
+ * and {@link org.sentrysoftware.wmi.shares.WinTempShare#getInstance(String, String, char[], long)} with {@link #setDefault(HostReachability)}.
+ * This class is thread-safe.
+ */
+public class HostReachability {
+
+	/** The RPC endpoint mapper port */
+	public static final int RPC_ENDPOINT_MAPPER_PORT = 135;
+
+	/** Default timeout (in milliseconds) of the TCP connection */
+	public static final long DEFAULT_CONNECT_TIMEOUT = 200;
+
+	/** Default duration (in milliseconds) the outcome of a check is cached */
+	public static final long DEFAULT_CACHE_TTL = 30L * 1000;
+
+	/** Number of threads resolving the hostnames */
+	private static final int RESOLVER_POOL_SIZE = 8;
+
+	/** Resolves the hostnames (lookups that outlive their timeout keep one of these threads, not the caller's) */
+	private static final ThreadPoolExecutor RESOLVER = createResolver();
+
+	/**
+	 * Resolution of a hostname
+	 */
+	@FunctionalInterface
+	interface HostResolver {
+		InetAddress resolve(String hostname) throws UnknownHostException;
+	}
+
+	/** The instance used before connecting to WMI (null when disabled) */
+	private static volatile HostReachability defaultInstance = null;
+
+	/** The port to connect to */
+	private final int port;
+
+	/** Timeout (in milliseconds) of the TCP connection */
+	private final long connectTimeout;
+
+	/** Duration (in milliseconds) the outcome of a check is cached */
+	private final long cacheTtl;
+
+	/** Resolves the hostnames (on {@link #RESOLVER}) */
+	private final HostResolver hostResolver;
+
+	/** Outcome of the latest check of each host */
+	private final Map<String, Outcome> outcomes = new ConcurrentHashMap<>();
+
+	/** Time (in milliseconds) of the next removal of the expired outcomes */
+	private volatile long nextPruneTime = 0;
+
+	/** Number of TCP connections attempted */
+	private final AtomicLong probeCount = new AtomicLong();
+
+	/** Number of checks answered from the cache */
+	private final AtomicLong cacheHitCount = new AtomicLong();
+
+	/** Number of checks where the hostname could not be resolved in time */
+	private final AtomicLong inconclusiveCount = new AtomicLong();
+
+	/**
+	 * Create a reachability check of the RPC endpoint mapper port, with the default settings
+	 */
+	public HostReachability() {
+		this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_CACHE_TTL);
+	}
+
+	/**
+	 * Create a reachability check of the RPC endpoint mapper port
+	 *
+	 * @param connectTimeout Timeout in milliseconds of the resolution of the hostname and the TCP connection (throws an IllegalArgumentException if negative or zero)
+	 * @param cacheTtl Duration in milliseconds the outcome of a check is cached (0 to not cache)
+	 */
+	public HostReachability(final long connectTimeout, final long cacheTtl) {
+		this(RPC_ENDPOINT_MAPPER_PORT, connectTimeout, cacheTtl);
+	}
+
+	/**
+	 * Create a reachability check of the specified port
+	 *
+	 * @param port The TCP port to connect to
+	 * @param connectTimeout Timeout in milliseconds of the resolution of the hostname and the TCP connection (throws an IllegalArgumentException if negative or zero)
+	 * @param cacheTtl Duration in milliseconds the outcome of a check is cached (0 to not cache)
+	 */
+	HostReachability(final int port, final long connectTimeout, final long cacheTtl) {
+		this(port, connectTimeout, cacheTtl, InetAddress::getByName);
+	}
+
+	/**
+	 * Create a reachability check of the specified port
+	 *
+	 * @param port The TCP port to connect to
+	 * @param connectTimeout Timeout in milliseconds of the resolution of the hostname and the TCP connection (throws an IllegalArgumentException if negative or zero)
+	 * @param cacheTtl Duration in milliseconds the outcome of a check is cached (0 to not cache)
+	 * @param hostResolver Resolves the hostnames
+	 */
+	HostReachability(final int port, final long connectTimeout, final long cacheTtl, final HostResolver hostResolver) {
+
+		Utils.checkArgumentNotZeroOrNegative(connectTimeout, "connectTimeout");
+		if (cacheTtl < 0) {
+			throw new IllegalArgumentException("cacheTtl must not be negative");
+		}
+
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+		this.cacheTtl = cacheTtl;
+		this.hostResolver = hostResolver;
+	}
+
+	/**
+	 * @return the instance used before connecting to WMI (null when the check is disabled, the default)
+	 */
+	public static HostReachability getDefault() {
+		return defaultInstance;
+	}
+
+	/**
+	 * Set the instance used before connecting to WMI
+	 *
+	 * @param hostReachability The instance to use (null to disable the check)
+	 */
+	public static void setDefault(final HostReachability hostReachability) {
+		defaultInstance = hostReachability;
+	}
+
+	/**
+	 * Check the specified host with the default instance, if enabled
+	 *
+	 * @param hostname The host (null for the local system, which is always reachable)
+	 * @throws HostUnreachableException if the check is enabled and the host is not reachable
+	 */
+	public static void checkDefault(final String hostname) throws HostUnreachableException {
+		final HostReachability hostReachability = defaultInstance;
+		if (hostReachability != null) {
+			hostReachability.checkReachable(hostname);
+		}
+	}
+
+	/**
+	 * Check whether the specified host accepts TCP connections (on the cached outcome of a recent check, if any)
+	 *
+	 * @param hostname The host (null for the local system, which is always reachable)
+	 * @throws HostUnreachableException if the host is not reachable
+	 */
+	public void checkReachable(final String hostname) throws HostUnreachableException {
+		if (!isReachable(hostname)) {
+			throw new HostUnreachableException(
+					hostname,
+					"%s does not accept connections on port %d (checked within %d ms)",
+					hostname,
+					port,
+					connectTimeout);
+		}
+	}
+
+	/**
+	 * Check whether the specified host accepts TCP connections (on the cached outcome of a recent check, if any)
+	 *
+	 * @param hostname The host (null for the local system, which is always reachable)
+	 * @return whether the host is reachable (true when the check is inconclusive)
+	 */
+	public boolean isReachable(final String hostname) {
+
+		if (hostname == null || hostname.isEmpty()) {
+			return true;
+		}
+
+		final String key = hostname.toLowerCase(Locale.ROOT);
+		final long now = Utils.getCurrentTimeMillis();
+
+		final Outcome outcome = outcomes.get(key);
+		if (outcome != null && now < outcome.expiresAt) {
+			cacheHitCount.incrementAndGet();
+			return outcome.isReachable;
+		}
+
+		final Boolean isReachable = probe(hostname);
+		if (isReachable == null) {
+			// Not resolved in time: neither cached nor reported as unreachable
+			inconclusiveCount.incrementAndGet();
+			return true;
+		}
+		if (cacheTtl > 0) {
+			pruneExpired(now);
+			outcomes.put(key, new Outcome(isReachable, now + cacheTtl));
+		}
+		return isReachable;
+	}
+
+	/**
+	 * Remove the expired outcomes (at most once per cache TTL), so that the cache doesn't keep
+	 * the hosts that are no longer checked
+	 *
+	 * @param now Current time in milliseconds
+	 */
+	private void pruneExpired(final long now) {
+		if (now >= nextPruneTime) {
+			nextPruneTime = now + cacheTtl;
+			outcomes.values().removeIf(outcome -> now >= outcome.expiresAt);
+		}
+	}
+
+	/**
+	 * Resolve the specified host and connect to its port, without blocking longer than the timeout
+	 *
+	 * @param hostname The host
+	 * @return whether the connection succeeded, or null if the hostname could not be resolved in time
+	 */
+	private Boolean probe(final String hostname) {
+
+		probeCount.incrementAndGet();
+
+		final Deadline deadline = Deadline.newInstance(connectTimeout);
+		final InetAddress inetAddress;
+		try {
+			inetAddress = resolve(hostResolver, hostname, connectTimeout);
+		} catch (final UnknownHostException e) {
+			return false;
+		}
+		if (inetAddress == null) {
+			return null;
+		}
+
+		try (SocketChannel channel = SocketChannel.open();
+				Selector selector = Selector.open()) {
+
+			channel.configureBlocking(false);
+			if (channel.connect(new InetSocketAddress(inetAddress, port))) {
+				return true;
+			}
+
+			// The resolution counts too (if it took all the time, the connection has not really been attempted)
+			final long remaining = deadline.getRemainingMillis();
+			if (remaining <= 0) {
+				return null;
+			}
+
+			channel.register(selector, SelectionKey.OP_CONNECT);
+			if (selector.select(remaining) == 0) {
+				return false;
+			}
+			return channel.finishConnect();
+
+		} catch (final IOException e) {
+			// Connection refused, no route to host, etc.
+			return false;
+		}
+	}
+
+	/**
+	 * Resolve the specified host on {@link #RESOLVER}, within the specified time
+	 *
+	 * @param hostResolver Resolves the hostname
+	 * @param hostname The host
+	 * @param timeout Timeout in milliseconds
+	 * @return the address of the host, or null if it could not be resolved in time
+	 * @throws UnknownHostException if the host is unknown
+	 */
+	private static InetAddress resolve(
+			final HostResolver hostResolver,
+			final String hostname,
+			final long timeout) throws UnknownHostException {
+
+		final Future<InetAddress> future;
+		try {
+			future = RESOLVER.submit(() -> hostResolver.resolve(hostname));
+		} catch (final RejectedExecutionException e) {
+			return null;
+		}
+
+		// Still waiting for a thread when the time is up: the lookup is not counted as a failure
+
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			return null;
+		} catch (final TimeoutException e) {
+			// Not resolved in time: don't leave the lookup in the queue, if it hasn't started
+			future.cancel(true);
+			return null;
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			throw new UnknownHostException(hostname + ": " + e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * @return the pool of daemon threads that resolve the hostnames (the threads end when idle)
+	 */
+	private static ThreadPoolExecutor createResolver() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ThreadPoolExecutor resolver = new ThreadPoolExecutor(
+				RESOLVER_POOL_SIZE,
+				RESOLVER_POOL_SIZE,
+				60L,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				runnable -> {
+					final Thread thread = new Thread(runnable, "HostReachability-resolver-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		resolver.allowCoreThreadTimeOut(true);
+		return resolver;
+	}
+
+	/**
+	 * Forget the cached outcome of the check of the specified host
+	 *
+	 * @param hostname The host
+	 */
+	public void invalidate(final String hostname) {
+		if (hostname != null) {
+			outcomes.remove(hostname.toLowerCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * Forget all the cached outcomes
+	 */
+	public void invalidateAll() {
+		outcomes.clear();
+	}
+
+	/**
+	 * @return the number of TCP connections attempted
+	 */
+	public long getProbeCount() {
+		return probeCount.get();
+	}
+
+	/**
+	 * @return the number of checks answered from the cache
+	 */
+	public long getCacheHitCount() {
+		return cacheHitCount.get();
+	}
+
+	/**
+	 * @return the number of checks where the hostname could not be resolved in time (the host was considered reachable)
+	 */
+	public long getInconclusiveCount() {
+		return inconclusiveCount.get();
+	}
+
+	/**
+	 * @return the number of hosts whose outcome is cached (including the expired outcomes not removed yet)
+	 */
+	int getCachedCount() {
+		return outcomes.size();
+	}
+
+	/**
+	 * @return the timeout (in milliseconds) of the TCP connection, including the resolution of the hostname
+	 */
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @return the duration (in milliseconds) the outcome of a check is cached
+	 */
+	public long getCacheTtl() {
+		return cacheTtl;
+	}
+
+	/**
+	 * Cached outcome of a check
+	 */
+	private static class Outcome {
+
+		/** Whether the host was reachable */
+		private final boolean isReachable;
+
+		/** Time (in milliseconds) until which the outcome is valid */
+		private final long expiresAt;
+
+		private Outcome(final boolean isReachable, final long expiresAt) {
+			this.isReachable = isReachable;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -73,7 +73,36 @@ public class TimeoutHelper {
 		// Check we still have some time on our hands
 		getRemainingTime(timeout, start, message);
 
-		final long elapsedTime = Utils.getCurrentTimeMillis() - start;
+		stagedSleep(Utils.getCurrentTimeMillis() - start, message);
+	}
+
+	/**
+	 * Same as {@link #stagedSleep(long, long, String)}, with a {@link Deadline}
+	 * (the delay depends on the time elapsed since the deadline was created).
+	 *
+	 * @param deadline The deadline of the operation
+	 * @param message The timeout error message
+	 *
+	 * @throws TimeoutException when times out
+	 */
+	public static void stagedSleep(final Deadline deadline, final String message) throws TimeoutException {
+
+		// Check we still have some time on our hands
+		deadline.getRemainingTime(message);
+
+		stagedSleep(deadline.getElapsedMillis(), message);
+	}
+
+	/**
+	 * Sleep for a delay that depends on the time elapsed since the start of the operation
+	 *
+	 * @param elapsedTime Time elapsed since the start of the operation, in milliseconds
+	 * @param message The timeout error message
+	 *
+	 * @throws TimeoutException when interrupted
+	 */
+	private static void stagedSleep(final long elapsedTime, final String message) throws TimeoutException {
+
 		try {
 			if (elapsedTime < 500) {
 				Utils.sleep(50);
@@ -89,6 +118,8 @@ public class TimeoutHelper {
 				Utils.sleep(3000);
 			}
 		} catch (InterruptedException e) {
+			// Keep the interrupt status, so that the caller can tell an interruption from an actual timeout
+			Thread.currentThread().interrupt();
 			throw new TimeoutException(message);
 		}
 
@@ -74,6 +74,33 @@ public abstract class WmiHelper {
 				String.format("\\\\%s\\%s", hostname, namespace);
 	}
 
+	/**
+	 * Extract the hostname from the specified network resource.
+	 *
+	 * @param networkResource \\hostname\namespace, or just namespace for localhost
+	 * @return the hostname, or null if the network resource designates the local system
+	 */
+	public static String extractHostname(final String networkResource) {
+		return networkResource != null && networkResource.startsWith("\\\\") ?
+				networkResource.split("\\\\")[2] :
+				null;
+	}
+
+	/**
+	 * Extract the namespace from the specified network resource.
+	 *
+	 * @param networkResource \\hostname\namespace, or just namespace for localhost (mandatory)
+	 * @return the namespace (e.g. ROOT\CIMV2)
+	 */
+	public static String extractNamespace(final String networkResource) {
+		Utils.checkNonNull(networkResource, "networkResource");
+		if (!networkResource.startsWith("\\\\")) {
+			return networkResource;
+		}
+		final String[] elements = networkResource.split("\\\\", 4);
+		return elements.length > 3 ? elements[3] : Utils.EMPTY;
+	}
+
 	/**
 	 * @param networkResource Network resource string to test
 	 * @return whether specified networkResource is local or not
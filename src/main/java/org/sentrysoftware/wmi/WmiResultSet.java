@@ -0,0 +1,987 @@
+package org.sentrysoftware.wmi;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+
+import com.sun.jna.platform.win32.COM.Wbemcli;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Result of a WQL query stored as columns: one header of property names, shared by all the rows,
+ * and the values of each column in one array.
+ * <p>
+ * This saves the memory of one Map per row, which for large results is bigger than the values themselves.
+ * The result set is still a <code>List&lt;Map&lt;String, Object&gt;&gt;</code>: {@link #get(int)} returns a
+ * lightweight, read-only Map view of the row, so it can be passed to the existing code.
+ * <p>
+ * The columns of numeric and boolean CIM types (see {@link #addColumn(String, int)}) are stored in arrays
+ * of primitives, and can be read with {@link #getLong(int, int)}, {@link #getDouble(int, int)}, etc.
+ * without boxing. In the Map views, their values have the same Java types as with
+ * {@link org.sentrysoftware.wmi.wbem.WmiWbemServices#executeWql(WqlQuery, long)}
+ * (e.g. CIM_UINT64 values are Strings).
+ * <p>
+ * The property names are looked up case-insensitively ({@link #getColumnIndex(String)}, and the Map views),
+ * but keep the case of the WMI class.
+ * The columns are in the order of the properties of the WQL query (when specified), then in alphabetical order.
+ * <p>
+ * This class is not thread-safe while rows are being added.
+ */
+public class WmiResultSet extends AbstractList<Map<String, Object>> implements RandomAccess {
+
+	/** Initial number of rows allocated in each column */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** The properties of the WQL query, in lower case (to sort the columns) */
+	private final List<String> queryProperties;
+
+	/** The columns, in the order of the header */
+	private final List<Column> columns = new ArrayList<>();
+
+	/** Names of the columns */
+	private final List<String> columnNames = new ArrayList<>();
+
+	/** Index of each column, by name in lower case */
+	private final Map<String, Integer> columnIndexes = new HashMap<>();
+
+	/** Number of rows */
+	private int rowCount = 0;
+
+	/** Number of rows allocated in each column */
+	private int capacity = INITIAL_CAPACITY;
+
+	/**
+	 * Create an empty result set, with the columns in alphabetical order
+	 */
+	public WmiResultSet() {
+		this(Collections.emptyList());
+	}
+
+	/**
+	 * Create an empty result set, with the columns in the order of the specified properties
+	 *
+	 * @param queryProperties The properties of the WQL query (see {@link WqlQuery#getSelectedProperties()})
+	 */
+	public WmiResultSet(final List<String> queryProperties) {
+		Utils.checkNonNull(queryProperties, "queryProperties");
+		this.queryProperties = new ArrayList<>(queryProperties.size());
+		queryProperties.forEach(property -> this.queryProperties.add(property.toLowerCase(Locale.ROOT)));
+	}
+
+	/**
+	 * Add a row. The properties that are not in the header yet are added as new columns.
+	 *
+	 * @param row The properties and their values
+	 */
+	public void addRow(final Map<String, Object> row) {
+
+		Utils.checkNonNull(row, "row");
+
+		addColumns(row.keySet());
+
+		final int rowIndex = addRow();
+		for (final Map.Entry<String, Object> entry : row.entrySet()) {
+			setValue(rowIndex, getColumnIndex(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Add an empty row: none of its properties is present until its values are set.
+	 *
+	 * @return the index of the new row
+	 */
+	public int addRow() {
+		if (rowCount == capacity) {
+			capacity = capacity + (capacity >> 1);
+			columns.forEach(column -> column.grow(capacity));
+		}
+		return rowCount++;
+	}
+
+	/**
+	 * Add the specified columns, unless they are in the header already.
+	 * The new columns are sorted in the order of the query properties, then in alphabetical order.
+	 *
+	 * @param names Names of the columns
+	 */
+	public void addColumns(final Collection<String> names) {
+		Utils.checkNonNull(names, "names");
+		final List<String> newNames = new ArrayList<>();
+		for (final String name : names) {
+			if (getColumnIndex(name) < 0) {
+				newNames.add(name);
+			}
+		}
+		newNames.sort(this::compareColumns);
+		newNames.forEach(name -> addColumn(name, Wbemcli.CIM_EMPTY));
+	}
+
+	/**
+	 * Add a column for the values of the specified CIM type. The values of CIM_BOOLEAN, CIM_REAL32, CIM_REAL64
+	 * and integer types are stored as primitives.
+	 * <p>
+	 * If the column is already in the header and doesn't have any value yet, its type is set.
+	 * Otherwise, its type is left as is.
+	 *
+	 * @param name Name of the column
+	 * @param cimType CIM type of the values (<code>Wbemcli.CIM_*</code>), or <code>Wbemcli.CIM_EMPTY</code> if unknown
+	 * @return the index of the column
+	 */
+	public int addColumn(final String name, final int cimType) {
+
+		Utils.checkNonNull(name, "name");
+
+		final int index = getColumnIndex(name);
+		if (index >= 0) {
+			final Column column = columns.get(index);
+			if (column.cimType == Wbemcli.CIM_EMPTY && column.present.isEmpty()) {
+				columns.set(index, newColumn(name, cimType));
+			}
+			return index;
+		}
+
+		columns.add(newColumn(name, cimType));
+		columnNames.add(name);
+		columnIndexes.put(name.toLowerCase(Locale.ROOT), columns.size() - 1);
+		return columns.size() - 1;
+	}
+
+	/**
+	 * @param name Name of the column
+	 * @param cimType CIM type of the values
+	 * @return an empty column that stores the values of the specified type
+	 */
+	private Column newColumn(final String name, final int cimType) {
+		switch (cimType) {
+		case Wbemcli.CIM_BOOLEAN:
+			return new BooleanColumn(name);
+		case Wbemcli.CIM_UINT8:
+		case Wbemcli.CIM_SINT8:
+		case Wbemcli.CIM_UINT16:
+		case Wbemcli.CIM_SINT16:
+		case Wbemcli.CIM_UINT32:
+		case Wbemcli.CIM_SINT32:
+		case Wbemcli.CIM_UINT64:
+		case Wbemcli.CIM_SINT64:
+			return new LongColumn(name, cimType, capacity);
+		case Wbemcli.CIM_REAL32:
+		case Wbemcli.CIM_REAL64:
+			return new DoubleColumn(name, cimType, capacity);
+		default:
+			return new ObjectColumn(name, cimType, capacity);
+		}
+	}
+
+	/**
+	 * Sort the columns in the order of the query properties, then in alphabetical order
+	 */
+	private int compareColumns(final String name1, final String name2) {
+		final int index1 = queryProperties.indexOf(name1.toLowerCase(Locale.ROOT));
+		final int index2 = queryProperties.indexOf(name2.toLowerCase(Locale.ROOT));
+		if (index1 >= 0 && index2 >= 0) {
+			return Integer.compare(index1, index2);
+		}
+		if (index1 >= 0 || index2 >= 0) {
+			return index1 >= 0 ? -1 : 1;
+		}
+		return String.CASE_INSENSITIVE_ORDER.compare(name1, name2);
+	}
+
+	/**
+	 * @return the names of the columns, with the case of the WMI class
+	 */
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(columnNames);
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int getColumnCount() {
+		return columns.size();
+	}
+
+	/**
+	 * @param name Name of the column (case insensitive)
+	 * @return the index of the column, or -1 if there's no such column
+	 */
+	public int getColumnIndex(final String name) {
+		if (name == null) {
+			return -1;
+		}
+		final Integer index = columnIndexes.get(name.toLowerCase(Locale.ROOT));
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @param columnIndex Index of the column
+	 * @return the CIM type of the column (<code>Wbemcli.CIM_*</code>), or <code>Wbemcli.CIM_EMPTY</code> if unknown
+	 * @throws IndexOutOfBoundsException if there's no such column
+	 */
+	public int getColumnType(final int columnIndex) {
+		return getColumn(columnIndex).cimType;
+	}
+
+	/**
+	 * @param columnIndex Index of the column
+	 * @return the column
+	 * @throws IndexOutOfBoundsException if there's no such column
+	 */
+	private Column getColumn(final int columnIndex) {
+		if (columnIndex < 0 || columnIndex >= columns.size()) {
+			throw new IndexOutOfBoundsException("Column index: " + columnIndex + ", column count: " + columns.size());
+		}
+		return columns.get(columnIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @throws IndexOutOfBoundsException if there's no such row
+	 */
+	private void checkRowIndex(final int rowIndex) {
+		if (rowIndex < 0 || rowIndex >= rowCount) {
+			throw new IndexOutOfBoundsException("Row index: " + rowIndex + ", row count: " + rowCount);
+		}
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @return whether the value of the specified cell is null, or the property is not present in the row
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public boolean isNull(final int rowIndex, final int columnIndex) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		return column.isNull(rowIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @return the value of the specified cell (null if the property is not present in the row)
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public Object getValue(final int rowIndex, final int columnIndex) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		return column.isNull(rowIndex) ? null : column.getValue(rowIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnName Name of the column (case insensitive)
+	 * @return the value of the specified cell (null if there's no such column, or if the property is not present in the row)
+	 * @throws IndexOutOfBoundsException if there's no such row
+	 */
+	public Object getValue(final int rowIndex, final String columnName) {
+		final int columnIndex = getColumnIndex(columnName);
+		if (columnIndex < 0) {
+			checkRowIndex(rowIndex);
+			return null;
+		}
+		return getValue(rowIndex, columnIndex);
+	}
+
+	/**
+	 * Get the value of the specified cell as a long, without boxing if the column stores primitives.
+	 * <p>
+	 * The values of unsigned CIM types are never negative, except CIM_UINT64 values above {@link Long#MAX_VALUE}:
+	 * use {@link Long#toUnsignedString(long)} or {@link Long#compareUnsigned(long, long)} on them.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @return the value as a long (0 if null, see {@link #isNull(int, int)})
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 * @throws NumberFormatException if the value is not a number
+	 */
+	public long getLong(final int rowIndex, final int columnIndex) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		return column.isNull(rowIndex) ? 0 : column.getLong(rowIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnName Name of the column (case insensitive)
+	 * @return the value as a long (0 if null, or if there's no such column)
+	 * @throws IndexOutOfBoundsException if there's no such row
+	 * @throws NumberFormatException if the value is not a number
+	 * @see #getLong(int, int)
+	 */
+	public long getLong(final int rowIndex, final String columnName) {
+		final int columnIndex = getColumnIndex(columnName);
+		if (columnIndex < 0) {
+			checkRowIndex(rowIndex);
+			return 0;
+		}
+		return getLong(rowIndex, columnIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @return the value as an int (0 if null, see {@link #isNull(int, int)})
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 * @throws NumberFormatException if the value is not a number
+	 * @throws ArithmeticException if the value doesn't fit in an int (e.g. CIM_UINT32 values above {@link Integer#MAX_VALUE})
+	 */
+	public int getInt(final int rowIndex, final int columnIndex) {
+		return Math.toIntExact(getLong(rowIndex, columnIndex));
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnName Name of the column (case insensitive)
+	 * @return the value as an int (0 if null, or if there's no such column)
+	 * @throws IndexOutOfBoundsException if there's no such row
+	 * @throws NumberFormatException if the value is not a number
+	 * @throws ArithmeticException if the value doesn't fit in an int
+	 */
+	public int getInt(final int rowIndex, final String columnName) {
+		return Math.toIntExact(getLong(rowIndex, columnName));
+	}
+
+	/**
+	 * Get the value of the specified cell as a double, without boxing if the column stores primitives.
+	 * CIM_UINT64 values are converted as unsigned.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @return the value as a double (0 if null, see {@link #isNull(int, int)})
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 * @throws NumberFormatException if the value is not a number
+	 */
+	public double getDouble(final int rowIndex, final int columnIndex) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		return column.isNull(rowIndex) ? 0 : column.getDouble(rowIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnName Name of the column (case insensitive)
+	 * @return the value as a double (0 if null, or if there's no such column)
+	 * @throws IndexOutOfBoundsException if there's no such row
+	 * @throws NumberFormatException if the value is not a number
+	 * @see #getDouble(int, int)
+	 */
+	public double getDouble(final int rowIndex, final String columnName) {
+		final int columnIndex = getColumnIndex(columnName);
+		if (columnIndex < 0) {
+			checkRowIndex(rowIndex);
+			return 0;
+		}
+		return getDouble(rowIndex, columnIndex);
+	}
+
+	/**
+	 * Get the value of the specified cell as a boolean, without boxing if the column stores primitives.
+	 * Numbers are true when not zero.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @return the value as a boolean (false if null, see {@link #isNull(int, int)})
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public boolean getBoolean(final int rowIndex, final int columnIndex) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		return !column.isNull(rowIndex) && column.getBoolean(rowIndex);
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @param columnName Name of the column (case insensitive)
+	 * @return the value as a boolean (false if null, or if there's no such column)
+	 * @throws IndexOutOfBoundsException if there's no such row
+	 * @see #getBoolean(int, int)
+	 */
+	public boolean getBoolean(final int rowIndex, final String columnName) {
+		final int columnIndex = getColumnIndex(columnName);
+		if (columnIndex < 0) {
+			checkRowIndex(rowIndex);
+			return false;
+		}
+		return getBoolean(rowIndex, columnIndex);
+	}
+
+	/**
+	 * Set the value of the specified cell. In a column of primitives, the value is converted
+	 * (numbers, and the strings of CIM_UINT64 and CIM_SINT64 values); if it cannot be, the column
+	 * falls back to storing objects.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @param value The value (may be null)
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public void setValue(final int rowIndex, final int columnIndex, final Object value) {
+		Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		if (value == null) {
+			column.setNull(rowIndex);
+			return;
+		}
+		if (!column.setValue(rowIndex, value)) {
+			column = column.toObjectColumn(rowCount, capacity);
+			columns.set(columnIndex, column);
+			column.setValue(rowIndex, value);
+		}
+	}
+
+	/**
+	 * Set the value of the specified cell to null
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public void setNull(final int rowIndex, final int columnIndex) {
+		setValue(rowIndex, columnIndex, null);
+	}
+
+	/**
+	 * Set the value of the specified cell, without boxing if the column stores integers.
+	 * In a column of an unsigned CIM type, the value is read as unsigned.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @param value The value
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public void setLong(final int rowIndex, final int columnIndex, final long value) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		if (column instanceof LongColumn) {
+			((LongColumn) column).setLong(rowIndex, value);
+		} else {
+			setValue(rowIndex, columnIndex, value);
+		}
+	}
+
+	/**
+	 * Set the value of the specified cell, without boxing if the column stores floating point numbers.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @param value The value
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public void setDouble(final int rowIndex, final int columnIndex, final double value) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		if (column instanceof DoubleColumn) {
+			((DoubleColumn) column).setDouble(rowIndex, value);
+		} else {
+			setValue(rowIndex, columnIndex, value);
+		}
+	}
+
+	/**
+	 * Set the value of the specified cell, without boxing if the column stores booleans.
+	 *
+	 * @param rowIndex Index of the row
+	 * @param columnIndex Index of the column
+	 * @param value The value
+	 * @throws IndexOutOfBoundsException if there's no such row or column
+	 */
+	public void setBoolean(final int rowIndex, final int columnIndex, final boolean value) {
+		final Column column = getColumn(columnIndex);
+		checkRowIndex(rowIndex);
+		if (column instanceof BooleanColumn) {
+			((BooleanColumn) column).setBoolean(rowIndex, value);
+		} else {
+			setValue(rowIndex, columnIndex, value);
+		}
+	}
+
+	/**
+	 * @param rowIndex Index of the row
+	 * @return a read-only Map view of the specified row
+	 */
+	@Override
+	public Map<String, Object> get(final int rowIndex) {
+		checkRowIndex(rowIndex);
+		return new RowView(rowIndex);
+	}
+
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+	/**
+	 * Values of one column. A cell is absent until its value is set (possibly to null).
+	 */
+	private abstract static class Column {
+
+		/** Name of the column */
+		final String name;
+
+		/** CIM type of the values */
+		final int cimType;
+
+		/** Rows where the property is present */
+		final BitSet present = new BitSet();
+
+		/** Rows where the value is null */
+		final BitSet nulls = new BitSet();
+
+		Column(final String name, final int cimType) {
+			this.name = name;
+			this.cimType = cimType;
+		}
+
+		boolean isPresent(final int row) {
+			return present.get(row);
+		}
+
+		boolean isNull(final int row) {
+			return !present.get(row) || nulls.get(row);
+		}
+
+		void setNull(final int row) {
+			present.set(row);
+			nulls.set(row);
+		}
+
+		/**
+		 * Mark the cell as set to a non-null value
+		 */
+		void setPresent(final int row) {
+			present.set(row);
+			nulls.clear(row);
+		}
+
+		/**
+		 * @param capacity New number of rows allocated
+		 */
+		abstract void grow(int capacity);
+
+		/**
+		 * @return the value of a non-null cell, as returned by the Map views
+		 */
+		abstract Object getValue(int row);
+
+		/**
+		 * @return whether the value could be stored in this column
+		 */
+		abstract boolean setValue(int row, Object value);
+
+		long getLong(final int row) {
+			return toLong(getValue(row));
+		}
+
+		double getDouble(final int row) {
+			return toDouble(getValue(row));
+		}
+
+		boolean getBoolean(final int row) {
+			return toBoolean(getValue(row));
+		}
+
+		/**
+		 * @return a column with the same values, stored as objects
+		 */
+		ObjectColumn toObjectColumn(final int rowCount, final int capacity) {
+			final ObjectColumn column = new ObjectColumn(name, cimType, capacity);
+			for (int row = present.nextSetBit(0); row >= 0 && row < rowCount; row = present.nextSetBit(row + 1)) {
+				column.setValue(row, isNull(row) ? null : getValue(row));
+			}
+			return column;
+		}
+	}
+
+	/**
+	 * Column of any values
+	 */
+	private static class ObjectColumn extends Column {
+
+		private Object[] values;
+
+		ObjectColumn(final String name, final int cimType, final int capacity) {
+			super(name, cimType);
+			values = new Object[capacity];
+		}
+
+		@Override
+		void grow(final int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		@Override
+		Object getValue(final int row) {
+			return values[row];
+		}
+
+		@Override
+		boolean setValue(final int row, final Object value) {
+			present.set(row);
+			values[row] = value;
+			return true;
+		}
+
+		@Override
+		boolean isNull(final int row) {
+			return !present.get(row) || values[row] == null;
+		}
+
+		@Override
+		void setNull(final int row) {
+			setValue(row, null);
+		}
+	}
+
+	/**
+	 * Column of integers (stored as long, unsigned for unsigned CIM types)
+	 */
+	private static class LongColumn extends Column {
+
+		private long[] values;
+
+		LongColumn(final String name, final int cimType, final int capacity) {
+			super(name, cimType);
+			values = new long[capacity];
+		}
+
+		@Override
+		void grow(final int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		void setLong(final int row, final long value) {
+			setPresent(row);
+			switch (cimType) {
+			case Wbemcli.CIM_UINT8:
+				values[row] = value & 0xFFL;
+				break;
+			case Wbemcli.CIM_UINT16:
+				values[row] = value & 0xFFFFL;
+				break;
+			case Wbemcli.CIM_UINT32:
+				values[row] = value & 0xFFFFFFFFL;
+				break;
+			default:
+				values[row] = value;
+			}
+		}
+
+		@Override
+		long getLong(final int row) {
+			return values[row];
+		}
+
+		@Override
+		double getDouble(final int row) {
+			final long value = values[row];
+			if (cimType == Wbemcli.CIM_UINT64 && value < 0) {
+				// Unsigned value above Long.MAX_VALUE
+				return (double) (value >>> 1) * 2.0 + (value & 1L);
+			}
+			return value;
+		}
+
+		@Override
+		boolean getBoolean(final int row) {
+			return values[row] != 0;
+		}
+
+		/**
+		 * Same Java types as the conversion of the VARIANT values in WmiCimTypeHandler
+		 */
+		@Override
+		Object getValue(final int row) {
+			final long value = values[row];
+			switch (cimType) {
+			case Wbemcli.CIM_UINT8:
+				return (byte) value;
+			case Wbemcli.CIM_SINT8:
+			case Wbemcli.CIM_SINT16:
+				return (short) value;
+			case Wbemcli.CIM_UINT64:
+				return Long.toUnsignedString(value);
+			case Wbemcli.CIM_SINT64:
+				return Long.toString(value);
+			default:
+				return (int) value;
+			}
+		}
+
+		@Override
+		boolean setValue(final int row, final Object value) {
+			if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+				setLong(row, ((Number) value).longValue());
+				return true;
+			}
+			if (value instanceof String && (cimType == Wbemcli.CIM_UINT64 || cimType == Wbemcli.CIM_SINT64)) {
+				try {
+					setLong(row, cimType == Wbemcli.CIM_UINT64 ?
+							Long.parseUnsignedLong((String) value) :
+								Long.parseLong((String) value));
+					return true;
+				} catch (final NumberFormatException e) {
+					return false;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Column of floating point numbers
+	 */
+	private static class DoubleColumn extends Column {
+
+		private double[] values;
+
+		DoubleColumn(final String name, final int cimType, final int capacity) {
+			super(name, cimType);
+			values = new double[capacity];
+		}
+
+		@Override
+		void grow(final int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		void setDouble(final int row, final double value) {
+			setPresent(row);
+			values[row] = value;
+		}
+
+		@Override
+		long getLong(final int row) {
+			return (long) values[row];
+		}
+
+		@Override
+		double getDouble(final int row) {
+			return values[row];
+		}
+
+		@Override
+		boolean getBoolean(final int row) {
+			return values[row] != 0;
+		}
+
+		@Override
+		Object getValue(final int row) {
+			return cimType == Wbemcli.CIM_REAL32 ? (Object) (float) values[row] : (Object) values[row];
+		}
+
+		@Override
+		boolean setValue(final int row, final Object value) {
+			if (value instanceof Number) {
+				setDouble(row, ((Number) value).doubleValue());
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Column of booleans
+	 */
+	private static class BooleanColumn extends Column {
+
+		private final BitSet values = new BitSet();
+
+		BooleanColumn(final String name) {
+			super(name, Wbemcli.CIM_BOOLEAN);
+		}
+
+		@Override
+		void grow(final int capacity) {
+			// BitSet grows by itself
+		}
+
+		void setBoolean(final int row, final boolean value) {
+			setPresent(row);
+			values.set(row, value);
+		}
+
+		@Override
+		long getLong(final int row) {
+			return values.get(row) ? 1 : 0;
+		}
+
+		@Override
+		double getDouble(final int row) {
+			return values.get(row) ? 1 : 0;
+		}
+
+		@Override
+		boolean getBoolean(final int row) {
+			return values.get(row);
+		}
+
+		@Override
+		Object getValue(final int row) {
+			return values.get(row);
+		}
+
+		@Override
+		boolean setValue(final int row, final Object value) {
+			if (value instanceof Boolean) {
+				setBoolean(row, (Boolean) value);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param value A non-null value
+	 * @return the value as a long
+	 */
+	private static long toLong(final Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value ? 1 : 0;
+		}
+		final String string = value.toString().trim();
+		try {
+			return Long.parseLong(string);
+		} catch (final NumberFormatException e) {
+			// CIM_UINT64 values above Long.MAX_VALUE
+			return Long.parseUnsignedLong(string);
+		}
+	}
+
+	/**
+	 * @param value A non-null value
+	 * @return the value as a double
+	 */
+	private static double toDouble(final Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof Boolean) {
+			return (Boolean) value ? 1 : 0;
+		}
+		return Double.parseDouble(value.toString().trim());
+	}
+
+	/**
+	 * @param value A non-null value
+	 * @return the value as a boolean
+	 */
+	private static boolean toBoolean(final Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue() != 0;
+		}
+		return Boolean.parseBoolean(value.toString().trim());
+	}
+
+	/**
+	 * Read-only Map view of a row, backed by the columns
+	 */
+	private class RowView extends AbstractMap<String, Object> {
+
+		private final int row;
+
+		private RowView(final int row) {
+			this.row = row;
+		}
+
+		@Override
+		public Object get(final Object key) {
+			final int index = key instanceof String ? getColumnIndex((String) key) : -1;
+			return index >= 0 ? getValue(row, index) : null;
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			final int index = key instanceof String ? getColumnIndex((String) key) : -1;
+			return index >= 0 && columns.get(index).isPresent(row);
+		}
+
+		@Override
+		public Set<Entry<String, Object>> entrySet() {
+			return new AbstractSet<Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Entry<String, Object>> iterator() {
+					return new Iterator<Entry<String, Object>>() {
+
+						private int nextIndex = advance(0);
+
+						private int advance(final int from) {
+							int index = from;
+							while (index < columns.size() && !columns.get(index).isPresent(row)) {
+								index++;
+							}
+							return index;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return nextIndex < columns.size();
+						}
+
+						@Override
+						public Entry<String, Object> next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							final Entry<String, Object> entry =
+									new SimpleImmutableEntry<>(columnNames.get(nextIndex), getValue(row, nextIndex));
+							nextIndex = advance(nextIndex + 1);
+							return entry;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					int size = 0;
+					for (final Column column : columns) {
+						if (column.isPresent(row)) {
+							size++;
+						}
+					}
+					return size;
+				}
+			};
+		}
+	}
+}
@@ -55,12 +55,14 @@ public class WqlQuery {
 	private List<String> selectedProperties;
 	private Map<String, Set<String>> subPropertiesMap;
 	private String cleanWql;
+	private String className;
 
-	private WqlQuery(String wql, List<String> selectedProperties, Map<String, Set<String>> subPropertiesMap, String cleanWql) {
+	private WqlQuery(String wql, List<String> selectedProperties, Map<String, Set<String>> subPropertiesMap, String cleanWql, String className) {
 		this.wql = wql;
 		this.selectedProperties = selectedProperties;
 		this.subPropertiesMap = subPropertiesMap;
 		this.cleanWql = cleanWql;
+		this.className = className;
 	}
 
 	/**
@@ -108,7 +110,7 @@ public class WqlQuery {
 		Map<String, Set<String>> subPropertiesMap = buildSupPropertiesMap(properties);
 		String cleanWql = buildCleanWql(associatorsFragment, subPropertiesMap, classFragment, restFragment);
 
-		return new WqlQuery(wql.toString(), properties, subPropertiesMap, cleanWql);
+		return new WqlQuery(wql.toString(), properties, subPropertiesMap, cleanWql, classFragment);
 	}
 
 	/**
@@ -235,6 +237,14 @@ public class WqlQuery {
 		return cleanWql;
 	}
 
+	/**
+	 * @return the class in the FROM statement (as written in the query),
+	 * or null with <code>ASSOCIATORS OF</code> and <code>REFERENCES OF</code> queries
+	 */
+	public String getClassName() {
+		return className;
+	}
+
 	@Override
 	public String toString() {
 		return wql;
@@ -0,0 +1,61 @@
+package org.sentrysoftware.wmi.exceptions;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+/**
+ * Thrown immediately, without contacting the host, when the connections to a host are suspended
+ * after too many consecutive failures.
+ */
+public class CircuitOpenException extends WmiComException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The host the connections are suspended for */
+	private final String hostname;
+
+	/** Number of milliseconds before the next connection attempt is allowed */
+	private final long retryAfter;
+
+	public CircuitOpenException(
+			final String hostname,
+			final long retryAfter,
+			final String messageFormat,
+			final Object...args) {
+		super(messageFormat, args);
+		this.hostname = hostname;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return the host the connections are suspended for (null for the local system)
+	 */
+	public String getHostname() {
+		return hostname;
+	}
+
+	/**
+	 * @return the number of milliseconds before the next connection attempt is allowed
+	 * (0 when a trial connection is already in progress)
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,48 @@
+package org.sentrysoftware.wmi.exceptions;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+/**
+ * Thrown before connecting to WMI when the host does not accept connections on the RPC endpoint mapper port
+ * (TCP 135). It carries the HRESULT DCOM would have returned: RPC_S_SERVER_UNAVAILABLE.
+ */
+public class HostUnreachableException extends WmiComException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** HRESULT_FROM_WIN32(RPC_S_SERVER_UNAVAILABLE) */
+	public static final int RPC_S_SERVER_UNAVAILABLE = 0x800706BA;
+
+	/** The host that could not be reached */
+	private final String hostname;
+
+	public HostUnreachableException(final String hostname, final String messageFromat, final Object...args) {
+		super(RPC_S_SERVER_UNAVAILABLE, messageFromat, args);
+		this.hostname = hostname;
+	}
+
+	/**
+	 * @return the host that could not be reached
+	 */
+	public String getHostname() {
+		return hostname;
+	}
+}
@@ -0,0 +1,39 @@
+package org.sentrysoftware.wmi.exceptions;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+/**
+ * Unchecked wrapper for the exceptions thrown while iterating over the result of a WQL query
+ * with an {@link java.util.Iterator} or a {@link java.util.stream.Stream}, which cannot throw
+ * checked exceptions (like {@link java.io.UncheckedIOException}).
+ * <p>
+ * The cause is the actual exception: {@link java.util.concurrent.TimeoutException},
+ * {@link WqlQuerySyntaxException} or {@link WmiComException}.
+ */
+public class UncheckedWmiException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UncheckedWmiException(final Exception cause) {
+		super(cause.getMessage(), cause);
+	}
+
+}
@@ -20,6 +20,8 @@ package org.sentrysoftware.wmi.exceptions;
  * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
  */
 
+import com.sun.jna.platform.win32.COM.COMException;
+
 /**
  * Exception to wrap WMI COM exception (as it's a RuntimeException).
  *
@@ -28,19 +30,52 @@ public class WmiComException extends WindowsRemoteException {
 
 	private static final long serialVersionUID = 1L;
 
+	/** The HRESULT of the failed call (null if unknown) */
+	private final Integer hResult;
+
 	public WmiComException(final String message) {
 		super(message);
+		this.hResult = null;
 	}
 
 	public WmiComException(final String messageFromat, final Object...args) {
 		super(messageFromat, args);
+		this.hResult = null;
+	}
+
+	public WmiComException(final int hResult, final String messageFromat, final Object...args) {
+		super(messageFromat, args);
+		this.hResult = hResult;
 	}
 
 	public WmiComException(final Throwable cause, final String message) {
 		super(cause, message);
+		this.hResult = null;
 	}
 
 	public WmiComException(final Throwable cause) {
 		super(cause);
+		this.hResult = null;
+	}
+
+	/**
+	 * @return the HRESULT of the failed call, as specified when this exception was created,
+	 * or found in the causes (COMException or WmiComException). null if unknown.
+	 */
+	public Integer getHResult() {
+
+		if (hResult != null) {
+			return hResult;
+		}
+
+		for (Throwable cause = getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+			if (cause instanceof WmiComException && ((WmiComException) cause).hResult != null) {
+				return ((WmiComException) cause).hResult;
+			}
+			if (cause instanceof COMException && ((COMException) cause).getHresult() != null) {
+				return ((COMException) cause).getHresult().intValue();
+			}
+		}
+		return null;
 	}
 }
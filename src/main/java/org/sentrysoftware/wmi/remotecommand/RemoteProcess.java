@@ -26,9 +26,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+import org.sentrysoftware.wmi.CancellationToken;
 import org.sentrysoftware.wmi.TimeoutHelper;
 import org.sentrysoftware.wmi.Utils;
 import org.sentrysoftware.wmi.WmiHelper;
@@ -88,42 +90,129 @@ public class RemoteProcess {
 			final long timeout
 	) throws WmiComException, TimeoutException {
 
+		return executeCommand(command, hostname, username, password, workingDirectory, timeout, CancellationToken.NONE);
+	}
+
+	/**
+	 * Execute the command on the remote. If the specified token is cancelled (or the thread interrupted)
+	 * while the command is running, the process is killed.
+	 * @param command The command to execute
+	 * @param hostname Hostname of IP address where to execute the command
+	 * @param username Username (may be null)
+	 * @param password Password (may be null)
+	 * @param workingDirectory Path of the directory for the spawned process on the remote system (can be null)
+	 * @param timeout Timeout in milliseconds
+	 * @param cancellationToken Cancels the command (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @return the command status code
+	 * @throws WmiComException  For any problem encountered with JNA
+	 * @throws TimeoutException To notify userName of timeout.
+	 * @throws CancellationException when the command has been cancelled
+	 */
+	public static int executeCommand(
+			final String command,
+			final String hostname,
+			final String username,
+			final char[] password,
+			final String workingDirectory,
+			final long timeout,
+			final CancellationToken cancellationToken
+	) throws WmiComException, TimeoutException {
+
 		Utils.checkNonNull(command, "command");
 		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
 
-		final long start = Utils.getCurrentTimeMillis();
-
 		final String networkResource = WmiHelper.createNetworkResource(hostname, CIMV2_NAMESPACE);
 		try (final WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance(networkResource, username, password)) {
+			return executeCommand(wmiWbemServices, command, workingDirectory, timeout, cancellationToken);
+		}
+	}
 
-			// Execute Win32_Process::Create
-			final Map<String, Object> createInputs = new HashMap<>();
-			createInputs.put("CommandLine", command);
-			if (!Utils.isBlank(workingDirectory)) {
-				createInputs.put("CurrentDirectory", workingDirectory.trim());
-			}
-			final Map<String, Object> createResult = wmiWbemServices.executeMethod(WIN32_PROCESS, WIN32_PROCESS, CREATE, createInputs);
+	/**
+	 * Execute the command on the remote, through an existing connection to its ROOT\CIMV2 namespace
+	 * @param wmiWbemServices WBEM Services connected to ROOT\CIMV2 on the remote system (mandatory)
+	 * @param command The command to execute
+	 * @param workingDirectory Path of the directory for the spawned process on the remote system (can be null)
+	 * @param timeout Timeout in milliseconds
+	 * @return the command status code
+	 * @throws WmiComException  For any problem encountered with JNA
+	 * @throws TimeoutException To notify userName of timeout.
+	 */
+	public static int executeCommand(
+			final WmiWbemServices wmiWbemServices,
+			final String command,
+			final String workingDirectory,
+			final long timeout
+	) throws WmiComException, TimeoutException {
 
-			// Extract ProcessId from the result
-			final Integer processId = (Integer) createResult.get("ProcessId");
-			if (processId == null || processId.intValue() < 1) {
-				throw new WmiComException("Could not spawn the process: No ProcessId was returned by Win32_Process::Create");
-			}
+		return executeCommand(wmiWbemServices, command, workingDirectory, timeout, CancellationToken.NONE);
+	}
+
+	/**
+	 * Execute the command on the remote, through an existing connection to its ROOT\CIMV2 namespace.
+	 * If the specified token is cancelled (or the thread interrupted) while the command is running,
+	 * the process is killed.
+	 * @param wmiWbemServices WBEM Services connected to ROOT\CIMV2 on the remote system (mandatory)
+	 * @param command The command to execute
+	 * @param workingDirectory Path of the directory for the spawned process on the remote system (can be null)
+	 * @param timeout Timeout in milliseconds
+	 * @param cancellationToken Cancels the command (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @return the command status code
+	 * @throws WmiComException  For any problem encountered with JNA
+	 * @throws TimeoutException To notify userName of timeout.
+	 * @throws CancellationException when the command has been cancelled
+	 */
+	public static int executeCommand(
+			final WmiWbemServices wmiWbemServices,
+			final String command,
+			final String workingDirectory,
+			final long timeout,
+			final CancellationToken cancellationToken
+	) throws WmiComException, TimeoutException {
+
+		Utils.checkNonNull(wmiWbemServices, "wmiWbemServices");
+		Utils.checkNonNull(command, "command");
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+		Utils.checkNonNull(cancellationToken, "cancellationToken");
+		cancellationToken.throwIfCancelled();
+
+		final long start = Utils.getCurrentTimeMillis();
+
+		// Execute Win32_Process::Create
+		final Map<String, Object> createInputs = new HashMap<>();
+		createInputs.put("CommandLine", command);
+		if (!Utils.isBlank(workingDirectory)) {
+			createInputs.put("CurrentDirectory", workingDirectory.trim());
+		}
+		final Map<String, Object> createResult = wmiWbemServices.executeMethod(WIN32_PROCESS, WIN32_PROCESS, CREATE, createInputs);
 
-			// Wait for the process to complete
+		// Extract ProcessId from the result
+		final Integer processId = (Integer) createResult.get("ProcessId");
+		if (processId == null || processId.intValue() < 1) {
+			throw new WmiComException("Could not spawn the process: No ProcessId was returned by Win32_Process::Create");
+		}
+
+		// Wait for the process to complete
+		try {
+			while (existProcess(wmiWbemServices, processId, TimeoutHelper.getRemainingTime(timeout, start, "No time left to check if the process exists"))) {
+				cancellationToken.throwIfCancelled();
+				TimeoutHelper.stagedSleep(timeout, start, String.format("Command %s execution has timed out", command));
+			}
+		} catch (final TimeoutException | CancellationException e) {
+			// TIME'S UP! (or cancelled)
+			// Kill the process and its children (and give us a 10-second extra time to do this)
+			// The interrupt status is cleared while we do this, and restored afterward
+			final boolean isInterrupted = Thread.interrupted();
 			try {
-				while (existProcess(wmiWbemServices, processId, TimeoutHelper.getRemainingTime(timeout, start, "No time left to check if the process exists"))) {
-					TimeoutHelper.stagedSleep(timeout, start, String.format("Command %s execution has timed out", command));
-				}
-			} catch (final TimeoutException e) {
-				// TIME'S UP!
-				// Kill the process and its children (and give us a 10-second extra time to do this)
 				killProcessWithChildren(wmiWbemServices, processId, 10000);
-				throw e;
+			} finally {
+				if (isInterrupted) {
+					Thread.currentThread().interrupt();
+				}
 			}
-
-			return  (Integer) createResult.get("ReturnValue");
+			throw e;
 		}
+
+		return  (Integer) createResult.get("ReturnValue");
 	}
 
 	/**
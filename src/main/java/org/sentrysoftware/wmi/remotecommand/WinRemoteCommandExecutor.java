@@ -26,8 +26,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
 
+import org.sentrysoftware.wmi.CancellationToken;
+import org.sentrysoftware.wmi.Deadline;
 import org.sentrysoftware.wmi.TimeoutHelper;
 import org.sentrysoftware.wmi.Utils;
 import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
@@ -133,17 +136,114 @@ public class WinRemoteCommandExecutor {
 			final boolean mergeStdoutStderr
 	) throws IOException, TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
 
-		Utils.checkNonNull(command, "command");
-		Utils.checkNonNull(hostname, "hostname");
 		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
 
-		final long start = Utils.getCurrentTimeMillis();
+		return execute(
+				command,
+				hostname,
+				username,
+				password,
+				workingDirectory,
+				Deadline.newInstance(timeout),
+				localFileToCopyList,
+				mergeStdoutStderr);
+	}
+
+	/**
+	 * Execute a command on a remote Windows system and return an object with
+	 * the output of the command, before the specified deadline.
+	 * <p>
+	 * Same as {@link #execute(String, String, String, char[], String, long, List, boolean)}, but the deadline
+	 * can be shared with the other steps of a larger operation: each step (access to the temporary share,
+	 * execution of the command, retrieval of its output) only gets the time left before the deadline.
+	 *
+	 * @param command The command to execute. (Mandatory)
+	 * @param hostname Host to connect to.  (Mandatory)
+	 * @param username The username name.
+	 * @param password The password.
+	 * @param workingDirectory Path of the directory for the spawned process on the remote system (can be null)
+	 * @param deadline Deadline for the whole execution (Mandatory)
+	 * @param localFileToCopyList List of local files to copy to the remote before the execution
+	 * @param mergeStdoutStderr Whether to merge stderr with stdout or retrieve them separately
+	 *
+	 * @return an instance of WinRemoteCommandExecutor with the result of the command
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException On WQL syntax errors
+	 * @throws WindowsRemoteException For any problem encountered on remote
+	 */
+	public static WinRemoteCommandExecutor execute(
+			final String command,
+			final String hostname,
+			final String username,
+			final char[] password,
+			final String workingDirectory,
+			final Deadline deadline,
+			final List<String> localFileToCopyList,
+			final boolean mergeStdoutStderr
+	) throws IOException, TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+
+		return execute(
+				command,
+				hostname,
+				username,
+				password,
+				workingDirectory,
+				deadline,
+				CancellationToken.NONE,
+				localFileToCopyList,
+				mergeStdoutStderr);
+	}
+
+	/**
+	 * Execute a command on a remote Windows system and return an object with
+	 * the output of the command, before the specified deadline.
+	 * <p>
+	 * If the specified token is cancelled (or the thread interrupted), the remote process is killed
+	 * and a CancellationException is thrown.
+	 *
+	 * @param command The command to execute. (Mandatory)
+	 * @param hostname Host to connect to.  (Mandatory)
+	 * @param username The username name.
+	 * @param password The password.
+	 * @param workingDirectory Path of the directory for the spawned process on the remote system (can be null)
+	 * @param deadline Deadline for the whole execution (Mandatory)
+	 * @param cancellationToken Cancels the execution (Mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @param localFileToCopyList List of local files to copy to the remote before the execution
+	 * @param mergeStdoutStderr Whether to merge stderr with stdout or retrieve them separately
+	 *
+	 * @return an instance of WinRemoteCommandExecutor with the result of the command
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException On WQL syntax errors
+	 * @throws WindowsRemoteException For any problem encountered on remote
+	 * @throws CancellationException when the execution has been cancelled
+	 */
+	public static WinRemoteCommandExecutor execute(
+			final String command,
+			final String hostname,
+			final String username,
+			final char[] password,
+			final String workingDirectory,
+			final Deadline deadline,
+			final CancellationToken cancellationToken,
+			final List<String> localFileToCopyList,
+			final boolean mergeStdoutStderr
+	) throws IOException, TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+
+		Utils.checkNonNull(command, "command");
+		Utils.checkNonNull(hostname, "hostname");
+		Utils.checkNonNull(deadline, "deadline");
+		Utils.checkNonNull(cancellationToken, "cancellationToken");
+		cancellationToken.throwIfCancelled();
 
 		try (WinTempShare tempShare = WinTempShare.getInstance(
 				hostname,
 				username,
 				password,
-				TimeoutHelper.getRemainingTime(timeout, start, "No time left to access the temporary share"))
+				deadline.getRemainingTime("No time left to access the temporary share"))
 		) {
 
 			tempShare.checkConnectedFirst();
@@ -176,18 +276,20 @@ public class WinRemoteCommandExecutor {
 					username,
 					password,
 					workingDirectory,
-					TimeoutHelper.getRemainingTime(timeout, start, "No time left to execute command")
+					deadline.getRemainingTime("No time left to execute command"),
+					cancellationToken
 			);
 			final float executionTime = (Utils.getCurrentTimeMillis() - startCommand) / 1000.0f;
 
 			// Wait for the stdout or stderr file to appear
 			while (!Files.exists(outputFilePath)) {
-				TimeoutHelper.stagedSleep(timeout, start, "Output files were not created");
+				cancellationToken.throwIfCancelled();
+				TimeoutHelper.stagedSleep(deadline, "Output files were not created");
 			}
 
 			final Charset charset = WindowsRemoteProcessUtils.getWindowsEncodingCharset(
 					tempShare.getWindowsRemoteExecutor(),
-					TimeoutHelper.getRemainingTime(timeout, start, "No time left to retrieve the code set"));
+					deadline.getRemainingTime("No time left to retrieve the code set"));
 
 			// Reading the stdout
 			final String outContent = Utils.readText(outputFilePath, charset);
@@ -20,8 +20,10 @@ package org.sentrysoftware.wmi.shares;
  * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
  */
 
+import org.sentrysoftware.wmi.HostReachability;
 import org.sentrysoftware.wmi.Utils;
 import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.exceptions.HostUnreachableException;
 import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
 import org.sentrysoftware.wmi.windows.remote.WindowsRemoteExecutor;
 import org.sentrysoftware.wmi.windows.remote.share.WindowsTempShare;
@@ -92,6 +94,7 @@ public class WinTempShare extends WindowsTempShare implements AutoCloseable {
 	 * @return the WinTempShare instance
 	 *
 	 * @throws TimeoutException To notify userName of timeout.
+	 * @throws HostUnreachableException if the host does not answer on the RPC port (see {@link HostReachability#setDefault(HostReachability)})
 	 * @throws WmiComException For any problem encountered with JNA.
 	 */
 	public static WinTempShare getInstance(
@@ -104,6 +107,11 @@ public class WinTempShare extends WindowsTempShare implements AutoCloseable {
 		Utils.checkNonNull(hostname, "hostname");
 		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
 
+		// Fail fast if the host does not answer on the RPC port (when enabled), before locking the cache entry
+		if (!CONNECTIONS_CACHE.containsKey(hostname.toLowerCase())) {
+			HostReachability.checkDefault(hostname);
+		}
+
 		try {
 			return CONNECTIONS_CACHE.compute(
 					hostname.toLowerCase(),
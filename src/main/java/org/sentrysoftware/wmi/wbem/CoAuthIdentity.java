@@ -81,11 +81,11 @@ public class CoAuthIdentity extends Structure {
 		}
 
 		// Sets the password field (native)
-		// Note: too bad we couldn't manage to copy the password as a char array
-		// without creating a String object
+		// The characters are copied as is, without creating a String object
 		if (password != null) {
 			this.password = new Memory(Native.WCHAR_SIZE * (password.length + 1L));
-			this.password.setWideString(0, String.valueOf(password));
+			this.password.write(0, password, 0, password.length);
+			this.password.setChar(Native.WCHAR_SIZE * (long) password.length, '\0');
 			this.passwordLength = password.length;
 		} else {
 			this.password = null;
@@ -96,4 +96,30 @@ public class CoAuthIdentity extends Structure {
 		this.flags = 0x2;
 
 	}
+
+	/**
+	 * Overwrite the password with zeros, and free the native memory of the strings.
+	 * The structure must not be used afterwards.
+	 */
+	public void wipe() {
+
+		if (password instanceof Memory) {
+			((Memory) password).clear();
+			((Memory) password).close();
+		}
+		if (user instanceof Memory) {
+			((Memory) user).close();
+		}
+		if (domain instanceof Memory) {
+			((Memory) domain).close();
+		}
+
+		user = null;
+		userLength = 0;
+		domain = null;
+		domainLength = 0;
+		password = null;
+		passwordLength = 0;
+		write();
+	}
 }
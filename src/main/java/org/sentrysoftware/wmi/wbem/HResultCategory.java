@@ -0,0 +1,128 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Categories of the HRESULT codes returned by WMI and DCOM, to decide what to do with a failed call.
+ */
+public enum HResultCategory {
+
+	/**
+	 * The connection to the host is broken (host rebooted, RPC endpoint reset, WMI service restarted, etc.).
+	 * The connection must be re-established; the call may succeed with a new connection.
+	 */
+	TRANSPORT,
+
+	/**
+	 * The credentials are not allowed to perform the call. Retrying with the same credentials is useless.
+	 */
+	ACCESS_DENIED,
+
+	/**
+	 * The host did not answer in time. The host may be down, or overloaded.
+	 */
+	TIMEOUT,
+
+	/**
+	 * The query is invalid. Retrying is useless.
+	 */
+	INVALID_QUERY,
+
+	/**
+	 * Any other problem (or unknown HRESULT)
+	 */
+	OTHER;
+
+	/** WBEM_E_TRANSPORT_FAILURE, WBEM_E_SHUTTING_DOWN, WBEM_E_FATAL_TRANSPORT_ERROR and the RPC errors */
+	private static final Set<Integer> TRANSPORT_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			0x80041015,
+			0x80041033,
+			0x80041086,
+			0x800706BA,
+			0x800706BE,
+			0x800706BF,
+			0x80010007,
+			0x80010012,
+			0x80010108)));
+
+	/** WBEM_E_ACCESS_DENIED and E_ACCESSDENIED */
+	private static final Set<Integer> ACCESS_DENIED_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			0x80041003,
+			0x80070005)));
+
+	/** HRESULT_FROM_WIN32(ERROR_TIMEOUT), HRESULT_FROM_WIN32(ERROR_SEM_TIMEOUT) and RPC_E_TIMEOUT */
+	private static final Set<Integer> TIMEOUT_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			0x800705B4,
+			0x80070079,
+			0x8001011F)));
+
+	/** WBEM_E_INVALID_QUERY and WBEM_E_INVALID_QUERY_TYPE */
+	private static final Set<Integer> INVALID_QUERY_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			0x80041017,
+			0x80041018)));
+
+	/**
+	 * @param hResult The HRESULT code
+	 * @return the category of the specified HRESULT
+	 */
+	public static HResultCategory of(final int hResult) {
+		if (TRANSPORT_CODES.contains(hResult)) {
+			return TRANSPORT;
+		}
+		if (ACCESS_DENIED_CODES.contains(hResult)) {
+			return ACCESS_DENIED;
+		}
+		if (TIMEOUT_CODES.contains(hResult)) {
+			return TIMEOUT;
+		}
+		if (INVALID_QUERY_CODES.contains(hResult)) {
+			return INVALID_QUERY;
+		}
+		return OTHER;
+	}
+
+	/**
+	 * @param exception The exception thrown by a WMI call (may be null)
+	 * @return the category of the HRESULT of the specified exception ({@link #TIMEOUT} for a
+	 * {@link TimeoutException}, {@link #OTHER} if it has no HRESULT)
+	 */
+	public static HResultCategory of(final Throwable exception) {
+		for (Throwable cause = exception; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+			if (cause instanceof TimeoutException) {
+				return TIMEOUT;
+			}
+			if (cause instanceof WmiComException) {
+				final Integer hResult = ((WmiComException) cause).getHResult();
+				if (hResult != null) {
+					return of(hResult.intValue());
+				}
+			}
+		}
+		return OTHER;
+	}
+}
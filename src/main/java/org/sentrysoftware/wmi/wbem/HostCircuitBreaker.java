@@ -0,0 +1,445 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.exceptions.CircuitOpenException;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-host circuit breaker in front of the connections to WMI (<code>IWbemLocator::ConnectServer</code>).
+ * <p>
+ * A host that is down, or that rejects the credentials, makes each connection attempt block for the DCOM timeout.
+ * After {@link #getFailureThreshold()} consecutive failures of the connections to a host (access denied,
+ * transport failure or timeout, see {@link HResultCategory}), the circuit of the host opens: the next attempts fail
+ * immediately with a {@link CircuitOpenException}, without contacting the host.
+ * <p>
+ * Once the cool-down has elapsed, the circuit is half-open: a single trial connection is let through.
+ * If it succeeds, the circuit closes. If it fails, the circuit opens again with a cool-down twice as long
+ * (up to {@link #getMaxCoolDown()}).
+ * <p>
+ * Failures that prove the host answered (e.g. invalid namespace) close the circuit.
+ * <p>
+ * Each account (username) has its own circuit on a host: an account with a wrong password doesn't suspend
+ * the connections made with the other accounts to the same host.
+ * <p>
+ * The circuit breaker is disabled by default. It is enabled for {@link WmiWbemServices#getInstance(String, String, char[])}
+ * with {@link #setDefault(HostCircuitBreaker)}, or for a given connection with
+ * {@link WmiWbemServices#getInstance(String, String, char[], HostCircuitBreaker)}.
+ * This class is thread-safe.
+ */
+public class HostCircuitBreaker {
+
+	/** Default number of consecutive failures that opens the circuit */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	/** Default duration (in milliseconds) of the first cool-down */
+	public static final long DEFAULT_INITIAL_COOL_DOWN = 30L * 1000;
+
+	/** Default maximum duration (in milliseconds) of a cool-down */
+	public static final long DEFAULT_MAX_COOL_DOWN = 15L * 60 * 1000;
+
+	/**
+	 * State of the circuit of a host
+	 */
+	public enum State {
+		/** Connections are allowed */
+		CLOSED,
+		/** Connections fail immediately */
+		OPEN,
+		/** A trial connection is allowed */
+		HALF_OPEN
+	}
+
+	/** Separates the host and the account in the keys of {@link #hostStates} */
+	private static final char KEY_SEPARATOR = '|';
+
+	/** The instance used by {@link WmiWbemServices#getInstance(String, String, char[])} (null when disabled) */
+	private static volatile HostCircuitBreaker defaultInstance = null;
+
+	/** Number of consecutive failures that opens the circuit */
+	private final int failureThreshold;
+
+	/** Duration (in milliseconds) of the first cool-down */
+	private final long initialCoolDown;
+
+	/** Maximum duration (in milliseconds) of a cool-down */
+	private final long maxCoolDown;
+
+	/** State of the hosts and accounts that failed (the ones with a closed circuit and no failure are not listed) */
+	private final Map<String, HostState> hostStates = new ConcurrentHashMap<>();
+
+	/** Number of connection attempts rejected without contacting the host */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Create a circuit breaker with the default settings
+	 */
+	public HostCircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_INITIAL_COOL_DOWN, DEFAULT_MAX_COOL_DOWN);
+	}
+
+	/**
+	 * Create a circuit breaker
+	 *
+	 * @param failureThreshold Number of consecutive failures that opens the circuit (throws an IllegalArgumentException if negative or zero)
+	 * @param initialCoolDown Duration in milliseconds of the first cool-down (throws an IllegalArgumentException if negative or zero)
+	 * @param maxCoolDown Maximum duration in milliseconds of a cool-down (throws an IllegalArgumentException if lower than initialCoolDown)
+	 */
+	public HostCircuitBreaker(
+			final int failureThreshold,
+			final long initialCoolDown,
+			final long maxCoolDown) {
+
+		Utils.checkArgumentNotZeroOrNegative(failureThreshold, "failureThreshold");
+		Utils.checkArgumentNotZeroOrNegative(initialCoolDown, "initialCoolDown");
+		if (maxCoolDown < initialCoolDown) {
+			throw new IllegalArgumentException("maxCoolDown must not be lower than initialCoolDown");
+		}
+
+		this.failureThreshold = failureThreshold;
+		this.initialCoolDown = initialCoolDown;
+		this.maxCoolDown = maxCoolDown;
+	}
+
+	/**
+	 * @return the circuit breaker used by {@link WmiWbemServices#getInstance(String, String, char[])}
+	 * (null when disabled, the default)
+	 */
+	public static HostCircuitBreaker getDefault() {
+		return defaultInstance;
+	}
+
+	/**
+	 * Set the circuit breaker used by {@link WmiWbemServices#getInstance(String, String, char[])}
+	 *
+	 * @param circuitBreaker The instance to use (null to disable the circuit breaker)
+	 */
+	public static void setDefault(final HostCircuitBreaker circuitBreaker) {
+		defaultInstance = circuitBreaker;
+	}
+
+	/**
+	 * @param category Category of the HRESULT of a failed connection
+	 * @return whether a failure of the specified category counts towards opening the circuit
+	 */
+	public static boolean isCountedFailure(final HResultCategory category) {
+		return category == HResultCategory.TRANSPORT ||
+				category == HResultCategory.ACCESS_DENIED ||
+				category == HResultCategory.TIMEOUT;
+	}
+
+	/**
+	 * Check whether a connection to the specified host, with the current account, may be attempted.
+	 * The caller must then report the outcome of the attempt with {@link #onSuccess(String)}
+	 * or {@link #onFailure(String, Throwable)}.
+	 *
+	 * @param hostname The host (null for the local system)
+	 * @throws CircuitOpenException if the circuit of the host is open, or half-open with a trial connection in progress
+	 */
+	public void acquirePermission(final String hostname) throws CircuitOpenException {
+		acquirePermission(hostname, null);
+	}
+
+	/**
+	 * Check whether a connection to the specified host, with the specified account, may be attempted.
+	 * The caller must then report the outcome of the attempt with {@link #onSuccess(String, String)}
+	 * or {@link #onFailure(String, String, Throwable)}.
+	 *
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 * @throws CircuitOpenException if the circuit of the host and account is open, or half-open with a trial connection in progress
+	 */
+	public void acquirePermission(final String hostname, final String username) throws CircuitOpenException {
+
+		final HostState hostState = hostStates.get(buildKey(hostname, username));
+		if (hostState == null) {
+			return;
+		}
+
+		final String target = username == null ? hostname : String.format("%s (as %s)", hostname, username);
+
+		synchronized (hostState) {
+			final long now = Utils.getCurrentTimeMillis();
+
+			if (hostState.state == State.OPEN) {
+				if (now < hostState.openUntil) {
+					rejectedCount.incrementAndGet();
+					throw new CircuitOpenException(
+							hostname,
+							hostState.openUntil - now,
+							"Connections to %s are suspended for %d ms after %d consecutive failures (last: %s)",
+							target,
+							hostState.openUntil - now,
+							hostState.consecutiveFailures,
+							hostState.lastCategory);
+				}
+
+				// Cool-down elapsed: let one trial connection through
+				hostState.state = State.HALF_OPEN;
+				hostState.isTrialInProgress = false;
+			}
+
+			if (hostState.state == State.HALF_OPEN) {
+				if (hostState.isTrialInProgress) {
+					rejectedCount.incrementAndGet();
+					throw new CircuitOpenException(
+							hostname,
+							0,
+							"Connections to %s are suspended until the trial connection completes",
+							target);
+				}
+				hostState.isTrialInProgress = true;
+			}
+		}
+	}
+
+	/**
+	 * Report a successful connection to the specified host, with the current account: its circuit closes.
+	 *
+	 * @param hostname The host (null for the local system)
+	 */
+	public void onSuccess(final String hostname) {
+		onSuccess(hostname, null);
+	}
+
+	/**
+	 * Report a successful connection to the specified host, with the specified account: its circuit closes.
+	 *
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 */
+	public void onSuccess(final String hostname, final String username) {
+		hostStates.remove(buildKey(hostname, username));
+	}
+
+	/**
+	 * Report a failed connection to the specified host, with the current account
+	 *
+	 * @param hostname The host (null for the local system)
+	 * @param exception The exception thrown by the connection
+	 */
+	public void onFailure(final String hostname, final Throwable exception) {
+		onFailure(hostname, null, exception);
+	}
+
+	/**
+	 * Report a failed connection to the specified host, with the specified account
+	 *
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 * @param exception The exception thrown by the connection
+	 */
+	public void onFailure(final String hostname, final String username, final Throwable exception) {
+
+		final HResultCategory category = HResultCategory.of(exception);
+
+		// The host answered: the circuit closes
+		if (!isCountedFailure(category)) {
+			onSuccess(hostname, username);
+			return;
+		}
+
+		final HostState hostState = hostStates.computeIfAbsent(buildKey(hostname, username), key -> new HostState());
+		synchronized (hostState) {
+			hostState.consecutiveFailures++;
+			hostState.failureCounts.merge(category, 1, Integer::sum);
+			hostState.lastCategory = category;
+
+			if (hostState.state == State.HALF_OPEN ||
+					hostState.state == State.CLOSED && hostState.consecutiveFailures >= failureThreshold) {
+				open(hostState);
+			}
+		}
+	}
+
+	/**
+	 * Open the circuit of the specified host, with a cool-down twice as long as the previous one
+	 *
+	 * @param hostState The state of the host (locked by the caller)
+	 */
+	private void open(final HostState hostState) {
+		long coolDown = initialCoolDown;
+		for (int i = 0; i < hostState.openCount && coolDown < maxCoolDown; i++) {
+			coolDown *= 2;
+		}
+		coolDown = Math.min(coolDown, maxCoolDown);
+		hostState.openCount++;
+		hostState.state = State.OPEN;
+		hostState.isTrialInProgress = false;
+		hostState.openUntil = Utils.getCurrentTimeMillis() + coolDown;
+	}
+
+	/**
+	 * @param hostname The host (null for the local system)
+	 * @return the state of the circuit of the specified host, with the current account
+	 */
+	public State getState(final String hostname) {
+		return getState(hostname, null);
+	}
+
+	/**
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 * @return the state of the circuit of the specified host, with the specified account
+	 */
+	public State getState(final String hostname, final String username) {
+		final HostState hostState = hostStates.get(buildKey(hostname, username));
+		if (hostState == null) {
+			return State.CLOSED;
+		}
+		synchronized (hostState) {
+			return hostState.state == State.OPEN && Utils.getCurrentTimeMillis() >= hostState.openUntil ?
+					State.HALF_OPEN :
+					hostState.state;
+		}
+	}
+
+	/**
+	 * @param hostname The host (null for the local system)
+	 * @return the number of consecutive failures of the connections to the specified host with the current account,
+	 * by category
+	 */
+	public Map<HResultCategory, Integer> getFailureCounts(final String hostname) {
+		return getFailureCounts(hostname, null);
+	}
+
+	/**
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 * @return the number of consecutive failures of the connections to the specified host with the specified account,
+	 * by category
+	 */
+	public Map<HResultCategory, Integer> getFailureCounts(final String hostname, final String username) {
+		final HostState hostState = hostStates.get(buildKey(hostname, username));
+		final Map<HResultCategory, Integer> failureCounts = new EnumMap<>(HResultCategory.class);
+		if (hostState != null) {
+			synchronized (hostState) {
+				failureCounts.putAll(hostState.failureCounts);
+			}
+		}
+		return failureCounts;
+	}
+
+	/**
+	 * Close the circuits of the specified host, for all the accounts (e.g. after the host is back)
+	 *
+	 * @param hostname The host (null for the local system)
+	 */
+	public void reset(final String hostname) {
+		final String prefix = buildHostKey(hostname) + KEY_SEPARATOR;
+		hostStates.keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	/**
+	 * Close the circuit of the specified host, for the specified account (e.g. after its password has been fixed)
+	 *
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 */
+	public void reset(final String hostname, final String username) {
+		onSuccess(hostname, username);
+	}
+
+	/**
+	 * Close the circuits of all the hosts
+	 */
+	public void resetAll() {
+		hostStates.clear();
+	}
+
+	/**
+	 * @return the number of connection attempts rejected without contacting the host
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return the number of consecutive failures that opens the circuit
+	 */
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * @return the duration (in milliseconds) of the first cool-down
+	 */
+	public long getInitialCoolDown() {
+		return initialCoolDown;
+	}
+
+	/**
+	 * @return the maximum duration (in milliseconds) of a cool-down
+	 */
+	public long getMaxCoolDown() {
+		return maxCoolDown;
+	}
+
+	/**
+	 * @param hostname The host (null for the local system)
+	 * @param username The account (null for the current account)
+	 * @return the key of the specified host and account in {@link #hostStates}
+	 */
+	private static String buildKey(final String hostname, final String username) {
+		return buildHostKey(hostname) + KEY_SEPARATOR + (username == null ? Utils.EMPTY : username.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @param hostname The host (null for the local system)
+	 * @return the part of the keys of {@link #hostStates} that identifies the host
+	 */
+	private static String buildHostKey(final String hostname) {
+		return hostname == null ? Utils.EMPTY : hostname.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * State of the circuit of a host and account
+	 */
+	private static class HostState {
+
+		/** State of the circuit */
+		private State state = State.CLOSED;
+
+		/** Number of consecutive failures */
+		private int consecutiveFailures = 0;
+
+		/** Number of consecutive failures, by category */
+		private final Map<HResultCategory, Integer> failureCounts = new EnumMap<>(HResultCategory.class);
+
+		/** Category of the last failure */
+		private HResultCategory lastCategory = null;
+
+		/** Number of times the circuit opened since it was last closed */
+		private int openCount = 0;
+
+		/** Time (in milliseconds) until which the circuit stays open */
+		private long openUntil = 0;
+
+		/** Whether the trial connection of the half-open circuit is in progress */
+		private boolean isTrialInProgress = false;
+	}
+}
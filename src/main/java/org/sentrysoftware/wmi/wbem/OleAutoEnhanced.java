@@ -0,0 +1,57 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.OleAuto;
+import com.sun.jna.platform.win32.WTypes.BSTR;
+import com.sun.jna.win32.W32APIOptions;
+
+/**
+ * Enhanced version of the OleAuto interface, with a SysAllocStringLen() method that creates a BSTR
+ * from native memory (so that a password never goes through a Java String), and a SysFreeString()
+ * method that frees a BSTR returned by a COM method as a plain pointer.
+ */
+public interface OleAutoEnhanced extends OleAuto {
+
+	public OleAutoEnhanced INSTANCE = Native.load("OleAut32", OleAutoEnhanced.class, W32APIOptions.DEFAULT_OPTIONS);
+
+	/**
+	 * Allocates a new string, copies the specified number of characters from the passed string,
+	 * and appends a null-terminating character.
+	 *
+	 * @param strIn [in] The input string (wide characters, in native memory)
+	 * @param ui    [in] The number of characters to copy
+	 * @return A copy of the string, or NULL if there is insufficient memory to complete the operation.
+	 * @see <a href="https://learn.microsoft.com/en-us/windows/win32/api/oleauto/nf-oleauto-sysallocstringlen">SysAllocStringLen function (oleauto.h)</a>
+	 */
+	public BSTR SysAllocStringLen(Pointer strIn, int ui);
+
+	/**
+	 * Frees a string allocated previously by SysAllocString, SysAllocStringByteLen, SysReAllocString,
+	 * SysAllocStringLen, or SysReAllocStringLen, from its pointer (without creating a BSTR instance).
+	 *
+	 * @param bstr [in] The previously allocated string (if NULL, the function simply returns)
+	 * @see <a href="https://learn.microsoft.com/en-us/windows/win32/api/oleauto/nf-oleauto-sysfreestring">SysFreeString function (oleauto.h)</a>
+	 */
+	public void SysFreeString(Pointer bstr);
+}
@@ -0,0 +1,316 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.CancellationToken;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.COM.COMUtils;
+import com.sun.jna.platform.win32.COM.Unknown;
+import com.sun.jna.platform.win32.COM.Wbemcli.IWbemClassObject;
+import com.sun.jna.platform.win32.Guid.CLSID;
+import com.sun.jna.platform.win32.Guid.GUID;
+import com.sun.jna.platform.win32.Guid.REFIID;
+import com.sun.jna.platform.win32.Ole32;
+import com.sun.jna.platform.win32.WTypes;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+import com.sun.jna.ptr.PointerByReference;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A WQL query executed asynchronously with <code>IWbemServices::ExecQueryAsync</code>.
+ * <p>
+ * The rows are converted and passed to the row consumer as WMI calls the
+ * {@link WmiObjectSink} (on RPC threads), and the future completes when WMI reports
+ * the end of the call. No thread is blocked while the query is running.
+ * <p>
+ * The timeout and the clean-up of the COM objects are handled by a single shared daemon thread.
+ */
+class WmiAsyncQuery {
+
+	/**
+	 * UnsecuredApartment Class Identifier CLSID.
+	 *
+	 * @see <a href="https://docs.microsoft.com/en-us/windows/win32/wmisdk/iunsecuredapartment">IUnsecuredApartment interface</a>
+	 */
+	private static final CLSID CLSID_UNSECURED_APARTMENT = new CLSID("49BD2028-1523-11D1-AD79-00C04FD8FDFF");
+
+	/** IUnsecuredApartment Interface Universally Unique Identifier UUID. */
+	private static final GUID IID_IUNSECURED_APARTMENT = new GUID("1CFABA8C-1523-11D1-AD79-00C04FD8FDFF");
+
+	private static final int UNSECURED_APARTMENT_CREATE_OBJECT_STUB_VTABLE_ID = 3;
+
+	/** HRESULT returned by WMI when the WQL query is invalid (WBEM_E_INVALID_QUERY) */
+	private static final int WBEM_E_INVALID_QUERY = 0x80041017;
+
+	/** Times out the queries and releases the COM objects once the queries are complete */
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "WmiAsyncQuery-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final WmiWbemServices wmiWbemServices;
+	private final WqlQuery wqlQuery;
+	private final Consumer<Map<String, Object>> rowConsumer;
+	private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+	/** Whether WMI has reported the end of the call (no need to cancel it) */
+	private final AtomicBoolean isCallComplete = new AtomicBoolean(false);
+
+	/** Whether the COM objects have been released */
+	private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+	/** Our IWbemObjectSink implementation */
+	private final WmiObjectSink sink;
+
+	/** The IWbemObjectSink pointer passed to WMI (the stub of the sink, or the sink itself) */
+	private Pointer sinkPointer;
+
+	private ScheduledFuture<?> timeoutTask;
+
+	/** Number of rows passed to the consumer so far (guarded by this) */
+	private long rowCount = 0;
+
+	/** Conversion of the objects to rows (guarded by this) */
+	private WmiConversionPlan conversionPlan = null;
+
+	/**
+	 * @param wmiWbemServices The connection to execute the query with
+	 * @param wqlQuery The WQL query
+	 * @param rowConsumer Called for each row (never concurrently)
+	 */
+	WmiAsyncQuery(
+			final WmiWbemServices wmiWbemServices,
+			final WqlQuery wqlQuery,
+			final Consumer<Map<String, Object>> rowConsumer) {
+		this.wmiWbemServices = wmiWbemServices;
+		this.wqlQuery = wqlQuery;
+		this.rowConsumer = rowConsumer;
+		this.sink = new WmiObjectSink(this::onObject, this::onStatus);
+	}
+
+	/**
+	 * Start the query (the connection must be locked for read by the caller)
+	 *
+	 * @param wql The WQL query
+	 * @param timeout Timeout in milliseconds for the whole query
+	 * @param cancellationToken Cancels the query
+	 * @return a future that completes with the number of rows when the query is complete
+	 * @throws WmiComException when the query cannot be started
+	 */
+	CompletableFuture<Long> start(
+			final String wql,
+			final long timeout,
+			final CancellationToken cancellationToken) throws WmiComException {
+
+		sinkPointer = createSinkStub(sink);
+		wmiWbemServices.addAsyncQuery(this);
+
+		try {
+			wmiWbemServices.execQueryAsync(wql, sinkPointer);
+		} catch (final WmiComException | RuntimeException e) {
+			release();
+			throw e;
+		}
+
+		timeoutTask = SCHEDULER.schedule(
+				() -> future.completeExceptionally(new TimeoutException("No complete result after " + timeout + " ms.")),
+				timeout,
+				TimeUnit.MILLISECONDS);
+
+		final CancellationToken.Registration cancellation = cancellationToken.onCancel(
+				() -> future.completeExceptionally(new CancellationException("The query was cancelled")));
+
+		// Whatever the reason (complete, timeout, cancelled), clean up on the scheduler thread
+		future.whenComplete((result, throwable) -> {
+			cancellation.close();
+			timeoutTask.cancel(false);
+			SCHEDULER.execute(this::cleanUp);
+		});
+
+		return future;
+	}
+
+	/**
+	 * Wrap the sink in a stub from an <i>unsecured apartment</i>, so that the calls from a remote WMI
+	 * service are accepted, whatever the security settings of this process.
+	 * Uses the sink itself if the unsecured apartment is not available.
+	 *
+	 * @see <a href="https://docs.microsoft.com/en-us/windows/win32/wmisdk/setting-security-on-an-asynchronous-call">Setting Security on an Asynchronous Call</a>
+	 * @return the IWbemObjectSink pointer to pass to WMI (with a reference that we own)
+	 */
+	private static Pointer createSinkStub(final WmiObjectSink sink) {
+
+		final PointerByReference unsecuredApartment = new PointerByReference();
+		if (COMUtils.SUCCEEDED(Ole32.INSTANCE.CoCreateInstance(
+				CLSID_UNSECURED_APARTMENT,
+				null,
+				WTypes.CLSCTX_LOCAL_SERVER,
+				IID_IUNSECURED_APARTMENT,
+				unsecuredApartment))) {
+
+			final Unknown apartment = new Unknown(unsecuredApartment.getValue());
+			try {
+				final PointerByReference stub = new PointerByReference();
+				final HRESULT hResult = (HRESULT) WmiComHelper.comInvokerInvokeNativeObject(
+						apartment.getPointer(),
+						UNSECURED_APARTMENT_CREATE_OBJECT_STUB_VTABLE_ID,
+						new Object[] { apartment.getPointer(), sink.getPointer(), stub },
+						HRESULT.class);
+
+				if (COMUtils.SUCCEEDED(hResult)) {
+					final Unknown stubUnknown = new Unknown(stub.getValue());
+					try {
+						final PointerByReference stubSink = new PointerByReference();
+						if (COMUtils.SUCCEEDED(stubUnknown.QueryInterface(new REFIID(WmiObjectSink.IID_IWBEM_OBJECT_SINK), stubSink))) {
+							return stubSink.getValue();
+						}
+					} finally {
+						stubUnknown.Release();
+					}
+				}
+			} finally {
+				apartment.Release();
+			}
+		}
+
+		// Fallback: the sink itself
+		sink.addRef();
+		return sink.getPointer();
+	}
+
+	/**
+	 * Called by WMI with each object of the result
+	 */
+	private synchronized void onObject(final IWbemClassObject wbemClassObject) {
+
+		if (future.isDone()) {
+			return;
+		}
+
+		try {
+			if (conversionPlan == null) {
+				conversionPlan = wmiWbemServices.getConversionPlan(
+						wqlQuery,
+						wqlQuery.getSubPropertiesMap(),
+						wbemClassObject);
+			}
+			rowConsumer.accept(conversionPlan.getPropertiesValues(wbemClassObject));
+			rowCount++;
+		} catch (final Throwable t) {
+			future.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Called by WMI when the call is complete (and with progress information)
+	 */
+	private synchronized void onStatus(final int flags, final int hResult) {
+
+		if (flags != WmiObjectSink.WBEM_STATUS_COMPLETE) {
+			return;
+		}
+
+		isCallComplete.set(true);
+
+		if (hResult == WBEM_E_INVALID_QUERY) {
+			future.completeExceptionally(new WqlQuerySyntaxException("The query was not syntactically valid."));
+		} else if (COMUtils.FAILED(hResult)) {
+			future.completeExceptionally(new WmiComException(
+					"Failed to execute query. %s",
+					WmiWbemServices.getWmiComErrorMessage(new HRESULT(hResult))));
+		} else {
+			future.complete(rowCount);
+		}
+	}
+
+	/**
+	 * Cancel the call if it's still running (timeout, future cancelled, consumer failure),
+	 * and release the COM objects. Runs on the scheduler thread.
+	 */
+	private void cleanUp() {
+
+		try {
+			WmiComHelper.initializeComLibrary();
+		} catch (final WmiComException e) {
+			/* Do nothing -- Nothing we can do without COM */
+			return;
+		}
+
+		if (!isCallComplete.get()) {
+			cancel();
+		}
+		release();
+	}
+
+	/**
+	 * Cancel the call with IWbemServices::CancelAsyncCall.
+	 * WMI then calls SetStatus with WBEM_E_CALL_CANCELLED, which is ignored as the future is already done.
+	 */
+	void cancel() {
+
+		if (!future.isDone()) {
+			future.completeExceptionally(new CancellationException("The query was cancelled"));
+		}
+
+		if (isCallComplete.compareAndSet(false, true) && !isReleased.get()) {
+			wmiWbemServices.cancelAsyncCall(sinkPointer);
+		}
+	}
+
+	/**
+	 * Release our references on the sink and its stub
+	 */
+	private void release() {
+		if (isReleased.compareAndSet(false, true)) {
+			wmiWbemServices.removeAsyncQuery(this);
+			if (sinkPointer != null) {
+				if (sink.getPointer().equals(sinkPointer)) {
+					sink.release();
+				} else {
+					new Unknown(sinkPointer).Release();
+				}
+			}
+			sink.release();
+		}
+	}
+
+	/**
+	 * @return the future that completes when the query is complete
+	 */
+	CompletableFuture<Long> getFuture() {
+		return future;
+	}
+
+}
@@ -21,6 +21,8 @@ package org.sentrysoftware.wmi.wbem;
  */
 
 import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiResultSet;
+import com.sun.jna.Pointer;
 import com.sun.jna.platform.win32.COM.COMUtils;
 import com.sun.jna.platform.win32.COM.IUnknown;
 import com.sun.jna.platform.win32.COM.Unknown;
@@ -29,6 +31,7 @@ import com.sun.jna.platform.win32.COM.Wbemcli.IWbemClassObject;
 import com.sun.jna.platform.win32.Guid.REFIID;
 import com.sun.jna.platform.win32.OaIdl.SAFEARRAY;
 import com.sun.jna.platform.win32.OleAuto;
+import com.sun.jna.platform.win32.Variant;
 import com.sun.jna.platform.win32.Variant.VARIANT.ByReference;
 import com.sun.jna.platform.win32.WinNT.HRESULT;
 import com.sun.jna.ptr.IntByReference;
@@ -349,7 +352,7 @@ public class WmiCimTypeHandler {
 
 		return Collections.singletonMap(
 				property.getKey(),
-				CIMTYPE_TO_CONVERTER_MAP.getOrDefault(cimType, v -> "Unsupported type").apply(value));
+				getConverter(cimType).apply(value));
 
 	}
 
@@ -374,39 +377,181 @@ public class WmiCimTypeHandler {
 	private static Map<String, Object> getPropertyValueFromWbemObject(
 			final IWbemClassObject wbemClassObject,
 			final Entry<String, Set<String>> property) {
-		final ByReference value = new ByReference();
-		final IntByReference pType = new IntByReference();
 
-		// Initialize value, to make sure *VariantClear()* won't throw an exception
+		// The VARIANT is already initialized, and cleared after each use
 		// See https://docs.microsoft.com/en-us/windows/win32/api/wbemcli/nf-wbemcli-iwbemclassobject-get
-		OleAuto.INSTANCE.VariantInit(value);
+		try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+			final ByReference value = buffers.getValue();
+			try {
+				final HRESULT hResult = wbemClassObject.Get(
+						property.getKey(),
+						0,
+						value,
+						buffers.getType(),
+						buffers.getFlavor()
+				);
+				if (COMUtils.FAILED(hResult)) {
+					return Collections.singletonMap(property.getKey(), null);
+				}
 
-		try {
-			final HRESULT hResult = wbemClassObject.Get(
-					property.getKey(),
-					0,
-					value,
-					pType,
-					new IntByReference()
-			);
-			if (COMUtils.FAILED(hResult)) {
-				return Collections.singletonMap(property.getKey(), null);
-			}
+				// Special case for __PATH
+				if ("__PATH".equalsIgnoreCase(property.getKey())) {
+					return Collections.singletonMap(property.getKey(), convertCimReference(value));
+				}
+
+				return convert(value, buffers.getType().getValue(), property);
 
-			// Special case for __PATH
-			if ("__PATH".equalsIgnoreCase(property.getKey())) {
-				return Collections.singletonMap(property.getKey(), convertCimReference(value));
+			} finally {
+				buffers.clearValue();
 			}
+		}
+	}
+
+	/**
+	 * Offset of the value in a VARIANT structure (after the VARTYPE and the 3 reserved WORDs)
+	 */
+	private static final int VARIANT_VALUE_OFFSET = 8;
 
-			return convert(value, pType.getValue(), property);
+	/**
+	 * @param cimType CIM type
+	 * @return the function that converts the VARIANT values of the specified (non-array) CIM type to Java objects
+	 */
+	static Function<ByReference, Object> getConverter(final int cimType) {
+		return CIMTYPE_TO_CONVERTER_MAP.getOrDefault(cimType, v -> "Unsupported type");
+	}
 
-		} finally {
+	/**
+	 * @param cimType CIM type
+	 * @return whether the values of the specified CIM type can be read as primitives
+	 * (see {@link #readPrimitive(ByReference, int, WmiResultSet, int, int)})
+	 */
+	static boolean isPrimitive(final int cimType) {
+		switch (cimType) {
+		case Wbemcli.CIM_BOOLEAN:
+		case Wbemcli.CIM_UINT8:
+		case Wbemcli.CIM_SINT8:
+		case Wbemcli.CIM_UINT16:
+		case Wbemcli.CIM_SINT16:
+		case Wbemcli.CIM_UINT32:
+		case Wbemcli.CIM_SINT32:
+		case Wbemcli.CIM_UINT64:
+		case Wbemcli.CIM_SINT64:
+		case Wbemcli.CIM_REAL32:
+		case Wbemcli.CIM_REAL64:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Read a numeric or boolean value straight from the VARIANT into a cell of the result set,
+	 * without boxing (and without creating a String for CIM_UINT64 and CIM_SINT64 values,
+	 * which WMI returns as BSTR).
+	 *
+	 * @param value The VARIANT returned by IWbemClassObject::Get
+	 * @param cimType CIM type of the property (see {@link #isPrimitive(int)})
+	 * @param resultSet The result set
+	 * @param row Index of the row to set in the result set
+	 * @param column Index of the column to set in the result set
+	 * @return whether the value has been read (false when it must be converted as an object)
+	 */
+	static boolean readPrimitive(
+			final ByReference value,
+			final int cimType,
+			final WmiResultSet resultSet,
+			final int row,
+			final int column) {
+
+		// Read the VARIANT memory directly
+		final Pointer variant = value.getPointer();
+		switch (variant.getShort(0) & 0xFFFF) {
+		case Variant.VT_EMPTY:
+		case Variant.VT_NULL:
+			resultSet.setNull(row, column);
+			return true;
+		case Variant.VT_BOOL:
+			resultSet.setBoolean(row, column, variant.getShort(VARIANT_VALUE_OFFSET) != 0);
+			return true;
+		case Variant.VT_R4:
+			resultSet.setDouble(row, column, variant.getFloat(VARIANT_VALUE_OFFSET));
+			return true;
+		case Variant.VT_R8:
+			resultSet.setDouble(row, column, variant.getDouble(VARIANT_VALUE_OFFSET));
+			return true;
+		case Variant.VT_I1:
+			resultSet.setLong(row, column, variant.getByte(VARIANT_VALUE_OFFSET));
+			return true;
+		case Variant.VT_UI1:
+			resultSet.setLong(row, column, variant.getByte(VARIANT_VALUE_OFFSET) & 0xFFL);
+			return true;
+		case Variant.VT_I2:
+			resultSet.setLong(row, column, variant.getShort(VARIANT_VALUE_OFFSET));
+			return true;
+		case Variant.VT_UI2:
+			resultSet.setLong(row, column, variant.getShort(VARIANT_VALUE_OFFSET) & 0xFFFFL);
+			return true;
+		case Variant.VT_I4:
+		case Variant.VT_INT:
+			resultSet.setLong(row, column, variant.getInt(VARIANT_VALUE_OFFSET));
+			return true;
+		case Variant.VT_UI4:
+		case Variant.VT_UINT:
+			resultSet.setLong(row, column, variant.getInt(VARIANT_VALUE_OFFSET) & 0xFFFFFFFFL);
+			return true;
+		case Variant.VT_I8:
+		case Variant.VT_UI8:
+			resultSet.setLong(row, column, variant.getLong(VARIANT_VALUE_OFFSET));
+			return true;
+		case Variant.VT_BSTR:
+			// CIM_UINT64 and CIM_SINT64 values
+			if (cimType != Wbemcli.CIM_UINT64 && cimType != Wbemcli.CIM_SINT64) {
+				return false;
+			}
 			try {
-				OleAuto.INSTANCE.VariantClear(value);
-			} catch (final Throwable t) {
-				/* Do nothing -- This condition rarely happens, but it does, and there's nothing we can do about it */
+				resultSet.setLong(row, column, parseBstrLong(variant.getPointer(VARIANT_VALUE_OFFSET)));
+				return true;
+			} catch (final NumberFormatException e) {
+				return false;
+			}
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Parse the decimal integer in the specified BSTR, without creating a String.
+	 * <p>
+	 * Values above {@link Long#MAX_VALUE} (CIM_UINT64) are returned with the same bits as their unsigned value.
+	 *
+	 * @param bstr Pointer to the characters of the BSTR (its length in bytes is stored right before)
+	 * @return the value
+	 * @throws NumberFormatException if the BSTR is null, empty or not a decimal integer
+	 */
+	static long parseBstrLong(final Pointer bstr) {
+
+		if (bstr == null) {
+			throw new NumberFormatException("null");
+		}
+
+		final int length = bstr.getInt(-4) / 2;
+		final boolean isNegative = length > 0 && bstr.getChar(0) == '-';
+		final int start = isNegative ? 1 : 0;
+		if (length <= start || length - start > 20) {
+			throw new NumberFormatException("Invalid integer length: " + length);
+		}
+
+		// Overflows wrap around, which gives the right bits for unsigned values up to 2^64 - 1
+		long result = 0;
+		for (int i = start; i < length; i++) {
+			final int digit = bstr.getChar(i * 2L) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid digit at index " + i);
 			}
+			result = result * 10 + digit;
 		}
+
+		return isNegative ? -result : result;
 	}
 
 }
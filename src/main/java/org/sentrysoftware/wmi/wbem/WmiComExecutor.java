@@ -0,0 +1,323 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived threads where COM is initialized once (multithreaded apartment),
+ * to run the native WMI calls.
+ * <p>
+ * {@link WmiComHelper#initializeComLibrary()} must be called on every thread that uses COM, and COM is never
+ * uninitialized on the application threads. With this executor, the calls are made on a fixed set of threads:
+ * COM is initialized when a thread starts, and uninitialized when it ends (when the executor is closed).
+ * The callers get a {@link CompletableFuture}, whatever the type of their thread (including threads where COM
+ * must not be initialized).
+ * <p>
+ * Example:
+ * <pre><code>
+ * final WmiComExecutor comExecutor = WmiComExecutor.getDefault();
+ * final WmiWbemServices wmiWbemServices = comExecutor.connect(networkResource, username, password).get();
+ * final List&lt;Map&lt;String, Object&gt;&gt; result = comExecutor.executeWql(wmiWbemServices, wqlQuery, 30000).get();
+ * comExecutor.closeConnection(wmiWbemServices);
+ * </code></pre>
+ */
+public class WmiComExecutor implements AutoCloseable {
+
+	/** Default number of threads */
+	public static final int DEFAULT_POOL_SIZE = 16;
+
+	/** Default prefix of the names of the threads */
+	public static final String DEFAULT_THREAD_NAME_PREFIX = "WmiComExecutor";
+
+	/**
+	 * Code that uses COM
+	 *
+	 * @param <T> Type of the result
+	 */
+	@FunctionalInterface
+	public interface ComCallable<T> {
+		T call() throws Exception;
+	}
+
+	/** The executor the current thread belongs to (null if not a COM worker thread) */
+	private static final ThreadLocal<WmiComExecutor> CURRENT_EXECUTOR = new ThreadLocal<>();
+
+	/** Shared instance (created on first use) */
+	private static WmiComExecutor defaultInstance = null;
+
+	/** The threads */
+	private final ThreadPoolExecutor threadPool;
+
+	/** Prefix of the names of the threads */
+	private final String threadNamePrefix;
+
+	/** Number of calls per thread name */
+	private final Map<String, AtomicLong> callCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a pool of COM-initialized threads
+	 *
+	 * @param poolSize Number of threads
+	 * @param threadNamePrefix Prefix of the names of the threads (followed by a number)
+	 */
+	private WmiComExecutor(final int poolSize, final String threadNamePrefix) {
+		this.threadNamePrefix = threadNamePrefix;
+		this.threadPool = new ThreadPoolExecutor(
+				poolSize,
+				poolSize,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(),
+				newComThreadFactory(threadNamePrefix, this));
+	}
+
+	/**
+	 * Create a pool of COM-initialized threads. It must be closed once no longer needed.
+	 *
+	 * @param poolSize Number of threads (throws an IllegalArgumentException if negative or zero)
+	 * @param threadNamePrefix Prefix of the names of the threads (required)
+	 * @return a new WmiComExecutor instance
+	 */
+	public static WmiComExecutor newInstance(final int poolSize, final String threadNamePrefix) {
+
+		Utils.checkArgumentNotZeroOrNegative(poolSize, "poolSize");
+		Utils.checkNonNull(threadNamePrefix, "threadNamePrefix");
+
+		return new WmiComExecutor(poolSize, threadNamePrefix);
+	}
+
+	/**
+	 * @return the shared executor, with {@link #DEFAULT_POOL_SIZE} threads (created on first use,
+	 * and re-created if it has been closed)
+	 */
+	public static synchronized WmiComExecutor getDefault() {
+		if (defaultInstance == null || defaultInstance.isClosed()) {
+			defaultInstance = new WmiComExecutor(DEFAULT_POOL_SIZE, DEFAULT_THREAD_NAME_PREFIX);
+		}
+		return defaultInstance;
+	}
+
+	/**
+	 * Create a factory of daemon threads where COM is initialized when the thread starts,
+	 * and uninitialized when it ends
+	 *
+	 * @param threadNamePrefix Prefix of the names of the threads
+	 * @param owner The executor the threads belong to (may be null)
+	 * @return the thread factory
+	 */
+	static ThreadFactory newComThreadFactory(final String threadNamePrefix, final WmiComExecutor owner) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(
+					() -> {
+						CURRENT_EXECUTOR.set(owner);
+						try {
+							WmiComHelper.initializeComLibrary();
+						} catch (final WmiComException | IllegalStateException e) {
+							/* Do nothing -- The calls will try again and report the problem */
+						}
+						try {
+							runnable.run();
+						} finally {
+							WmiComHelper.unInitializeCom();
+							CURRENT_EXECUTOR.remove();
+						}
+					},
+					threadNamePrefix + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Run the specified code on one of the COM threads.
+	 * If the current thread is already one of them, the code is run right away.
+	 *
+	 * @param <T> Type of the result
+	 * @param callable The code to run (required)
+	 * @return a future with the result of the code, or its exception
+	 * @throws IllegalStateException if this executor has been closed
+	 */
+	public <T> CompletableFuture<T> submit(final ComCallable<T> callable) {
+
+		Utils.checkNonNull(callable, "callable");
+
+		final CompletableFuture<T> future = new CompletableFuture<>();
+
+		// Already on one of our threads: don't wait for another one (and risk a deadlock)
+		if (isComWorkerThread()) {
+			run(callable, future);
+			return future;
+		}
+
+		try {
+			threadPool.execute(() -> run(callable, future));
+		} catch (final RejectedExecutionException e) {
+			throw new IllegalStateException("This executor was closed", e);
+		}
+		return future;
+	}
+
+	/**
+	 * Run the code on the current thread and complete the future
+	 */
+	private <T> void run(final ComCallable<T> callable, final CompletableFuture<T> future) {
+		callCounts.computeIfAbsent(Thread.currentThread().getName(), name -> new AtomicLong()).incrementAndGet();
+		try {
+			WmiComHelper.initializeComLibrary();
+			future.complete(callable.call());
+		} catch (final Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Connect to the specified network resource on one of the COM threads
+	 *
+	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
+	 * @param username The username name (may be null).
+	 * @param password The password (may be null).
+	 * @return a future with the connection (or a WmiComException)
+	 * @see WmiWbemServices#getInstance(String, String, char[])
+	 */
+	public CompletableFuture<WmiWbemServices> connect(
+			final String networkResource,
+			final String username,
+			final char[] password) {
+		return submit(() -> WmiWbemServices.getInstance(networkResource, username, password));
+	}
+
+	/**
+	 * Execute the specified WQL query on one of the COM threads
+	 *
+	 * @param wmiWbemServices The connection (required)
+	 * @param wqlQuery The WQL query (required)
+	 * @param timeout Timeout in milliseconds for the whole query
+	 * @return a future with the result rows (or a TimeoutException, WqlQuerySyntaxException, WmiComException)
+	 * @see WmiWbemServices#executeWql(WqlQuery, long)
+	 */
+	public CompletableFuture<List<Map<String, Object>>> executeWql(
+			final WmiWbemServices wmiWbemServices,
+			final WqlQuery wqlQuery,
+			final long timeout) {
+
+		Utils.checkNonNull(wmiWbemServices, "wmiWbemServices");
+
+		return submit(() -> wmiWbemServices.executeWql(wqlQuery, timeout));
+	}
+
+	/**
+	 * Close the specified connection on one of the COM threads
+	 *
+	 * @param wmiWbemServices The connection (required)
+	 * @return a future completed once the connection has been closed
+	 */
+	public CompletableFuture<Void> closeConnection(final WmiWbemServices wmiWbemServices) {
+
+		Utils.checkNonNull(wmiWbemServices, "wmiWbemServices");
+
+		return submit(() -> {
+			wmiWbemServices.close();
+			return null;
+		});
+	}
+
+	/**
+	 * @return whether the current thread is one of the threads of this executor
+	 */
+	public boolean isComWorkerThread() {
+		return CURRENT_EXECUTOR.get() == this;
+	}
+
+	/**
+	 * @return the number of threads
+	 */
+	public int getPoolSize() {
+		return threadPool.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return the prefix of the names of the threads
+	 */
+	public String getThreadNamePrefix() {
+		return threadNamePrefix;
+	}
+
+	/**
+	 * @return the number of threads running a call
+	 */
+	public int getActiveCount() {
+		return threadPool.getActiveCount();
+	}
+
+	/**
+	 * @return the number of calls waiting for a thread
+	 */
+	public int getQueueSize() {
+		return threadPool.getQueue().size();
+	}
+
+	/**
+	 * @return the number of calls run by each thread (sorted by thread name)
+	 */
+	public Map<String, Long> getCallCounts() {
+		final Map<String, Long> result = new TreeMap<>();
+		callCounts.forEach((name, count) -> result.put(name, count.get()));
+		return result;
+	}
+
+	/**
+	 * @return the total number of calls run by the threads of this executor
+	 */
+	public long getTotalCallCount() {
+		return callCounts.values().stream().mapToLong(AtomicLong::get).sum();
+	}
+
+	/**
+	 * Stop the threads once the submitted calls have been run. COM is uninitialized on each thread.
+	 */
+	@Override
+	public void close() {
+		threadPool.shutdown();
+	}
+
+	/**
+	 * @return whether this executor has been closed
+	 */
+	public boolean isClosed() {
+		return threadPool.isShutdown();
+	}
+}
@@ -21,6 +21,7 @@ package org.sentrysoftware.wmi.wbem;
  */
 
 import org.sentrysoftware.wmi.exceptions.WmiComException;
+import com.sun.jna.Function;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.platform.win32.COM.COMUtils;
@@ -139,10 +140,25 @@ public class WmiComHelper {
 			final Class<?> returnType
 	) {
 
-		final Pointer vptr = contextPointer.getPointer(0);
-		final com.sun.jna.Function func = com.sun.jna.Function.getFunction(vptr.getPointer(vtableId * Native.POINTER_SIZE * 1L));
-		return func.invoke(returnType, args);
+		return getFunction(contextPointer, vtableId).invoke(returnType, args);
+
+	}
+
+	/**
+	 * Get the JNA Function of the specified method of the specified COM object.
+	 * <p>
+	 * The Function is looked up in the vtable of the object on each call (creating it is cheaper than
+	 * the COM call itself, and no measurement showed that caching it helps).
+	 *
+	 * @param contextPointer Pointer to the COM object
+	 * @param vtableId Index of the method in the vtable
+	 * @return the Function to invoke
+	 */
+	static Function getFunction(final Pointer contextPointer, final int vtableId) {
 
+		final Pointer vptr = contextPointer.getPointer(0);
+		final Pointer functionPointer = vptr.getPointer(vtableId * Native.POINTER_SIZE * 1L);
+		return Function.getFunction(functionPointer);
 	}
 
 }
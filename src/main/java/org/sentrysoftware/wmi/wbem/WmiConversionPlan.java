@@ -0,0 +1,626 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+
+import org.sentrysoftware.wmi.WmiResultSet;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.COM.COMUtils;
+import com.sun.jna.platform.win32.COM.Wbemcli;
+import com.sun.jna.platform.win32.COM.Wbemcli.IWbemClassObject;
+import com.sun.jna.platform.win32.Variant;
+import com.sun.jna.platform.win32.Variant.VARIANT.ByReference;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Conversion of the objects returned by a WQL query, compiled once from the CIM types of the properties
+ * of the first object, and reused for all the other objects (of this query, and of the next executions
+ * of the same {@link org.sentrysoftware.wmi.WqlQuery} on the same connection).
+ * <p>
+ * For each property, the name to pass to <code>IWbemClassObject::Get</code> is allocated once in native memory,
+ * and the converter of its CIM type is looked up once. If an object returns a property with another CIM type,
+ * this value is converted like {@link WmiCimTypeHandler#getPropertyValue(IWbemClassObject, Entry)} does.
+ * <p>
+ * In {@link WmiPropertyReadMode#ENUMERATION} mode, the non-system properties are enumerated with
+ * <code>IWbemClassObject::BeginEnumeration</code> and <code>Next</code> (one call per property, like
+ * <code>Get</code>), instead of being looked up by name. The order of the properties in the first object
+ * is recorded, so that the name returned by <code>Next</code> is only compared with the expected one
+ * (no String is created).
+ * <p>
+ * A plan is immutable, and can be used by several threads.
+ */
+final class WmiConversionPlan {
+
+	/** Index of IWbemClassObject::Get in the vtable */
+	private static final int WBEM_CLASS_OBJECT_GET_VTABLE_ID = 4;
+
+	/** Index of IWbemClassObject::BeginEnumeration in the vtable */
+	private static final int WBEM_CLASS_OBJECT_BEGIN_ENUMERATION_VTABLE_ID = 8;
+
+	/** Index of IWbemClassObject::Next in the vtable */
+	private static final int WBEM_CLASS_OBJECT_NEXT_VTABLE_ID = 9;
+
+	/** Index of IWbemClassObject::EndEnumeration in the vtable */
+	private static final int WBEM_CLASS_OBJECT_END_ENUMERATION_VTABLE_ID = 10;
+
+	/** BeginEnumeration flag to skip the system properties (__PATH, __CLASS, etc.) */
+	static final int WBEM_FLAG_NONSYSTEM_ONLY = 0x40;
+
+	/**
+	 * Minimum number of selected non-system properties to read them with BeginEnumeration/Next
+	 * in {@link WmiPropertyReadMode#AUTO} mode
+	 */
+	static final int MIN_ENUMERATION_PROPERTIES = 8;
+
+	/** CIM type of the properties that could not be read from the first object */
+	private static final int UNKNOWN_CIM_TYPE = -1;
+
+	/** The properties, with their actual names in the class */
+	private final Map<String, Set<String>> properties;
+
+	/** The converter of each property */
+	private final PropertyConverter[] converters;
+
+	/** Names of the non-system properties, in the order returned by IWbemClassObject::Next (null if not enumerated) */
+	private final char[][] enumerationNames;
+
+	/** Index of the converter of each property returned by IWbemClassObject::Next (-1 if not selected) */
+	private final int[] enumerationConverters;
+
+	/** Index of the converters, by property name in lower case */
+	private final Map<String, Integer> converterIndexes;
+
+	private WmiConversionPlan(
+			final Map<String, Set<String>> properties,
+			final PropertyConverter[] converters,
+			final List<String> enumerationOrder) {
+		this.properties = properties;
+		this.converters = converters;
+
+		converterIndexes = new HashMap<>();
+		for (int i = 0; i < converters.length; i++) {
+			converterIndexes.put(converters[i].property.getKey().toLowerCase(Locale.ROOT), i);
+		}
+
+		if (enumerationOrder == null) {
+			enumerationNames = null;
+			enumerationConverters = null;
+		} else {
+			enumerationNames = new char[enumerationOrder.size()][];
+			enumerationConverters = new int[enumerationOrder.size()];
+			for (int i = 0; i < enumerationNames.length; i++) {
+				final String name = enumerationOrder.get(i);
+				enumerationNames[i] = name.toCharArray();
+				enumerationConverters[i] = converterIndexes.getOrDefault(name.toLowerCase(Locale.ROOT), -1);
+			}
+		}
+	}
+
+	/**
+	 * Compile the conversion of the specified properties, with their CIM types in the specified object
+	 *
+	 * @param normalizedProperties The properties, with their actual names in the class
+	 * (see {@link WmiWbemServices#normalizeProperties(String[], Map)})
+	 * @param wbemClassObject The first object of the result
+	 * @param readMode How the values are read from the objects
+	 * @return the conversion plan
+	 */
+	static WmiConversionPlan compile(
+			final Map<String, Set<String>> normalizedProperties,
+			final IWbemClassObject wbemClassObject,
+			final WmiPropertyReadMode readMode) {
+
+		final PropertyConverter[] converters = normalizedProperties.entrySet().stream()
+				.map(entry -> new PropertyConverter(
+						new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()),
+						getCimType(wbemClassObject, entry.getKey())))
+				.toArray(PropertyConverter[]::new);
+
+		List<String> enumerationOrder = null;
+		if (readMode != WmiPropertyReadMode.GET) {
+			enumerationOrder = getNonSystemPropertyNames(wbemClassObject);
+			if (readMode == WmiPropertyReadMode.AUTO && enumerationOrder != null) {
+				final long selectedCount = normalizedProperties.keySet().stream()
+						.filter(name -> !name.startsWith("__"))
+						.count();
+				if (selectedCount < MIN_ENUMERATION_PROPERTIES || selectedCount * 2 < enumerationOrder.size()) {
+					enumerationOrder = null;
+				}
+			}
+		}
+
+		return new WmiConversionPlan(new HashMap<>(normalizedProperties), converters, enumerationOrder);
+	}
+
+	/**
+	 * @param wbemClassObject WbemClassObject
+	 * @param name Name of the property
+	 * @return the CIM type of the property, or {@link #UNKNOWN_CIM_TYPE}
+	 */
+	private static int getCimType(final IWbemClassObject wbemClassObject, final String name) {
+		final IntByReference pType = new IntByReference();
+		try {
+			// Only the type: no VARIANT to clear
+			return COMUtils.FAILED(wbemClassObject.Get(name, 0, null, pType, null)) ? UNKNOWN_CIM_TYPE : pType.getValue();
+		} catch (final Throwable e) {
+			return UNKNOWN_CIM_TYPE;
+		}
+	}
+
+	/**
+	 * @param wbemClassObject WbemClassObject
+	 * @return the names of the non-system properties, in the order returned by IWbemClassObject::Next,
+	 * or null if the object cannot be enumerated
+	 */
+	private static List<String> getNonSystemPropertyNames(final IWbemClassObject wbemClassObject) {
+
+		final Pointer pointer = wbemClassObject.getPointer();
+
+		try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+			if (beginEnumeration(pointer) < 0) {
+				return null;
+			}
+
+			final List<String> names = new ArrayList<>();
+			try {
+				final com.sun.jna.Function next = WmiComHelper.getFunction(pointer, WBEM_CLASS_OBJECT_NEXT_VTABLE_ID);
+				final PointerByReference name = buffers.getName();
+				int hResult;
+				while ((hResult = next(next, pointer, name, buffers.getValue(), buffers.getType())) == 0) {
+					try {
+						names.add(name.getValue().getWideString(0));
+					} finally {
+						OleAutoEnhanced.INSTANCE.SysFreeString(name.getValue());
+						buffers.clearValue();
+					}
+				}
+				return hResult == Wbemcli.WBEM_S_NO_MORE_DATA ? names : null;
+			} finally {
+				endEnumeration(pointer);
+			}
+		} catch (final Throwable e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Call IWbemClassObject::BeginEnumeration for the non-system properties
+	 *
+	 * @return the HRESULT
+	 */
+	private static int beginEnumeration(final Pointer pointer) {
+		return WmiComHelper.getFunction(pointer, WBEM_CLASS_OBJECT_BEGIN_ENUMERATION_VTABLE_ID)
+				.invokeInt(new Object[] { pointer, WBEM_FLAG_NONSYSTEM_ONLY });
+	}
+
+	/**
+	 * Call IWbemClassObject::EndEnumeration
+	 */
+	private static void endEnumeration(final Pointer pointer) {
+		WmiComHelper.getFunction(pointer, WBEM_CLASS_OBJECT_END_ENUMERATION_VTABLE_ID)
+				.invokeInt(new Object[] { pointer });
+	}
+
+	/**
+	 * Call IWbemClassObject::Next
+	 *
+	 * @return the HRESULT (<code>WBEM_S_NO_MORE_DATA</code> when there are no more properties)
+	 */
+	private static int next(
+			final com.sun.jna.Function next,
+			final Pointer pointer,
+			final PointerByReference name,
+			final ByReference value,
+			final IntByReference pType) {
+		name.setValue(null);
+		return next.invokeInt(new Object[] { pointer, 0, name, value, pType, null });
+	}
+
+	/**
+	 * @param normalizedProperties The properties of an execution of the query, with their actual names in the class
+	 * @return whether this plan converts exactly these properties
+	 */
+	boolean isCompatible(final Map<String, Set<String>> normalizedProperties) {
+		return properties.equals(normalizedProperties);
+	}
+
+	/**
+	 * @return whether the non-system properties are read with IWbemClassObject::BeginEnumeration and Next
+	 */
+	boolean isEnumerated() {
+		return enumerationNames != null;
+	}
+
+	/**
+	 * Get all the values from the properties of the specified object
+	 * (same result as {@link WmiWbemServices#getPropertiesValues(Map, IWbemClassObject)}).
+	 *
+	 * @param wbemClassObject WbemClassObject
+	 * @return a Map of the properties and their values
+	 */
+	HashMap<String, Object> getPropertiesValues(final IWbemClassObject wbemClassObject) {
+
+		final HashMap<String, Object> row = new HashMap<>(converters.length * 4 / 3 + 1);
+
+		readValues(wbemClassObject, new ValueConsumer() {
+
+			@Override
+			public void accept(final int index, final ByReference value, final int cimType) {
+				converters[index].convert(value, cimType, row);
+			}
+
+			@Override
+			public void failed(final int index) {
+				row.put(converters[index].property.getKey(), null);
+			}
+
+			@Override
+			public void retry(final int index) {
+				row.putAll(WmiCimTypeHandler.getPropertyValue(wbemClassObject, converters[index].property));
+			}
+		});
+
+		return row;
+	}
+
+	/**
+	 * Bind the specified result set to this plan: add the columns of the properties (in the order of the query
+	 * if the result set is empty), with their CIM types.
+	 *
+	 * @param resultSet The result set
+	 * @return the index of the column of each property in the result set (-1 for the CIM_OBJECT properties
+	 * with sub-properties, whose columns are named after the sub-properties)
+	 */
+	int[] bindColumns(final WmiResultSet resultSet) {
+
+		resultSet.addColumns(Arrays.stream(converters)
+				.filter(converter -> converter.property.getValue().isEmpty())
+				.map(converter -> converter.property.getKey())
+				.collect(Collectors.toList()));
+
+		final int[] columns = new int[converters.length];
+		for (int i = 0; i < converters.length; i++) {
+			final PropertyConverter converter = converters[i];
+			columns[i] = converter.property.getValue().isEmpty() ?
+					resultSet.addColumn(converter.property.getKey(), converter.isPrimitive ? converter.cimType : Wbemcli.CIM_EMPTY) :
+						-1;
+		}
+		return columns;
+	}
+
+	/**
+	 * Read all the values from the properties of the specified object into a new row of the result set.
+	 * Numeric and boolean values are read as primitives
+	 * (see {@link WmiCimTypeHandler#readPrimitive(ByReference, int, WmiResultSet, int, int)}).
+	 *
+	 * @param wbemClassObject WbemClassObject
+	 * @param resultSet The result set
+	 * @param columns The columns of the properties in the result set (see {@link #bindColumns(WmiResultSet)})
+	 */
+	void readPropertiesValues(final IWbemClassObject wbemClassObject, final WmiResultSet resultSet, final int[] columns) {
+
+		final int row = resultSet.addRow();
+
+		readValues(wbemClassObject, new ValueConsumer() {
+
+			@Override
+			public void accept(final int index, final ByReference value, final int cimType) {
+				converters[index].read(value, cimType, resultSet, row, columns[index]);
+			}
+
+			@Override
+			public void failed(final int index) {
+				if (columns[index] >= 0) {
+					resultSet.setNull(row, columns[index]);
+				} else {
+					setValues(resultSet, row, Collections.singletonMap(converters[index].property.getKey(), null));
+				}
+			}
+
+			@Override
+			public void retry(final int index) {
+				setValues(resultSet, row, WmiCimTypeHandler.getPropertyValue(wbemClassObject, converters[index].property));
+			}
+		});
+	}
+
+	/**
+	 * Set the converted values of a property in the result set
+	 *
+	 * @param resultSet The result set
+	 * @param row Index of the row
+	 * @param values The values, by column name
+	 */
+	private static void setValues(final WmiResultSet resultSet, final int row, final Map<String, Object> values) {
+		for (final Entry<String, Object> entry : values.entrySet()) {
+			resultSet.setValue(row, resultSet.addColumn(entry.getKey(), Wbemcli.CIM_EMPTY), entry.getValue());
+		}
+	}
+
+	/**
+	 * Receives the values of the properties of an object
+	 */
+	private interface ValueConsumer {
+
+		/**
+		 * @param index Index of the converter of the property
+		 * @param value The value (cleared after this call)
+		 * @param cimType The CIM type of the value
+		 */
+		void accept(int index, ByReference value, int cimType);
+
+		/**
+		 * The property could not be read
+		 *
+		 * @param index Index of the converter of the property
+		 */
+		void failed(int index);
+
+		/**
+		 * Reading the property threw an exception: read it again, the slow way
+		 *
+		 * @param index Index of the converter of the property
+		 */
+		void retry(int index);
+	}
+
+	/**
+	 * Read the values of all the properties of the specified object: the non-system properties with
+	 * IWbemClassObject::BeginEnumeration and Next if this plan is enumerated, and the others
+	 * with IWbemClassObject::Get.
+	 *
+	 * @param wbemClassObject WbemClassObject
+	 * @param consumer Receives the values
+	 */
+	private void readValues(final IWbemClassObject wbemClassObject, final ValueConsumer consumer) {
+
+		final Pointer pointer = wbemClassObject.getPointer();
+
+		// The VARIANT and the out-parameters of the thread, reused for every property of every object
+		try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+
+			final ByReference value = buffers.getValue();
+			final IntByReference pType = buffers.getType();
+
+			// Properties that have been read
+			final boolean[] isRead = buffers.getFlags(converters.length);
+
+			if (enumerationNames != null) {
+				try {
+					readEnumeratedValues(pointer, buffers, consumer, isRead);
+				} catch (final Throwable e) {
+					// The remaining properties are read with IWbemClassObject::Get
+				}
+			}
+
+			final com.sun.jna.Function get = WmiComHelper.getFunction(pointer, WBEM_CLASS_OBJECT_GET_VTABLE_ID);
+			for (int i = 0; i < converters.length; i++) {
+				if (isRead[i]) {
+					continue;
+				}
+				try {
+					final int hResult = converters[i].get(get, pointer, value, pType);
+					try {
+						if (hResult < 0) {
+							consumer.failed(i);
+						} else {
+							consumer.accept(i, value, pType.getValue());
+						}
+					} finally {
+						buffers.clearValue();
+					}
+				} catch (final Throwable e) {
+					// Retry
+					consumer.retry(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the values of the non-system properties with IWbemClassObject::BeginEnumeration and Next
+	 *
+	 * @param pointer Pointer to the IWbemClassObject
+	 * @param buffers The VARIANT and out-parameters to use
+	 * @param consumer Receives the values
+	 * @param isRead Set to true for the properties that have been read
+	 */
+	private void readEnumeratedValues(
+			final Pointer pointer,
+			final WmiScratchBuffers buffers,
+			final ValueConsumer consumer,
+			final boolean[] isRead) {
+
+		if (beginEnumeration(pointer) < 0) {
+			return;
+		}
+
+		try {
+			final com.sun.jna.Function next = WmiComHelper.getFunction(pointer, WBEM_CLASS_OBJECT_NEXT_VTABLE_ID);
+			final PointerByReference name = buffers.getName();
+			final ByReference value = buffers.getValue();
+			final IntByReference pType = buffers.getType();
+
+			for (int position = 0; next(next, pointer, name, value, pType) == 0; position++) {
+				try {
+					final int index = findConverter(position, name.getValue(), buffers);
+					if (index >= 0 && !isRead[index]) {
+						isRead[index] = true;
+						try {
+							consumer.accept(index, value, pType.getValue());
+						} catch (final Throwable e) {
+							// Retry
+							consumer.retry(index);
+						}
+					}
+				} finally {
+					OleAutoEnhanced.INSTANCE.SysFreeString(name.getValue());
+					buffers.clearValue();
+				}
+			}
+		} finally {
+			endEnumeration(pointer);
+		}
+	}
+
+	/**
+	 * Find the converter of the property returned by IWbemClassObject::Next
+	 *
+	 * @param position Position of the property in the enumeration
+	 * @param bstr Name of the property
+	 * @param buffers Provides the buffer to read the name
+	 * @return the index of the converter, or -1 if the property is not selected
+	 */
+	private int findConverter(final int position, final Pointer bstr, final WmiScratchBuffers buffers) {
+
+		if (bstr == null) {
+			return -1;
+		}
+
+		// Same order as in the first object (the usual case): compare the name in place
+		final int length = bstr.getInt(-4) / 2;
+		if (position < enumerationNames.length && enumerationNames[position].length == length) {
+			final char[] expected = enumerationNames[position];
+			final char[] actual = buffers.getNameChars(length);
+			bstr.read(0, actual, 0, length);
+			boolean isSame = true;
+			for (int i = 0; i < length && isSame; i++) {
+				isSame = expected[i] == actual[i];
+			}
+			if (isSame) {
+				return enumerationConverters[position];
+			}
+		}
+
+		// Another order: look up the name
+		return converterIndexes.getOrDefault(bstr.getWideString(0).toLowerCase(Locale.ROOT), -1);
+	}
+
+	/**
+	 * Conversion of one property
+	 */
+	private static final class PropertyConverter {
+
+		/** The property, and its sub-properties */
+		private final Entry<String, Set<String>> property;
+
+		/** Name of the property, as a native wide string for IWbemClassObject::Get */
+		private final Memory name;
+
+		/** CIM type of the property in the first object */
+		private final int cimType;
+
+		/** Whether the values are read as primitives in result sets */
+		private final boolean isPrimitive;
+
+		/** Converter of the values to Java objects (null for arrays and objects, converted by {@link WmiCimTypeHandler#convert(ByReference, int, Entry)}) */
+		private final Function<ByReference, Object> converter;
+
+		private PropertyConverter(final Entry<String, Set<String>> property, final int cimType) {
+			this.property = property;
+			this.cimType = cimType;
+
+			final String propertyName = property.getKey();
+			name = new Memory((propertyName.length() + 1L) * Native.WCHAR_SIZE);
+			name.setWideString(0, propertyName);
+
+			final boolean isPath = "__PATH".equalsIgnoreCase(propertyName);
+			if (isPath) {
+				converter = (final ByReference pathValue) -> WmiCimTypeHandler.convertCimReference(pathValue);
+			} else if (cimType == UNKNOWN_CIM_TYPE
+					|| (cimType & Wbemcli.CIM_FLAG_ARRAY) != 0
+					|| cimType == Wbemcli.CIM_OBJECT) {
+				converter = null;
+			} else {
+				converter = WmiCimTypeHandler.getConverter(cimType);
+			}
+			isPrimitive = !isPath && WmiCimTypeHandler.isPrimitive(cimType);
+		}
+
+		/**
+		 * Call IWbemClassObject::Get for this property
+		 *
+		 * @return the HRESULT
+		 */
+		private int get(
+				final com.sun.jna.Function get,
+				final Pointer pointer,
+				final ByReference value,
+				final IntByReference pType) {
+			return get.invokeInt(new Object[] { pointer, name, 0, value, pType, null });
+		}
+
+		/**
+		 * Convert the value of this property, and put it in the row
+		 */
+		private void convert(final ByReference value, final int type, final Map<String, Object> row) {
+			if (type == cimType && converter != null) {
+				row.put(property.getKey(), isNull(value) ? null : converter.apply(value));
+			} else {
+				row.putAll(WmiCimTypeHandler.convert(value, type, property));
+			}
+		}
+
+		/**
+		 * Read the value of this property into the result set
+		 */
+		private void read(
+				final ByReference value,
+				final int type,
+				final WmiResultSet resultSet,
+				final int row,
+				final int column) {
+			if (type == cimType && isPrimitive && WmiCimTypeHandler.readPrimitive(value, type, resultSet, row, column)) {
+				return;
+			}
+			if (type == cimType && converter != null) {
+				resultSet.setValue(row, column, isNull(value) ? null : converter.apply(value));
+			} else {
+				setValues(resultSet, row, WmiCimTypeHandler.convert(value, type, property));
+			}
+		}
+
+		/**
+		 * @return whether the VARIANT is empty or null
+		 */
+		private static boolean isNull(final ByReference value) {
+			final int varType = value.getPointer().getShort(0);
+			return varType == Variant.VT_EMPTY || varType == Variant.VT_NULL;
+		}
+
+	}
+}
@@ -0,0 +1,234 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.Utils;
+
+import com.sun.jna.Native;
+import com.sun.jna.platform.win32.OleAuto;
+import com.sun.jna.platform.win32.WTypes.BSTR;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Native encoding of a username and its password, shared by all the connections made with these credentials:
+ * the COAUTHIDENTITY structure of the proxy blankets, and the BSTR strings of <code>IWbemLocator::ConnectServer</code>.
+ * <p>
+ * The credentials are encoded once per username (and password), straight from the <code>char[]</code> password
+ * to native memory, without any String copy of the password on the Java heap.
+ * <p>
+ * Handles are reference-counted: {@link #acquire(String, char[])} returns the handle in use for the same credentials
+ * if any, and {@link #close()} releases it. The native memory is overwritten with zeros and freed when the last
+ * reference is released.
+ * <p>
+ * This class is thread-safe.
+ */
+public class WmiCredentialHandle implements AutoCloseable {
+
+	/** The handles in use, by username (in lower case) */
+	private static final Map<String, WmiCredentialHandle> HANDLES = new HashMap<>();
+
+	/** Key of this handle in {@link #HANDLES} */
+	private final String key;
+
+	/** The username, as specified */
+	private final String username;
+
+	/** The COAUTHIDENTITY structure */
+	private final CoAuthIdentity authIdentity;
+
+	/** The username, for ConnectServer */
+	private BSTR userBstr;
+
+	/** The password, for ConnectServer (null if no password) */
+	private BSTR passwordBstr;
+
+	/** Number of users of this handle (guarded by the class lock) */
+	private int referenceCount = 1;
+
+	/**
+	 * @param key Key of this handle
+	 * @param username The username
+	 * @param password The password (may be null)
+	 */
+	private WmiCredentialHandle(final String key, final String username, final char[] password) {
+		this.key = key;
+		this.username = username;
+		this.authIdentity = new CoAuthIdentity(username, password);
+		this.userBstr = OleAuto.INSTANCE.SysAllocString(username);
+		this.passwordBstr = password == null ?
+				null :
+				OleAutoEnhanced.INSTANCE.SysAllocStringLen(authIdentity.password, authIdentity.passwordLength);
+	}
+
+	/**
+	 * Get the handle of the specified credentials, shared with the other connections made with the same credentials.
+	 * The handle must be closed once no longer needed.
+	 *
+	 * @param username The username, or domain\\username, or username@domain (required)
+	 * @param password The password (may be null)
+	 * @return the handle
+	 */
+	public static WmiCredentialHandle acquire(final String username, final char[] password) {
+
+		Utils.checkNonBlank(username, "username");
+
+		final String key = username.toLowerCase(Locale.ROOT);
+
+		synchronized (WmiCredentialHandle.class) {
+			final WmiCredentialHandle handle = HANDLES.get(key);
+			if (handle != null && handle.username.equals(username) && handle.matches(password)) {
+				handle.referenceCount++;
+				return handle;
+			}
+
+			// New credentials, or new password: the previous handle remains valid for its current users
+			final WmiCredentialHandle newHandle = new WmiCredentialHandle(key, username, password);
+			HANDLES.put(key, newHandle);
+			return newHandle;
+		}
+	}
+
+	/**
+	 * Get one more reference to this handle, to be released with {@link #close()}
+	 *
+	 * @return this handle
+	 * @throws IllegalStateException if this handle has been wiped already
+	 */
+	public WmiCredentialHandle retain() {
+		synchronized (WmiCredentialHandle.class) {
+			if (referenceCount == 0) {
+				throw new IllegalStateException("This credential handle was wiped");
+			}
+			referenceCount++;
+			return this;
+		}
+	}
+
+	/**
+	 * Release one reference to this handle. Once all the references are released,
+	 * the native memory is overwritten with zeros and freed.
+	 */
+	@Override
+	public void close() {
+		synchronized (WmiCredentialHandle.class) {
+			if (referenceCount == 0) {
+				return;
+			}
+			if (--referenceCount > 0) {
+				return;
+			}
+			HANDLES.remove(key, this);
+			wipe();
+		}
+	}
+
+	/**
+	 * Overwrite the password with zeros and free the native memory
+	 */
+	private void wipe() {
+
+		authIdentity.wipe();
+
+		if (userBstr != null) {
+			OleAuto.INSTANCE.SysFreeString(userBstr);
+			userBstr = null;
+		}
+
+		if (passwordBstr != null) {
+			final int length = OleAuto.INSTANCE.SysStringLen(passwordBstr);
+			passwordBstr.getPointer().clear(Native.WCHAR_SIZE * (long) length);
+			OleAuto.INSTANCE.SysFreeString(passwordBstr);
+			passwordBstr = null;
+		}
+	}
+
+	/**
+	 * Compare the specified password with the encoded one, without copying the encoded one to the Java heap
+	 *
+	 * @param password The password (may be null)
+	 * @return whether the specified password is the encoded one
+	 */
+	private boolean matches(final char[] password) {
+
+		if (password == null || authIdentity.password == null) {
+			return password == null && authIdentity.password == null;
+		}
+
+		if (password.length != authIdentity.passwordLength) {
+			return false;
+		}
+
+		boolean isEqual = true;
+		for (int i = 0; i < password.length; i++) {
+			isEqual &= authIdentity.password.getChar(Native.WCHAR_SIZE * (long) i) == password[i];
+		}
+		return isEqual;
+	}
+
+	/**
+	 * @return the username, as specified
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return the COAUTHIDENTITY structure, for the proxy blankets
+	 */
+	public CoAuthIdentity getAuthIdentity() {
+		return authIdentity;
+	}
+
+	/**
+	 * @return the username as a BSTR, for ConnectServer (owned by this handle)
+	 */
+	BSTR getUserBstr() {
+		return userBstr;
+	}
+
+	/**
+	 * @return the password as a BSTR, for ConnectServer (owned by this handle, null if no password)
+	 */
+	BSTR getPasswordBstr() {
+		return passwordBstr;
+	}
+
+	/**
+	 * @return the number of users of this handle (0 once wiped)
+	 */
+	public int getReferenceCount() {
+		synchronized (WmiCredentialHandle.class) {
+			return referenceCount;
+		}
+	}
+
+	/**
+	 * @return the number of handles currently in use
+	 */
+	public static int getHandleCount() {
+		synchronized (WmiCredentialHandle.class) {
+			return HANDLES.size();
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Ordered list of credentials to connect to WMI on hosts where only some of them are accepted
+ * (e.g. several domain and local administrator accounts).
+ * <p>
+ * The credentials are tried in order, or all at once (parallel mode), until one of them is accepted.
+ * The credential accepted by each host is remembered for a while, and tried first the next time.
+ * <p>
+ * The failures are handled as follows:
+ * <ul>
+ * <li>Access denied (WBEM_E_ACCESS_DENIED, E_ACCESSDENIED): the next credential is tried</li>
+ * <li>WBEM_E_LOCAL_CREDENTIALS (the host is actually the local system): the connection is attempted without credentials</li>
+ * <li>Any other failure (host unreachable, invalid namespace, etc.): no other credential is tried, as it would fail the same way</li>
+ * </ul>
+ * The connection attempts go through the circuit breaker as a whole: rejected credentials do not count as host failures
+ * as long as one of them is accepted.
+ * <p>
+ * This class is thread-safe.
+ */
+public class WmiCredentialSet {
+
+	/** Default duration (in milliseconds) the credential accepted by a host is remembered (1 hour) */
+	public static final long DEFAULT_REMEMBER_TTL = 60L * 60 * 1000;
+
+	/** WBEM_E_LOCAL_CREDENTIALS: credentials specified for a connection to the local system */
+	static final int WBEM_E_LOCAL_CREDENTIALS = 0x80041064;
+
+	/** Index of the "no credentials" choice, for the local system */
+	private static final int NO_CREDENTIALS = -1;
+
+	/**
+	 * A username and its password
+	 */
+	public static class Credential {
+
+		private final String username;
+		private final char[] password;
+
+		/**
+		 * @param username The username, or domain\\username, or username@domain (required)
+		 * @param password The password (may be null)
+		 */
+		public Credential(final String username, final char[] password) {
+			Utils.checkNonBlank(username, "username");
+			this.username = username;
+			this.password = password;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public char[] getPassword() {
+			return password;
+		}
+
+		@Override
+		public String toString() {
+			return username;
+		}
+	}
+
+	/** The credentials, in the order they are tried */
+	private final List<Credential> credentials;
+
+	/** Duration (in milliseconds) the credential accepted by a host is remembered */
+	private final long rememberTtl;
+
+	/** Whether all the credentials are tried at once */
+	private final boolean isParallel;
+
+	/** The circuit breaker the connections go through (may be null) */
+	private final HostCircuitBreaker circuitBreaker;
+
+	/**
+	 * The account of this credential set in the circuit breaker (the usernames of its credentials), so that
+	 * the failures of this set don't suspend the connections made with other accounts
+	 */
+	private final String circuitAccount;
+
+	/** Establishes a connection with one credential */
+	private final WmiWbemServicesPool.SessionFactory sessionFactory;
+
+	/** The credential accepted by each host */
+	private final Map<String, Remembered> rememberedCredentials = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a credential set with the default settings: credentials tried in order, remembered for 1 hour,
+	 * through the default circuit breaker (if enabled, see {@link HostCircuitBreaker#setDefault(HostCircuitBreaker)})
+	 *
+	 * @param credentials The credentials, in the order they must be tried (at least one)
+	 */
+	public WmiCredentialSet(final List<Credential> credentials) {
+		this(credentials, DEFAULT_REMEMBER_TTL, false, HostCircuitBreaker.getDefault());
+	}
+
+	/**
+	 * Create a credential set
+	 *
+	 * @param credentials The credentials, in the order they must be tried (at least one)
+	 * @param rememberTtl Duration in milliseconds the credential accepted by a host is remembered (0 to not remember)
+	 * @param isParallel Whether to try all the credentials at once, instead of one after the other
+	 * (faster, but each host sees all the credentials, which may lock accounts sooner)
+	 * @param circuitBreaker The circuit breaker the connections go through (null for none)
+	 */
+	public WmiCredentialSet(
+			final List<Credential> credentials,
+			final long rememberTtl,
+			final boolean isParallel,
+			final HostCircuitBreaker circuitBreaker) {
+		this(credentials, rememberTtl, isParallel, circuitBreaker,
+				(networkResource, username, password) -> WmiWbemServices.getInstance(networkResource, username, password, null));
+	}
+
+	WmiCredentialSet(
+			final List<Credential> credentials,
+			final long rememberTtl,
+			final boolean isParallel,
+			final HostCircuitBreaker circuitBreaker,
+			final WmiWbemServicesPool.SessionFactory sessionFactory) {
+
+		Utils.checkNonNull(credentials, "credentials");
+		if (credentials.isEmpty()) {
+			throw new IllegalArgumentException("credentials must not be empty");
+		}
+		credentials.forEach(credential -> Utils.checkNonNull(credential, "credential"));
+		if (rememberTtl < 0) {
+			throw new IllegalArgumentException("rememberTtl must not be negative");
+		}
+
+		this.credentials = Collections.unmodifiableList(new ArrayList<>(credentials));
+		this.rememberTtl = rememberTtl;
+		this.isParallel = isParallel;
+		this.circuitBreaker = circuitBreaker;
+		this.circuitAccount = this.credentials.stream().map(Credential::getUsername).collect(Collectors.joining(";", "[", "]"));
+		this.sessionFactory = sessionFactory;
+	}
+
+	/**
+	 * Connect to the specified network resource with the first credential accepted by the host
+	 *
+	 * @param networkResource \\hostname\namespace (mandatory)
+	 * @return a new connection, that must be closed by the caller ({@link WmiWbemServices#getUsername()} tells
+	 * which credential was accepted)
+	 * @throws org.sentrysoftware.wmi.exceptions.CircuitOpenException if the connections to the host are suspended after too many failures
+	 * @throws WmiComException if no credential is accepted (with the HRESULT of the access denied), or for any other problem
+	 */
+	public WmiWbemServices connect(final String networkResource) throws WmiComException {
+
+		Utils.checkNonNull(networkResource, "networkResource");
+
+		final String hostname = WmiHelper.extractHostname(networkResource);
+		if (circuitBreaker != null) {
+			circuitBreaker.acquirePermission(hostname, circuitAccount);
+		}
+
+		try {
+			final WmiWbemServices wmiWbemServices = connectWithCredentials(networkResource, hostname);
+			if (circuitBreaker != null) {
+				circuitBreaker.onSuccess(hostname, circuitAccount);
+			}
+			return wmiWbemServices;
+		} catch (final Throwable e) {
+			if (circuitBreaker != null) {
+				circuitBreaker.onFailure(hostname, circuitAccount, e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Try the remembered credential of the host first, then the others
+	 */
+	private WmiWbemServices connectWithCredentials(
+			final String networkResource,
+			final String hostname) throws WmiComException {
+
+		// The local system must be accessed without credentials
+		if (WmiHelper.isLocalNetworkResource(networkResource)) {
+			return sessionFactory.create(networkResource, null, null);
+		}
+
+		final String hostKey = hostname.toLowerCase(Locale.ROOT);
+
+		// Start with the credential that worked last time
+		final Attempts attempts = new Attempts();
+		final List<Integer> indexes = new ArrayList<>();
+		final Remembered remembered = rememberedCredentials.get(hostKey);
+		if (remembered != null && Utils.getCurrentTimeMillis() < remembered.expiresAt) {
+			if (remembered.index == NO_CREDENTIALS) {
+				return sessionFactory.create(networkResource, null, null);
+			}
+			try {
+				return attempt(networkResource, remembered.index);
+			} catch (final WmiComException e) {
+				if (attempts.onFailure(e)) {
+					// The credential has been changed on the host: try the others
+					rememberedCredentials.remove(hostKey, remembered);
+					for (int i = 0; i < credentials.size(); i++) {
+						if (i != remembered.index) {
+							indexes.add(i);
+						}
+					}
+				} else if (attempts.isLocal) {
+					// The host is actually the local system (handled below, like for the other credentials)
+					rememberedCredentials.remove(hostKey, remembered);
+				} else {
+					throw e;
+				}
+			}
+		} else {
+			for (int i = 0; i < credentials.size(); i++) {
+				indexes.add(i);
+			}
+		}
+
+		if (isParallel && indexes.size() > 1) {
+			tryInParallel(networkResource, indexes, attempts);
+		} else {
+			tryInOrder(networkResource, indexes, attempts);
+		}
+
+		if (attempts.success != null) {
+			remember(hostKey, attempts.successIndex);
+			return attempts.success;
+		}
+
+		// The host is actually the local system: no credentials
+		if (attempts.isLocal) {
+			final WmiWbemServices wmiWbemServices = sessionFactory.create(networkResource, null, null);
+			remember(hostKey, NO_CREDENTIALS);
+			return wmiWbemServices;
+		}
+
+		if (attempts.otherFailure != null) {
+			throw attempts.otherFailure;
+		}
+
+		throw new WmiComException(
+				attempts.accessDenied,
+				String.format("None of the %d credentials is accepted by %s", credentials.size(), hostname));
+	}
+
+	/**
+	 * Try the specified credentials one after the other
+	 */
+	private void tryInOrder(
+			final String networkResource,
+			final List<Integer> indexes,
+			final Attempts attempts) throws WmiComException {
+
+		for (final int index : indexes) {
+			try {
+				attempts.success = attempt(networkResource, index);
+				attempts.successIndex = index;
+				return;
+			} catch (final WmiComException e) {
+				if (!attempts.onFailure(e)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Try the specified credentials at once, on the threads of {@link WmiComExecutor#getDefault()}.
+	 * The first accepted credential wins; the connections established with the other credentials are closed.
+	 */
+	private void tryInParallel(
+			final String networkResource,
+			final List<Integer> indexes,
+			final Attempts attempts) throws WmiComException {
+
+		final WmiComExecutor comExecutor = WmiComExecutor.getDefault();
+		final CompletableFuture<Integer> winner = new CompletableFuture<>();
+		final AtomicInteger remaining = new AtomicInteger(indexes.size());
+
+		for (final int index : indexes) {
+			comExecutor.submit(() -> attempt(networkResource, index)).whenComplete((wmiWbemServices, exception) -> {
+				if (wmiWbemServices != null) {
+					synchronized (attempts) {
+						if (attempts.success == null) {
+							attempts.success = wmiWbemServices;
+							attempts.successIndex = index;
+							winner.complete(index);
+						} else {
+							// Too late
+							wmiWbemServices.close();
+						}
+					}
+				} else {
+					synchronized (attempts) {
+						attempts.onFailure(exception instanceof WmiComException ?
+								(WmiComException) exception :
+								new WmiComException(exception, exception.getMessage()));
+					}
+				}
+				if (remaining.decrementAndGet() == 0) {
+					winner.complete(null);
+				}
+			});
+		}
+
+		try {
+			winner.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WmiComException(e, "Interrupted while connecting to " + networkResource);
+		} catch (final ExecutionException e) {
+			throw new WmiComException(e.getCause(), e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Connect with the specified credential
+	 */
+	private WmiWbemServices attempt(final String networkResource, final int index) throws WmiComException {
+		final Credential credential = credentials.get(index);
+		return sessionFactory.create(networkResource, credential.getUsername(), credential.getPassword());
+	}
+
+	/**
+	 * Remember the credential accepted by the specified host
+	 */
+	private void remember(final String hostKey, final int index) {
+		if (rememberTtl > 0) {
+			rememberedCredentials.put(hostKey, new Remembered(index, Utils.getCurrentTimeMillis() + rememberTtl));
+		}
+	}
+
+	/**
+	 * @param hostname The host
+	 * @return the credential accepted by the specified host the last time (null if unknown or expired,
+	 * or if the host is accessed without credentials)
+	 */
+	public Credential getRememberedCredential(final String hostname) {
+		final Remembered remembered = rememberedCredentials.get(hostname.toLowerCase(Locale.ROOT));
+		return remembered == null || remembered.index == NO_CREDENTIALS || Utils.getCurrentTimeMillis() >= remembered.expiresAt ?
+				null :
+				credentials.get(remembered.index);
+	}
+
+	/**
+	 * Forget the credential accepted by the specified host
+	 *
+	 * @param hostname The host
+	 */
+	public void forget(final String hostname) {
+		rememberedCredentials.remove(hostname.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Forget the credentials accepted by all the hosts
+	 */
+	public void forgetAll() {
+		rememberedCredentials.clear();
+	}
+
+	/**
+	 * @return the credentials, in the order they are tried
+	 */
+	public List<Credential> getCredentials() {
+		return credentials;
+	}
+
+	/**
+	 * @return the duration (in milliseconds) the credential accepted by a host is remembered
+	 */
+	public long getRememberTtl() {
+		return rememberTtl;
+	}
+
+	/**
+	 * @return whether all the credentials are tried at once
+	 */
+	public boolean isParallel() {
+		return isParallel;
+	}
+
+	/**
+	 * The credential accepted by a host
+	 */
+	private static class Remembered {
+
+		/** Index of the credential (or {@link WmiCredentialSet#NO_CREDENTIALS}) */
+		private final int index;
+
+		/** Time (in milliseconds) until which the credential is remembered */
+		private final long expiresAt;
+
+		private Remembered(final int index, final long expiresAt) {
+			this.index = index;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Outcome of the connection attempts with several credentials
+	 */
+	private static class Attempts {
+
+		/** The connection established with the accepted credential */
+		private WmiWbemServices success = null;
+
+		/** Index of the accepted credential */
+		private int successIndex = NO_CREDENTIALS;
+
+		/** The first access denied */
+		private WmiComException accessDenied = null;
+
+		/** The first failure that is not an access denied */
+		private WmiComException otherFailure = null;
+
+		/** Whether the host said it's the local system (WBEM_E_LOCAL_CREDENTIALS) */
+		private boolean isLocal = false;
+
+		/**
+		 * Record the specified failure
+		 *
+		 * @param e The exception of the failed attempt
+		 * @return whether the next credential is worth trying
+		 */
+		private boolean onFailure(final WmiComException e) {
+
+			final Integer hResult = e.getHResult();
+			if (hResult != null && hResult.intValue() == WBEM_E_LOCAL_CREDENTIALS) {
+				isLocal = true;
+				return false;
+			}
+
+			if (HResultCategory.of(e) == HResultCategory.ACCESS_DENIED) {
+				if (accessDenied == null) {
+					accessDenied = e;
+				}
+				return true;
+			}
+
+			if (otherFailure == null) {
+				otherFailure = e;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.WqlQuery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the same WQL query on many hosts in parallel, and hands out the result of each host as soon as it's available.
+ * <p>
+ * <ul>
+ * <li>No more than <code>maxConcurrency</code> hosts are queried at the same time (globally, for all the fan-outs
+ * submitted to this executor)
+ * <li>No more than <code>maxPerHost</code> queries run on the same host at the same time. The other queries of the host
+ * wait for their turn in the queue of the host, without holding one of the <code>maxConcurrency</code> threads
+ * <li>Each host has its own deadline, which starts when the host is actually queried, or when the query starts waiting
+ * for its turn (not when it's submitted), so that slow or dead hosts don't eat the time of the hosts waiting behind them
+ * </ul>
+ * Example:
+ * <pre><code>
+ * try (WmiFanOutExecutor executor = new WmiFanOutExecutor(64, 2)) {
+ * 	final WmiFanOutExecutor.FanOut fanOut = executor.submit(hostnames, "root\\cimv2", username, password, wqlQuery, 30000);
+ * 	while (fanOut.getRemainingCount() &gt; 0) {
+ * 		final WmiFanOutExecutor.HostResult hostResult = fanOut.take();
+ * 		...
+ * 	}
+ * }
+ * </code></pre>
+ */
+public class WmiFanOutExecutor implements AutoCloseable {
+
+	/** Default maximum number of queries running at the same time on the same host */
+	public static final int DEFAULT_MAX_PER_HOST = 2;
+
+	/** Runs the queries (maxConcurrency threads) */
+	private final ExecutorService threadPool;
+
+	/** Fails the queries that waited for their turn longer than their timeout */
+	private final ScheduledExecutorService timer;
+
+	/** Maximum number of queries running at the same time on the same host */
+	private final int maxPerHost;
+
+	/** How the connections are established */
+	private final WmiWbemServicesPool.SessionFactory sessionFactory;
+
+	/**
+	 * Queries running or waiting on each host (lower case hostname, empty string for localhost).
+	 * Only the hosts being queried are listed.
+	 */
+	private final Map<String, HostQueue> hostQueues = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a fan-out executor with {@link #DEFAULT_MAX_PER_HOST} queries per host
+	 *
+	 * @param maxConcurrency Maximum number of hosts queried at the same time
+	 */
+	public WmiFanOutExecutor(final int maxConcurrency) {
+		this(maxConcurrency, DEFAULT_MAX_PER_HOST);
+	}
+
+	/**
+	 * Create a fan-out executor
+	 *
+	 * @param maxConcurrency Maximum number of hosts queried at the same time
+	 * @param maxPerHost Maximum number of queries running at the same time on the same host
+	 */
+	public WmiFanOutExecutor(final int maxConcurrency, final int maxPerHost) {
+		this(maxConcurrency, maxPerHost, WmiWbemServices::getInstance);
+	}
+
+	/**
+	 * Create a fan-out executor
+	 *
+	 * @param maxConcurrency Maximum number of hosts queried at the same time
+	 * @param maxPerHost Maximum number of queries running at the same time on the same host
+	 * @param sessionFactory How the connections are established
+	 */
+	WmiFanOutExecutor(
+			final int maxConcurrency,
+			final int maxPerHost,
+			final WmiWbemServicesPool.SessionFactory sessionFactory) {
+
+		Utils.checkArgumentNotZeroOrNegative(maxConcurrency, "maxConcurrency");
+		Utils.checkArgumentNotZeroOrNegative(maxPerHost, "maxPerHost");
+		Utils.checkNonNull(sessionFactory, "sessionFactory");
+
+		this.maxPerHost = maxPerHost;
+		this.sessionFactory = sessionFactory;
+
+		// COM is initialized once per thread, and uninitialized when the executor is closed
+		this.threadPool = Executors.newFixedThreadPool(
+				maxConcurrency,
+				WmiComExecutor.newComThreadFactory("WmiFanOutExecutor", null));
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "WmiFanOutExecutor-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Submit the specified WQL query for execution on each of the specified hosts
+	 *
+	 * @param hostnames The hosts to query (null or empty string for localhost)
+	 * @param namespace The namespace (e.g. ROOT\CIMV2)
+	 * @param username The username (may be null)
+	 * @param password The password (may be null)
+	 * @param wqlQuery The WQL query
+	 * @param timeout Timeout in milliseconds for each host, including the connection and the time waiting for
+	 * its turn when the host is already queried <code>maxPerHost</code> times (throws an IllegalArgumentException
+	 * if negative or zero)
+	 * @return a {@link FanOut} that hands out the result of each host as it completes
+	 * @throws RejectedExecutionException if this executor has been closed
+	 */
+	public FanOut submit(
+			final Collection<String> hostnames,
+			final String namespace,
+			final String username,
+			final char[] password,
+			final WqlQuery wqlQuery,
+			final long timeout) {
+
+		Utils.checkNonNull(hostnames, "hostnames");
+		Utils.checkNonNull(namespace, "namespace");
+		Utils.checkNonNull(wqlQuery, "wqlQuery");
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+
+		if (isClosed()) {
+			throw new RejectedExecutionException("This executor has been closed");
+		}
+
+		final FanOut fanOut = new FanOut();
+		for (final String hostname : hostnames) {
+			final QueryTask task = new QueryTask(
+					hostname,
+					fanOut,
+					timeout,
+					deadline -> fanOut.isCancelled ?
+							new HostResult(hostname, null, new CancellationException("The query was cancelled"), 0) :
+							query(hostname, namespace, username, password, wqlQuery, deadline));
+			fanOut.remainingCount.incrementAndGet();
+			schedule(task);
+		}
+		return fanOut;
+	}
+
+	/**
+	 * Run the specified task if the host is queried less than <code>maxPerHost</code> times,
+	 * or add it to the queue of the host
+	 */
+	private void schedule(final QueryTask task) {
+
+		final boolean[] isRunnable = { false };
+		hostQueues.compute(task.hostKey, (key, hostQueue) -> {
+			final HostQueue queue = hostQueue == null ? new HostQueue() : hostQueue;
+			if (queue.runningCount < maxPerHost) {
+				queue.runningCount++;
+				isRunnable[0] = true;
+			} else {
+				// The deadline of this host starts now
+				task.deadline = Deadline.newInstance(task.timeout);
+				queue.waiting.addLast(task);
+			}
+			return queue;
+		});
+
+		if (isRunnable[0]) {
+			start(task);
+			return;
+		}
+
+		// Fail the task if its turn doesn't come in time
+		try {
+			task.expiry = timer.schedule(() -> expire(task), task.timeout, TimeUnit.MILLISECONDS);
+		} catch (final RejectedExecutionException e) {
+			// Closed: the task is abandoned with the others
+		}
+	}
+
+	/**
+	 * Run the specified task on the thread pool (the task already counts as running on its host)
+	 */
+	private void start(final QueryTask task) {
+		try {
+			threadPool.execute(task);
+		} catch (final RejectedExecutionException e) {
+			abandon(task);
+		}
+	}
+
+	/**
+	 * Fail the specified task that has not been run, and let the next task of its host run
+	 */
+	private void abandon(final QueryTask task) {
+		task.fail(new CancellationException("The query was cancelled"));
+		onTaskDone(task.hostKey);
+	}
+
+	/**
+	 * Fail the specified task with a TimeoutException, if it's still waiting for its turn
+	 */
+	private void expire(final QueryTask task) {
+
+		final boolean[] isRemoved = { false };
+		hostQueues.computeIfPresent(task.hostKey, (key, hostQueue) -> {
+			isRemoved[0] = hostQueue.waiting.remove(task);
+			return hostQueue;
+		});
+
+		if (isRemoved[0]) {
+			task.fail(new TimeoutException(String.format("Too many queries on %s, none completed in %d ms.", task.hostname, task.timeout)));
+		}
+	}
+
+	/**
+	 * A task of the specified host is done: run the next task of the host, if any
+	 * (the host is no longer listed when it has no more tasks)
+	 */
+	private void onTaskDone(final String hostKey) {
+
+		final List<QueryTask> next = new ArrayList<>(1);
+		hostQueues.computeIfPresent(hostKey, (key, hostQueue) -> {
+			final QueryTask task = hostQueue.waiting.pollFirst();
+			if (task != null) {
+				next.add(task);
+				return hostQueue;
+			}
+			hostQueue.runningCount--;
+			return hostQueue.runningCount > 0 ? hostQueue : null;
+		});
+
+		if (!next.isEmpty()) {
+			final QueryTask task = next.get(0);
+			if (task.expiry != null) {
+				task.expiry.cancel(false);
+			}
+			start(task);
+		}
+	}
+
+	/**
+	 * Execute the query on one host (never throws: the exceptions are returned in the {@link HostResult})
+	 *
+	 * @return the result of the host
+	 */
+	private HostResult query(
+			final String hostname,
+			final String namespace,
+			final String username,
+			final char[] password,
+			final WqlQuery wqlQuery,
+			final Deadline deadline) {
+
+		try (WmiWbemServices wmiWbemServices = sessionFactory.create(
+				WmiHelper.createNetworkResource(hostname, namespace),
+				username,
+				password)) {
+			return new HostResult(hostname, wmiWbemServices.executeWql(wqlQuery, deadline), null, deadline.getElapsedMillis());
+		} catch (final Exception e) {
+			return new HostResult(hostname, null, e, deadline.getElapsedMillis());
+		}
+	}
+
+	/**
+	 * Stop the threads. The queries that haven't started are abandoned: their result is a {@link CancellationException}.
+	 */
+	@Override
+	public void close() {
+
+		timer.shutdownNow();
+
+		for (final Runnable runnable : threadPool.shutdownNow()) {
+			if (runnable instanceof QueryTask) {
+				abandon((QueryTask) runnable);
+			}
+		}
+	}
+
+	/**
+	 * @return whether this executor has been closed
+	 */
+	public boolean isClosed() {
+		return threadPool.isShutdown();
+	}
+
+	/**
+	 * @return the number of hosts with queries running or waiting for their turn
+	 */
+	int getActiveHostCount() {
+		return hostQueues.size();
+	}
+
+	/**
+	 * The queries of one host
+	 */
+	private static class HostQueue {
+
+		/** Number of queries running (or about to run) on the host */
+		private int runningCount = 0;
+
+		/** Queries waiting for their turn */
+		private final Deque<QueryTask> waiting = new ArrayDeque<>();
+	}
+
+	/**
+	 * The query of one host in a {@link FanOut}
+	 */
+	private class QueryTask implements Runnable {
+
+		private final String hostname;
+
+		/** Key of the host in {@link WmiFanOutExecutor#hostQueues} */
+		private final String hostKey;
+
+		private final FanOut fanOut;
+
+		/** Timeout in milliseconds for the host */
+		private final long timeout;
+
+		/** Executes the query, before the specified deadline */
+		private final Function<Deadline, HostResult> query;
+
+		/** Deadline of the host (set when the task starts waiting for its turn, otherwise when it runs) */
+		private volatile Deadline deadline = null;
+
+		/** Fails the task if its turn doesn't come in time */
+		private volatile ScheduledFuture<?> expiry = null;
+
+		/** Whether the result has been handed to the fan-out */
+		private final AtomicBoolean isCompleted = new AtomicBoolean();
+
+		private QueryTask(
+				final String hostname,
+				final FanOut fanOut,
+				final long timeout,
+				final Function<Deadline, HostResult> query) {
+			this.hostname = hostname;
+			this.hostKey = hostname == null ? "" : hostname.toLowerCase(Locale.ROOT);
+			this.fanOut = fanOut;
+			this.timeout = timeout;
+			this.query = query;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (deadline == null) {
+					deadline = Deadline.newInstance(timeout);
+				}
+				complete(query.apply(deadline));
+			} catch (final Error e) {
+				fail(new Exception(e));
+				throw e;
+			} finally {
+				onTaskDone(hostKey);
+			}
+		}
+
+		/**
+		 * Hand out the specified exception as the result of this task (unless it has completed already)
+		 */
+		private void fail(final Exception exception) {
+			final Deadline hostDeadline = deadline;
+			complete(new HostResult(hostname, null, exception, hostDeadline == null ? 0 : hostDeadline.getElapsedMillis()));
+		}
+
+		/**
+		 * Hand out the specified result to the fan-out (only once)
+		 */
+		private void complete(final HostResult hostResult) {
+			if (isCompleted.compareAndSet(false, true)) {
+				fanOut.completionQueue.add(hostResult);
+			}
+		}
+	}
+
+	/**
+	 * The execution of a WQL query on a set of hosts, whose results are handed out as the hosts complete
+	 * (like a {@link java.util.concurrent.CompletionService}).
+	 */
+	public static class FanOut {
+
+		/** Results of the hosts that completed, not handed out yet */
+		private final BlockingQueue<HostResult> completionQueue = new LinkedBlockingQueue<>();
+
+		/** Number of results not handed out yet */
+		private final AtomicInteger remainingCount = new AtomicInteger();
+
+		/** Whether the hosts that have not been queried yet must be skipped */
+		private volatile boolean isCancelled = false;
+
+		private FanOut() {
+		}
+
+		/**
+		 * Wait for the next host to complete
+		 *
+		 * @return the result of the next host that completed, or null if all the results have been handed out
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public HostResult take() throws InterruptedException {
+			if (remainingCount.get() <= 0) {
+				return null;
+			}
+			final HostResult hostResult = completionQueue.take();
+			remainingCount.decrementAndGet();
+			return hostResult;
+		}
+
+		/**
+		 * Wait for the next host to complete, up to the specified time
+		 *
+		 * @param timeout Time to wait
+		 * @param unit Unit of the time to wait
+		 * @return the result of the next host that completed, or null if none completed in time
+		 * (or all the results have been handed out)
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public HostResult poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+			if (remainingCount.get() <= 0) {
+				return null;
+			}
+			final HostResult hostResult = completionQueue.poll(timeout, unit);
+			if (hostResult != null) {
+				remainingCount.decrementAndGet();
+			}
+			return hostResult;
+		}
+
+		/**
+		 * Wait for all the hosts to complete
+		 *
+		 * @return the results of the hosts that have not been handed out yet, in the order of completion
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public List<HostResult> awaitAll() throws InterruptedException {
+			final List<HostResult> results = new ArrayList<>();
+			HostResult hostResult;
+			while ((hostResult = take()) != null) {
+				results.add(hostResult);
+			}
+			return results;
+		}
+
+		/**
+		 * Abandon the hosts that have not been queried yet. Their result is a {@link CancellationException}.
+		 * The queries already running complete normally.
+		 */
+		public void cancel() {
+			isCancelled = true;
+		}
+
+		/**
+		 * @return the number of results that have not been handed out yet
+		 */
+		public int getRemainingCount() {
+			return remainingCount.get();
+		}
+	}
+
+
+	/**
+	 * The result of the query on one host: either the result rows, or the exception
+	 */
+	public static class HostResult {
+
+		private final String hostname;
+		private final List<Map<String, Object>> rows;
+		private final Exception exception;
+		private final long elapsedMillis;
+
+		HostResult(
+				final String hostname,
+				final List<Map<String, Object>> rows,
+				final Exception exception,
+				final long elapsedMillis) {
+			this.hostname = hostname;
+			this.rows = rows;
+			this.exception = exception;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		/**
+		 * @return the host (null or empty string for localhost)
+		 */
+		public String getHostname() {
+			return hostname;
+		}
+
+		/**
+		 * @return the result rows, or null if the query failed
+		 */
+		public List<Map<String, Object>> getRows() {
+			return rows;
+		}
+
+		/**
+		 * @return the exception (TimeoutException, WqlQuerySyntaxException, WmiComException, CancellationException, etc.),
+		 * or null if the query succeeded
+		 */
+		public Exception getException() {
+			return exception;
+		}
+
+		/**
+		 * @return whether the query succeeded
+		 */
+		public boolean isSuccess() {
+			return exception == null;
+		}
+
+		/**
+		 * @return the time in milliseconds spent on this host (connection and query)
+		 */
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return isSuccess() ?
+					String.format("%s: %d rows in %d ms", hostname, rows.size(), elapsedMillis) :
+					String.format("%s: %s after %d ms", hostname, exception, elapsedMillis);
+		}
+	}
+}
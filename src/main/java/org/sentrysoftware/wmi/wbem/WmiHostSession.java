@@ -0,0 +1,252 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Authenticated connection to the ROOT namespace of a host, from which the other namespaces
+ * (ROOT\CIMV2, ROOT\WMI, ROOT\MSCluster, etc.) are opened with <code>IWbemServices::OpenNamespace</code>.
+ * <p>
+ * Only one <code>IWbemLocator::ConnectServer</code> call (and one COAUTHIDENTITY) is needed for all the namespaces
+ * of the host. The namespaces are opened on first use and cached: they belong to the session and are closed
+ * with it (callers must not close them).
+ * <p>
+ * <pre>
+ * try (WmiHostSession session = WmiHostSession.open("server", "user", password)) {
+ *     session.getNamespace("ROOT\\CIMV2").executeWql("SELECT Name FROM Win32_Service", 30000);
+ *     session.getNamespace("ROOT\\WMI").executeWql("SELECT * FROM MSStorageDriver_FailurePredictStatus", 30000);
+ * }
+ * </pre>
+ * This class is thread-safe.
+ */
+public class WmiHostSession implements AutoCloseable {
+
+	/** The root namespace, parent of all the namespaces */
+	public static final String ROOT_NAMESPACE = "ROOT";
+
+	/** Connection to the ROOT namespace */
+	private final WmiWbemServices rootServices;
+
+	/** The namespaces opened so far, by normalized name (without the ROOT\ prefix, in upper case) */
+	private final Map<String, WmiWbemServices> namespaces = new ConcurrentHashMap<>();
+
+	/** Lock of each namespace, held while the namespace is being opened (by normalized name) */
+	private final Map<String, Object> openLocks = new ConcurrentHashMap<>();
+
+	/** Whether the session has been closed */
+	private volatile boolean isClosed = false;
+
+	/**
+	 * @param rootServices Connection to the ROOT namespace of the host
+	 */
+	WmiHostSession(final WmiWbemServices rootServices) {
+		this.rootServices = rootServices;
+	}
+
+	/**
+	 * Connect to the ROOT namespace of the specified host
+	 *
+	 * @param hostname The host (null or empty for the local system)
+	 * @param username The username name (may be null)
+	 * @param password The password (may be null)
+	 * @return a new session, that must be closed once no longer needed
+	 * @throws WmiComException For any problem encountered with JNA
+	 * @see WmiWbemServices#getInstance(String, String, char[])
+	 */
+	public static WmiHostSession open(
+			final String hostname,
+			final String username,
+			final char[] password) throws WmiComException {
+		return new WmiHostSession(WmiWbemServices.getInstance(
+				WmiHelper.createNetworkResource(hostname, ROOT_NAMESPACE),
+				username,
+				password));
+	}
+
+	/**
+	 * Connect to the ROOT namespace of the specified host, within the specified time
+	 *
+	 * @param hostname The host (null or empty for the local system)
+	 * @param username The username name (may be null)
+	 * @param password The password (may be null)
+	 * @param connectTimeout Timeout in milliseconds for the connection (throws an IllegalArgumentException if negative or zero)
+	 * @return a new session, that must be closed once no longer needed
+	 * @throws TimeoutException if the connection could not be established in time
+	 * @throws WmiComException For any problem encountered with JNA
+	 * @see WmiWbemServices#getInstance(String, String, char[], long)
+	 */
+	public static WmiHostSession open(
+			final String hostname,
+			final String username,
+			final char[] password,
+			final long connectTimeout) throws WmiComException, TimeoutException {
+		return new WmiHostSession(WmiWbemServices.getInstance(
+				WmiHelper.createNetworkResource(hostname, ROOT_NAMESPACE),
+				username,
+				password,
+				connectTimeout));
+	}
+
+	/**
+	 * Get the connection to the specified namespace of the host, opened from the ROOT namespace on first use.
+	 * The connection belongs to the session: it must not be closed by the caller.
+	 *
+	 * @param namespace The namespace, e.g. ROOT\CIMV2 or root/wmi (mandatory)
+	 * @return the connection to the namespace
+	 * @throws IllegalArgumentException if the namespace is not under ROOT
+	 * @throws IllegalStateException if the session has been closed
+	 * @throws WmiComException For any problem encountered with JNA (e.g. the namespace does not exist)
+	 */
+	public WmiWbemServices getNamespace(final String namespace) throws WmiComException {
+
+		Utils.checkNonBlank(namespace, "namespace");
+		checkState();
+
+		final String relativeNamespace = toRelativeNamespace(namespace);
+		if (relativeNamespace.isEmpty()) {
+			return rootServices;
+		}
+
+		final String key = relativeNamespace.toUpperCase(Locale.ROOT);
+		final WmiWbemServices services = namespaces.get(key);
+		if (services != null && !services.isClosed()) {
+			return services;
+		}
+
+		// Only the threads that want the same namespace wait while it's being opened
+		synchronized (openLocks.computeIfAbsent(key, k -> new Object())) {
+
+			// Opened by another thread in the meantime?
+			final WmiWbemServices openedServices = namespaces.get(key);
+			if (openedServices != null && !openedServices.isClosed()) {
+				return openedServices;
+			}
+
+			final WmiWbemServices newServices = rootServices.openNamespace(relativeNamespace);
+			synchronized (this) {
+				if (isClosed) {
+					newServices.close();
+					throw new IllegalStateException("This session was closed");
+				}
+				namespaces.put(key, newServices);
+			}
+			return newServices;
+		}
+	}
+
+	/**
+	 * Throws an IllegalStateException if the session has been closed.
+	 */
+	private void checkState() {
+		if (isClosed) {
+			throw new IllegalStateException("This session was closed");
+		}
+	}
+
+	/**
+	 * @param namespace The namespace, e.g. ROOT\CIMV2 or root/wmi
+	 * @return the path of the namespace relative to ROOT, with backslashes (empty for ROOT itself)
+	 */
+	static String toRelativeNamespace(final String namespace) {
+
+		String path = namespace.trim().replace('/', '\\');
+		while (path.startsWith("\\")) {
+			path = path.substring(1);
+		}
+		while (path.endsWith("\\")) {
+			path = path.substring(0, path.length() - 1);
+		}
+
+		if (path.equalsIgnoreCase(ROOT_NAMESPACE)) {
+			return Utils.EMPTY;
+		}
+		if (path.length() <= ROOT_NAMESPACE.length() + 1 ||
+				!path.regionMatches(true, 0, ROOT_NAMESPACE + "\\", 0, ROOT_NAMESPACE.length() + 1)) {
+			throw new IllegalArgumentException("Namespace " + namespace + " is not under " + ROOT_NAMESPACE);
+		}
+		return path.substring(ROOT_NAMESPACE.length() + 1);
+	}
+
+	/**
+	 * @return the namespaces opened so far (except ROOT), e.g. ROOT\CIMV2, in alphabetical order
+	 */
+	public List<String> getOpenNamespaces() {
+		return namespaces.values().stream()
+			.filter(services -> !services.isClosed())
+			.map(WmiWbemServices::getNamespace)
+			.sorted(String.CASE_INSENSITIVE_ORDER)
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the connection to the ROOT namespace
+	 */
+	public WmiWbemServices getRootServices() {
+		return rootServices;
+	}
+
+	/**
+	 * @return the host (null for the local system)
+	 */
+	public String getHostname() {
+		return rootServices.getHostname();
+	}
+
+	/**
+	 * @return the username (may be null)
+	 */
+	public String getUsername() {
+		return rootServices.getUsername();
+	}
+
+	/**
+	 * @return whether the session has been closed
+	 */
+	public boolean isClosed() {
+		return isClosed;
+	}
+
+	/**
+	 * Close the namespaces opened by this session, and the connection to the ROOT namespace
+	 */
+	@Override
+	public synchronized void close() {
+
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+
+		namespaces.values().forEach(WmiWbemServices::close);
+		namespaces.clear();
+		rootServices.close();
+	}
+}
@@ -0,0 +1,227 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.Structure.FieldOrder;
+import com.sun.jna.platform.win32.COM.COMUtils;
+import com.sun.jna.platform.win32.COM.IUnknown;
+import com.sun.jna.platform.win32.COM.Wbemcli.IWbemClassObject;
+import com.sun.jna.platform.win32.Guid.GUID;
+import com.sun.jna.platform.win32.Guid.IID;
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.win32.StdCallLibrary.StdCallCallback;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of the <code>IWbemObjectSink</code> COM interface in Java, with JNA callbacks.
+ * <p>
+ * WMI calls <code>IWbemObjectSink::Indicate</code> with the objects returned by an asynchronous call
+ * (like <code>IWbemServices::ExecQueryAsync</code>), and <code>IWbemObjectSink::SetStatus</code>
+ * when the call is complete. These calls are made on RPC threads, not on the thread that started
+ * the asynchronous call.
+ * <p>
+ * The native memory for the object and its vtable stays allocated (and the instance stays referenced)
+ * as long as its COM reference count is not zero.
+ *
+ * @see <a href="https://docs.microsoft.com/en-us/windows/win32/api/wbemcli/nn-wbemcli-iwbemobjectsink">IWbemObjectSink interface (wbemcli.h)</a>
+ */
+class WmiObjectSink {
+
+	/**
+	 * IWbemObjectSink Interface Universally Unique Identifier UUID.
+	 */
+	static final IID IID_IWBEM_OBJECT_SINK = new IID("7C857801-7381-11CF-884D-00AA004B2E24");
+
+	/** The call is complete (lFlags of IWbemObjectSink::SetStatus) */
+	static final int WBEM_STATUS_COMPLETE = 0;
+
+	/**
+	 * Receives the objects passed to IWbemObjectSink::Indicate
+	 */
+	@FunctionalInterface
+	interface ObjectHandler {
+		/**
+		 * @param wbemClassObject An object returned by WMI (owned by WMI: it must not be released)
+		 */
+		void onObject(IWbemClassObject wbemClassObject);
+	}
+
+	/**
+	 * Receives the calls to IWbemObjectSink::SetStatus
+	 */
+	@FunctionalInterface
+	interface StatusHandler {
+		/**
+		 * @param flags {@link #WBEM_STATUS_COMPLETE} when the call is complete
+		 * @param hResult Result of the asynchronous call
+		 */
+		void onStatus(int flags, int hResult);
+	}
+
+	/** Sinks that are still referenced by COM (so that their callbacks are not garbage-collected) */
+	private static final Set<WmiObjectSink> LIVE_SINKS = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	private final ObjectHandler objectHandler;
+	private final StatusHandler statusHandler;
+	private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+	/** The vtable, with the Java callbacks */
+	private final SinkVTable vtable;
+
+	/** The COM object: a pointer to the vtable */
+	private final Memory object;
+
+	/**
+	 * Create a new IWbemObjectSink COM object, with a reference count of 1
+	 * (to be released with {@link #release()}).
+	 *
+	 * @param objectHandler Receives the objects passed to IWbemObjectSink::Indicate
+	 * @param statusHandler Receives the calls to IWbemObjectSink::SetStatus
+	 */
+	WmiObjectSink(final ObjectHandler objectHandler, final StatusHandler statusHandler) {
+
+		this.objectHandler = objectHandler;
+		this.statusHandler = statusHandler;
+
+		vtable = new SinkVTable();
+		vtable.queryInterface = this::queryInterface;
+		vtable.addRef = thisPointer -> addRef();
+		vtable.release = thisPointer -> release();
+		vtable.indicate = this::indicate;
+		vtable.setStatus = this::setStatus;
+		vtable.write();
+
+		object = new Memory(Native.POINTER_SIZE);
+		object.setPointer(0, vtable.getPointer());
+
+		LIVE_SINKS.add(this);
+	}
+
+	/**
+	 * @return the pointer to the COM object (IUnknown* or IWbemObjectSink*)
+	 */
+	Pointer getPointer() {
+		return object;
+	}
+
+	/**
+	 * IUnknown::AddRef
+	 * @return the new reference count
+	 */
+	int addRef() {
+		return referenceCount.incrementAndGet();
+	}
+
+	/**
+	 * IUnknown::Release
+	 * @return the new reference count
+	 */
+	int release() {
+		final int count = referenceCount.decrementAndGet();
+		if (count == 0) {
+			LIVE_SINKS.remove(this);
+		}
+		return count;
+	}
+
+	/**
+	 * IUnknown::QueryInterface: this object implements IUnknown and IWbemObjectSink
+	 */
+	private int queryInterface(final Pointer thisPointer, final Pointer riid, final Pointer ppvObject) {
+
+		if (ppvObject == null) {
+			return WinError.E_POINTER;
+		}
+
+		final String iid = new GUID(riid).toGuidString();
+		if (IUnknown.IID_IUNKNOWN.toGuidString().equalsIgnoreCase(iid) || IID_IWBEM_OBJECT_SINK.toGuidString().equalsIgnoreCase(iid)) {
+			ppvObject.setPointer(0, object);
+			addRef();
+			return COMUtils.S_OK;
+		}
+
+		ppvObject.setPointer(0, Pointer.NULL);
+		return WinError.E_NOINTERFACE;
+	}
+
+	/**
+	 * IWbemObjectSink::Indicate
+	 */
+	private int indicate(final Pointer thisPointer, final int objectCount, final Pointer objectArray) {
+
+		if (objectArray != null && objectCount > 0) {
+			for (final Pointer pointer : objectArray.getPointerArray(0, objectCount)) {
+				objectHandler.onObject(new IWbemClassObject(pointer));
+			}
+		}
+		return COMUtils.S_OK;
+	}
+
+	/**
+	 * IWbemObjectSink::SetStatus
+	 */
+	private int setStatus(
+			final Pointer thisPointer,
+			final int flags,
+			final int hResult,
+			final Pointer strParam,
+			final Pointer objectParam) {
+		statusHandler.onStatus(flags, hResult);
+		return COMUtils.S_OK;
+	}
+
+	interface QueryInterfaceCallback extends StdCallCallback {
+		int invoke(Pointer thisPointer, Pointer riid, Pointer ppvObject);
+	}
+
+	interface ReferenceCallback extends StdCallCallback {
+		int invoke(Pointer thisPointer);
+	}
+
+	interface IndicateCallback extends StdCallCallback {
+		int invoke(Pointer thisPointer, int objectCount, Pointer objectArray);
+	}
+
+	interface SetStatusCallback extends StdCallCallback {
+		int invoke(Pointer thisPointer, int flags, int hResult, Pointer strParam, Pointer objectParam);
+	}
+
+	/**
+	 * IWbemObjectSink vtable: IUnknown methods, followed by Indicate and SetStatus
+	 */
+	@FieldOrder({ "queryInterface", "addRef", "release", "indicate", "setStatus" })
+	public static class SinkVTable extends Structure {
+		public QueryInterfaceCallback queryInterface;
+		public ReferenceCallback addRef;
+		public ReferenceCallback release;
+		public IndicateCallback indicate;
+		public SetStatusCallback setStatus;
+	}
+
+}
@@ -0,0 +1,49 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+/**
+ * How the values of the properties are read from each object returned by a WQL query.
+ *
+ * @see WmiWbemServices#setPropertyReadMode(WmiPropertyReadMode)
+ */
+public enum WmiPropertyReadMode {
+
+	/**
+	 * One <code>IWbemClassObject::Get</code> call per selected property (default).
+	 */
+	GET,
+
+	/**
+	 * <code>IWbemClassObject::BeginEnumeration</code>, then one <code>IWbemClassObject::Next</code> call
+	 * per non-system property of the class (selected or not), then <code>EndEnumeration</code>.
+	 * <code>Next</code> returns one property per call: this mode never makes fewer native calls than {@link #GET},
+	 * it only spares the provider the lookup of each property by its name. Measure before choosing it.
+	 * The system properties (<code>__PATH</code>, etc.) are still read with <code>IWbemClassObject::Get</code>.
+	 */
+	ENUMERATION,
+
+	/**
+	 * {@link #ENUMERATION} when at least half of the non-system properties of the class are selected
+	 * (and at least 8 of them), {@link #GET} otherwise.
+	 */
+	AUTO;
+}
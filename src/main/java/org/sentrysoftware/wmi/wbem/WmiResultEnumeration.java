@@ -0,0 +1,441 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.AutoCloseableReadWriteLock;
+import org.sentrysoftware.wmi.CancellationToken;
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiResultSet;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.UncheckedWmiException;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.COM.Wbemcli;
+import com.sun.jna.platform.win32.COM.Wbemcli.IEnumWbemClassObject;
+import com.sun.jna.platform.win32.COM.Wbemcli.IWbemClassObject;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+import com.sun.jna.ptr.IntByReference;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Result of a WQL query, read as the rows are being returned by WMI.
+ * <p>
+ * Unlike {@link WmiWbemServices#executeWql(org.sentrysoftware.wmi.WqlQuery, long)}, which builds the
+ * list of all the rows, this enumeration fetches the objects from the <code>IEnumWbemClassObject</code>
+ * enumerator one batch at a time, when the caller asks for more rows. Each <code>IWbemClassObject</code>
+ * is released as soon as it has been converted to a row, so memory usage depends on the batch size
+ * of the connection, not on the size of the result.
+ * <p>
+ * The enumeration must be closed (it releases the enumerator), even when not all rows have been read:
+ * <pre><code>
+ * try (WmiResultEnumeration result = wmiWbemServices.openWql(wqlQuery, 30000)) {
+ * 	Map&lt;String, Object&gt; row;
+ * 	while ((row = result.nextRow()) != null) {
+ * 		// Process row
+ * 	}
+ * }
+ * </code></pre>
+ * It is not thread-safe: it's meant to be read by one thread.
+ */
+public class WmiResultEnumeration implements AutoCloseable {
+
+	/**
+	 * Maximum time in milliseconds of each IEnumWbemClassObject::Next call, so that cancellation (or the interruption
+	 * of the thread, even with {@link CancellationToken#NONE}) is noticed quickly when the provider is slow
+	 * (Next cannot be interrupted)
+	 */
+	static final long CANCELLATION_CHECK_INTERVAL = 100;
+
+	/** HRESULT returned by WMI when the WQL query is invalid (WBEM_E_INVALID_QUERY) */
+	private static final long WBEM_E_INVALID_QUERY = 2147749911L;
+
+	/** The connection this enumeration comes from */
+	private final WmiWbemServices wmiWbemServices;
+
+	/** The enumerator returned by IWbemServices::ExecQuery */
+	private final IEnumWbemClassObject enumerator;
+
+	/** Deadline for the whole query (all the IEnumWbemClassObject::Next calls and the conversion of the objects) */
+	private final Deadline deadline;
+
+	/** Cancels the query */
+	private final CancellationToken cancellationToken;
+
+	/** The WQL query (its conversion plan is cached by the connection) */
+	private final WqlQuery wqlQuery;
+
+	/** Number of objects requested with the first IEnumWbemClassObject::Next call */
+	private final int initialBatchSize;
+
+	/** Maximum number of objects requested with each IEnumWbemClassObject::Next call */
+	private final int maximumBatchSize;
+
+	/** Maximum number of rows to read from the enumerator ({@link Integer#MAX_VALUE} for no limit) */
+	private final int maxRows;
+
+	/** Number of objects read from the enumerator so far */
+	private int fetchedCount = 0;
+
+	/** Rows that have been fetched but not handed out yet */
+	private final Deque<Map<String, Object>> pendingRows = new ArrayDeque<>();
+
+	private final IntByReference returnedCount = new IntByReference(0);
+	private Pointer[] pointersOnWbemClassObject;
+
+	/** Conversion of the objects to rows (once the first object has been read) */
+	private WmiConversionPlan conversionPlan = null;
+
+	/** Result set the objects are read into, instead of {@link #pendingRows} (see {@link #readInto(WmiResultSet)}) */
+	private WmiResultSet targetResultSet = null;
+
+	/** Columns of the properties in {@link #targetResultSet} (see {@link WmiConversionPlan#bindColumns(WmiResultSet)}) */
+	private int[] targetColumns = null;
+
+	/** Whether the enumerator has no more objects */
+	private boolean isExhausted = false;
+
+	/** Whether this enumeration has been closed */
+	private boolean isClosed = false;
+
+	/** Whether the enumerator has been released */
+	private boolean isReleased = false;
+
+	/**
+	 * Create an enumeration on the result of IWbemServices::ExecQuery
+	 *
+	 * @param wmiWbemServices The connection the enumerator comes from
+	 * @param enumerator The enumerator (with its proxy blanket already set)
+	 * @param deadline Deadline for the whole query
+	 * @param cancellationToken Cancels the query
+	 * @param wqlQuery The WQL query
+	 * @param batchSize Number of objects requested with the first IEnumWbemClassObject::Next call
+	 * @param maxBatchSize Maximum number of objects requested with each IEnumWbemClassObject::Next call
+	 * @param maxRows Maximum number of rows to read ({@link Integer#MAX_VALUE} for no limit)
+	 */
+	WmiResultEnumeration(
+			final WmiWbemServices wmiWbemServices,
+			final IEnumWbemClassObject enumerator,
+			final Deadline deadline,
+			final CancellationToken cancellationToken,
+			final WqlQuery wqlQuery,
+			final int batchSize,
+			final int maxBatchSize,
+			final int maxRows) {
+		this.wmiWbemServices = wmiWbemServices;
+		this.enumerator = enumerator;
+		this.deadline = deadline;
+		this.cancellationToken = cancellationToken;
+		this.wqlQuery = wqlQuery;
+		this.initialBatchSize = batchSize;
+		this.maximumBatchSize = Math.max(batchSize, maxBatchSize);
+		this.maxRows = maxRows;
+		this.pointersOnWbemClassObject = new Pointer[Math.min(batchSize, maxRows)];
+		this.isExhausted = enumerator == null || enumerator.getPointer() == Pointer.NULL;
+	}
+
+	/**
+	 * Get the next row of the result, fetching the next batch of objects from WMI if needed.
+	 *
+	 * @return the next row (a Map of properties/values), or null when there are no more rows
+	 * @throws TimeoutException when the deadline of the query has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid (as reported by WMI itself)
+	 * @throws WmiComException on any COM problem
+	 * @throws IllegalStateException if this enumeration or its connection has been closed
+	 * @throws CancellationException if the query has been cancelled, or the thread interrupted
+	 * (the enumeration is closed)
+	 */
+	public Map<String, Object> nextRow() throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+
+		if (isClosed) {
+			throw new IllegalStateException("This enumeration was closed");
+		}
+
+		try {
+			while (pendingRows.isEmpty() && !isExhausted) {
+				cancellationToken.throwIfCancelled();
+				fetchNextBatch();
+			}
+		} catch (final CancellationException e) {
+			// Stop here and release the enumerator
+			close();
+			throw e;
+		}
+
+		return pendingRows.poll();
+	}
+
+	/**
+	 * Read all the remaining rows into the specified result set. The objects returned by WMI are read
+	 * straight into the result set, without building a Map per row.
+	 *
+	 * @param resultSet The result set to add the rows to
+	 * @return the number of rows added to the result set
+	 * @throws TimeoutException when the deadline of the query has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid (as reported by WMI itself)
+	 * @throws WmiComException on any COM problem
+	 * @throws IllegalStateException if this enumeration or its connection has been closed
+	 * @throws CancellationException if the query has been cancelled, or the thread interrupted
+	 * (the enumeration is closed)
+	 */
+	public long readInto(final WmiResultSet resultSet) throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+
+		Utils.checkNonNull(resultSet, "resultSet");
+
+		if (isClosed) {
+			throw new IllegalStateException("This enumeration was closed");
+		}
+
+		final int initialSize = resultSet.size();
+
+		// Rows already fetched by nextRow()
+		Map<String, Object> row;
+		while ((row = pendingRows.poll()) != null) {
+			resultSet.addRow(row);
+		}
+
+		targetResultSet = resultSet;
+		try {
+			while (!isExhausted) {
+				cancellationToken.throwIfCancelled();
+				fetchNextBatch();
+			}
+		} catch (final CancellationException e) {
+			// Stop here and release the enumerator
+			close();
+			throw e;
+		} finally {
+			targetResultSet = null;
+			targetColumns = null;
+		}
+
+		return (long) resultSet.size() - initialSize;
+	}
+
+	/**
+	 * Call IEnumWbemClassObject::Next to get the next batch of objects and convert them to rows.
+	 * The objects are released right away.
+	 */
+	private void fetchNextBatch() throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+
+		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = wmiWbemServices.getLock().read()) {
+
+			wmiWbemServices.checkState();
+
+			// Wait for the objects no longer than the time left for the whole query,
+			// and come back regularly to check whether the query has been cancelled or the thread interrupted
+			final long remaining = deadline.getRemainingTime(getTimeoutMessage());
+			final long nextTimeout = Math.min(remaining, CANCELLATION_CHECK_INTERVAL);
+
+			// Never ask for more objects than the rows still allowed
+			final int requested = Math.min(pointersOnWbemClassObject.length, maxRows - fetchedCount);
+
+			returnedCount.setValue(0);
+			final HRESULT hResult = enumerator.Next(
+					(int) nextTimeout,
+					requested,
+					pointersOnWbemClassObject,
+					returnedCount);
+
+			// Number of objects actually returned (possibly less than requested)
+			final int returned = hResult == null ? 0 : Math.min(returnedCount.getValue(), requested);
+			fetchedCount += returned;
+
+			try {
+				// Any problem?
+				if (hResult == null) {
+					isExhausted = true;
+					return;
+				}
+				final int code = hResult.intValue();
+				if (returned == 0) {
+					if (code == Wbemcli.WBEM_S_TIMEDOUT) {
+						// Nothing yet: try again (unless the deadline has passed)
+						deadline.check(getTimeoutMessage());
+						return;
+					}
+					if (Integer.toUnsignedLong(code) == WBEM_E_INVALID_QUERY) {
+						throw new WqlQuerySyntaxException("The query was not syntactically valid.");
+					}
+					WmiWbemServices.checkHResult(hResult, "Failed to enumerate results");
+					isExhausted = true;
+					return;
+				}
+
+				for (int i = 0; i < returned; i++) {
+					final IWbemClassObject wbemClassObject = new IWbemClassObject(pointersOnWbemClassObject[i]);
+
+					// Get the list of properties and their types in the first record
+					if (conversionPlan == null) {
+						conversionPlan = wmiWbemServices.getConversionPlan(
+								wqlQuery,
+								wqlQuery.getSubPropertiesMap(),
+								wbemClassObject);
+					}
+
+					if (targetResultSet != null) {
+						if (targetColumns == null) {
+							targetColumns = conversionPlan.bindColumns(targetResultSet);
+						}
+						conversionPlan.readPropertiesValues(wbemClassObject, targetResultSet, targetColumns);
+					} else {
+						pendingRows.add(conversionPlan.getPropertiesValues(wbemClassObject));
+					}
+				}
+
+				// Fewer objects than requested: that's the end of the enumeration
+				// (WBEM_S_FALSE), or the provider is slow (WBEM_S_TIMEDOUT)
+				if (code == Wbemcli.WBEM_S_FALSE || code == Wbemcli.WBEM_S_NO_MORE_DATA) {
+					isExhausted = true;
+				} else if (fetchedCount >= maxRows) {
+					// We have all the rows we need: don't keep the enumerator (and the provider) busy
+					isExhausted = true;
+					releaseEnumerator();
+				} else {
+					// The conversion of the objects counts too
+					deadline.check(getTimeoutMessage());
+				}
+
+			} finally {
+
+				// Free memory for the WBEM object instances of this batch
+				WmiWbemServices.releaseObjects(pointersOnWbemClassObject, returned);
+
+			}
+
+			adaptBatchSize(returned, hResult.intValue());
+		}
+	}
+
+	/**
+	 * @return the message of the TimeoutException when the deadline has passed
+	 */
+	private String getTimeoutMessage() {
+		return "No complete result after " + deadline.getTimeout() + " ms.";
+	}
+
+	/**
+	 * Adaptive mode: grow the batch while the provider keeps filling it,
+	 * and go back to the initial size when it's struggling.
+	 * A call that timed out (WBEM_S_TIMEDOUT) doesn't shrink the batch: each call is cut after
+	 * {@link #CANCELLATION_CHECK_INTERVAL}, which says nothing about the provider.
+	 *
+	 * @param returned Number of objects returned by the last IEnumWbemClassObject::Next call
+	 * @param code HRESULT of the last IEnumWbemClassObject::Next call
+	 */
+	private void adaptBatchSize(final int returned, final int code) {
+		final int currentBatchSize = pointersOnWbemClassObject.length;
+		if (returned == currentBatchSize && currentBatchSize < maximumBatchSize) {
+			pointersOnWbemClassObject = new Pointer[Math.min(currentBatchSize * 2, maximumBatchSize)];
+		} else if (returned < currentBatchSize && currentBatchSize > initialBatchSize && code != Wbemcli.WBEM_S_TIMEDOUT) {
+			pointersOnWbemClassObject = new Pointer[initialBatchSize];
+		}
+	}
+
+	/**
+	 * @return an iterator on the rows. The exceptions are wrapped in {@link UncheckedWmiException}.
+	 */
+	public Iterator<Map<String, Object>> iterator() {
+
+		return new Iterator<Map<String, Object>>() {
+
+			private Map<String, Object> nextRow = null;
+
+			@Override
+			public boolean hasNext() {
+				if (nextRow == null) {
+					try {
+						nextRow = nextRow();
+					} catch (final TimeoutException | WqlQuerySyntaxException | WmiComException e) {
+						throw new UncheckedWmiException(e);
+					}
+				}
+				return nextRow != null;
+			}
+
+			@Override
+			public Map<String, Object> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final Map<String, Object> row = nextRow;
+				nextRow = null;
+				return row;
+			}
+		};
+	}
+
+	/**
+	 * @return a sequential stream of the rows. Closing the stream closes this enumeration.
+	 * The exceptions are wrapped in {@link UncheckedWmiException}.
+	 */
+	public Stream<Map<String, Object>> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL),
+				false)
+				.onClose(this::close);
+	}
+
+	/**
+	 * Release the enumerator. Calling this method more than once has no effect.
+	 */
+	@Override
+	public void close() {
+		if (!isClosed) {
+			isClosed = true;
+			pendingRows.clear();
+			releaseEnumerator();
+		}
+	}
+
+	/**
+	 * Release the enumerator, once only (it may be released before the enumeration is closed,
+	 * when the maximum number of rows has been read)
+	 */
+	private void releaseEnumerator() {
+		if (!isReleased) {
+			isReleased = true;
+			if (enumerator != null) {
+				enumerator.Release();
+			}
+		}
+	}
+
+	/**
+	 * @return whether this enumeration has been closed
+	 */
+	public boolean isClosed() {
+		return isClosed;
+	}
+
+}
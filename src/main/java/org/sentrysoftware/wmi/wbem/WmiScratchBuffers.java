@@ -0,0 +1,182 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import com.sun.jna.platform.win32.OleAuto;
+import com.sun.jna.platform.win32.Variant.VARIANT.ByReference;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Native out-parameters of the property reads (VARIANT, CIMTYPE, flavor, property name), allocated once
+ * per thread and reused for every property of every object, instead of being allocated (and cleaned up
+ * by JNA) for each call.
+ * <p>
+ * The buffers are confined to the thread that acquired them, and must be released after use:
+ * <pre><code>
+ * try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+ * 	wbemClassObject.Get(name, 0, buffers.getValue(), buffers.getType(), buffers.getFlavor());
+ * 	...
+ * }
+ * </code></pre>
+ * The VARIANT must be cleared (<code>VariantClear</code>) after each use, before the next call fills it.
+ * <p>
+ * Reads can be nested (e.g. the sub-properties of an embedded object are read while the VARIANT of the
+ * object is still in use): if the buffers of the thread are in use, new buffers are allocated for the
+ * nested read, and not kept.
+ */
+final class WmiScratchBuffers implements AutoCloseable {
+
+	/** The buffers of each thread */
+	private static final ThreadLocal<WmiScratchBuffers> THREAD_BUFFERS = ThreadLocal.withInitial(() -> new WmiScratchBuffers(true));
+
+	/** Number of buffers allocated so far */
+	private static final AtomicLong ALLOCATED_COUNT = new AtomicLong();
+
+	/** Whether these buffers are the ones of a thread (false for the buffers of a nested read) */
+	private final boolean isThreadBuffers;
+
+	/** Receives the values */
+	private final ByReference value = new ByReference();
+
+	/** Receives the CIM types */
+	private final IntByReference type = new IntByReference();
+
+	/** Receives the flavors */
+	private final IntByReference flavor = new IntByReference();
+
+	/** Receives the property names (BSTR) */
+	private final PointerByReference name = new PointerByReference();
+
+	/** Buffer to read the property names */
+	private char[] nameChars = new char[64];
+
+	/** Flags of the properties of an object */
+	private boolean[] flags = new boolean[64];
+
+	/** Whether the buffers are in use */
+	private boolean isInUse = false;
+
+	private WmiScratchBuffers(final boolean isThreadBuffers) {
+		this.isThreadBuffers = isThreadBuffers;
+
+		// Initialize value, to make sure *VariantClear()* won't throw an exception
+		OleAuto.INSTANCE.VariantInit(value);
+
+		ALLOCATED_COUNT.incrementAndGet();
+	}
+
+	/**
+	 * @return the buffers of the current thread, or new buffers if they are already in use
+	 */
+	static WmiScratchBuffers acquire() {
+		final WmiScratchBuffers buffers = THREAD_BUFFERS.get();
+		if (buffers.isInUse) {
+			return new WmiScratchBuffers(false);
+		}
+		buffers.isInUse = true;
+		return buffers;
+	}
+
+	/**
+	 * Release the buffers, so that the next read of this thread can use them
+	 */
+	@Override
+	public void close() {
+		if (isThreadBuffers) {
+			isInUse = false;
+		}
+	}
+
+	/**
+	 * @return the VARIANT (must be cleared after each use)
+	 */
+	ByReference getValue() {
+		return value;
+	}
+
+	/**
+	 * Clear the VARIANT, so that it can be used for the next call
+	 */
+	void clearValue() {
+		try {
+			OleAuto.INSTANCE.VariantClear(value);
+		} catch (final Throwable t) {
+			/* This condition rarely happens, but it does: at least make sure the next call gets an empty VARIANT */
+			OleAuto.INSTANCE.VariantInit(value);
+		}
+	}
+
+	/**
+	 * @return the CIMTYPE out-parameter
+	 */
+	IntByReference getType() {
+		return type;
+	}
+
+	/**
+	 * @return the flavor out-parameter
+	 */
+	IntByReference getFlavor() {
+		return flavor;
+	}
+
+	/**
+	 * @return the property name (BSTR) out-parameter
+	 */
+	PointerByReference getName() {
+		return name;
+	}
+
+	/**
+	 * @param length Minimum length
+	 * @return a buffer to read property names
+	 */
+	char[] getNameChars(final int length) {
+		if (nameChars.length < length) {
+			nameChars = new char[Math.max(length, nameChars.length * 2)];
+		}
+		return nameChars;
+	}
+
+	/**
+	 * @param length Number of flags
+	 * @return an array of at least <code>length</code> flags, all false
+	 */
+	boolean[] getFlags(final int length) {
+		if (flags.length < length) {
+			flags = new boolean[Math.max(length, flags.length * 2)];
+		} else {
+			Arrays.fill(flags, 0, length, false);
+		}
+		return flags;
+	}
+
+	/**
+	 * @return the number of buffers allocated so far (by all the threads, including the nested reads)
+	 */
+	static long getAllocatedCount() {
+		return ALLOCATED_COUNT.get();
+	}
+}
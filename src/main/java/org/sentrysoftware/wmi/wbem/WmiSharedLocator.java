@@ -0,0 +1,117 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import com.sun.jna.platform.win32.COM.COMException;
+import com.sun.jna.platform.win32.COM.Wbemcli.IWbemContext;
+import com.sun.jna.platform.win32.COM.Wbemcli.IWbemLocator;
+
+/**
+ * Process-wide <code>IWbemLocator</code> and <code>IWbemContext</code> (with <code>__ProviderArchitecture=64</code>),
+ * shared by all the {@link WmiWbemServices} connections.
+ * <p>
+ * Creating a locator (<code>CoCreateInstance</code>) and a context (<code>CoCreateInstance</code> and
+ * <code>IWbemContext::SetValue</code>) for each connection is a waste, as neither holds any state specific
+ * to a connection. They live in the multithreaded apartment, so they can be used from any thread
+ * where COM has been initialized with {@link WmiComHelper#initializeComLibrary()}.
+ * <p>
+ * The objects are reference-counted: created by the first {@link #acquire()}, and released by
+ * the {@link #release()} matching the last {@link #acquire()}. The context must not be modified.
+ */
+final class WmiSharedLocator {
+
+	/** The shared locator (null when not acquired) */
+	private static IWbemLocator locator = null;
+
+	/** The shared context (null when not acquired, or if it could not be created) */
+	private static IWbemContext context = null;
+
+	/** Number of acquire() calls not matched by a release() yet */
+	private static int referenceCount = 0;
+
+	private WmiSharedLocator() { }
+
+	/**
+	 * Get a reference on the shared objects, creating them if needed.
+	 * Each successful call must be matched by a call to {@link #release()}.
+	 *
+	 * @throws COMException when the locator cannot be created
+	 */
+	static synchronized void acquire() {
+
+		if (locator == null) {
+			final IWbemLocator newLocator = IWbemLocator.create();
+			if (newLocator == null) {
+				throw new COMException("Failed to create WbemLocator object.");
+			}
+			locator = newLocator;
+		}
+
+		// Try again if the context could not be created the last time
+		if (context == null) {
+			context = WmiWbemServices.createWbemContextFor64BitWbemProvider();
+		}
+
+		referenceCount++;
+	}
+
+	/**
+	 * Release a reference on the shared objects. The objects are released with the last reference.
+	 */
+	static synchronized void release() {
+
+		if (referenceCount <= 0) {
+			return;
+		}
+
+		referenceCount--;
+		if (referenceCount == 0) {
+			if (context != null) {
+				context.Release();
+				context = null;
+			}
+			if (locator != null) {
+				locator.Release();
+				locator = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the shared locator (null when not acquired)
+	 */
+	static synchronized IWbemLocator getLocator() {
+		return locator;
+	}
+
+	/**
+	 * @return the shared context with <code>__ProviderArchitecture=64</code> (may be null)
+	 */
+	static synchronized IWbemContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @return the number of references on the shared objects
+	 */
+	static synchronized int getReferenceCount() {
+		return referenceCount;
+	}
+}
@@ -21,12 +21,18 @@ package org.sentrysoftware.wmi.wbem;
  */
 
 import org.sentrysoftware.wmi.AutoCloseableReadWriteLock;
+import org.sentrysoftware.wmi.CancellationToken;
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.HostReachability;
 import org.sentrysoftware.wmi.Utils;
 import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.WmiResultSet;
 import org.sentrysoftware.wmi.WqlQuery;
 import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
 import org.sentrysoftware.wmi.windows.remote.WindowsRemoteCommandResult;
 import org.sentrysoftware.wmi.windows.remote.WindowsRemoteExecutor;
+import org.sentrysoftware.wmi.exceptions.CircuitOpenException;
+import org.sentrysoftware.wmi.exceptions.HostUnreachableException;
 import org.sentrysoftware.wmi.exceptions.WmiComException;
 import org.sentrysoftware.wmi.remotecommand.RemoteProcess;
 import com.sun.jna.Pointer;
@@ -50,7 +56,17 @@ import com.sun.jna.ptr.PointerByReference;
 
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -249,6 +265,14 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 		map.put(2147762223L, "WBEMMOF_E_ERROR_CREATING_TEMP_FILE: Error creating temporary file. The temporary file is an intermediate stage in the MOF compilation. (0x8004402F)");
 		map.put(2147762224L, "WBEMMOF_E_ERROR_INVALID_INCLUDE_FILE: A file included in the MOF by the preprocessor command #include is not valid. (0x80044030)");
 		map.put(2147762225L, "WBEMMOF_E_INVALID_DELETECLASS_SYNTAX: The syntax for the preprocessor commands #pragma deleteinstance or #pragma deleteclass is not valid. (0x80044031)");
+		// Transport and security errors reported by DCOM/RPC rather than WMI
+		map.put(2147942405L, "E_ACCESSDENIED: General access denied error. (0x80070005)");
+		map.put(2147944122L, "RPC_S_SERVER_UNAVAILABLE: The RPC server is unavailable. (0x800706BA)");
+		map.put(2147944126L, "RPC_S_CALL_FAILED: The remote procedure call failed. (0x800706BE)");
+		map.put(2147944127L, "RPC_S_CALL_FAILED_DNE: The remote procedure call failed and did not execute. (0x800706BF)");
+		map.put(2147549191L, "RPC_E_SERVER_DIED: The callee (server [not server application]) is not available and disappeared; all connections are invalid. The call may have executed. (0x80010007)");
+		map.put(2147549202L, "RPC_E_SERVER_DIED_DNE: The callee (server [not server application]) is not available and disappeared; all connections are invalid. The call did not execute. (0x80010012)");
+		map.put(2147549448L, "RPC_E_DISCONNECTED: The object invoked has disconnected from its clients. (0x80010108)");
 		MAP_HRESULT_MESSAGE = Collections.unmodifiableMap(map);
 	}
 
@@ -263,7 +287,7 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	static void checkHResult(final HRESULT hResult, final String message) throws WmiComException {
 		Utils.checkNonNull(hResult, "hResult");
 		if (COMUtils.FAILED(hResult)) {
-			throw new WmiComException("%s. %s", message, getWmiComErrorMessage(hResult));
+			throw new WmiComException(hResult.intValue(), "%s. %s", message, getWmiComErrorMessage(hResult));
 		}
 	}
 
@@ -299,7 +323,10 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 
 	private static final int SET_VALUE_FUNCTION_VTABLE_ID_IN_WBEM_CONTEXT_INTERFACE = 8;
 
+	private static final int WBEM_SERVICES_OPEN_NAMESPACE_VTABLE_ID = 3;
+	private static final int WBEM_SERVICES_CANCEL_ASYNC_CALL_VTABLE_ID = 4;
 	private static final int WBEM_SERVICES_GET_OBJECT_VTABLE_ID = 6;
+	private static final int WBEM_SERVICES_EXEC_QUERY_ASYNC_VTABLE_ID = 21;
 	private static final int WBEM_SERVICES_EXEC_METHOD_VTABLE_ID = 24;
 
 	private static final int WBEM_CLASS_OBJECT_PUT_VTABLE_ID = 5;
@@ -313,8 +340,60 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	 */
 	private static final int WBEM_FLAG_RETURN_WBEM_COMPLETE = 0;
 
+	/**
+	 * Default behavior for asynchronous calls: WMI keeps calling back the sink until the call is complete.
+	 *
+	 *  @see <a href="https://docs.microsoft.com/en-us/openspecs/windows_protocols/ms-wmi/2bbdf995-93d8-4902-a39d-38f2a9790b85">2.2.6 WBEM_GENERIC_FLAG_TYPE Enumeration</a>
+	 */
+	private static final int WBEM_FLAG_BIDIRECTIONAL = 0;
+
+	/**
+	 * <code>IWbemLocator::ConnectServer</code> returns in 2 minutes or less, instead of waiting indefinitely
+	 * for an unreachable host.
+	 *
+	 *  @see <a href="https://learn.microsoft.com/en-us/windows/win32/api/wbemcli/nf-wbemcli-iwbemlocator-connectserver">IWbemLocator::ConnectServer method</a>
+	 */
+	private static final int WBEM_FLAG_CONNECT_USE_MAX_WAIT = 0x80;
+
+	/**
+	 * Maximum number of threads establishing the connections with a connect timeout.
+	 * A connection to an unreachable host holds its thread for up to 2 minutes, even once abandoned:
+	 * the threads are created on demand up to this limit, so that these connections don't delay the others.
+	 */
+	private static final int CONNECT_MAX_POOL_SIZE = 256;
+
+	/** Time in seconds after which an idle connection thread ends (and uninitializes COM) */
+	private static final long CONNECT_THREAD_KEEP_ALIVE = 60;
+
+	/** Prefix of the names of the threads establishing the connections with a connect timeout */
+	private static final String CONNECT_THREAD_NAME_PREFIX = "WmiConnect";
+
+	/** Threads establishing the connections with a connect timeout (created on demand) */
+	private static final ThreadPoolExecutor CONNECT_THREADS = new ThreadPoolExecutor(
+			0,
+			CONNECT_MAX_POOL_SIZE,
+			CONNECT_THREAD_KEEP_ALIVE,
+			TimeUnit.SECONDS,
+			new SynchronousQueue<>(),
+			WmiComExecutor.newComThreadFactory(CONNECT_THREAD_NAME_PREFIX, null));
+
 	private static final String WQL = "WQL";
 
+	/** Default number of objects requested with each IEnumWbemClassObject::Next call */
+	public static final int DEFAULT_BATCH_SIZE = 1;
+
+	/**
+	 * Default maximum number of objects requested with each IEnumWbemClassObject::Next call:
+	 * the batch starts at {@link #DEFAULT_BATCH_SIZE} and doubles as long as the provider fills it.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+	/** Upper limit for the batch size, to keep the array of pointers reasonable */
+	public static final int BATCH_SIZE_LIMIT = 4096;
+
+	/** Object retrieved to check whether a connection is still valid */
+	private static final String VALIDATION_OBJECT_PATH = "__NAMESPACE";
+
 	/** //hostname/namespace or just namespace for localhost */
 	private final String networkResource;
 
@@ -330,13 +409,16 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	/** WbemService instance (once it's connected) */
 	private final IWbemServices wbemServices;
 
-	/** WbemLocator instance */
+	/** WbemLocator instance (shared by all connections, see {@link WmiSharedLocator}) */
 	private final IWbemLocator wbemLocator;
 
-	/** WbemContext to be used for this connection */
+	/** WbemContext to be used for this connection (shared by all connections, must not be modified) */
 	private final IWbemContext context;
 
-	/** COAUTHIDENTITY structure holding domain, username and password */
+	/** Native credentials, shared with the other connections with the same credentials (null if no username) */
+	private final WmiCredentialHandle credentialHandle;
+
+	/** COAUTHIDENTITY structure holding domain, username and password (owned by the credential handle) */
 	private final CoAuthIdentity authIdent;
 
 	/** Whether the instance has been closed */
@@ -345,6 +427,21 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	/** ReadWriteLock */
 	private AutoCloseableReadWriteLock lock;
 
+	/** Asynchronous queries in progress (cancelled when the connection is closed) */
+	private final Set<WmiAsyncQuery> asyncQueries = ConcurrentHashMap.newKeySet();
+
+	/** Conversion plans of the queries executed on this connection (until the WqlQuery instances are garbage collected) */
+	private final Map<WqlQuery, WmiConversionPlan> conversionPlans = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/** How the values of the properties are read from the objects returned by the queries */
+	private volatile WmiPropertyReadMode propertyReadMode = WmiPropertyReadMode.GET;
+
+	/** Number of objects requested with each IEnumWbemClassObject::Next call */
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+	/** Maximum number of objects requested with each IEnumWbemClassObject::Next call (adaptive mode) */
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
 	/**
 	 * The WmiWbemServices constructor.
 	 *
@@ -354,7 +451,7 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	 * @param wbemServices WbemService instance (once it's connected).
 	 * @param wbemLocator WbemLocator instance.
 	 * @param context WbemContext to be used for this connection.
-	 * @param authIdent COAUTHIDENTITY structure holding domain, username and password.
+	 * @param credentialHandle Native credentials, released when this instance is closed (may be null).
 	 */
 	private WmiWbemServices(
 			final String networkResource,
@@ -363,34 +460,56 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 			final IWbemServices wbemServices,
 			final IWbemLocator wbemLocator,
 			final IWbemContext context,
-			final CoAuthIdentity authIdent) {
+			final WmiCredentialHandle credentialHandle) {
 		this.networkResource = networkResource;
 		this.username = username;
 		this.password = password;
 		this.wbemServices = wbemServices;
 		this.wbemLocator = wbemLocator;
 		this.context = context;
-		this.authIdent = authIdent;
-		this.hostname = (networkResource != null && networkResource.startsWith("\\\\"))
-				? networkResource.split("\\\\")[2]
-						: null;
-				this.lock = new AutoCloseableReadWriteLock();
+		this.credentialHandle = credentialHandle;
+		this.authIdent = credentialHandle == null ? null : credentialHandle.getAuthIdentity();
+		this.hostname = WmiHelper.extractHostname(networkResource);
+		this.lock = new AutoCloseableReadWriteLock();
 	}
 
 
 	/**
 	 * Get a WmiWbemServices instance for the specified networkResource.
+	 * The connection attempts go through the default {@link HostCircuitBreaker}, if enabled
+	 * (see {@link HostCircuitBreaker#setDefault(HostCircuitBreaker)}).
 	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
 	 * @param username The username name (may be null).
 	 * @param password The password (may be null).
 	 * @return WmiWbemServices instance
 	 *
+	 * @throws CircuitOpenException if the connections to the host are suspended after too many failures
 	 * @throws WmiComException For any problem encountered with JNA
 	 */
 	public static WmiWbemServices getInstance(
 			final String networkResource,
 			final String username,
 			final char[] password) throws WmiComException {
+		return getInstance(networkResource, username, password, HostCircuitBreaker.getDefault());
+	}
+
+	/**
+	 * Get a WmiWbemServices instance for the specified networkResource.
+	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
+	 * @param username The username name (may be null).
+	 * @param password The password (may be null).
+	 * @param circuitBreaker The circuit breaker the connection attempt goes through (null to always attempt the connection)
+	 * @return WmiWbemServices instance
+	 *
+	 * @throws HostUnreachableException if the host does not answer on the RPC port (see {@link HostReachability#setDefault(HostReachability)})
+	 * @throws CircuitOpenException if the connections to the host are suspended after too many failures
+	 * @throws WmiComException For any problem encountered with JNA
+	 */
+	public static WmiWbemServices getInstance(
+			final String networkResource,
+			final String username,
+			final char[] password,
+			final HostCircuitBreaker circuitBreaker) throws WmiComException {
 
 		Utils.checkNonNull(networkResource, "networkResource");
 
@@ -399,67 +518,241 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 			throw new IllegalArgumentException("A local resource must be accessed without specific credentials");
 		}
 
-		IWbemLocator jnaWbemLocator = null;
-		IWbemContext jnaWbemContext = null;
+		// Fail fast if the host does not answer on the RPC port (when enabled)
+		final String hostname = WmiHelper.extractHostname(networkResource);
+		HostReachability.checkDefault(hostname);
+
+		if (circuitBreaker == null) {
+			return connect(networkResource, username, password);
+		}
+
+		circuitBreaker.acquirePermission(hostname, username);
+		try {
+			final WmiWbemServices wmiWbemServices = connect(networkResource, username, password);
+			circuitBreaker.onSuccess(hostname, username);
+			return wmiWbemServices;
+		} catch (final Throwable e) {
+			// Any outcome must be reported, or a half-open circuit would wait for its trial connection forever
+			circuitBreaker.onFailure(hostname, username, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Get a WmiWbemServices instance for the specified networkResource, within the specified time.
+	 * The connection attempts go through the default {@link HostCircuitBreaker}, if enabled
+	 * (see {@link HostCircuitBreaker#setDefault(HostCircuitBreaker)}).
+	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
+	 * @param username The username name (may be null).
+	 * @param password The password (may be null).
+	 * @param connectTimeout Timeout in milliseconds for the connection (throws an IllegalArgumentException if negative or zero)
+	 * @return WmiWbemServices instance
+	 *
+	 * @throws TimeoutException if the connection could not be established in time
+	 * @throws CircuitOpenException if the connections to the host are suspended after too many failures
+	 * @throws WmiComException For any problem encountered with JNA
+	 */
+	public static WmiWbemServices getInstance(
+			final String networkResource,
+			final String username,
+			final char[] password,
+			final long connectTimeout) throws WmiComException, TimeoutException {
+		return getInstance(networkResource, username, password, connectTimeout, HostCircuitBreaker.getDefault());
+	}
+
+	/**
+	 * Get a WmiWbemServices instance for the specified networkResource, within the specified time.
+	 * <p>
+	 * The connection is established on a thread dedicated to the connections, so that the connections
+	 * to unreachable hosts don't hold the threads of {@link WmiComExecutor#getDefault()}. These threads are created
+	 * on demand: the connection starts right away, whatever the number of connections still in progress
+	 * (up to {@value #CONNECT_MAX_POOL_SIZE}, beyond which this method fails right away with a WmiComException).
+	 * If it takes longer than <code>connectTimeout</code>, the connection attempt is abandoned: this method throws
+	 * a TimeoutException, and the connection will be closed as soon as <code>IWbemLocator::ConnectServer</code> returns
+	 * (in 2 minutes or less).
+	 * <p>
+	 * The circuit breaker gets the outcome of <code>IWbemLocator::ConnectServer</code> only: a connection that
+	 * still runs when the timeout expires (or that could not start) doesn't count as a failure of the host.
+	 *
+	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
+	 * @param username The username name (may be null).
+	 * @param password The password (may be null).
+	 * @param connectTimeout Timeout in milliseconds for the connection (throws an IllegalArgumentException if negative or zero)
+	 * @param circuitBreaker The circuit breaker the connection attempt goes through (null to always attempt the connection)
+	 * @return WmiWbemServices instance
+	 *
+	 * @throws TimeoutException if the connection could not be established in time
+	 * @throws CircuitOpenException if the connections to the host are suspended after too many failures
+	 * @throws WmiComException For any problem encountered with JNA, or if there are too many connections in progress
+	 */
+	public static WmiWbemServices getInstance(
+			final String networkResource,
+			final String username,
+			final char[] password,
+			final long connectTimeout,
+			final HostCircuitBreaker circuitBreaker) throws WmiComException, TimeoutException {
+
+		Utils.checkNonNull(networkResource, "networkResource");
+		Utils.checkArgumentNotZeroOrNegative(connectTimeout, "connectTimeout");
+
+		// The connection reports its outcome to the circuit breaker itself, once ConnectServer has returned
+		final CompletableFuture<WmiWbemServices> connection = new CompletableFuture<>();
+		try {
+			CONNECT_THREADS.execute(() -> {
+				try {
+					WmiComHelper.initializeComLibrary();
+					final WmiWbemServices wmiWbemServices = getInstance(networkResource, username, password, circuitBreaker);
+					if (!connection.complete(wmiWbemServices)) {
+						// Abandoned while connecting
+						wmiWbemServices.close();
+					}
+				} catch (final Throwable e) {
+					connection.completeExceptionally(e);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			// Not a failure of the host: the circuit breaker doesn't hear about it
+			throw new WmiComException(
+					e,
+					String.format("Could not connect to %s: too many connections in progress (%d)", networkResource, CONNECT_MAX_POOL_SIZE));
+		}
+
+		try {
+			return connection.get(connectTimeout, TimeUnit.MILLISECONDS);
+
+		} catch (final TimeoutException e) {
+
+			// Abandon the connection attempt (the connection is closed if it succeeds eventually)
+			if (connection.cancel(false)) {
+				throw new TimeoutException(String.format("Could not connect to %s within %d ms", networkResource, connectTimeout));
+			}
+
+			// Connected (or failed) in the meantime
+			try {
+				return connection.getNow(null);
+			} catch (final CompletionException completionException) {
+				throw toConnectException(completionException.getCause());
+			}
+
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (!connection.cancel(false)) {
+				connection.thenAcceptAsync(WmiWbemServices::close, CONNECT_THREADS);
+			}
+			throw new WmiComException(e, "Interrupted while connecting to " + networkResource);
+
+		} catch (final ExecutionException e) {
+			throw toConnectException(e.getCause());
+		}
+	}
+
+	/**
+	 * Convert the failure of a connection made on a connection thread into the exception thrown to the caller
+	 *
+	 * @param cause The exception thrown by the connection
+	 * @return the WmiComException to throw (RuntimeExceptions and Errors are thrown as is)
+	 */
+	private static WmiComException toConnectException(final Throwable cause) {
+		if (cause instanceof WmiComException) {
+			return (WmiComException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new WmiComException(cause, cause.getMessage());
+	}
+
+	/**
+	 * Connect to the specified networkResource.
+	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
+	 * @param username The username name (may be null).
+	 * @param password The password (may be null).
+	 * @return WmiWbemServices instance
+	 *
+	 * @throws WmiComException For any problem encountered with JNA
+	 */
+	private static WmiWbemServices connect(
+			final String networkResource,
+			final String username,
+			final char[] password) throws WmiComException {
+
 		IWbemServices jnaWbemServices = null;
+		boolean isSharedLocatorAcquired = false;
+		WmiCredentialHandle credentialHandle = null;
 
 		try {
 			// Initialize COM
 			// Step 1 and 2 from: "https://docs.microsoft.com/en-us/windows/win32/wmisdk/example--getting-wmi-data-from-a-remote-computer"
 			WmiComHelper.initializeComLibrary();
 
-			// Get a WbemLocator object (if we don't already have one)
+			// Get the process-wide WbemLocator object and WbemContext (created with the first connection)
 			// Step 3 from: "https://docs.microsoft.com/en-us/windows/win32/wmisdk/example--getting-wmi-data-from-a-remote-computer"
-			jnaWbemLocator = IWbemLocator.create();
-			if (jnaWbemLocator == null) {
-				throw new COMException("Failed to create WbemLocator object.");
+			WmiSharedLocator.acquire();
+			isSharedLocatorAcquired = true;
+			final IWbemLocator jnaWbemLocator = WmiSharedLocator.getLocator();
+			final IWbemContext jnaWbemContext = WmiSharedLocator.getContext();
+
+			// Native credentials, shared with the other connections with the same credentials
+			// (so the password is encoded once, without going through a String)
+			if (username != null && !username.isEmpty()) {
+				credentialHandle = WmiCredentialHandle.acquire(username, password);
 			}
 
-			// WbemContext
-			jnaWbemContext = createWbemContextFor64BitWbemProvider();
-
 			// Get the WbemServices
-			jnaWbemServices = jnaWbemLocator.ConnectServer(
+			final BSTR strNetworkResource = OleAuto.INSTANCE.SysAllocString(networkResource);
+			try {
+				final PointerByReference ppNamespace = new PointerByReference();
+				final HRESULT hResult = jnaWbemLocator.ConnectServer(
+						strNetworkResource,
+						credentialHandle == null ? null : credentialHandle.getUserBstr(),
+						credentialHandle == null ? null : credentialHandle.getPasswordBstr(),
+						null,
+						WBEM_FLAG_CONNECT_USE_MAX_WAIT,
+						null,
+						jnaWbemContext,
+						ppNamespace);
+				COMUtils.checkRC(hResult);
+				jnaWbemServices = new IWbemServices(ppNamespace.getValue());
+			} finally {
+				OleAuto.INSTANCE.SysFreeString(strNetworkResource);
+			}
+
+			// The WbemServices instances is actually a proxy
+			// Set the proxy blanket (cloaking)
+			WmiWbemServices.setProxySecurity(
+					jnaWbemServices.getPointer(),
+					credentialHandle == null ? null : credentialHandle.getAuthIdentity());
+
+			return new WmiWbemServices(
 					networkResource,
 					username,
-					password == null ? null : String.valueOf(password),
-							null,
-							0,
-							null,
-							jnaWbemContext
+					password,
+					jnaWbemServices,
+					jnaWbemLocator,
+					jnaWbemContext,
+					credentialHandle
 					);
 
-			final CoAuthIdentity authIdent = username != null && !username.isEmpty() ?
-					new CoAuthIdentity(username, password) :
-						null;
-
-					// The WbemServices instances is actually a proxy
-					// Set the proxy blanket (cloaking)
-					WmiWbemServices.setProxySecurity(jnaWbemServices.getPointer(), authIdent);
-
-					return new WmiWbemServices(
-							networkResource,
-							username,
-							password,
-							jnaWbemServices,
-							jnaWbemLocator,
-							jnaWbemContext,
-							authIdent
-							);
-
-		} catch (final COMException e) {
+		} catch (final COMException | WmiComException e) {
 
 			// Release what can be released
 			if (jnaWbemServices != null) {
 				jnaWbemServices.Release();
 			}
 
-			if (jnaWbemLocator != null) {
-				jnaWbemLocator.Release();
+			if (isSharedLocatorAcquired) {
+				WmiSharedLocator.release();
+			}
+
+			if (credentialHandle != null) {
+				credentialHandle.close();
 			}
 
-			if (jnaWbemContext != null) {
-				jnaWbemContext.Release();
+			if (e instanceof WmiComException) {
+				throw (WmiComException) e;
 			}
 
 			throw new WmiComException(e, e.getMessage());
@@ -474,28 +767,57 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 
 		try (AutoCloseableReadWriteLock.AutoCloseableWriteLock writeLock = lock.write()) {
 
-			isClosed = true;
-
-			if (context != null) {
-				context.Release();
+			// Release only once (the shared locator is reference-counted)
+			if (isClosed) {
+				return;
 			}
 
+			// Cancel the asynchronous queries still in progress
+			new ArrayList<>(asyncQueries).forEach(WmiAsyncQuery::cancel);
+
+			isClosed = true;
+
 			if (wbemServices != null) {
 				wbemServices.Release();
 			}
 
+			// The locator and the context are shared: release our reference only
 			if (wbemLocator != null) {
-				wbemLocator.Release();
+				WmiSharedLocator.release();
+			}
+
+			// Same for the credentials
+			if (credentialHandle != null) {
+				credentialHandle.close();
 			}
 
 		}
 	}
 
 
+	/**
+	 * Check whether this connection is still usable, with a cheap round trip to the WMI service
+	 * (<code>IWbemServices::GetObject</code> on the <code>__NAMESPACE</code> system class).
+	 *
+	 * @return whether the WMI service answered
+	 */
+	public boolean isValid() {
+
+		try {
+			final Pointer pClassObject = getObject(VALIDATION_OBJECT_PATH);
+			if (pClassObject != null) {
+				new IWbemClassObject(pClassObject).Release();
+			}
+			return true;
+		} catch (final WmiComException | COMException | IllegalStateException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Throws an IllegalStateException if the instance has been closed.
 	 */
-	private void checkState() {
+	void checkState() {
 		if (isClosed) {
 			throw new IllegalStateException("This instance was closed");
 		}
@@ -526,6 +848,20 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 
 	}
 
+	@Override
+	public List<Map<String, Object>> executeWql(final String wql, final Deadline deadline)
+			throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+
+		return executeWql(WqlQuery.newInstance(wql), deadline);
+	}
+
+	@Override
+	public List<Map<String, Object>> executeWql(final String wql, final long timeout, final int maxRows)
+			throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+
+		return executeWql(WqlQuery.newInstance(wql), timeout, maxRows);
+	}
+
 	/**
 	 * <p>Execute a WQL query and process its result.</p>
 	 * <p>Use the IWbemServices pointer to make requests of WMI.</p>
@@ -533,7 +869,7 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	 * <p>Step 6 from: <a href="https://docs.microsoft.com/en-us/windows/win32/wmisdk/example--getting-wmi-data-from-a-remote-computer">Example: Getting WMI Data from a Remote Computer</a></p>
 	 *
 	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
-	 * @param timeout Timeout in milliseconds (throws an IllegalArgumentException if negative or zero)
+	 * @param timeout Timeout in milliseconds for the whole query (throws an IllegalArgumentException if negative or zero)
 	 * @return a list of result rows. A result row is a Map(LinkedHashMap to preserve the query order) of properties/values.
 	 * @throws TimeoutException to notify userName of timeout.
 	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
@@ -542,6 +878,280 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	public List<Map<String, Object>> executeWql(final WqlQuery wqlQuery, final long timeout)
 			throws TimeoutException, WmiComException, WqlQuerySyntaxException {
 
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+
+		return executeWql(wqlQuery, Deadline.newInstance(timeout));
+	}
+
+	/**
+	 * <p>Execute a WQL query and return at most the specified number of rows.</p>
+	 * <p>IEnumWbemClassObject::Next is not called any more once <code>maxRows</code> objects have been read,
+	 * and the enumerator is released right away, so WMI doesn't keep enumerating objects that nobody will read.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for the whole query (throws an IllegalArgumentException if negative or zero)
+	 * @param maxRows Maximum number of rows to return (throws an IllegalArgumentException if negative or zero)
+	 * @return a list of at most <code>maxRows</code> result rows. A result row is a Map(LinkedHashMap to preserve the query order) of properties/values.
+	 * @throws TimeoutException to notify userName of timeout.
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 */
+	public List<Map<String, Object>> executeWql(final WqlQuery wqlQuery, final long timeout, final int maxRows)
+			throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+		Utils.checkArgumentNotZeroOrNegative(maxRows, "maxRows");
+
+		return executeWql(wqlQuery, Deadline.newInstance(timeout), CancellationToken.NONE, maxRows);
+	}
+
+	/**
+	 * <p>Execute a WQL query and process its result, before the specified deadline.</p>
+	 * <p>The deadline applies to the whole query: the execution of the query, the enumeration
+	 * of all the objects and their conversion.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for the whole query (mandatory)
+	 * @return a list of result rows. A result row is a Map(LinkedHashMap to preserve the query order) of properties/values.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 */
+	public List<Map<String, Object>> executeWql(final WqlQuery wqlQuery, final Deadline deadline)
+			throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		return executeWql(wqlQuery, deadline, CancellationToken.NONE);
+	}
+
+	/**
+	 * <p>Execute a WQL query and process its result, before the specified deadline.</p>
+	 * <p>The query can be cancelled from another thread with the specified token (or by interrupting
+	 * the thread running the query): it stops at the next batch of objects and releases the enumerator.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for the whole query (mandatory)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @return a list of result rows. A result row is a Map(LinkedHashMap to preserve the query order) of properties/values.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 * @throws CancellationException when the query has been cancelled
+	 */
+	public List<Map<String, Object>> executeWql(
+			final WqlQuery wqlQuery,
+			final Deadline deadline,
+			final CancellationToken cancellationToken)
+					throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		return executeWql(wqlQuery, deadline, cancellationToken, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * <p>Execute a WQL query and return at most the specified number of rows, before the specified deadline.</p>
+	 * <p>Once <code>maxRows</code> objects have been read, the enumerator is released right away.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for the whole query (mandatory)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @param maxRows Maximum number of rows to return ({@link Integer#MAX_VALUE} for no limit)
+	 * @return a list of at most <code>maxRows</code> result rows. A result row is a Map(LinkedHashMap to preserve the query order) of properties/values.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 * @throws CancellationException when the query has been cancelled
+	 */
+	public List<Map<String, Object>> executeWql(
+			final WqlQuery wqlQuery,
+			final Deadline deadline,
+			final CancellationToken cancellationToken,
+			final int maxRows)
+					throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		// Hold the read lock for the whole query, so that the connection doesn't get closed in-between
+		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = lock.read();
+				WmiResultEnumeration result = openWql(wqlQuery, deadline, cancellationToken, maxRows)) {
+
+			final List<Map<String, Object>> resultRows = new ArrayList<>();
+			Map<String, Object> row;
+			while ((row = result.nextRow()) != null) {
+				resultRows.add(row);
+			}
+			return resultRows;
+		}
+	}
+
+	/**
+	 * <p>Execute a WQL query and return its result as a {@link WmiResultSet}: the property names are stored once,
+	 * and each row only holds its values.</p>
+	 * <p>Use this rather than {@link #executeWql(WqlQuery, long)} for large results that are kept in memory.
+	 * The numeric and boolean values are read straight into arrays of primitives, see {@link WmiResultSet#getLong(int, int)}.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds (throws an IllegalArgumentException if negative or zero)
+	 * @return the result set (its rows are read-only)
+	 * @throws TimeoutException to notify userName of timeout.
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 */
+	public WmiResultSet executeWqlResultSet(final WqlQuery wqlQuery, final long timeout)
+			throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+
+		return executeWqlResultSet(wqlQuery, Deadline.newInstance(timeout), CancellationToken.NONE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * <p>Execute a WQL query and return at most the specified number of rows as a {@link WmiResultSet},
+	 * before the specified deadline.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for the whole query (mandatory)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @param maxRows Maximum number of rows to return ({@link Integer#MAX_VALUE} for no limit)
+	 * @return the result set, with at most <code>maxRows</code> rows (its rows are read-only)
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 * @throws CancellationException when the query has been cancelled
+	 */
+	public WmiResultSet executeWqlResultSet(
+			final WqlQuery wqlQuery,
+			final Deadline deadline,
+			final CancellationToken cancellationToken,
+			final int maxRows)
+					throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		// Hold the read lock for the whole query, so that the connection doesn't get closed in-between
+		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = lock.read();
+				WmiResultEnumeration result = openWql(wqlQuery, deadline, cancellationToken, maxRows)) {
+
+			final WmiResultSet resultSet = new WmiResultSet(wqlQuery.getSelectedProperties());
+			result.readInto(resultSet);
+			return resultSet;
+		}
+	}
+
+	/**
+	 * <p>Execute a WQL query and pass each row of its result to the specified consumer,
+	 * as the rows are being returned by WMI.</p>
+	 * <p>The rows are not collected: memory usage depends on the batch size, not on the size of the result.
+	 * The next batch of objects is fetched only once the consumer has processed the current one.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for the whole query, including the time spent in the consumer
+	 * (throws an IllegalArgumentException if negative or zero)
+	 * @param rowConsumer Called for each result row (a Map of properties/values)
+	 * @return the number of rows
+	 * @throws TimeoutException to notify userName of timeout.
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WmiComException on any COM problem
+	 */
+	public long executeWql(
+			final WqlQuery wqlQuery,
+			final long timeout,
+			final Consumer<Map<String, Object>> rowConsumer)
+					throws TimeoutException, WmiComException, WqlQuerySyntaxException {
+
+		Utils.checkNonNull(rowConsumer, "rowConsumer");
+
+		try (WmiResultEnumeration result = openWql(wqlQuery, timeout)) {
+			long count = 0;
+			Map<String, Object> row;
+			while ((row = result.nextRow()) != null) {
+				rowConsumer.accept(row);
+				count++;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * <p>Execute a WQL query asynchronously, with <code>IWbemServices::ExecQueryAsync</code>.</p>
+	 * <p>No thread is blocked while the query is running: WMI calls back as the objects are available,
+	 * and the returned future completes when WMI reports the end of the query.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for the whole query (throws an IllegalArgumentException if negative or zero)
+	 * @return a future with the list of result rows. It completes exceptionally with a TimeoutException,
+	 * WqlQuerySyntaxException or WmiComException if the query fails. Cancelling the future cancels the query.
+	 * @throws WmiComException when the query cannot be started
+	 */
+	public CompletableFuture<List<Map<String, Object>>> executeWqlAsync(final WqlQuery wqlQuery, final long timeout)
+			throws WmiComException {
+
+		return executeWqlAsync(wqlQuery, timeout, CancellationToken.NONE);
+	}
+
+	/**
+	 * <p>Execute a WQL query asynchronously, with <code>IWbemServices::ExecQueryAsync</code>.</p>
+	 * <p>Cancelling the specified token cancels the query (with <code>IWbemServices::CancelAsyncCall</code>)
+	 * and completes the future with a CancellationException.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for the whole query (throws an IllegalArgumentException if negative or zero)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @return a future with the list of result rows
+	 * @throws WmiComException when the query cannot be started
+	 */
+	public CompletableFuture<List<Map<String, Object>>> executeWqlAsync(
+			final WqlQuery wqlQuery,
+			final long timeout,
+			final CancellationToken cancellationToken) throws WmiComException {
+
+		final List<Map<String, Object>> resultRows = new ArrayList<>();
+		final CompletableFuture<Long> queryFuture = executeWqlAsync(wqlQuery, timeout, cancellationToken, resultRows::add);
+		final CompletableFuture<List<Map<String, Object>>> resultFuture = queryFuture.thenApply(count -> resultRows);
+
+		// Cancelling the returned future cancels the query
+		resultFuture.whenComplete((result, throwable) -> {
+			if (resultFuture.isCancelled()) {
+				queryFuture.cancel(false);
+			}
+		});
+
+		return resultFuture;
+	}
+
+	/**
+	 * <p>Execute a WQL query asynchronously, with <code>IWbemServices::ExecQueryAsync</code>,
+	 * and pass each row to the specified consumer as WMI returns them.</p>
+	 * <p>The consumer is called on RPC threads (never concurrently), so it must not block.
+	 * If it throws an exception, the query is cancelled and the future completes with that exception.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for the whole query (throws an IllegalArgumentException if negative or zero)
+	 * @param rowConsumer Called for each result row (a Map of properties/values)
+	 * @return a future with the number of rows. Cancelling the future cancels the query.
+	 * @throws WmiComException when the query cannot be started
+	 */
+	public CompletableFuture<Long> executeWqlAsync(
+			final WqlQuery wqlQuery,
+			final long timeout,
+			final Consumer<Map<String, Object>> rowConsumer) throws WmiComException {
+
+		return executeWqlAsync(wqlQuery, timeout, CancellationToken.NONE, rowConsumer);
+	}
+
+	/**
+	 * <p>Execute a WQL query asynchronously, with <code>IWbemServices::ExecQueryAsync</code>,
+	 * and pass each row to the specified consumer as WMI returns them.</p>
+	 * <p>Cancelling the specified token cancels the query (with <code>IWbemServices::CancelAsyncCall</code>)
+	 * and completes the future with a CancellationException.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for the whole query (throws an IllegalArgumentException if negative or zero)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @param rowConsumer Called for each result row (a Map of properties/values)
+	 * @return a future with the number of rows
+	 * @throws WmiComException when the query cannot be started
+	 */
+	public CompletableFuture<Long> executeWqlAsync(
+			final WqlQuery wqlQuery,
+			final long timeout,
+			final CancellationToken cancellationToken,
+			final Consumer<Map<String, Object>> rowConsumer) throws WmiComException {
+
 		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = lock.read()) {
 
 			checkState();
@@ -549,9 +1159,159 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 			// Sanity check
 			Utils.checkNonNullField(wbemServices, "wbemServices");
 			Utils.checkNonNullField(wqlQuery, "wqlQuery");
+			Utils.checkNonNull(rowConsumer, "rowConsumer");
+			Utils.checkNonNull(cancellationToken, "cancellationToken");
 			Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
 
-			// Get and parse the result
+			return new WmiAsyncQuery(this, wqlQuery, rowConsumer)
+					.start(wqlQuery.getCleanWql(), timeout, cancellationToken);
+		}
+	}
+
+	/**
+	 * Invoke IWbemServices::ExecQueryAsync
+	 *
+	 * @param wql The WQL query
+	 * @param pResponseHandler The IWbemObjectSink that receives the result
+	 * @throws WmiComException when WMI refuses the call
+	 */
+	void execQueryAsync(final String wql, final Pointer pResponseHandler) throws WmiComException {
+
+		final Pointer pWbemServices = wbemServices.getPointer();
+		final BSTR strQueryLanguage = OleAuto.INSTANCE.SysAllocString(WQL);
+		final BSTR strQuery = OleAuto.INSTANCE.SysAllocString(wql);
+
+		try {
+			final HRESULT hResult = (HRESULT) WmiComHelper.comInvokerInvokeNativeObject(
+					pWbemServices,
+					WBEM_SERVICES_EXEC_QUERY_ASYNC_VTABLE_ID,
+					new Object[] {
+							pWbemServices,
+							strQueryLanguage,
+							strQuery,
+							WBEM_FLAG_BIDIRECTIONAL,
+							null,
+							pResponseHandler},
+					HRESULT.class);
+			checkHResult(hResult, "Fail to invoke WbemServices::ExecQueryAsync method");
+		} finally {
+			OleAuto.INSTANCE.SysFreeString(strQueryLanguage);
+			OleAuto.INSTANCE.SysFreeString(strQuery);
+		}
+	}
+
+	/**
+	 * Invoke IWbemServices::CancelAsyncCall (does nothing if the connection has been closed)
+	 *
+	 * @param pSink The IWbemObjectSink that was passed to the asynchronous call
+	 */
+	void cancelAsyncCall(final Pointer pSink) {
+
+		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = lock.read()) {
+
+			if (isClosed || wbemServices == null) {
+				return;
+			}
+
+			final Pointer pWbemServices = wbemServices.getPointer();
+			WmiComHelper.comInvokerInvokeNativeObject(
+					pWbemServices,
+					WBEM_SERVICES_CANCEL_ASYNC_CALL_VTABLE_ID,
+					new Object[] { pWbemServices, pSink },
+					HRESULT.class);
+		}
+	}
+
+	void addAsyncQuery(final WmiAsyncQuery asyncQuery) {
+		asyncQueries.add(asyncQuery);
+	}
+
+	void removeAsyncQuery(final WmiAsyncQuery asyncQuery) {
+		asyncQueries.remove(asyncQuery);
+	}
+
+	/**
+	 * <p>Execute a WQL query and return an enumeration on its result, which fetches the rows
+	 * from WMI as they are read.</p>
+	 * <p>The returned enumeration must be closed, even when not all rows have been read.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param timeout Timeout in milliseconds for reading the whole result (throws an IllegalArgumentException if negative or zero)
+	 * @return a {@link WmiResultEnumeration} on the result rows
+	 * @throws WmiComException on any COM problem
+	 */
+	public WmiResultEnumeration openWql(final WqlQuery wqlQuery, final long timeout) throws WmiComException {
+
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+
+		return openWql(wqlQuery, Deadline.newInstance(timeout));
+	}
+
+	/**
+	 * <p>Execute a WQL query and return an enumeration on its result, which fetches the rows
+	 * from WMI as they are read, until the specified deadline.</p>
+	 * <p>The returned enumeration must be closed, even when not all rows have been read.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for reading the whole result (mandatory)
+	 * @return a {@link WmiResultEnumeration} on the result rows
+	 * @throws WmiComException on any COM problem
+	 */
+	public WmiResultEnumeration openWql(final WqlQuery wqlQuery, final Deadline deadline) throws WmiComException {
+
+		return openWql(wqlQuery, deadline, CancellationToken.NONE);
+	}
+
+	/**
+	 * <p>Execute a WQL query and return an enumeration on its result, which fetches the rows
+	 * from WMI as they are read, until the specified deadline or until the query is cancelled.</p>
+	 * <p>The returned enumeration must be closed, even when not all rows have been read.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for reading the whole result (mandatory)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @return a {@link WmiResultEnumeration} on the result rows
+	 * @throws WmiComException on any COM problem
+	 */
+	public WmiResultEnumeration openWql(
+			final WqlQuery wqlQuery,
+			final Deadline deadline,
+			final CancellationToken cancellationToken) throws WmiComException {
+
+		return openWql(wqlQuery, deadline, cancellationToken, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * <p>Execute a WQL query and return an enumeration on at most the specified number of rows of its result.</p>
+	 * <p>The enumeration releases the enumerator as soon as <code>maxRows</code> objects have been read.
+	 * It must be closed nevertheless.</p>
+	 *
+	 * @param wqlQuery the WQL query (as a {@link WqlQuery} instance)
+	 * @param deadline Deadline for reading the whole result (mandatory)
+	 * @param cancellationToken Cancels the query (mandatory, {@link CancellationToken#NONE} if not needed)
+	 * @param maxRows Maximum number of rows to read ({@link Integer#MAX_VALUE} for no limit,
+	 * throws an IllegalArgumentException if negative or zero)
+	 * @return a {@link WmiResultEnumeration} on the result rows
+	 * @throws WmiComException on any COM problem
+	 */
+	public WmiResultEnumeration openWql(
+			final WqlQuery wqlQuery,
+			final Deadline deadline,
+			final CancellationToken cancellationToken,
+			final int maxRows) throws WmiComException {
+
+		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = lock.read()) {
+
+			checkState();
+
+			// Sanity check
+			Utils.checkNonNullField(wbemServices, "wbemServices");
+			Utils.checkNonNullField(wqlQuery, "wqlQuery");
+			Utils.checkNonNull(deadline, "deadline");
+			Utils.checkNonNull(cancellationToken, "cancellationToken");
+			Utils.checkArgumentNotZeroOrNegative(maxRows, "maxRows");
+			cancellationToken.throwIfCancelled();
+
 			IEnumWbemClassObject wbemClassObjectQueryResult = null;
 			try {
 
@@ -563,16 +1323,27 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 						null
 						);
 
-				return processWqlResult(
+				if (wbemClassObjectQueryResult.getPointer() != Pointer.NULL) {
+					setProxySecurity(wbemClassObjectQueryResult.getPointer(), authIdent);
+				}
+
+				final WmiResultEnumeration result = new WmiResultEnumeration(
+						this,
 						wbemClassObjectQueryResult,
-						authIdent,
-						timeout,
-						wqlQuery.getSubPropertiesMap()
-				);
+						deadline,
+						cancellationToken,
+						wqlQuery,
+						batchSize,
+						maxBatchSize,
+						maxRows);
+				wbemClassObjectQueryResult = null;
+				return result;
+
 			} catch (final COMException e) {
 				// And forward this error as a regular exception
 				throw new WmiComException(e, e.getClass().getSimpleName() + ": " + e.getMessage());
 			} finally {
+				// Release the enumerator if it hasn't been handed to the enumeration
 				if (wbemClassObjectQueryResult != null) {
 					wbemClassObjectQueryResult.Release();
 				}
@@ -589,7 +1360,12 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 			final long timeout)
 					throws WmiComException, TimeoutException {
 
-		RemoteProcess.executeCommand(command, hostname, username, password, workingDirectory, timeout);
+		// Win32_Process lives in ROOT\CIMV2: reuse this connection if it's the one we're connected to
+		if (WmiHelper.DEFAULT_NAMESPACE.equalsIgnoreCase(getNamespace().replace('/', '\\'))) {
+			RemoteProcess.executeCommand(this, command, workingDirectory, timeout);
+		} else {
+			RemoteProcess.executeCommand(command, hostname, username, password, workingDirectory, timeout);
+		}
 		return null;
 	}
 
@@ -676,91 +1452,21 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	}
 
 	/**
-	 * <p>Get the data from the WQL query.</p>
-	 *
-	 * <p>Step 7 from: <a href="https://docs.microsoft.com/en-us/windows/win32/wmisdk/example--getting-wmi-data-from-a-remote-computer">Example: Getting WMI Data from a Remote Computer</a></p>
+	 * Release the WBEM objects returned by IEnumWbemClassObject::Next and clear the array
 	 *
-	 * @param wbemClassObjectQueryResult
-	 * @param authIdent COAUTHIDENTITY structure holding domain, username and password.
-	 * @param timeout Timeout in milliseconds
-	 * @param properties The properties to get from the request
-	 * @return a list of result rows. A result row is a Map(LinkedHashMap to preserve the query order) of properties/values.
-	 * @throws TimeoutException To notify userName of timeout.
-	 * @throws WmiComException on any COM problem
-	 * @throws WqlQuerySyntaxException on WQL syntax errors (as reported by WMI itself)
+	 * @param pointersOnWbemClassObject Array filled by IEnumWbemClassObject::Next
+	 * @param count Number of objects actually returned
 	 */
-	private List<Map<String, Object>> processWqlResult(
-			final IEnumWbemClassObject wbemClassObjectQueryResult,
-			final CoAuthIdentity authIdent,
-			final long timeout,
-			final Map<String, Set<String>> properties)
-					throws TimeoutException, WmiComException, WqlQuerySyntaxException {
-
-		final Pointer[] pointersOnWbemClassObject = new Pointer[1];
-		final List<Map<String, Object>> resultRows = new ArrayList<>();
-		String[] names = null;
-		Map<String, Set<String>> normalizedProperties = null;
-
-		if (wbemClassObjectQueryResult.getPointer() != Pointer.NULL) {
-			setProxySecurity(wbemClassObjectQueryResult.getPointer(), authIdent);
-		}
-
-		while (wbemClassObjectQueryResult.getPointer() != Pointer.NULL) {
-
-			// Get the next record
-			final HRESULT hResult = wbemClassObjectQueryResult.Next(
-					(int)timeout,
-					pointersOnWbemClassObject.length,
-					pointersOnWbemClassObject,
-					new IntByReference(0)
-					);
-
-			// Any problem?
-			if (hResult == null ||
-					hResult.intValue() == Wbemcli.WBEM_S_FALSE ||
-					hResult.intValue() == Wbemcli.WBEM_S_NO_MORE_DATA) {
-				return resultRows;
-			}
-			if (hResult.intValue() == Wbemcli.WBEM_S_TIMEDOUT) {
-				throw new TimeoutException("No results after " + timeout + " ms.");
-			}
-			if (Integer.toUnsignedLong(hResult.intValue()) == 2147749911L) {
-				throw new WqlQuerySyntaxException("The query was not syntactically valid.");
-			}
-			checkHResult(hResult, "Failed to enumerate results");
-
-			// Get the actual WbemClassObject
-			final IWbemClassObject wbemClassObject = new IWbemClassObject(pointersOnWbemClassObject[0]);
-
-			try {
-				// Get the list of properties in the first record
-				// Note: this is done only the first time in this loop
-				if (names == null) {
-					try {
-						names = wbemClassObject.GetNames(null, 0, null);
-					} catch (final Throwable e) {
-						names = wbemClassObject.GetNames(null, 0, null);
-					}
-				}
-
-				if (normalizedProperties == null) {
-					normalizedProperties = normalizeProperties(names, properties);
+	static void releaseObjects(final Pointer[] pointersOnWbemClassObject, final int count) {
+		for (int i = 0; i < count; i++) {
+			if (pointersOnWbemClassObject[i] != null) {
+				try {
+					new IWbemClassObject(pointersOnWbemClassObject[i]).Release();
+				} finally {
+					pointersOnWbemClassObject[i] = null;
 				}
-
-				// Add to the result
-				final Map<String, Object> values = getPropertiesValues(normalizedProperties, wbemClassObject);
-				resultRows.add(values);
-
-			} finally {
-
-				// Free memory for this WBEM object instance
-				wbemClassObject.Release();
-
 			}
-
 		}
-
-		return resultRows;
 	}
 
 	/**
@@ -770,7 +1476,7 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	 * @param wbemClassObject wbemClassObject
 	 * @return
 	 */
-	private static HashMap<String, Object> getPropertiesValues(
+	static HashMap<String, Object> getPropertiesValues(
 			final Map<String, Set<String>> properties,
 			final IWbemClassObject wbemClassObject) {
 
@@ -783,6 +1489,50 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 						HashMap::putAll);
 	}
 
+	/**
+	 * Get the conversion plan of the objects returned by the specified query: the plan compiled for a previous
+	 * execution of the same WqlQuery instance on this connection if the properties are the same,
+	 * or a new plan compiled from the specified object.
+	 *
+	 * @param wqlQuery The WQL query (null if it's not known: the plan is not cached)
+	 * @param properties The properties to get from the request
+	 * @param wbemClassObject The first object of the result
+	 * @return the conversion plan
+	 */
+	WmiConversionPlan getConversionPlan(
+			final WqlQuery wqlQuery,
+			final Map<String, Set<String>> properties,
+			final IWbemClassObject wbemClassObject) {
+
+		String[] names;
+		try {
+			names = wbemClassObject.GetNames(null, 0, null);
+		} catch (final Throwable e) {
+			names = wbemClassObject.GetNames(null, 0, null);
+		}
+		final Map<String, Set<String>> normalizedProperties = normalizeProperties(names, properties);
+
+		if (wqlQuery == null) {
+			return WmiConversionPlan.compile(normalizedProperties, wbemClassObject, propertyReadMode);
+		}
+
+		final WmiConversionPlan cachedPlan = conversionPlans.get(wqlQuery);
+		if (cachedPlan != null && cachedPlan.isCompatible(normalizedProperties)) {
+			return cachedPlan;
+		}
+
+		final WmiConversionPlan plan = WmiConversionPlan.compile(normalizedProperties, wbemClassObject, propertyReadMode);
+		conversionPlans.put(wqlQuery, plan);
+		return plan;
+	}
+
+	/**
+	 * @return the number of conversion plans cached for this connection
+	 */
+	int getConversionPlanCount() {
+		return conversionPlans.size();
+	}
+
 	/**
 	 * Normalize the properties in initializing them if empty or null and replace their names with the one in the class.
 	 *
@@ -790,7 +1540,7 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	 * @param properties
 	 * @return
 	 */
-	private static Map<String, Set<String>> normalizeProperties(
+	static Map<String, Set<String>> normalizeProperties(
 			final String[] names,
 			final Map<String, Set<String>> properties) {
 
@@ -865,6 +1615,82 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	}
 
 
+	/**
+	 * <p>Invoke the IWbemServices::OpenNamespace method.</p>
+	 * <p>Open a child namespace of the namespace of this connection, with the same credentials,
+	 * without going through <code>IWbemLocator::ConnectServer</code> again.
+	 * The proxy blanket of the new namespace is set with the COAUTHIDENTITY of this connection.</p>
+	 * @see <a href="https://docs.microsoft.com/en-us/windows/win32/api/wbemcli/nf-wbemcli-iwbemservices-opennamespace">IWbemServices::OpenNamespace method (wbemcli.h)</a>
+	 *
+	 * @param relativeNamespace Path of the namespace, relative to the namespace of this connection (e.g. CIMV2 from ROOT) (mandatory)
+	 * @return a new WmiWbemServices instance connected to the child namespace, that must be closed by the caller
+	 *
+	 * @throws WmiComException For any problem encountered with JNA.
+	 */
+	public WmiWbemServices openNamespace(final String relativeNamespace) throws WmiComException {
+
+		try (AutoCloseableReadWriteLock.AutoCloseableReadLock readLock = lock.read()) {
+
+			checkState();
+
+			Utils.checkNonBlank(relativeNamespace, "relativeNamespace");
+
+			final Pointer pWbemServices = wbemServices.getPointer();
+
+			final BSTR strNamespace = OleAuto.INSTANCE.SysAllocString(relativeNamespace);
+			final int lFlags = WBEM_FLAG_RETURN_WBEM_COMPLETE;
+			final Pointer pCtx = context == null ? null : context.getPointer();
+			final PointerByReference ppWorkingNamespace = new PointerByReference();
+			final PointerByReference ppResult = null;
+
+			final IWbemServices childWbemServices;
+			try {
+				final HRESULT hResult = (HRESULT) WmiComHelper.comInvokerInvokeNativeObject(
+						pWbemServices,
+						WBEM_SERVICES_OPEN_NAMESPACE_VTABLE_ID,
+						new Object[] {
+								pWbemServices,
+								strNamespace,
+								lFlags,
+								pCtx,
+								ppWorkingNamespace,
+								ppResult},
+						HRESULT.class);
+				WmiWbemServices.checkHResult(hResult, "Fail to invoke WbemServices::OpenNamespace method");
+
+				childWbemServices = new IWbemServices(ppWorkingNamespace.getValue());
+			} finally {
+				OleAuto.INSTANCE.SysFreeString(strNamespace);
+			}
+
+			// The blanket is not inherited by the new proxy
+			try {
+				WmiWbemServices.setProxySecurity(childWbemServices.getPointer(), authIdent);
+			} catch (final WmiComException e) {
+				childWbemServices.Release();
+				throw e;
+			}
+
+			// The new instance holds its own reference to the shared locator and credentials (released when it's closed)
+			if (wbemLocator != null) {
+				WmiSharedLocator.acquire();
+			}
+			if (credentialHandle != null) {
+				credentialHandle.retain();
+			}
+
+			final String childNamespace = getNamespace() + "\\" + relativeNamespace.replace('/', '\\');
+			return new WmiWbemServices(
+					WmiHelper.createNetworkResource(hostname, childNamespace),
+					username,
+					password,
+					childWbemServices,
+					wbemLocator,
+					context,
+					credentialHandle);
+		}
+	}
+
 	/**
 	 * Executes the specified method of the specified class on the specified object.
 	 * Method inputs are specified as a Map&lt;String, Object&gt; mapping input names with
@@ -1122,6 +1948,14 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 		return networkResource;
 	}
 
+	/**
+	 * @return the namespace we're connected to (e.g. ROOT\CIMV2)
+	 */
+	@Override
+	public String getNamespace() {
+		return WmiHelper.extractNamespace(networkResource);
+	}
+
 	@Override
 	public String getHostname() {
 		return hostname;
@@ -1156,4 +1990,73 @@ public class WmiWbemServices implements WindowsRemoteExecutor {
 	public boolean isClosed() {
 		return isClosed;
 	}
+
+	AutoCloseableReadWriteLock getLock() {
+		return lock;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Set a fixed number of objects to be requested with each IEnumWbemClassObject::Next call
+	 * (each call is a round trip to the remote host). This disables the adaptive mode.
+	 *
+	 * @param batchSize Number of objects per call (between 1 and {@link #BATCH_SIZE_LIMIT})
+	 */
+	public void setBatchSize(final int batchSize) {
+		setAdaptiveBatchSize(batchSize, batchSize);
+	}
+
+	/**
+	 * Enable the adaptive mode: the first IEnumWbemClassObject::Next call requests
+	 * <code>batchSize</code> objects, and the number of objects requested doubles as long as
+	 * the provider fills the batch, up to <code>maxBatchSize</code>. It goes back to
+	 * <code>batchSize</code> when the provider doesn't fill the batch in time.
+	 *
+	 * @param batchSize Initial number of objects per call (between 1 and {@link #BATCH_SIZE_LIMIT})
+	 * @param maxBatchSize Maximum number of objects per call (between <code>batchSize</code> and {@link #BATCH_SIZE_LIMIT})
+	 */
+	public void setAdaptiveBatchSize(final int batchSize, final int maxBatchSize) {
+		checkBatchSize(batchSize, "batchSize");
+		checkBatchSize(maxBatchSize, "maxBatchSize");
+		if (maxBatchSize < batchSize) {
+			throw new IllegalArgumentException("maxBatchSize must be greater than or equal to batchSize");
+		}
+		this.batchSize = batchSize;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public WmiPropertyReadMode getPropertyReadMode() {
+		return propertyReadMode;
+	}
+
+	/**
+	 * Set how the values of the properties are read from the objects returned by the next queries
+	 * ({@link WmiPropertyReadMode#GET} by default).
+	 *
+	 * @param propertyReadMode One IWbemClassObject::Get call per property, or one IWbemClassObject::Next call
+	 * per property of the class (after BeginEnumeration)
+	 */
+	public void setPropertyReadMode(final WmiPropertyReadMode propertyReadMode) {
+		Utils.checkNonNull(propertyReadMode, "propertyReadMode");
+		this.propertyReadMode = propertyReadMode;
+
+		// The plans compiled for another mode
+		conversionPlans.clear();
+	}
+
+	/**
+	 * Throws an IllegalArgumentException if the specified batch size is out of range
+	 */
+	private static void checkBatchSize(final int value, final String name) {
+		if (value < 1 || value > BATCH_SIZE_LIMIT) {
+			throw new IllegalArgumentException(String.format("%s must be between 1 and %d (%d)", name, BATCH_SIZE_LIMIT, value));
+		}
+	}
 }
@@ -0,0 +1,1042 @@
+package org.sentrysoftware.wmi.wbem;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+
+import org.sentrysoftware.wmi.CancellationToken;
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.TimeoutHelper;
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+import org.sentrysoftware.wmi.windows.remote.WindowsRemoteCommandResult;
+import org.sentrysoftware.wmi.windows.remote.WindowsRemoteExecutor;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of {@link WmiWbemServices} connections, keyed by host, namespace and user.
+ * <p>
+ * Establishing a DCOM connection (<code>IWbemLocator::ConnectServer</code>, proxy blanket, etc.)
+ * is expensive, especially with remote hosts. This pool keeps the connections open between
+ * calls and hands them out as {@link Lease} instances, which return the connection to the pool
+ * when closed.
+ * <ul>
+ * <li>The number of connections (leased or idle) to the same host is limited to <code>maxPerHost</code>.
+ * When the limit is reached, {@link #borrow(String, String, char[], long)} waits for a connection
+ * to be returned, or steals an idle connection to the same host made for another namespace or user.
+ * <li>Idle connections are closed after <code>idleTimeout</code> milliseconds.
+ * <li>With <code>validateOnBorrow</code>, an idle connection is checked with {@link WmiWbemServices#isValid()}
+ * before being handed out, and replaced with a new one if it's no longer usable.
+ * <li>Idle connections are probed in the background every <code>probeInterval</code> milliseconds
+ * (with the same cheap call), and closed if they no longer answer.
+ * <li>When a call fails with a transport error ({@link HResultCategory#TRANSPORT}: the host rebooted,
+ * the RPC endpoint was reset, etc.), the connection is dropped with all the idle connections to the same host.
+ * WQL queries are executed once more on a new connection, transparently.
+ * <li>With a {@link WmiComExecutor}, all the native calls of the pool and of its leases (connection, validation,
+ * queries, commands, close) are made on the threads of the executor, where COM is initialized once
+ * and uninitialized when the executor is closed. Without it, they are made on the calling threads.
+ * </ul>
+ * <p>
+ * Example:
+ * <pre><code>
+ * try (WmiWbemServicesPool.Lease lease = pool.borrow(networkResource, username, password, 30000)) {
+ * 	final List&lt;Map&lt;String, Object&gt;&gt; result = lease.executeWql("SELECT Name FROM Win32_Service", 30000);
+ * }
+ * // Connection is returned to the pool here
+ * </code></pre>
+ */
+public class WmiWbemServicesPool implements AutoCloseable {
+
+	/** Default maximum number of connections to the same host */
+	public static final int DEFAULT_MAX_PER_HOST = 4;
+
+	/** Default time after which an idle connection is closed (5 minutes) */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+	/** Default interval between two probes of the idle connections (1 minute) */
+	public static final long DEFAULT_PROBE_INTERVAL = 60 * 1000L;
+
+	/**
+	 * Function that establishes a new connection
+	 */
+	@FunctionalInterface
+	interface SessionFactory {
+		WmiWbemServices create(String networkResource, String username, char[] password) throws WmiComException;
+	}
+
+	/**
+	 * Native calls, which may throw an exception of type E besides TimeoutException and WmiComException
+	 *
+	 * @param <T> Type of the result
+	 * @param <E> Type of the other exception
+	 */
+	@FunctionalInterface
+	private interface ComCall<T, E extends Exception> {
+		T call() throws E, TimeoutException, WmiComException;
+	}
+
+	/** Maximum number of connections (leased and idle) to the same host */
+	private final int maxPerHost;
+
+	/** Time (in milliseconds) after which an idle connection is closed */
+	private final long idleTimeout;
+
+	/** Whether to check an idle connection before handing it out */
+	private final boolean validateOnBorrow;
+
+	/** Interval in milliseconds between two probes of the idle connections (0 to disable) */
+	private final long probeInterval;
+
+	/** Number of broken connections that have been replaced transparently */
+	private final AtomicLong reconnectCount = new AtomicLong();
+
+	/** How new connections are established */
+	private final SessionFactory sessionFactory;
+
+	/** The threads that make the native calls (null to make them on the calling threads) */
+	private final WmiComExecutor comExecutor;
+
+	/** Background eviction of the idle connections (may be null) */
+	private final ScheduledExecutorService evictor;
+
+	/** Connections per host (lower case, empty string for localhost) */
+	private final Map<String, HostSlot> hostSlots = new ConcurrentHashMap<>();
+
+	/** Whether the pool has been closed */
+	private volatile boolean isClosed = false;
+
+	/**
+	 * Create a pool with the default settings: {@link #DEFAULT_MAX_PER_HOST} connections per host,
+	 * idle connections closed after {@link #DEFAULT_IDLE_TIMEOUT} and validation on borrow.
+	 */
+	public WmiWbemServicesPool() {
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT, true);
+	}
+
+	/**
+	 * Create a pool of WmiWbemServices connections
+	 *
+	 * @param maxPerHost Maximum number of connections (leased and idle) to the same host
+	 * @param idleTimeout Time in milliseconds after which an idle connection is closed
+	 * @param validateOnBorrow Whether to check an idle connection before handing it out
+	 */
+	public WmiWbemServicesPool(final int maxPerHost, final long idleTimeout, final boolean validateOnBorrow) {
+		this(maxPerHost, idleTimeout, validateOnBorrow, DEFAULT_PROBE_INTERVAL);
+	}
+
+	/**
+	 * Create a pool of WmiWbemServices connections
+	 *
+	 * @param maxPerHost Maximum number of connections (leased and idle) to the same host
+	 * @param idleTimeout Time in milliseconds after which an idle connection is closed
+	 * @param validateOnBorrow Whether to check an idle connection before handing it out
+	 * @param probeInterval Interval in milliseconds between two probes of the idle connections (0 to disable)
+	 */
+	public WmiWbemServicesPool(
+			final int maxPerHost,
+			final long idleTimeout,
+			final boolean validateOnBorrow,
+			final long probeInterval) {
+		this(maxPerHost, idleTimeout, validateOnBorrow, probeInterval, null);
+	}
+
+	/**
+	 * Create a pool of WmiWbemServices connections
+	 *
+	 * @param maxPerHost Maximum number of connections (leased and idle) to the same host
+	 * @param idleTimeout Time in milliseconds after which an idle connection is closed
+	 * @param validateOnBorrow Whether to check an idle connection before handing it out
+	 * @param probeInterval Interval in milliseconds between two probes of the idle connections (0 to disable)
+	 * @param comExecutor The threads that make the native calls of the pool and its leases
+	 * (null to make them on the calling threads). It is not closed with the pool.
+	 */
+	public WmiWbemServicesPool(
+			final int maxPerHost,
+			final long idleTimeout,
+			final boolean validateOnBorrow,
+			final long probeInterval,
+			final WmiComExecutor comExecutor) {
+		this(
+				maxPerHost,
+				idleTimeout,
+				validateOnBorrow,
+				probeInterval,
+				WmiWbemServices::getInstance,
+				createEvictor(),
+				comExecutor);
+	}
+
+	/**
+	 * Create a pool of WmiWbemServices connections
+	 *
+	 * @param maxPerHost Maximum number of connections (leased and idle) to the same host
+	 * @param idleTimeout Time in milliseconds after which an idle connection is closed
+	 * @param validateOnBorrow Whether to check an idle connection before handing it out
+	 * @param sessionFactory How new connections are established
+	 * @param evictor Scheduler for the background eviction of idle connections (may be null)
+	 */
+	WmiWbemServicesPool(
+			final int maxPerHost,
+			final long idleTimeout,
+			final boolean validateOnBorrow,
+			final SessionFactory sessionFactory,
+			final ScheduledExecutorService evictor) {
+		this(maxPerHost, idleTimeout, validateOnBorrow, 0, sessionFactory, evictor);
+	}
+
+	/**
+	 * Create a pool of WmiWbemServices connections
+	 *
+	 * @param maxPerHost Maximum number of connections (leased and idle) to the same host
+	 * @param idleTimeout Time in milliseconds after which an idle connection is closed
+	 * @param validateOnBorrow Whether to check an idle connection before handing it out
+	 * @param probeInterval Interval in milliseconds between two probes of the idle connections (0 to disable)
+	 * @param sessionFactory How new connections are established
+	 * @param evictor Scheduler for the background eviction and probe of idle connections (may be null)
+	 */
+	WmiWbemServicesPool(
+			final int maxPerHost,
+			final long idleTimeout,
+			final boolean validateOnBorrow,
+			final long probeInterval,
+			final SessionFactory sessionFactory,
+			final ScheduledExecutorService evictor) {
+		this(maxPerHost, idleTimeout, validateOnBorrow, probeInterval, sessionFactory, evictor, null);
+	}
+
+	/**
+	 * Create a pool of WmiWbemServices connections
+	 *
+	 * @param maxPerHost Maximum number of connections (leased and idle) to the same host
+	 * @param idleTimeout Time in milliseconds after which an idle connection is closed
+	 * @param validateOnBorrow Whether to check an idle connection before handing it out
+	 * @param probeInterval Interval in milliseconds between two probes of the idle connections (0 to disable)
+	 * @param sessionFactory How new connections are established
+	 * @param evictor Scheduler for the background eviction and probe of idle connections (may be null)
+	 * @param comExecutor The threads that make the native calls (null to make them on the calling threads)
+	 */
+	WmiWbemServicesPool(
+			final int maxPerHost,
+			final long idleTimeout,
+			final boolean validateOnBorrow,
+			final long probeInterval,
+			final SessionFactory sessionFactory,
+			final ScheduledExecutorService evictor,
+			final WmiComExecutor comExecutor) {
+
+		Utils.checkArgumentNotZeroOrNegative(maxPerHost, "maxPerHost");
+		Utils.checkArgumentNotZeroOrNegative(idleTimeout, "idleTimeout");
+		Utils.checkNonNull(sessionFactory, "sessionFactory");
+		if (probeInterval < 0) {
+			throw new IllegalArgumentException(String.format("probeInterval=%d must not be negative.", probeInterval));
+		}
+
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		this.validateOnBorrow = validateOnBorrow;
+		this.probeInterval = probeInterval;
+		this.sessionFactory = sessionFactory;
+		this.evictor = evictor;
+		this.comExecutor = comExecutor;
+
+		if (evictor != null) {
+			evictor.scheduleWithFixedDelay(this::evictIdleOnComThread, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+			if (probeInterval > 0) {
+				evictor.scheduleWithFixedDelay(this::probeIdleOnComThread, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * @return a single daemon thread scheduler, for the background eviction of idle connections
+	 */
+	private static ScheduledExecutorService createEvictor() {
+		return Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "WmiWbemServicesPool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Borrow a connection to the specified network resource, with the specified credentials.
+	 * An idle connection is reused if possible, otherwise a new one is established.
+	 * <p>
+	 * The returned lease must be closed to return the connection to the pool.
+	 *
+	 * @param networkResource \\hostname\namespace or just namespace for localhost (mandatory)
+	 * @param username The username name (may be null).
+	 * @param password The password (may be null).
+	 * @param timeout Time in milliseconds to wait for a connection when the limit for this host has been reached
+	 * @return a {@link Lease} on the connection
+	 * @throws TimeoutException when no connection became available in time
+	 * @throws WmiComException when a new connection cannot be established
+	 * @throws IllegalStateException when the pool has been closed
+	 */
+	public Lease borrow(
+			final String networkResource,
+			final String username,
+			final char[] password,
+			final long timeout) throws TimeoutException, WmiComException {
+
+		Utils.checkNonNull(networkResource, "networkResource");
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+		checkState();
+
+		final long start = Utils.getCurrentTimeMillis();
+		final String sessionKey = buildSessionKey(networkResource, username);
+		final HostSlot hostSlot = hostSlots.computeIfAbsent(buildHostKey(networkResource), key -> new HostSlot());
+
+		while (true) {
+
+			final PooledSession idleSession = hostSlot.acquire(sessionKey, password, timeout, start);
+
+			// New connection
+			if (idleSession == null) {
+				try {
+					return new Lease(this, new PooledSession(
+							hostSlot,
+							sessionKey,
+							callOnComThread(() -> sessionFactory.create(networkResource, username, password), RuntimeException.class),
+							comExecutor));
+				} catch (final TimeoutException | WmiComException | RuntimeException e) {
+					hostSlot.discard(null);
+					throw e;
+				}
+			}
+
+			// Reused connection
+			if (!validateOnBorrow || isValid(idleSession)) {
+				return new Lease(this, idleSession);
+			}
+
+			// The idle connection is no longer usable: drop it and try again
+			hostSlot.discard(idleSession);
+		}
+	}
+
+	/**
+	 * Run the specified native calls on a thread of {@link #comExecutor} and wait for their result,
+	 * or run them on the current thread if the pool has no executor
+	 *
+	 * @param <T> Type of the result
+	 * @param <E> Type of the other exception the calls may throw
+	 * @param call The native calls
+	 * @param otherException Class of the other exception the calls may throw
+	 * @return the result of the calls
+	 */
+	private <T, E extends Exception> T callOnComThread(final ComCall<T, E> call, final Class<E> otherException)
+			throws E, TimeoutException, WmiComException {
+
+		if (comExecutor == null) {
+			return call.call();
+		}
+
+		try {
+			return comExecutor.submit(call::call).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WmiComException(e, "Interrupted while waiting for the native calls to complete");
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (otherException.isInstance(cause)) {
+				throw otherException.cast(cause);
+			}
+			if (cause instanceof TimeoutException) {
+				throw (TimeoutException) cause;
+			}
+			if (cause instanceof WmiComException) {
+				throw (WmiComException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new WmiComException(cause, cause.getMessage());
+		}
+	}
+
+	/**
+	 * @param session A connection
+	 * @return whether the connection still answers (false if it could not be checked)
+	 */
+	private boolean isValid(final PooledSession session) {
+		try {
+			return callOnComThread(session.services::isValid, RuntimeException.class);
+		} catch (final TimeoutException | WmiComException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close the connections that have been idle for more than <code>idleTimeout</code> milliseconds
+	 *
+	 * @return the number of connections that have been closed
+	 */
+	public int evictIdle() {
+
+		final long now = Utils.getCurrentTimeMillis();
+		final List<PooledSession> evicted = new ArrayList<>();
+		hostSlots.values().forEach(hostSlot -> evicted.addAll(hostSlot.removeIdle(now - idleTimeout)));
+
+		evicted.forEach(PooledSession::closeServices);
+		return evicted.size();
+	}
+
+	/**
+	 * Eviction task: COM must be initialized for the thread that releases the connections
+	 * (unless they are released on the threads of {@link #comExecutor})
+	 */
+	private void evictIdleOnComThread() {
+		try {
+			if (comExecutor == null) {
+				WmiComHelper.initializeComLibrary();
+			}
+			evictIdle();
+		} catch (final WmiComException e) {
+			/* Do nothing -- We'll try again at the next run */
+		}
+	}
+
+	/**
+	 * Check each idle connection with {@link WmiWbemServices#isValid()}, and close the ones that no longer answer.
+	 * The connections being checked can't be borrowed in the meantime.
+	 *
+	 * @return the number of connections that have been closed
+	 */
+	public int probeIdle() {
+
+		int closedCount = 0;
+		for (final HostSlot hostSlot : hostSlots.values()) {
+			for (final PooledSession session : hostSlot.takeIdle()) {
+				if (!isClosed && isValid(session)) {
+					hostSlot.restoreIdle(session);
+				} else {
+					hostSlot.discard(session);
+					closedCount++;
+				}
+			}
+		}
+		return closedCount;
+	}
+
+	/**
+	 * Probe task: COM must be initialized for the thread that makes the calls
+	 * (unless they are made on the threads of {@link #comExecutor})
+	 */
+	private void probeIdleOnComThread() {
+		try {
+			if (comExecutor == null) {
+				WmiComHelper.initializeComLibrary();
+			}
+			probeIdle();
+		} catch (final WmiComException | RuntimeException e) {
+			/* Do nothing -- We'll try again at the next run */
+		}
+	}
+
+	/**
+	 * A transport failure occurred on the specified connection: it won't be returned to the pool,
+	 * and the idle connections to the same host are closed, as they are most likely broken too
+	 * (the host rebooted, etc.)
+	 *
+	 * @param session The broken connection
+	 */
+	private void markBroken(final PooledSession session) {
+		session.isBroken = true;
+		session.hostSlot.removeIdle(Long.MAX_VALUE).forEach(PooledSession::closeServices);
+	}
+
+	/**
+	 * @return the number of broken connections that have been replaced transparently
+	 */
+	public long getReconnectCount() {
+		return reconnectCount.get();
+	}
+
+	/**
+	 * @return the number of idle connections in the pool
+	 */
+	public int getIdleCount() {
+		return hostSlots.values().stream().mapToInt(HostSlot::getIdleCount).sum();
+	}
+
+	/**
+	 * @return the number of connections currently leased
+	 */
+	public int getLeasedCount() {
+		return hostSlots.values().stream().mapToInt(hostSlot -> hostSlot.getSessionCount() - hostSlot.getIdleCount()).sum();
+	}
+
+	/**
+	 * Close the pool and all its idle connections. Leased connections are closed when
+	 * they are returned, and the threads waiting for a connection fail with an IllegalStateException.
+	 */
+	@Override
+	public void close() {
+
+		isClosed = true;
+
+		if (evictor != null) {
+			evictor.shutdownNow();
+		}
+
+		final List<PooledSession> idleSessions = new ArrayList<>();
+		hostSlots.values().forEach(hostSlot -> idleSessions.addAll(hostSlot.close()));
+		idleSessions.forEach(PooledSession::closeServices);
+	}
+
+	/**
+	 * @return whether the pool has been closed
+	 */
+	public boolean isClosed() {
+		return isClosed;
+	}
+
+	/**
+	 * @return the threads that make the native calls of the pool and its leases (null if they are made on the calling threads)
+	 */
+	public WmiComExecutor getComExecutor() {
+		return comExecutor;
+	}
+
+	/**
+	 * Throws an IllegalStateException if the pool has been closed.
+	 */
+	private void checkState() {
+		if (isClosed) {
+			throw new IllegalStateException("This pool was closed");
+		}
+	}
+
+	/**
+	 * @param networkResource \\hostname\namespace or just namespace for localhost
+	 * @return the key identifying the host of the specified network resource
+	 */
+	static String buildHostKey(final String networkResource) {
+		final String hostname = WmiHelper.extractHostname(networkResource);
+		return hostname == null ? Utils.EMPTY : hostname.toLowerCase();
+	}
+
+	/**
+	 * @param networkResource \\hostname\namespace or just namespace for localhost
+	 * @param username The username (may be null)
+	 * @return the key identifying the connections that can be shared (same host, namespace and user)
+	 */
+	static String buildSessionKey(final String networkResource, final String username) {
+		return String.format(
+				"%s|%s",
+				networkResource.replace('/', '\\').toLowerCase(),
+				username == null ? Utils.EMPTY : username.toLowerCase());
+	}
+
+	/**
+	 * The connections to one host, and the number of connections (leased or idle)
+	 */
+	private class HostSlot {
+
+		/** Number of connections to this host, leased or idle (or being established) */
+		private int sessionCount = 0;
+
+		/** Idle connections, per session key (most recently used first) */
+		private final Map<String, Deque<PooledSession>> idleSessions = new HashMap<>();
+
+		/**
+		 * Get an idle connection for the specified session key, or reserve room for a new one.
+		 * Waits if the limit of connections to this host has been reached.
+		 *
+		 * @return an idle connection, or null if a new connection must be established
+		 */
+		PooledSession acquire(
+				final String sessionKey,
+				final char[] password,
+				final long timeout,
+				final long start) throws TimeoutException {
+
+			PooledSession stolenSession = null;
+
+			try {
+				synchronized (this) {
+					while (true) {
+
+						checkState();
+
+						// Idle connection with the same credentials?
+						final PooledSession idleSession = pollIdle(sessionKey, password);
+						if (idleSession != null) {
+							return idleSession;
+						}
+
+						// Room for a new connection?
+						if (sessionCount < maxPerHost) {
+							sessionCount++;
+							return null;
+						}
+
+						// Steal an idle connection made for another namespace or user
+						// (the stolen connection's slot is used for the new one)
+						stolenSession = pollAnyIdle();
+						if (stolenSession != null) {
+							return null;
+						}
+
+						// Wait for a connection to be returned
+						final long remaining = TimeoutHelper.getRemainingTime(
+								timeout,
+								start,
+								String.format("No connection available after %d ms (%d connections to this host)", timeout, sessionCount));
+						try {
+							wait(Math.max(1, remaining));
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new TimeoutException("Interrupted while waiting for a connection");
+						}
+					}
+				}
+			} finally {
+				if (stolenSession != null) {
+					stolenSession.closeServices();
+				}
+			}
+		}
+
+		/**
+		 * Give the connection back (it becomes idle), or close it if it's no longer usable
+		 */
+		void release(final PooledSession session) {
+
+			final boolean isReusable;
+			synchronized (this) {
+				isReusable = !isClosed && !session.isBroken && !session.services.isClosed();
+				if (isReusable) {
+					session.lastUsed = Utils.getCurrentTimeMillis();
+					idleSessions.computeIfAbsent(session.sessionKey, key -> new ArrayDeque<>()).push(session);
+				} else {
+					sessionCount--;
+				}
+				notifyAll();
+			}
+
+			if (!isReusable) {
+				session.closeServices();
+			}
+		}
+
+		/**
+		 * Give up on a connection (or on the room that had been reserved for a new connection)
+		 */
+		void discard(final PooledSession session) {
+
+			synchronized (this) {
+				sessionCount--;
+				notifyAll();
+			}
+
+			if (session != null) {
+				session.closeServices();
+			}
+		}
+
+		/**
+		 * Remove the connections that have not been used since the specified time
+		 * @return the removed connections (to be closed by the caller)
+		 */
+		synchronized List<PooledSession> removeIdle(final long usedBefore) {
+
+			final List<PooledSession> removed = new ArrayList<>();
+			final Iterator<Deque<PooledSession>> dequeIterator = idleSessions.values().iterator();
+			while (dequeIterator.hasNext()) {
+				final Deque<PooledSession> deque = dequeIterator.next();
+				deque.removeIf(session -> {
+					if (session.lastUsed < usedBefore) {
+						removed.add(session);
+						return true;
+					}
+					return false;
+				});
+				if (deque.isEmpty()) {
+					dequeIterator.remove();
+				}
+			}
+
+			sessionCount -= removed.size();
+			if (!removed.isEmpty()) {
+				notifyAll();
+			}
+			return removed;
+		}
+
+		/**
+		 * Remove all the idle connections and wake up the threads waiting for a connection (the pool is closed)
+		 * @return the removed connections (to be closed by the caller)
+		 */
+		synchronized List<PooledSession> close() {
+			final List<PooledSession> removed = removeIdle(Long.MAX_VALUE);
+			notifyAll();
+			return removed;
+		}
+
+		/**
+		 * Remove all the idle connections (without releasing their room), to probe them
+		 * @return the idle connections, to be given back with {@link #restoreIdle(PooledSession)}
+		 * or {@link #discard(PooledSession)}
+		 */
+		synchronized List<PooledSession> takeIdle() {
+			final List<PooledSession> taken = new ArrayList<>();
+			idleSessions.values().forEach(taken::addAll);
+			idleSessions.clear();
+			return taken;
+		}
+
+		/**
+		 * Give back a connection taken with {@link #takeIdle()}, as it was (it doesn't count as used)
+		 */
+		void restoreIdle(final PooledSession session) {
+			synchronized (this) {
+				if (!isClosed && !session.isBroken) {
+					idleSessions.computeIfAbsent(session.sessionKey, key -> new ArrayDeque<>()).addLast(session);
+					notifyAll();
+					return;
+				}
+			}
+			discard(session);
+		}
+
+		/**
+		 * @return the most recently used idle connection for the specified key and password, or null
+		 */
+		private PooledSession pollIdle(final String sessionKey, final char[] password) {
+
+			final Deque<PooledSession> deque = idleSessions.get(sessionKey);
+			if (deque == null) {
+				return null;
+			}
+
+			final Iterator<PooledSession> sessionIterator = deque.iterator();
+			while (sessionIterator.hasNext()) {
+				final PooledSession session = sessionIterator.next();
+				if (Arrays.equals(session.services.getPassword(), password)) {
+					sessionIterator.remove();
+					if (deque.isEmpty()) {
+						idleSessions.remove(sessionKey);
+					}
+					return session;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return the least recently used idle connection (whatever its key), or null
+		 */
+		private PooledSession pollAnyIdle() {
+
+			Deque<PooledSession> oldestDeque = null;
+			for (final Deque<PooledSession> deque : idleSessions.values()) {
+				if (oldestDeque == null || deque.peekLast().lastUsed < oldestDeque.peekLast().lastUsed) {
+					oldestDeque = deque;
+				}
+			}
+
+			if (oldestDeque == null) {
+				return null;
+			}
+
+			final PooledSession session = oldestDeque.pollLast();
+			if (oldestDeque.isEmpty()) {
+				idleSessions.values().remove(oldestDeque);
+			}
+			return session;
+		}
+
+		synchronized int getSessionCount() {
+			return sessionCount;
+		}
+
+		synchronized int getIdleCount() {
+			return idleSessions.values().stream().mapToInt(Deque::size).sum();
+		}
+	}
+
+	/**
+	 * A connection managed by the pool
+	 */
+	private static class PooledSession {
+
+		private final HostSlot hostSlot;
+		private final String sessionKey;
+		private final WmiWbemServices services;
+		private final WmiComExecutor comExecutor;
+		private long lastUsed;
+
+		/** Whether a transport failure occurred on this connection (it must not be reused) */
+		private volatile boolean isBroken = false;
+
+		PooledSession(
+				final HostSlot hostSlot,
+				final String sessionKey,
+				final WmiWbemServices services,
+				final WmiComExecutor comExecutor) {
+			this.hostSlot = hostSlot;
+			this.sessionKey = sessionKey;
+			this.services = services;
+			this.comExecutor = comExecutor;
+		}
+
+		/**
+		 * Close the connection, on a thread of the COM executor if any (without waiting)
+		 */
+		void closeServices() {
+			if (comExecutor != null) {
+				try {
+					comExecutor.closeConnection(services);
+					return;
+				} catch (final IllegalStateException e) {
+					/* The executor was closed -- Close the connection here */
+				}
+			}
+			try {
+				services.close();
+			} catch (final RuntimeException e) {
+				/* Do nothing -- The connection is dropped anyway */
+			}
+		}
+	}
+
+	/**
+	 * Lease on a pooled connection. Closing the lease returns the connection to the pool
+	 * (it does not close the connection).
+	 */
+	public static class Lease implements WindowsRemoteExecutor {
+
+		/**
+		 * A WQL query on a connection
+		 */
+		@FunctionalInterface
+		private interface WqlCall {
+			List<Map<String, Object>> execute(WmiWbemServices services)
+					throws TimeoutException, WqlQuerySyntaxException, WmiComException;
+		}
+
+		private final WmiWbemServicesPool pool;
+		private volatile PooledSession session;
+		private final AtomicBoolean isReturned = new AtomicBoolean(false);
+
+		private Lease(final WmiWbemServicesPool pool, final PooledSession session) {
+			this.pool = pool;
+			this.session = session;
+		}
+
+		/**
+		 * @return the leased connection, for the operations that are not covered by {@link WindowsRemoteExecutor}.
+		 * It must not be used once the lease has been closed.
+		 */
+		public WmiWbemServices getWmiWbemServices() {
+			checkNotReturned();
+			return session.services;
+		}
+
+		@Override
+		public List<Map<String, Object>> executeWql(final String wqlQuery, final long timeout)
+				throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+			return executeWql(WqlQuery.newInstance(wqlQuery), timeout);
+		}
+
+		@Override
+		public List<Map<String, Object>> executeWql(final String wqlQuery, final Deadline deadline)
+				throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+			final WqlQuery query = WqlQuery.newInstance(wqlQuery);
+			return executeWithReconnect(services -> services.executeWql(query, deadline));
+		}
+
+		@Override
+		public List<Map<String, Object>> executeWql(final String wqlQuery, final long timeout, final int maxRows)
+				throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+			Utils.checkArgumentNotZeroOrNegative(maxRows, "maxRows");
+			final WqlQuery query = WqlQuery.newInstance(wqlQuery);
+			final Deadline deadline = Deadline.newInstance(timeout);
+			return executeWithReconnect(services -> services.executeWql(query, deadline, CancellationToken.NONE, maxRows));
+		}
+
+		/**
+		 * Execute a WQL query on the leased connection
+		 * @see WmiWbemServices#executeWql(WqlQuery, long)
+		 */
+		public List<Map<String, Object>> executeWql(final WqlQuery wqlQuery, final long timeout)
+				throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+			final Deadline deadline = Deadline.newInstance(timeout);
+			return executeWithReconnect(services -> services.executeWql(wqlQuery, deadline));
+		}
+
+		/**
+		 * Execute the specified WQL query. If the connection turns out to be broken (transport failure),
+		 * establish a new connection and execute the query once more (WQL queries don't change anything,
+		 * they can safely be executed twice). The retry doesn't get more time: it shares the deadline of the query.
+		 *
+		 * @param call The query
+		 * @return the result rows
+		 */
+		private List<Map<String, Object>> executeWithReconnect(final WqlCall call)
+				throws TimeoutException, WqlQuerySyntaxException, WmiComException {
+
+			final PooledSession currentSession = getSession();
+			return pool.callOnComThread(() -> {
+				try {
+					return call.execute(currentSession.services);
+				} catch (final WmiComException e) {
+					if (HResultCategory.of(e) != HResultCategory.TRANSPORT) {
+						throw e;
+					}
+					return call.execute(reconnect(currentSession, e).services);
+				}
+			}, WqlQuerySyntaxException.class);
+		}
+
+		@Override
+		public WindowsRemoteCommandResult executeCommand(
+				final String command,
+				final String workingDirectory,
+				final Charset charset,
+				final long timeout) throws WmiComException, TimeoutException {
+
+			final PooledSession currentSession = getSession();
+			try {
+				return pool.callOnComThread(
+						() -> currentSession.services.executeCommand(command, workingDirectory, charset, timeout),
+						RuntimeException.class);
+			} catch (final WmiComException e) {
+				// A command is not executed twice (we don't know whether it ran),
+				// but the broken connection must not go back to the pool
+				if (HResultCategory.of(e) == HResultCategory.TRANSPORT) {
+					pool.markBroken(currentSession);
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Replace the specified broken connection with a new one to the same network resource
+		 *
+		 * @param brokenSession The broken connection
+		 * @param cause The transport failure
+		 * @return the new connection
+		 * @throws WmiComException when the new connection cannot be established
+		 */
+		private synchronized PooledSession reconnect(final PooledSession brokenSession, final WmiComException cause)
+				throws WmiComException {
+
+			pool.markBroken(brokenSession);
+
+			// Another call on this lease already reconnected
+			if (session != brokenSession) {
+				return session;
+			}
+
+			final WmiWbemServices brokenServices = brokenSession.services;
+			final WmiWbemServices newServices;
+			// Already on the thread of the query (see executeWithReconnect)
+			try {
+				newServices = pool.sessionFactory.create(
+						brokenServices.getNetworkResource(),
+						brokenServices.getUsername(),
+						brokenServices.getPassword());
+			} catch (final WmiComException | RuntimeException e) {
+				e.addSuppressed(cause);
+				throw e;
+			}
+
+			// The new connection takes the place of the broken one in the host slot
+			session = new PooledSession(brokenSession.hostSlot, brokenSession.sessionKey, newServices, pool.comExecutor);
+			brokenSession.closeServices();
+			pool.reconnectCount.incrementAndGet();
+
+			return session;
+		}
+
+		@Override
+		public String getNamespace() {
+			return session.services.getNamespace();
+		}
+
+		@Override
+		public String getHostname() {
+			return session.services.getHostname();
+		}
+
+		@Override
+		public String getUsername() {
+			return session.services.getUsername();
+		}
+
+		@Override
+		public char[] getPassword() {
+			return session.services.getPassword();
+		}
+
+		/**
+		 * Return the connection to the pool. Calling this method more than once has no effect.
+		 */
+		@Override
+		public void close() {
+			if (isReturned.compareAndSet(false, true)) {
+				session.hostSlot.release(session);
+			}
+		}
+
+		/**
+		 * @return the leased connection (throws an IllegalStateException if the lease has been closed)
+		 */
+		private PooledSession getSession() {
+			checkNotReturned();
+			return session;
+		}
+
+		/**
+		 * Throws an IllegalStateException if the lease has been closed.
+		 */
+		private void checkNotReturned() {
+			if (isReturned.get()) {
+				throw new IllegalStateException("This lease was closed and its connection returned to the pool");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package org.sentrysoftware.wmi.windows.remote;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link WindowsRemoteExecutor} that serves the WQL queries on the classes that rarely change
+ * from a {@link WqlResultCache}, and forwards everything else to the specified executor.
+ * <p>
+ * Example:
+ * <pre><code>
+ * final WqlResultCache cache = new WqlResultCache();
+ * ...
+ * try (WindowsRemoteExecutor executor = new CachingWindowsRemoteExecutor(WmiWbemServices.getInstance(...), cache)) {
+ * 	// Only the first call actually queries the host, until the result expires
+ * 	WindowsTempShare.getWindowsDirectory(executor, timeout);
+ * }
+ * </code></pre>
+ * The rows served from the cache are unmodifiable.
+ */
+public class CachingWindowsRemoteExecutor implements WindowsRemoteExecutor {
+
+	/** The executor that actually runs the queries and commands */
+	private final WindowsRemoteExecutor delegate;
+
+	/** The cache (possibly shared with other executors) */
+	private final WqlResultCache cache;
+
+	/**
+	 * Create an executor that caches the results of the WQL queries of the specified executor
+	 *
+	 * @param delegate The executor that actually runs the queries and commands (required)
+	 * @param cache The cache, which can be shared with other executors (required)
+	 */
+	public CachingWindowsRemoteExecutor(final WindowsRemoteExecutor delegate, final WqlResultCache cache) {
+
+		Utils.checkNonNull(delegate, "delegate");
+		Utils.checkNonNull(cache, "cache");
+
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+
+	@Override
+	public List<Map<String, Object>> executeWql(final String wqlQuery, final long timeout)
+			throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+		return executeWql(wqlQuery, timeout, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<Map<String, Object>> executeWql(final String wqlQuery, final long timeout, final int maxRows)
+			throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+
+		final WqlQuery query = WqlQuery.newInstance(wqlQuery);
+
+		// Not a cached class
+		if (cache.getTtl(query.getClassName()) <= 0) {
+			return execute(wqlQuery, timeout, maxRows);
+		}
+
+		final String hostname = delegate.getHostname();
+		final String namespace = delegate.getNamespace();
+		final String username = delegate.getUsername();
+
+		final List<Map<String, Object>> cachedRows = cache.get(hostname, namespace, username, query, maxRows);
+		if (cachedRows != null) {
+			return cachedRows;
+		}
+
+		return cache.put(hostname, namespace, username, query, maxRows, execute(wqlQuery, timeout, maxRows));
+	}
+
+	/**
+	 * Execute the query with the delegate
+	 *
+	 * @param wqlQuery The WQL query
+	 * @param timeout Timeout in milliseconds
+	 * @param maxRows Maximum number of rows ({@link Integer#MAX_VALUE} for no limit)
+	 * @return the result rows
+	 */
+	private List<Map<String, Object>> execute(final String wqlQuery, final long timeout, final int maxRows)
+			throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+		return maxRows == Integer.MAX_VALUE ?
+				delegate.executeWql(wqlQuery, timeout) :
+				delegate.executeWql(wqlQuery, timeout, maxRows);
+	}
+
+	@Override
+	public WindowsRemoteCommandResult executeCommand(
+			final String command,
+			final String workingDirectory,
+			final Charset charset,
+			final long timeout) throws WindowsRemoteException, TimeoutException {
+		return delegate.executeCommand(command, workingDirectory, charset, timeout);
+	}
+
+	/**
+	 * Remove the cached results of this executor's host
+	 *
+	 * @return the number of removed results
+	 */
+	public int invalidate() {
+		return cache.invalidate(delegate.getHostname());
+	}
+
+	/**
+	 * @return the cache of this executor
+	 */
+	public WqlResultCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the executor that actually runs the queries and commands
+	 */
+	public WindowsRemoteExecutor getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getNamespace() {
+		return delegate.getNamespace();
+	}
+
+	@Override
+	public String getHostname() {
+		return delegate.getHostname();
+	}
+
+	@Override
+	public String getUsername() {
+		return delegate.getUsername();
+	}
+
+	@Override
+	public char[] getPassword() {
+		return delegate.getPassword();
+	}
+
+	/**
+	 * Close the underlying executor (the cache is left untouched)
+	 */
+	@Override
+	public void close() throws Exception {
+		delegate.close();
+	}
+}
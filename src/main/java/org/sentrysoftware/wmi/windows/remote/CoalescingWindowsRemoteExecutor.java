@@ -0,0 +1,132 @@
+package org.sentrysoftware.wmi.windows.remote;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link WindowsRemoteExecutor} whose WQL queries share one execution with the identical queries
+ * running at the same time through a {@link WqlQueryCoalescer}. Everything else is forwarded to
+ * the specified executor.
+ * <p>
+ * Example:
+ * <pre><code>
+ * final WqlQueryCoalescer coalescer = new WqlQueryCoalescer();
+ * ...
+ * // In each monitor
+ * try (WindowsRemoteExecutor executor = new CoalescingWindowsRemoteExecutor(WmiWbemServices.getInstance(...), coalescer)) {
+ * 	executor.executeWql("SELECT Name,ProcessId FROM Win32_Process", timeout);
+ * }
+ * </code></pre>
+ */
+public class CoalescingWindowsRemoteExecutor implements WindowsRemoteExecutor {
+
+	/** The executor that actually runs the queries and commands */
+	private final WindowsRemoteExecutor delegate;
+
+	/** The in-flight queries (shared with other executors) */
+	private final WqlQueryCoalescer coalescer;
+
+	/**
+	 * Create an executor that coalesces its WQL queries with the identical ones of the other executors
+	 * sharing the same coalescer
+	 *
+	 * @param delegate The executor that actually runs the queries and commands (required)
+	 * @param coalescer The coalescer, shared with other executors (required)
+	 */
+	public CoalescingWindowsRemoteExecutor(final WindowsRemoteExecutor delegate, final WqlQueryCoalescer coalescer) {
+
+		Utils.checkNonNull(delegate, "delegate");
+		Utils.checkNonNull(coalescer, "coalescer");
+
+		this.delegate = delegate;
+		this.coalescer = coalescer;
+	}
+
+	@Override
+	public List<Map<String, Object>> executeWql(final String wqlQuery, final long timeout)
+			throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+		return coalescer.execute(delegate, wqlQuery, timeout, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<Map<String, Object>> executeWql(final String wqlQuery, final long timeout, final int maxRows)
+			throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+		return coalescer.execute(delegate, wqlQuery, timeout, maxRows);
+	}
+
+	@Override
+	public WindowsRemoteCommandResult executeCommand(
+			final String command,
+			final String workingDirectory,
+			final Charset charset,
+			final long timeout) throws WindowsRemoteException, TimeoutException {
+		return delegate.executeCommand(command, workingDirectory, charset, timeout);
+	}
+
+	/**
+	 * @return the coalescer of this executor
+	 */
+	public WqlQueryCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * @return the executor that actually runs the queries and commands
+	 */
+	public WindowsRemoteExecutor getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getNamespace() {
+		return delegate.getNamespace();
+	}
+
+	@Override
+	public String getHostname() {
+		return delegate.getHostname();
+	}
+
+	@Override
+	public String getUsername() {
+		return delegate.getUsername();
+	}
+
+	@Override
+	public char[] getPassword() {
+		return delegate.getPassword();
+	}
+
+	/**
+	 * Close the underlying executor
+	 */
+	@Override
+	public void close() throws Exception {
+		delegate.close();
+	}
+}
@@ -20,10 +20,14 @@ package org.sentrysoftware.wmi.windows.remote;
  * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
  */
 
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
 import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
 import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
@@ -45,6 +49,47 @@ public interface WindowsRemoteExecutor extends AutoCloseable {
 			final String wqlQuery,
 			final long timeout) throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException;
 
+	/**
+	 * <p>Execute a WQL query and process its result, before the specified deadline.</p>
+	 * <p>By default, the query gets the time left before the deadline as its timeout.</p>
+	 *
+	 * @param wqlQuery the WQL query (required)
+	 * @param deadline Deadline for the whole query (required)
+	 * @return a list of result rows. A result row is a Map(LinkedHashMap to preserve the query order) of
+	 * properties/values.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WindowsRemoteException For any problem encountered
+	 */
+	default List<Map<String, Object>> executeWql(
+			final String wqlQuery,
+			final Deadline deadline) throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+		return executeWql(wqlQuery, deadline.getRemainingTime("No time left to execute the WQL query"));
+	}
+
+	/**
+	 * <p>Execute a WQL query and return at most the specified number of rows.</p>
+	 * <p>By default, the whole result is read and truncated. Implementations should stop reading
+	 * the result from WMI once <code>maxRows</code> rows have been read.</p>
+	 *
+	 * @param wqlQuery the WQL query (required)
+	 * @param timeout Timeout in milliseconds (throws an IllegalArgumentException if negative or zero)
+	 * @param maxRows Maximum number of rows to return (throws an IllegalArgumentException if negative or zero)
+	 * @return a list of at most <code>maxRows</code> result rows. A result row is a Map(LinkedHashMap to preserve
+	 * the query order) of properties/values.
+	 * @throws TimeoutException to notify userName of timeout.
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WindowsRemoteException For any problem encountered
+	 */
+	default List<Map<String, Object>> executeWql(
+			final String wqlQuery,
+			final long timeout,
+			final int maxRows) throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+		Utils.checkArgumentNotZeroOrNegative(maxRows, "maxRows");
+		final List<Map<String, Object>> result = executeWql(wqlQuery, timeout);
+		return result.size() > maxRows ? new ArrayList<>(result.subList(0, maxRows)) : result;
+	}
+
 	/**
 	 * Execute the command on the remote
 	 * @param command The command to execute
@@ -62,6 +107,14 @@ public interface WindowsRemoteExecutor extends AutoCloseable {
 			final long timeout
 			) throws WindowsRemoteException, TimeoutException;
 
+	/**
+	 * Get the namespace the WQL queries are executed in.
+	 * @return the namespace ({@link WmiHelper#DEFAULT_NAMESPACE} by default)
+	 */
+	default String getNamespace() {
+		return WmiHelper.DEFAULT_NAMESPACE;
+	}
+
 	/**
 	 * Get the hostname.
 	 * @return
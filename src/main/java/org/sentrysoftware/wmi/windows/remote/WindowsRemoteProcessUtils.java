@@ -123,7 +123,8 @@ public class WindowsRemoteProcessUtils {
 
 		final List<Map<String, Object>> result = windowsRemoteExecutor.executeWql(
 				"SELECT CodeSet FROM Win32_OperatingSystem",
-				timeout);
+				timeout,
+				1);
 
 		final String codeSet = result.stream()
 				.map(row -> (String) row.get("CodeSet"))
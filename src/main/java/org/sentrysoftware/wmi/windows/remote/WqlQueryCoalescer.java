@@ -0,0 +1,279 @@
+package org.sentrysoftware.wmi.windows.remote;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight execution of WQL queries: identical queries running at the same time share one execution.
+ * <p>
+ * Queries are identical when they are executed on the same host, in the same namespace, with the same credentials,
+ * and have the same normalized WQL ({@link WqlQuery#getCleanWql()} and its sub-properties).
+ * The first caller (the leader) executes the query; the others wait for its result, or its exception,
+ * without sending anything to the host. Once the query has completed, the next identical query is executed again
+ * (this is not a cache).
+ * <p>
+ * Each waiter waits no longer than its own timeout. But if the leader fails (including a timeout),
+ * all the waiters get the same exception.
+ * <p>
+ * A single coalescer is meant to be shared by several {@link CoalescingWindowsRemoteExecutor} instances.
+ * This class is thread-safe.
+ */
+public class WqlQueryCoalescer {
+
+	/** The queries being executed */
+	private final Map<QueryKey, CompletableFuture<List<Map<String, Object>>>> inFlightQueries = new ConcurrentHashMap<>();
+
+	/** Number of queries that were served by another caller's execution */
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/** Number of queries that were actually executed */
+	private final AtomicLong executedCount = new AtomicLong();
+
+	/**
+	 * Execute the specified query with the specified executor, or wait for the identical query
+	 * that is already running
+	 *
+	 * @param executor The executor that runs the query (required)
+	 * @param wql The WQL query (required)
+	 * @param timeout Timeout in milliseconds (throws an IllegalArgumentException if negative or zero)
+	 * @param maxRows Maximum number of rows ({@link Integer#MAX_VALUE} for no limit)
+	 * @return a list of result rows. The list and the rows belong to the caller.
+	 * @throws TimeoutException when the query (or the wait) times out
+	 * @throws WqlQuerySyntaxException if WQL query syntax is invalid
+	 * @throws WindowsRemoteException For any problem encountered
+	 * @throws CancellationException if the thread has been interrupted while waiting
+	 */
+	public List<Map<String, Object>> execute(
+			final WindowsRemoteExecutor executor,
+			final String wql,
+			final long timeout,
+			final int maxRows) throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+
+		Utils.checkNonNull(executor, "executor");
+		Utils.checkArgumentNotZeroOrNegative(timeout, "timeout");
+		Utils.checkArgumentNotZeroOrNegative(maxRows, "maxRows");
+
+		final QueryKey key = new QueryKey(executor, WqlQuery.newInstance(wql), maxRows);
+
+		final CompletableFuture<List<Map<String, Object>>> newFuture = new CompletableFuture<>();
+		final CompletableFuture<List<Map<String, Object>>> inFlightFuture = inFlightQueries.putIfAbsent(key, newFuture);
+
+		// Somebody is already running this query: wait for it
+		if (inFlightFuture != null) {
+			coalescedCount.incrementAndGet();
+			return copyRows(await(inFlightFuture, timeout));
+		}
+
+		// We're the leader
+		executedCount.incrementAndGet();
+		try {
+			final List<Map<String, Object>> result = maxRows == Integer.MAX_VALUE ?
+					executor.executeWql(wql, timeout) :
+					executor.executeWql(wql, timeout, maxRows);
+			inFlightQueries.remove(key, newFuture);
+			newFuture.complete(result);
+			return result;
+		} catch (final Throwable e) {
+			inFlightQueries.remove(key, newFuture);
+			newFuture.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait for the result of the query run by another caller
+	 *
+	 * @param future The future of the query
+	 * @param timeout Timeout in milliseconds
+	 * @return the result of the query
+	 */
+	private static List<Map<String, Object>> await(
+			final CompletableFuture<List<Map<String, Object>>> future,
+			final long timeout) throws TimeoutException, WqlQuerySyntaxException, WindowsRemoteException {
+
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("The thread was interrupted");
+		} catch (final ExecutionException e) {
+			// Get the same exception as the leader
+			final Throwable cause = e.getCause();
+			if (cause instanceof TimeoutException) {
+				throw (TimeoutException) cause;
+			}
+			if (cause instanceof WqlQuerySyntaxException) {
+				throw (WqlQuerySyntaxException) cause;
+			}
+			if (cause instanceof WindowsRemoteException) {
+				throw (WindowsRemoteException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new WindowsRemoteException(cause);
+		}
+	}
+
+	/**
+	 * @param rows Result rows of the leader
+	 * @return a copy of the rows, so that each caller can modify its own result
+	 */
+	private static List<Map<String, Object>> copyRows(final List<Map<String, Object>> rows) {
+		if (rows == null) {
+			return null;
+		}
+		final List<Map<String, Object>> copy = new ArrayList<>(rows.size());
+		for (final Map<String, Object> row : rows) {
+			copy.add(new LinkedHashMap<>(row));
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the number of queries being executed
+	 */
+	public int getInFlightCount() {
+		return inFlightQueries.size();
+	}
+
+	/**
+	 * @return the number of queries that were served by another caller's execution
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return the number of queries that were actually executed
+	 */
+	public long getExecutedCount() {
+		return executedCount.get();
+	}
+
+	/**
+	 * Compute a fingerprint of the password, so that the keys don't hold the password itself
+	 *
+	 * @param password The password (may be null)
+	 * @return the Base64-encoded SHA-256 digest of the password (empty string if null)
+	 */
+	static String fingerprint(final char[] password) {
+
+		if (password == null) {
+			return "";
+		}
+
+		final ByteBuffer byteBuffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+		final byte[] bytes = new byte[byteBuffer.remaining()];
+		byteBuffer.get(bytes);
+		try {
+			return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+		} catch (final NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		} finally {
+			// Don't leave a copy of the password in memory
+			Arrays.fill(bytes, (byte) 0);
+			Arrays.fill(byteBuffer.array(), (byte) 0);
+		}
+	}
+
+	/**
+	 * Identifies a query
+	 */
+	private static class QueryKey {
+
+		private final String hostname;
+		private final String namespace;
+		private final String username;
+		private final String passwordFingerprint;
+		private final String cleanWql;
+		private final Map<String, Set<String>> subProperties;
+		private final int maxRows;
+
+		private QueryKey(final WindowsRemoteExecutor executor, final WqlQuery wqlQuery, final int maxRows) {
+			final String executorHostname = executor.getHostname();
+			final String executorNamespace = executor.getNamespace();
+			final String executorUsername = executor.getUsername();
+			this.hostname = executorHostname == null ? "" : executorHostname.toLowerCase(Locale.ROOT);
+			this.namespace = (executorNamespace == null ? WmiHelper.DEFAULT_NAMESPACE : executorNamespace)
+					.replace('/', '\\')
+					.toUpperCase(Locale.ROOT);
+			this.username = executorUsername == null ? "" : executorUsername.toLowerCase(Locale.ROOT);
+			this.passwordFingerprint = fingerprint(executor.getPassword());
+			this.cleanWql = wqlQuery.getCleanWql();
+			this.subProperties = wqlQuery.getSubPropertiesMap();
+			this.maxRows = maxRows;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof QueryKey)) {
+				return false;
+			}
+			final QueryKey other = (QueryKey) obj;
+			return maxRows == other.maxRows
+					&& hostname.equals(other.hostname)
+					&& namespace.equals(other.namespace)
+					&& username.equals(other.username)
+					&& passwordFingerprint.equals(other.passwordFingerprint)
+					&& cleanWql.equals(other.cleanWql)
+					&& subProperties.equals(other.subProperties);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(hostname, namespace, username, passwordFingerprint, cleanWql, subProperties, maxRows);
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package org.sentrysoftware.wmi.windows.remote;
+
+/*-
+ * ╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲
+ * WMI Java Client
+ * ჻჻჻჻჻჻
+ * Copyright (C) 2023 - 2024 Sentry Software
+ * ჻჻჻჻჻჻
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
+ */
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.WmiHelper;
+import org.sentrysoftware.wmi.WqlQuery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of WQL query results, for the WMI classes that rarely change (Win32_OperatingSystem,
+ * Win32_ComputerSystem, Win32_BIOS, etc.).
+ * <p>
+ * The results are keyed by host, namespace, user and the normalized WQL query ({@link WqlQuery#getCleanWql()}
+ * and its sub-properties), so that the same query written differently hits the same entry.
+ * Each WMI class has its own time-to-live: the results of the queries on classes without a TTL
+ * are not cached. When the cache is full, the least recently used entry is evicted.
+ * <p>
+ * A single cache is meant to be shared by several {@link CachingWindowsRemoteExecutor} instances
+ * (one per connection). This class is thread-safe.
+ */
+public class WqlResultCache {
+
+	/** Default maximum number of cached results */
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	/** Default time-to-live of the results of the queries on the classes that rarely change (10 minutes) */
+	public static final long DEFAULT_STATIC_CLASS_TTL = 10 * 60 * 1000L;
+
+	/** Classes cached by default, with {@link #DEFAULT_STATIC_CLASS_TTL} */
+	private static final String[] DEFAULT_STATIC_CLASSES = {
+			"Win32_OperatingSystem",
+			"Win32_ComputerSystem",
+			"Win32_BIOS",
+			"Win32_ClusterShare"
+	};
+
+	/** Maximum number of cached results */
+	private final int maxEntries;
+
+	/** Time-to-live (in milliseconds) per WMI class (case insensitive) */
+	private final Map<String, Long> classTtls;
+
+	/** The cached results, in access order (the eldest is the least recently used) */
+	private final LinkedHashMap<CacheKey, CacheEntry> entries;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Create a cache with the default settings: {@link #DEFAULT_MAX_ENTRIES} results,
+	 * and {@link #DEFAULT_STATIC_CLASS_TTL} for Win32_OperatingSystem, Win32_ComputerSystem,
+	 * Win32_BIOS and Win32_ClusterShare.
+	 */
+	public WqlResultCache() {
+		this(getDefaultClassTtls(), DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Create a cache of WQL query results
+	 *
+	 * @param classTtls Time-to-live in milliseconds per WMI class (case insensitive).
+	 * The results of the queries on other classes are not cached.
+	 * @param maxEntries Maximum number of cached results (throws an IllegalArgumentException if negative or zero)
+	 */
+	public WqlResultCache(final Map<String, Long> classTtls, final int maxEntries) {
+
+		Utils.checkNonNull(classTtls, "classTtls");
+		Utils.checkArgumentNotZeroOrNegative(maxEntries, "maxEntries");
+
+		this.maxEntries = maxEntries;
+		this.classTtls = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		this.classTtls.putAll(classTtls);
+
+		this.entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<CacheKey, CacheEntry> eldest) {
+				if (size() > WqlResultCache.this.maxEntries) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return a new Map with {@link #DEFAULT_STATIC_CLASS_TTL} for Win32_OperatingSystem, Win32_ComputerSystem,
+	 * Win32_BIOS and Win32_ClusterShare, to be completed before creating a cache
+	 */
+	public static Map<String, Long> getDefaultClassTtls() {
+		final Map<String, Long> classTtls = new HashMap<>();
+		for (final String className : DEFAULT_STATIC_CLASSES) {
+			classTtls.put(className, DEFAULT_STATIC_CLASS_TTL);
+		}
+		return classTtls;
+	}
+
+	/**
+	 * @param className The WMI class (may be null)
+	 * @return the time-to-live in milliseconds of the results of the queries on the specified class
+	 * (0 if they are not cached)
+	 */
+	public long getTtl(final String className) {
+		if (className == null) {
+			return 0;
+		}
+		final Long ttl = classTtls.get(className);
+		return ttl == null || ttl < 0 ? 0 : ttl;
+	}
+
+	/**
+	 * Get the cached result of the specified query
+	 *
+	 * @param hostname The host the query is executed on
+	 * @param namespace The namespace the query is executed in
+	 * @param username The user executing the query
+	 * @param wqlQuery The query
+	 * @param maxRows Maximum number of rows of the result
+	 * @return the cached result rows (unmodifiable), or null if not cached or expired
+	 */
+	List<Map<String, Object>> get(
+			final String hostname,
+			final String namespace,
+			final String username,
+			final WqlQuery wqlQuery,
+			final int maxRows) {
+
+		final CacheKey key = new CacheKey(hostname, namespace, username, wqlQuery, maxRows);
+		final long now = Utils.getCurrentTimeMillis();
+
+		synchronized (entries) {
+			final CacheEntry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiresAt > now) {
+					hitCount.incrementAndGet();
+					return entry.rows;
+				}
+				entries.remove(key);
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Store the result of the specified query, if its class is cached
+	 *
+	 * @param hostname The host the query has been executed on
+	 * @param namespace The namespace the query has been executed in
+	 * @param username The user who executed the query
+	 * @param wqlQuery The query
+	 * @param maxRows Maximum number of rows of the result
+	 * @param rows The result rows
+	 * @return the result rows, made unmodifiable if they have been cached
+	 */
+	List<Map<String, Object>> put(
+			final String hostname,
+			final String namespace,
+			final String username,
+			final WqlQuery wqlQuery,
+			final int maxRows,
+			final List<Map<String, Object>> rows) {
+
+		final long ttl = getTtl(wqlQuery.getClassName());
+		if (ttl <= 0 || rows == null) {
+			return rows;
+		}
+
+		// The same rows are handed out to all callers: nobody must be able to modify them
+		final List<Map<String, Object>> unmodifiableRows = new ArrayList<>(rows.size());
+		for (final Map<String, Object> row : rows) {
+			unmodifiableRows.add(Collections.unmodifiableMap(row));
+		}
+		final CacheEntry entry = new CacheEntry(
+				Collections.unmodifiableList(unmodifiableRows),
+				wqlQuery.getClassName(),
+				Utils.getCurrentTimeMillis() + ttl);
+
+		synchronized (entries) {
+			entries.put(new CacheKey(hostname, namespace, username, wqlQuery, maxRows), entry);
+		}
+		return entry.rows;
+	}
+
+	/**
+	 * Remove all the cached results for the specified host
+	 *
+	 * @param hostname The host (null for localhost)
+	 * @return the number of removed results
+	 */
+	public int invalidate(final String hostname) {
+		return remove(normalizeHostname(hostname), null);
+	}
+
+	/**
+	 * Remove the cached results of the queries on the specified class, for the specified host
+	 *
+	 * @param hostname The host (null for localhost)
+	 * @param className The WMI class (case insensitive)
+	 * @return the number of removed results
+	 */
+	public int invalidate(final String hostname, final String className) {
+		Utils.checkNonNull(className, "className");
+		return remove(normalizeHostname(hostname), className);
+	}
+
+	/**
+	 * Remove all the cached results
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Remove the entries of the specified host and class
+	 *
+	 * @param host The normalized hostname
+	 * @param className The WMI class (null for all classes)
+	 * @return the number of removed entries
+	 */
+	private int remove(final String host, final String className) {
+		int count = 0;
+		synchronized (entries) {
+			final Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<CacheKey, CacheEntry> entry = iterator.next();
+				if (host.equals(entry.getKey().hostname)
+						&& (className == null || className.equalsIgnoreCase(entry.getValue().className))) {
+					iterator.remove();
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of cached results (including the expired ones that haven't been removed yet)
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the number of queries served from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of queries that were not in the cache (or expired)
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of results evicted because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @param hostname The hostname (null for localhost)
+	 * @return the hostname in lower case (empty string for localhost)
+	 */
+	private static String normalizeHostname(final String hostname) {
+		return hostname == null ? "" : hostname.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @param namespace The namespace (null for the default namespace)
+	 * @return the namespace in upper case, with back-slashes
+	 */
+	private static String normalizeNamespace(final String namespace) {
+		return (namespace == null ? WmiHelper.DEFAULT_NAMESPACE : namespace).replace('/', '\\').toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * Identifies a query result
+	 */
+	private static class CacheKey {
+
+		private final String hostname;
+		private final String namespace;
+		private final String username;
+		private final String cleanWql;
+		private final Map<String, Set<String>> subProperties;
+		private final int maxRows;
+
+		private CacheKey(
+				final String hostname,
+				final String namespace,
+				final String username,
+				final WqlQuery wqlQuery,
+				final int maxRows) {
+			this.hostname = normalizeHostname(hostname);
+			this.namespace = normalizeNamespace(namespace);
+			this.username = username == null ? "" : username.toLowerCase(Locale.ROOT);
+			this.cleanWql = wqlQuery.getCleanWql();
+			this.subProperties = wqlQuery.getSubPropertiesMap();
+			this.maxRows = maxRows;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			final CacheKey other = (CacheKey) obj;
+			return maxRows == other.maxRows
+					&& hostname.equals(other.hostname)
+					&& namespace.equals(other.namespace)
+					&& username.equals(other.username)
+					&& cleanWql.equals(other.cleanWql)
+					&& subProperties.equals(other.subProperties);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(hostname, namespace, username, cleanWql, subProperties, maxRows);
+		}
+	}
+
+	/**
+	 * A cached query result
+	 */
+	private static class CacheEntry {
+
+		private final List<Map<String, Object>> rows;
+		private final String className;
+		private final long expiresAt;
+
+		private CacheEntry(final List<Map<String, Object>> rows, final String className, final long expiresAt) {
+			this.rows = rows;
+			this.className = className;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -20,6 +20,7 @@ package org.sentrysoftware.wmi.windows.remote.share;
  * ╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱╲╱
  */
 
+import org.sentrysoftware.wmi.Deadline;
 import org.sentrysoftware.wmi.TimeoutHelper;
 import org.sentrysoftware.wmi.Utils;
 import org.sentrysoftware.wmi.exceptions.WindowsRemoteException;
@@ -123,6 +124,30 @@ public class WindowsTempShare {
 				shareRemoteDirectory);
 	}
 
+	/**
+	 * Get the existing share on the host or create it if absent, before the specified deadline.
+	 *
+	 * @param windowsRemoteExecutor WindowsRemoteExecutor instance. (mandatory)
+	 * @param deadline Deadline of the operation this share is needed for. (mandatory)
+	 * @param shareRemoteDirectory ShareRemoteDirectoryConsumer function (mandatory)
+	 * @return The remote path.
+	 * @throws TimeoutException when the deadline has passed
+	 * @throws WindowsRemoteException For any problem encountered.
+	 */
+	public static WindowsTempShare getOrCreateShare(
+			final WindowsRemoteExecutor windowsRemoteExecutor,
+			final Deadline deadline,
+			final ShareRemoteDirectoryConsumer<WindowsRemoteExecutor, String, String, Long> shareRemoteDirectory)
+					throws TimeoutException, WindowsRemoteException {
+
+		Utils.checkNonNull(deadline, "deadline");
+
+		return getOrCreateShare(
+				windowsRemoteExecutor,
+				deadline.getRemainingTime("No time left to get or create the temporary share"),
+				shareRemoteDirectory);
+	}
+
 	/**
 	 * Get the Windows directory.
 	 *
@@ -146,9 +171,9 @@ public class WindowsTempShare {
 			// Extract the WindowsDirectory property from the first instance and return it (or throw an exception)
 			return windowsRemoteExecutor.executeWql(
 					"SELECT WindowsDirectory FROM Win32_OperatingSystem",
-					timeout
+					timeout,
+					1
 					).stream()
-					.limit(1)
 					.map(row -> (String) row.get("WindowsDirectory"))
 					.filter(Objects::nonNull)
 					.findFirst()
@@ -273,9 +298,9 @@ public class WindowsTempShare {
 			final Optional<WindowsTempShare> clusterShare = windowsRemoteExecutor.executeWql(
 					"SELECT Name,Path FROM Win32_ClusterShare WHERE "
 					+ "ServerName <> '*' AND (Type = 2147483648 OR Type = 3221225472) AND Name LIKE '%\\\\_$'",
-					timeout
+					timeout,
+					1
 					).stream()
-					.limit(1)
 					.map(
 							// We return a TempShare instance pointing to a subdirectory in this share
 							row -> new WindowsTempShare(
@@ -317,9 +342,9 @@ public class WindowsTempShare {
 
 			return windowsRemoteExecutor.executeWql(
 					String.format("SELECT Name,Path FROM Win32_Share WHERE Name = '%s'", shareName),
-					timeout
+					timeout,
+					1
 					).stream()
-					.limit(1)
 					.map(row -> new WindowsTempShare(
 							windowsRemoteExecutor,
 							(String) row.get("Name"),
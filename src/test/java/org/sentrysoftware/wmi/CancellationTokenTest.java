@@ -0,0 +1,72 @@
+package org.sentrysoftware.wmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class CancellationTokenTest {
+
+	@Test
+	void testCancel() {
+		final CancellationToken token = CancellationToken.newInstance();
+		assertFalse(token.isCancelled());
+		token.throwIfCancelled();
+
+		token.cancel();
+		assertTrue(token.isCancelled());
+		assertThrows(CancellationException.class, token::throwIfCancelled);
+
+		// Cancelling twice has no effect
+		token.cancel();
+		assertTrue(token.isCancelled());
+	}
+
+	@Test
+	void testListeners() {
+		final CancellationToken token = CancellationToken.newInstance();
+		final AtomicInteger called = new AtomicInteger();
+
+		token.onCancel(called::incrementAndGet);
+		final CancellationToken.Registration registration = token.onCancel(called::incrementAndGet);
+		registration.close();
+		token.onCancel(() -> { throw new IllegalStateException("must not prevent the other listeners"); });
+		token.onCancel(called::incrementAndGet);
+
+		token.cancel();
+		assertEquals(2, called.get());
+
+		// Listener registered after the cancellation is called right away
+		token.onCancel(called::incrementAndGet);
+		assertEquals(3, called.get());
+
+		token.cancel();
+		assertEquals(3, called.get());
+	}
+
+	@Test
+	void testNone() {
+		CancellationToken.NONE.throwIfCancelled();
+		assertThrows(UnsupportedOperationException.class, CancellationToken.NONE::cancel);
+		assertFalse(CancellationToken.NONE.isCancelled());
+	}
+
+	@Test
+	void testInterrupted() {
+		final CancellationToken token = CancellationToken.newInstance();
+		Thread.currentThread().interrupt();
+		try {
+			assertThrows(CancellationException.class, token::throwIfCancelled);
+			assertTrue(Thread.currentThread().isInterrupted());
+
+			// The interrupt status survives the staged sleep
+			assertThrows(TimeoutException.class, () -> TimeoutHelper.stagedSleep(60000, Utils.getCurrentTimeMillis(), "interrupted"));
+			assertTrue(Thread.currentThread().isInterrupted());
+		} finally {
+			Thread.interrupted();
+		}
+	}
+}
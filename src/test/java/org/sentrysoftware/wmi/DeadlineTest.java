@@ -0,0 +1,51 @@
+package org.sentrysoftware.wmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+class DeadlineTest {
+
+	@Test
+	void testNewInstance() {
+		assertThrows(IllegalArgumentException.class, () -> Deadline.newInstance(0));
+		assertThrows(IllegalArgumentException.class, () -> Deadline.newInstance(-1));
+
+		final Deadline deadline = Deadline.newInstance(60000);
+		assertEquals(60000, deadline.getTimeout());
+		assertFalse(deadline.isExpired());
+		assertTrue(deadline.getRemainingMillis() > 50000);
+		assertTrue(deadline.getRemainingMillis() <= 60000);
+		assertTrue(deadline.getElapsedMillis() < 10000);
+	}
+
+	@Test
+	void testExpired() throws Exception {
+		final Deadline deadline = Deadline.newInstance(1);
+		Thread.sleep(20);
+		assertTrue(deadline.isExpired());
+		assertEquals(0, deadline.getRemainingMillis());
+		assertTrue(deadline.getElapsedMillis() >= 20);
+		assertThrows(TimeoutException.class, () -> deadline.getRemainingTime("expired"));
+		assertThrows(TimeoutException.class, () -> deadline.check("expired"));
+		assertThrows(TimeoutException.class, () -> TimeoutHelper.stagedSleep(deadline, "expired"));
+	}
+
+	@Test
+	void testGetRemainingTime() throws Exception {
+		final Deadline deadline = Deadline.newInstance(60000);
+		final long remaining = deadline.getRemainingTime("not expired");
+		assertTrue(remaining > 0 && remaining <= 60000);
+		deadline.check("not expired");
+	}
+
+	@Test
+	void testNarrow() {
+		final Deadline deadline = Deadline.newInstance(60000);
+		final Deadline shorter = deadline.narrow(1000);
+		assertTrue(shorter.getRemainingMillis() <= 1000);
+		assertSame(deadline, deadline.narrow(120000));
+	}
+}
@@ -0,0 +1,131 @@
+package org.sentrysoftware.wmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import org.junit.jupiter.api.Test;
+import org.sentrysoftware.wmi.exceptions.HostUnreachableException;
+
+class HostReachabilityTest {
+
+	private static final String LOOPBACK = "127.0.0.1";
+
+	@Test
+	void testArguments() {
+		assertThrows(IllegalArgumentException.class, () -> new HostReachability(0, 1000));
+		assertThrows(IllegalArgumentException.class, () -> new HostReachability(200, -1));
+		assertNull(HostReachability.getDefault());
+	}
+
+	@Test
+	void testReachable() throws Exception {
+		try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK))) {
+			final HostReachability hostReachability = new HostReachability(serverSocket.getLocalPort(), 1000, 60000);
+
+			assertTrue(hostReachability.isReachable(LOOPBACK));
+			hostReachability.checkReachable(LOOPBACK);
+			assertEquals(1, hostReachability.getProbeCount());
+			assertEquals(1, hostReachability.getCacheHitCount());
+
+			// The local system is always reachable
+			assertTrue(hostReachability.isReachable(null));
+			assertEquals(1, hostReachability.getProbeCount());
+		}
+	}
+
+	@Test
+	void testUnreachable() throws Exception {
+		final int port;
+		try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK))) {
+			port = serverSocket.getLocalPort();
+		}
+
+		// Nobody listens on the port anymore
+		final HostReachability hostReachability = new HostReachability(port, 1000, 60000);
+		assertFalse(hostReachability.isReachable(LOOPBACK));
+		final HostUnreachableException e = assertThrows(HostUnreachableException.class, () -> hostReachability.checkReachable(LOOPBACK));
+		assertEquals(LOOPBACK, e.getHostname());
+		assertEquals(HostUnreachableException.RPC_S_SERVER_UNAVAILABLE, e.getHResult().intValue());
+		assertEquals(1, hostReachability.getProbeCount());
+
+		// Once invalidated, the host is checked again
+		hostReachability.invalidate(LOOPBACK);
+		assertFalse(hostReachability.isReachable(LOOPBACK));
+		assertEquals(2, hostReachability.getProbeCount());
+
+		// Unknown host
+		assertFalse(hostReachability.isReachable("unknown-host.invalid"));
+	}
+
+	@Test
+	void testNoCache() throws Exception {
+		try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK))) {
+			final HostReachability hostReachability = new HostReachability(serverSocket.getLocalPort(), 1000, 0);
+			assertTrue(hostReachability.isReachable(LOOPBACK));
+			assertTrue(hostReachability.isReachable(LOOPBACK));
+			assertEquals(2, hostReachability.getProbeCount());
+			assertEquals(0, hostReachability.getCacheHitCount());
+		}
+	}
+
+	@Test
+	void testResolutionTimeout() throws Exception {
+		final int port;
+		try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK))) {
+			port = serverSocket.getLocalPort();
+		}
+
+		// A lookup that doesn't complete in time doesn't make the host unreachable, and is not cached
+		final HostReachability hostReachability = new HostReachability(port, 100, 60000, hostname -> {
+			try {
+				Thread.sleep(10000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return InetAddress.getByName(hostname);
+		});
+		assertTrue(hostReachability.isReachable(LOOPBACK));
+		hostReachability.checkReachable(LOOPBACK);
+		assertEquals(2, hostReachability.getProbeCount());
+		assertEquals(2, hostReachability.getInconclusiveCount());
+		assertEquals(0, hostReachability.getCachedCount());
+	}
+
+	@Test
+	void testPruneExpired() throws Exception {
+		final int port;
+		try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK))) {
+			port = serverSocket.getLocalPort();
+		}
+
+		final HostReachability hostReachability = new HostReachability(port, 1000, 50);
+		assertFalse(hostReachability.isReachable(LOOPBACK));
+		assertFalse(hostReachability.isReachable("unknown-host.invalid"));
+		assertEquals(2, hostReachability.getCachedCount());
+
+		// The expired outcomes are removed with the next check
+		Thread.sleep(100);
+		assertFalse(hostReachability.isReachable("localhost.invalid"));
+		assertEquals(1, hostReachability.getCachedCount());
+	}
+
+	@Test
+	void testDefault() throws Exception {
+		final int port;
+		try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK))) {
+			port = serverSocket.getLocalPort();
+		}
+
+		// Disabled by default
+		HostReachability.checkDefault(LOOPBACK);
+
+		try {
+			HostReachability.setDefault(new HostReachability(port, 1000, 60000));
+			assertThrows(HostUnreachableException.class, () -> HostReachability.checkDefault(LOOPBACK));
+		} finally {
+			HostReachability.setDefault(null);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package org.sentrysoftware.wmi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.jna.platform.win32.COM.Wbemcli;
+
+class WmiResultSetTest {
+
+	private static Map<String, Object> row(final Object... keyValues) {
+		final Map<String, Object> row = new LinkedHashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			row.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		return row;
+	}
+
+	@Test
+	void testColumnOrder() {
+		final WmiResultSet alphabetical = new WmiResultSet();
+		alphabetical.addRow(row("Name", "a", "Caption", "b", "processId", 1));
+		assertEquals(Arrays.asList("Caption", "Name", "processId"), alphabetical.getColumnNames());
+
+		final WmiResultSet queryOrder = new WmiResultSet(Arrays.asList("processid", "name"));
+		queryOrder.addRow(row("Name", "a", "Caption", "b", "ProcessId", 1));
+		assertEquals(Arrays.asList("ProcessId", "Name", "Caption"), queryOrder.getColumnNames());
+		assertEquals(3, queryOrder.getColumnCount());
+	}
+
+	@Test
+	void testValues() {
+		final WmiResultSet resultSet = new WmiResultSet(Collections.emptyList());
+		assertTrue(resultSet.isEmpty());
+		assertThrows(IllegalArgumentException.class, () -> resultSet.addRow(null));
+
+		resultSet.addRow(row("Name", "first", "Size", 10L));
+		resultSet.addRow(row("Name", "second", "Size", null));
+		assertEquals(2, resultSet.size());
+
+		assertEquals(0, resultSet.getColumnIndex("NAME"));
+		assertEquals(1, resultSet.getColumnIndex("size"));
+		assertEquals(-1, resultSet.getColumnIndex("Other"));
+		assertEquals(-1, resultSet.getColumnIndex(null));
+
+		assertEquals("first", resultSet.getValue(0, 0));
+		assertEquals(10L, resultSet.getValue(0, "SIZE"));
+		assertNull(resultSet.getValue(1, "Size"));
+		assertNull(resultSet.getValue(1, "Other"));
+		assertThrows(IndexOutOfBoundsException.class, () -> resultSet.getValue(0, 2));
+		assertThrows(IndexOutOfBoundsException.class, () -> resultSet.getValue(2, 0));
+		assertThrows(IndexOutOfBoundsException.class, () -> resultSet.getValue(2, "Name"));
+	}
+
+	@Test
+	void testRowView() {
+		final WmiResultSet resultSet = new WmiResultSet();
+		resultSet.addRow(row("Name", "first", "Size", null));
+
+		final Map<String, Object> row = resultSet.get(0);
+		assertEquals(2, row.size());
+		assertEquals("first", row.get("name"));
+		assertTrue(row.containsKey("SIZE"));
+		assertNull(row.get("Size"));
+		assertFalse(row.containsKey("Other"));
+		assertFalse(row.containsKey(1));
+		assertEquals(Arrays.asList("Name", "Size"), Arrays.asList(row.keySet().toArray()));
+
+		final Map<String, Object> expected = new HashMap<>();
+		expected.put("Name", "first");
+		expected.put("Size", null);
+		assertEquals(expected, row);
+		assertEquals(expected.hashCode(), row.hashCode());
+
+		assertThrows(UnsupportedOperationException.class, () -> row.put("Name", "other"));
+		assertThrows(UnsupportedOperationException.class, () -> resultSet.getColumnNames().add("Other"));
+	}
+
+	@Test
+	void testNewColumns() {
+		final WmiResultSet resultSet = new WmiResultSet();
+		resultSet.addRow(row("Name", "first"));
+		resultSet.addRow(row("Name", "second", "Size", 2));
+		resultSet.addRow(row("Size", 3));
+
+		assertEquals(Arrays.asList("Name", "Size"), resultSet.getColumnNames());
+
+		// Properties that are not present in a row are not in its Map view
+		assertEquals(row("Name", "first"), resultSet.get(0));
+		assertFalse(resultSet.get(0).containsKey("Size"));
+		assertNull(resultSet.getValue(0, "Size"));
+		assertEquals(row("Name", "second", "Size", 2), resultSet.get(1));
+		assertEquals(row("Size", 3), resultSet.get(2));
+		assertEquals(1, resultSet.get(2).size());
+	}
+
+	@Test
+	void testExtractPropertiesFromResult() throws Exception {
+		final WmiResultSet resultSet = new WmiResultSet(Arrays.asList("Size", "Name"));
+		resultSet.addRow(row("NAME", "first", "SIZE", 1));
+		assertEquals(
+				Arrays.asList("SIZE", "NAME"),
+				WmiHelper.extractPropertiesFromResult(resultSet, "SELECT Size, Name FROM Win32_Directory"));
+	}
+
+	@Test
+	void testTypedColumns() {
+		final WmiResultSet resultSet = new WmiResultSet();
+		final int count = resultSet.addColumn("Count", Wbemcli.CIM_UINT32);
+		final int total = resultSet.addColumn("Total", Wbemcli.CIM_UINT64);
+		final int ratio = resultSet.addColumn("Ratio", Wbemcli.CIM_REAL64);
+		final int enabled = resultSet.addColumn("Enabled", Wbemcli.CIM_BOOLEAN);
+		assertEquals(count, resultSet.addColumn("COUNT", Wbemcli.CIM_STRING));
+		assertEquals(Wbemcli.CIM_UINT32, resultSet.getColumnType(count));
+
+		for (int i = 0; i < 100; i++) {
+			final int row = resultSet.addRow();
+			resultSet.setLong(row, count, 0xFFFFFFFFL);
+			resultSet.setLong(row, total, -1L);
+			resultSet.setDouble(row, ratio, i / 2.0);
+			resultSet.setBoolean(row, enabled, i % 2 == 0);
+		}
+		assertEquals(100, resultSet.size());
+
+		// Unsigned values
+		assertEquals(4294967295L, resultSet.getLong(99, count));
+		assertThrows(ArithmeticException.class, () -> resultSet.getInt(99, count));
+		assertEquals(-1L, resultSet.getLong(99, "total"));
+		assertEquals(1.8446744073709552E19, resultSet.getDouble(99, total));
+		assertEquals(49.5, resultSet.getDouble(99, ratio));
+		assertEquals(49, resultSet.getLong(99, ratio));
+		assertFalse(resultSet.getBoolean(99, enabled));
+		assertTrue(resultSet.getBoolean(98, "Enabled"));
+
+		// Same Java types as WmiWbemServices.executeWql() in the Map views
+		final Map<String, Object> row = resultSet.get(98);
+		assertEquals(-1, row.get("Count"));
+		assertEquals("18446744073709551615", row.get("Total"));
+		assertEquals(49.0, row.get("Ratio"));
+		assertEquals(true, row.get("Enabled"));
+	}
+
+	@Test
+	void testTypedNullAndAbsent() {
+		final WmiResultSet resultSet = new WmiResultSet();
+		final int size = resultSet.addColumn("Size", Wbemcli.CIM_SINT64);
+		final int first = resultSet.addRow();
+		resultSet.addRow();
+		resultSet.setNull(first, size);
+
+		assertTrue(resultSet.isNull(0, size));
+		assertTrue(resultSet.isNull(1, size));
+		assertEquals(0, resultSet.getLong(0, size));
+		assertEquals(0, resultSet.getDouble(1, "Size"));
+		assertFalse(resultSet.getBoolean(1, "Other"));
+
+		// Null values are present, unlike the values that were never set
+		assertTrue(resultSet.get(0).containsKey("Size"));
+		assertFalse(resultSet.get(1).containsKey("Size"));
+
+		resultSet.setLong(first, size, 5);
+		assertFalse(resultSet.isNull(0, size));
+		assertEquals("5", resultSet.getValue(0, size));
+	}
+
+	@Test
+	void testTypedColumnConversions() {
+		final WmiResultSet resultSet = new WmiResultSet();
+		final int total = resultSet.addColumn("Total", Wbemcli.CIM_UINT64);
+		final int value = resultSet.addColumn("Value", Wbemcli.CIM_UINT8);
+		final int row = resultSet.addRow();
+
+		// Strings of 64-bit integers, and negative bytes of unsigned types
+		resultSet.setValue(row, total, "18446744073709551615");
+		assertEquals(-1L, resultSet.getLong(row, total));
+		resultSet.setValue(row, value, (byte) -1);
+		assertEquals(255, resultSet.getInt(row, value));
+		assertEquals((byte) -1, resultSet.getValue(row, value));
+
+		// Values that are not numbers: the column stores objects
+		resultSet.setValue(row, total, "unknown");
+		assertEquals("unknown", resultSet.getValue(row, total));
+		assertThrows(NumberFormatException.class, () -> resultSet.getLong(row, total));
+		final int next = resultSet.addRow();
+		resultSet.setLong(next, total, 12);
+		assertEquals(12L, resultSet.getLong(next, total));
+		assertEquals(12.0, resultSet.getDouble(next, total));
+
+		// Object columns are converted too
+		resultSet.addRow(row("Name", "3"));
+		assertEquals(3, resultSet.getInt(2, "Name"));
+		assertEquals(Wbemcli.CIM_EMPTY, resultSet.getColumnType(resultSet.getColumnIndex("Name")));
+	}
+}
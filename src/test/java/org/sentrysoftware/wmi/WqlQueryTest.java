@@ -98,18 +98,21 @@ class WqlQueryTest {
 			WqlQuery wql = WqlQuery.newInstance("select    __PATH   ,    SystemType,    DNSHostName  from    Win32_ComputerSystem");
 			assertEquals(Arrays.asList("__path", "systemtype", "dnshostname"), wql.getSelectedProperties());
 			assertEquals("SELECT __path,systemtype,dnshostname FROM Win32_ComputerSystem", wql.getCleanWql());
+			assertEquals("Win32_ComputerSystem", wql.getClassName());
 		}
 
 		{
 			WqlQuery wql = WqlQuery.newInstance("SELECT DriveInfo.Name,DriveInfo.NumberPaths,DriveInfo.SerialNumber FROM MPIO_DISK_INFO WHERE condition");
 			assertEquals(Arrays.asList("driveinfo.name", "driveinfo.numberpaths", "driveinfo.serialnumber"), wql.getSelectedProperties());
 			assertEquals("SELECT driveinfo FROM MPIO_DISK_INFO WHERE condition", wql.getCleanWql());
+			assertEquals("MPIO_DISK_INFO", wql.getClassName());
 		}
 
 		{
 			WqlQuery wql = WqlQuery.newInstance("SELECT Temperature.Current, Temperature.Max FROM ASSOCIATORS OF {Win32_Process.ProcessId=1}");
 			assertEquals(Arrays.asList("temperature.current", "temperature.max"), wql.getSelectedProperties());
 			assertEquals("ASSOCIATORS OF {Win32_Process.ProcessId=1}", wql.getCleanWql());
+			assertNull(wql.getClassName());
 			Map<String, Set<String>> propertiesMap = wql.getSubPropertiesMap();
 			assertEquals(1, propertiesMap.size(), "Temperature.Current and Temperature.Max must have been merged under Temperature");
 			assertEquals(2, propertiesMap.get("temperature").size());
@@ -0,0 +1,38 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+import java.util.concurrent.TimeoutException;
+
+class HResultCategoryTest {
+
+	@Test
+	void testOf() {
+		assertEquals(HResultCategory.TRANSPORT, HResultCategory.of(0x80041015));
+		assertEquals(HResultCategory.TRANSPORT, HResultCategory.of(0x800706BA));
+		assertEquals(HResultCategory.TRANSPORT, HResultCategory.of(0x80010108));
+		assertEquals(HResultCategory.ACCESS_DENIED, HResultCategory.of(0x80070005));
+		assertEquals(HResultCategory.TIMEOUT, HResultCategory.of(0x800705B4));
+		assertEquals(HResultCategory.INVALID_QUERY, HResultCategory.of(0x80041017));
+		assertEquals(HResultCategory.OTHER, HResultCategory.of(0x80041002));
+	}
+
+	@Test
+	void testOfException() {
+		assertEquals(HResultCategory.OTHER, HResultCategory.of((Throwable) null));
+		assertEquals(HResultCategory.OTHER, HResultCategory.of(new WmiComException("no code")));
+		assertEquals(HResultCategory.TRANSPORT, HResultCategory.of(new WmiComException(0x800706BE, "%s", "RPC")));
+
+		// HRESULT found in the causes
+		final WmiComException wrapped = new WmiComException(new WmiComException(0x80041003, "denied"), "wrapped");
+		assertEquals(0x80041003, wrapped.getHResult().intValue());
+		assertEquals(HResultCategory.ACCESS_DENIED, HResultCategory.of(wrapped));
+		assertEquals(HResultCategory.ACCESS_DENIED, HResultCategory.of(new RuntimeException(wrapped)));
+
+		assertEquals(HResultCategory.TIMEOUT, HResultCategory.of(new TimeoutException("slow")));
+		assertEquals(HResultCategory.TIMEOUT, HResultCategory.of(new WmiComException(new TimeoutException("slow"))));
+	}
+}
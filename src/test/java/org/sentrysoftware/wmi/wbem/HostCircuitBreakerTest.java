@@ -0,0 +1,159 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.exceptions.CircuitOpenException;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+class HostCircuitBreakerTest {
+
+	private static final String HOSTNAME = "host";
+	private static final WmiComException RPC_SERVER_UNAVAILABLE = new WmiComException(0x800706BA, "RPC_S_SERVER_UNAVAILABLE");
+	private static final WmiComException ACCESS_DENIED = new WmiComException(0x80070005, "E_ACCESSDENIED");
+
+	@Test
+	void testArguments() {
+		assertThrows(IllegalArgumentException.class, () -> new HostCircuitBreaker(0, 1000, 1000));
+		assertThrows(IllegalArgumentException.class, () -> new HostCircuitBreaker(1, 0, 1000));
+		assertThrows(IllegalArgumentException.class, () -> new HostCircuitBreaker(1, 1000, 999));
+	}
+
+	@Test
+	void testDefault() {
+		// Disabled by default
+		assertNull(HostCircuitBreaker.getDefault());
+
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker();
+		HostCircuitBreaker.setDefault(circuitBreaker);
+		try {
+			assertSame(circuitBreaker, HostCircuitBreaker.getDefault());
+		} finally {
+			HostCircuitBreaker.setDefault(null);
+		}
+		assertNull(HostCircuitBreaker.getDefault());
+	}
+
+	@Test
+	void testAccounts() throws Exception {
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(1, 60000, 60000);
+
+		// A wrong password suspends only its account
+		circuitBreaker.acquirePermission(HOSTNAME, "wrong");
+		circuitBreaker.onFailure(HOSTNAME, "wrong", ACCESS_DENIED);
+		assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState(HOSTNAME, "WRONG"));
+		final CircuitOpenException e = assertThrows(CircuitOpenException.class, () -> circuitBreaker.acquirePermission(HOSTNAME, "wrong"));
+		assertTrue(e.getMessage().contains("wrong"));
+
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME, "right"));
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+		circuitBreaker.acquirePermission(HOSTNAME, "right");
+		circuitBreaker.acquirePermission(HOSTNAME);
+
+		// Reset of the account
+		circuitBreaker.reset(HOSTNAME, "wrong");
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME, "wrong"));
+
+		// Reset of all the accounts of the host
+		circuitBreaker.onFailure(HOSTNAME, "wrong", ACCESS_DENIED);
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		circuitBreaker.onFailure("other", RPC_SERVER_UNAVAILABLE);
+		circuitBreaker.reset(HOSTNAME);
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME, "wrong"));
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+		assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState("other"));
+	}
+
+	@Test
+	void testErrorEndsTrial() throws Exception {
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(1, 1, 1);
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		Thread.sleep(10);
+
+		// The trial connection fails with an Error: the next connections are not rejected forever
+		circuitBreaker.acquirePermission(HOSTNAME);
+		circuitBreaker.onFailure(HOSTNAME, new OutOfMemoryError());
+		circuitBreaker.acquirePermission(HOSTNAME);
+	}
+
+	@Test
+	void testOpen() throws Exception {
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(3, 60000, 60000);
+
+		circuitBreaker.acquirePermission(HOSTNAME);
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		circuitBreaker.acquirePermission(HOSTNAME);
+		circuitBreaker.onFailure(HOSTNAME, ACCESS_DENIED);
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+
+		circuitBreaker.acquirePermission("HOST");
+		circuitBreaker.onFailure("HOST", new TimeoutException("ConnectServer"));
+		assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState(HOSTNAME));
+		assertEquals(1, circuitBreaker.getFailureCounts(HOSTNAME).get(HResultCategory.TRANSPORT));
+		assertEquals(1, circuitBreaker.getFailureCounts(HOSTNAME).get(HResultCategory.ACCESS_DENIED));
+		assertEquals(1, circuitBreaker.getFailureCounts(HOSTNAME).get(HResultCategory.TIMEOUT));
+
+		final CircuitOpenException e = assertThrows(CircuitOpenException.class, () -> circuitBreaker.acquirePermission(HOSTNAME));
+		assertEquals(HOSTNAME, e.getHostname());
+		assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 60000);
+		assertEquals(1, circuitBreaker.getRejectedCount());
+
+		// Other hosts are not affected
+		circuitBreaker.acquirePermission("other");
+		circuitBreaker.acquirePermission(null);
+
+		circuitBreaker.reset(HOSTNAME);
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+		assertTrue(circuitBreaker.getFailureCounts(HOSTNAME).isEmpty());
+		circuitBreaker.acquirePermission(HOSTNAME);
+	}
+
+	@Test
+	void testSuccessResets() throws Exception {
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(2, 60000, 60000);
+
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		circuitBreaker.onSuccess(HOSTNAME);
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+
+		// WBEM_E_INVALID_NAMESPACE: the host answered
+		circuitBreaker.onFailure(HOSTNAME, new WmiComException(0x8004100E, "WBEM_E_INVALID_NAMESPACE"));
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+	}
+
+	@Test
+	void testHalfOpen() throws Exception {
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(1, 50, 1000);
+
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		assertThrows(CircuitOpenException.class, () -> circuitBreaker.acquirePermission(HOSTNAME));
+
+		Utils.sleep(100);
+		assertEquals(HostCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(HOSTNAME));
+
+		// Only one trial connection
+		circuitBreaker.acquirePermission(HOSTNAME);
+		final CircuitOpenException e = assertThrows(CircuitOpenException.class, () -> circuitBreaker.acquirePermission(HOSTNAME));
+		assertEquals(0, e.getRetryAfter());
+
+		// The trial fails: the cool-down doubles
+		circuitBreaker.onFailure(HOSTNAME, RPC_SERVER_UNAVAILABLE);
+		assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState(HOSTNAME));
+		final CircuitOpenException e2 = assertThrows(CircuitOpenException.class, () -> circuitBreaker.acquirePermission(HOSTNAME));
+		assertTrue(e2.getRetryAfter() > 50);
+
+		Utils.sleep(150);
+
+		// The trial succeeds: the circuit closes
+		circuitBreaker.acquirePermission(HOSTNAME);
+		circuitBreaker.onSuccess(HOSTNAME);
+		assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOSTNAME));
+		circuitBreaker.acquirePermission(HOSTNAME);
+		circuitBreaker.acquirePermission(HOSTNAME);
+	}
+}
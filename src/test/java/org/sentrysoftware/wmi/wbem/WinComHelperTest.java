@@ -1,6 +1,8 @@
 package org.sentrysoftware.wmi.wbem;
 
 import org.sentrysoftware.wmi.exceptions.WmiComException;
+import com.sun.jna.Function;
+import com.sun.jna.Pointer;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -92,4 +94,21 @@ class WinComHelperTest {
 
 	}
 
+	@Test
+	void testGetFunction() throws Exception {
+
+		WmiComHelper.initializeComLibrary();
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final Pointer pWbemServices = wmiWbemServices.getWbemServices().getPointer();
+
+			// Same method: same native code
+			final Function getObject = WmiComHelper.getFunction(pWbemServices, 6);
+			assertEquals(getObject, WmiComHelper.getFunction(pWbemServices, 6));
+			assertNotEquals(getObject, WmiComHelper.getFunction(pWbemServices, 20));
+
+			// Invocations through the vtable work
+			assertTrue(wmiWbemServices.isValid());
+		}
+	}
+
 }
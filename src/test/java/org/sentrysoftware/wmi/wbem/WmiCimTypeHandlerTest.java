@@ -3,8 +3,10 @@ package org.sentrysoftware.wmi.wbem;
 import org.sentrysoftware.wmi.Utils;
 import com.sun.jna.platform.win32.COM.Wbemcli;
 import com.sun.jna.platform.win32.COM.Wbemcli.IWbemClassObject;
+import com.sun.jna.platform.win32.OleAuto;
 import com.sun.jna.platform.win32.Variant.VARIANT;
 import com.sun.jna.platform.win32.Variant.VARIANT.ByReference;
+import com.sun.jna.platform.win32.WTypes.BSTR;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledOnOs;
 import org.junit.jupiter.api.condition.OS;
@@ -72,6 +74,33 @@ class WmiCimTypeHandlerTest {
 				WmiCimTypeHandler.convert(r, Wbemcli.CIM_SINT32, new AbstractMap.SimpleEntry<String, Set<String>>("property", Collections.emptySet())));
 	}
 
+	@Test
+	void testParseBstrLong() {
+
+		assertThrows(NumberFormatException.class, () -> WmiCimTypeHandler.parseBstrLong(null));
+
+		final String[] invalidValues = { "", "-", "12a", " 1", "123456789012345678901" };
+		for (final String invalid : invalidValues) {
+			final BSTR bstr = OleAuto.INSTANCE.SysAllocString(invalid);
+			try {
+				assertThrows(NumberFormatException.class, () -> WmiCimTypeHandler.parseBstrLong(bstr.getPointer()));
+			} finally {
+				OleAuto.INSTANCE.SysFreeString(bstr);
+			}
+		}
+
+		final String[] values = { "0", "42", "-42", "9223372036854775807", "-9223372036854775808", "18446744073709551615" };
+		for (final String value : values) {
+			final BSTR bstr = OleAuto.INSTANCE.SysAllocString(value);
+			try {
+				final long expected = value.startsWith("-") ? Long.parseLong(value) : Long.parseUnsignedLong(value);
+				assertEquals(expected, WmiCimTypeHandler.parseBstrLong(bstr.getPointer()));
+			} finally {
+				OleAuto.INSTANCE.SysFreeString(bstr);
+			}
+		}
+	}
+
 	@Test
 	void testConvertCimObject() {
 
@@ -0,0 +1,67 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.sentrysoftware.wmi.WqlQuery;
+
+@EnabledOnOs(OS.WINDOWS)
+class WmiComExecutorTest {
+
+	@Test
+	void testSubmit() throws Exception {
+		try (WmiComExecutor comExecutor = WmiComExecutor.newInstance(2, "test-com")) {
+			assertEquals(2, comExecutor.getPoolSize());
+			assertEquals("test-com", comExecutor.getThreadNamePrefix());
+			assertFalse(comExecutor.isComWorkerThread());
+
+			final String threadName = comExecutor.submit(() -> {
+				assertTrue(WmiComHelper.isComInitialized());
+				assertTrue(comExecutor.isComWorkerThread());
+
+				// Nested calls run on the same thread
+				return comExecutor.submit(() -> Thread.currentThread().getName()).get();
+			}).get(30, TimeUnit.SECONDS);
+			assertTrue(threadName.startsWith("test-com-"));
+			assertEquals(2, comExecutor.getTotalCallCount());
+			assertEquals(2L, comExecutor.getCallCounts().get(threadName));
+
+			final ExecutionException e = assertThrows(
+					ExecutionException.class,
+					() -> comExecutor.submit(() -> {
+						throw new IllegalArgumentException("test");
+					}).get(30, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+
+			comExecutor.close();
+			assertTrue(comExecutor.isClosed());
+			assertThrows(IllegalStateException.class, () -> comExecutor.submit(() -> null));
+		}
+		assertThrows(IllegalArgumentException.class, () -> WmiComExecutor.newInstance(0, "test"));
+	}
+
+	@Test
+	void testExecuteWql() throws Exception {
+		final WmiComExecutor comExecutor = WmiComExecutor.getDefault();
+		assertSame(comExecutor, WmiComExecutor.getDefault());
+
+		final WmiWbemServices wmiWbemServices = comExecutor.connect("root/cimv2", null, null).get(30, TimeUnit.SECONDS);
+		try {
+			final List<Map<String, Object>> result = comExecutor.executeWql(
+					wmiWbemServices,
+					WqlQuery.newInstance("SELECT Name FROM Win32_OperatingSystem"),
+					30000).get(30, TimeUnit.SECONDS);
+			assertEquals(1, result.size());
+		} finally {
+			comExecutor.closeConnection(wmiWbemServices).get(30, TimeUnit.SECONDS);
+		}
+		assertTrue(wmiWbemServices.isClosed());
+	}
+}
@@ -0,0 +1,66 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import com.sun.jna.platform.win32.OleAuto;
+
+@EnabledOnOs(OS.WINDOWS)
+class WmiCredentialHandleTest {
+
+	@Test
+	void testShared() {
+		final int initialCount = WmiCredentialHandle.getHandleCount();
+
+		final WmiCredentialHandle first = WmiCredentialHandle.acquire("DOMAIN\\user", "pwd".toCharArray());
+		final WmiCredentialHandle second = WmiCredentialHandle.acquire("DOMAIN\\user", "pwd".toCharArray());
+		assertSame(first, second);
+		assertEquals(2, first.getReferenceCount());
+		assertEquals(initialCount + 1, WmiCredentialHandle.getHandleCount());
+
+		// Other password: other handle
+		final WmiCredentialHandle other = WmiCredentialHandle.acquire("DOMAIN\\user", "other".toCharArray());
+		assertNotSame(first, other);
+		assertEquals(1, other.getReferenceCount());
+
+		// Encoded once
+		final CoAuthIdentity authIdentity = first.getAuthIdentity();
+		assertEquals("user", authIdentity.user.getWideString(0));
+		assertEquals("DOMAIN", authIdentity.domain.getWideString(0));
+		assertEquals(3, authIdentity.passwordLength);
+		assertEquals("pwd", authIdentity.password.getWideString(0));
+		assertEquals(3, OleAuto.INSTANCE.SysStringLen(first.getPasswordBstr()));
+		assertEquals("DOMAIN\\user", first.getUserBstr().getValue());
+
+		first.close();
+		assertEquals(1, first.getReferenceCount());
+		assertNotNull(first.getAuthIdentity().password);
+
+		// Last reference: wiped
+		second.close();
+		assertEquals(0, first.getReferenceCount());
+		assertNull(authIdentity.password);
+		assertEquals(0, authIdentity.passwordLength);
+		assertNull(first.getPasswordBstr());
+		assertThrows(IllegalStateException.class, first::retain);
+		first.close();
+
+		other.close();
+		assertEquals(initialCount, WmiCredentialHandle.getHandleCount());
+	}
+
+	@Test
+	void testNoPassword() {
+		try (WmiCredentialHandle handle = WmiCredentialHandle.acquire("user@domain", null)) {
+			assertNull(handle.getPasswordBstr());
+			assertNull(handle.getAuthIdentity().password);
+			try (WmiCredentialHandle same = WmiCredentialHandle.acquire("user@domain", null)) {
+				assertSame(handle, same);
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> WmiCredentialHandle.acquire("", null));
+	}
+}
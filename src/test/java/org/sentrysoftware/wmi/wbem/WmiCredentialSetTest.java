@@ -0,0 +1,178 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.mockito.Mockito;
+import org.sentrysoftware.wmi.exceptions.CircuitOpenException;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+class WmiCredentialSetTest {
+
+	private static final String NETWORK_RESOURCE = "\\\\host\\root\\cimv2";
+	private static final char[] PASSWORD = "pwd".toCharArray();
+	private static final List<WmiCredentialSet.Credential> CREDENTIALS = Arrays.asList(
+			new WmiCredentialSet.Credential("domain\\admin", PASSWORD),
+			new WmiCredentialSet.Credential("local", PASSWORD),
+			new WmiCredentialSet.Credential("other", PASSWORD));
+
+	/**
+	 * Session factory that accepts only the specified username, and records the attempts
+	 */
+	private static WmiWbemServicesPool.SessionFactory acceptOnly(final String acceptedUsername, final List<String> attempts) {
+		return (networkResource, username, password) -> {
+			synchronized (attempts) {
+				attempts.add(username);
+			}
+			if (username != null && !username.equals(acceptedUsername)) {
+				throw new WmiComException(0x80041003, "WBEM_E_ACCESS_DENIED");
+			}
+			final WmiWbemServices services = Mockito.mock(WmiWbemServices.class);
+			doReturn(username).when(services).getUsername();
+			return services;
+		};
+	}
+
+	@Test
+	void testArguments() {
+		assertThrows(IllegalArgumentException.class, () -> new WmiCredentialSet(Collections.emptyList()));
+		assertThrows(IllegalArgumentException.class, () -> new WmiCredentialSet(CREDENTIALS, -1, false, null));
+		assertThrows(IllegalArgumentException.class, () -> new WmiCredentialSet.Credential(" ", PASSWORD));
+	}
+
+	@Test
+	void testFailover() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, false, null, acceptOnly("local", attempts));
+
+		assertEquals("local", credentialSet.connect(NETWORK_RESOURCE).getUsername());
+		assertEquals(Arrays.asList("domain\\admin", "local"), attempts);
+		assertSame(CREDENTIALS.get(1), credentialSet.getRememberedCredential("HOST"));
+
+		// The accepted credential is tried first
+		attempts.clear();
+		assertEquals("local", credentialSet.connect(NETWORK_RESOURCE).getUsername());
+		assertEquals(Collections.singletonList("local"), attempts);
+
+		credentialSet.forget("host");
+		assertNull(credentialSet.getRememberedCredential("host"));
+	}
+
+	@Test
+	void testRememberedCredentialChanged() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final AtomicReference<String> accepted = new AtomicReference<>("local");
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, false, null,
+				(networkResource, username, password) -> acceptOnly(accepted.get(), attempts).create(networkResource, username, password));
+		credentialSet.connect(NETWORK_RESOURCE);
+
+		// The host now accepts another credential
+		accepted.set("other");
+		attempts.clear();
+		assertEquals("other", credentialSet.connect(NETWORK_RESOURCE).getUsername());
+		assertEquals(Arrays.asList("local", "domain\\admin", "other"), attempts);
+		assertSame(CREDENTIALS.get(2), credentialSet.getRememberedCredential("host"));
+	}
+
+	@Test
+	void testAllDenied() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(1, 60000, 60000);
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, false, circuitBreaker, acceptOnly("nobody", attempts));
+
+		final WmiComException e = assertThrows(WmiComException.class, () -> credentialSet.connect(NETWORK_RESOURCE));
+		assertEquals(HResultCategory.ACCESS_DENIED, HResultCategory.of(e));
+		assertEquals(3, attempts.size());
+		assertNull(credentialSet.getRememberedCredential("host"));
+
+		// Counted once by the circuit breaker
+		assertThrows(CircuitOpenException.class, () -> credentialSet.connect(NETWORK_RESOURCE));
+		assertEquals(3, attempts.size());
+	}
+
+	@Test
+	void testOtherFailure() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, false, null,
+				(networkResource, username, password) -> {
+					attempts.add(username);
+					throw new WmiComException(0x800706BA, "RPC_S_SERVER_UNAVAILABLE");
+				});
+
+		final WmiComException e = assertThrows(WmiComException.class, () -> credentialSet.connect(NETWORK_RESOURCE));
+		assertEquals(HResultCategory.TRANSPORT, HResultCategory.of(e));
+
+		// The other credentials would fail the same way
+		assertEquals(1, attempts.size());
+	}
+
+	@Test
+	void testLocalCredentials() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, false, null,
+				(networkResource, username, password) -> {
+					attempts.add(username);
+					if (username != null) {
+						throw new WmiComException(WmiCredentialSet.WBEM_E_LOCAL_CREDENTIALS, "WBEM_E_LOCAL_CREDENTIALS");
+					}
+					return Mockito.mock(WmiWbemServices.class);
+				});
+
+		assertNotNull(credentialSet.connect(NETWORK_RESOURCE));
+		assertEquals(Arrays.asList("domain\\admin", null), attempts);
+
+		// Remembered
+		attempts.clear();
+		assertNotNull(credentialSet.connect(NETWORK_RESOURCE));
+		assertEquals(Collections.singletonList(null), attempts);
+		assertNull(credentialSet.getRememberedCredential("host"));
+	}
+
+	@Test
+	void testRememberedCredentialLocal() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final AtomicReference<Boolean> isLocal = new AtomicReference<>(false);
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, false, null,
+				(networkResource, username, password) -> {
+					if (isLocal.get()) {
+						attempts.add(username);
+						if (username != null) {
+							throw new WmiComException(WmiCredentialSet.WBEM_E_LOCAL_CREDENTIALS, "WBEM_E_LOCAL_CREDENTIALS");
+						}
+						return Mockito.mock(WmiWbemServices.class);
+					}
+					return acceptOnly("local", attempts).create(networkResource, username, password);
+				});
+		credentialSet.connect(NETWORK_RESOURCE);
+		assertSame(CREDENTIALS.get(1), credentialSet.getRememberedCredential("host"));
+
+		// The remembered credential gets WBEM_E_LOCAL_CREDENTIALS: connect without credentials
+		isLocal.set(true);
+		attempts.clear();
+		assertNotNull(credentialSet.connect(NETWORK_RESOURCE));
+		assertEquals(Arrays.asList("local", null), attempts);
+		assertNull(credentialSet.getRememberedCredential("host"));
+	}
+
+	@Test
+	@EnabledOnOs(OS.WINDOWS)
+	void testParallel() throws Exception {
+		final List<String> attempts = new ArrayList<>();
+		final WmiCredentialSet credentialSet = new WmiCredentialSet(CREDENTIALS, 60000, true, null, acceptOnly("other", attempts));
+
+		assertEquals("other", credentialSet.connect(NETWORK_RESOURCE).getUsername());
+		assertSame(CREDENTIALS.get(2), credentialSet.getRememberedCredential("host"));
+		synchronized (attempts) {
+			assertTrue(attempts.contains("other"));
+		}
+	}
+}
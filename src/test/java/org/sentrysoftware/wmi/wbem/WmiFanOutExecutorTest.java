@@ -0,0 +1,163 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+class WmiFanOutExecutorTest {
+
+	private static final long TIMEOUT = 30000;
+	private static final List<Map<String, Object>> RESULT = Collections.singletonList(Collections.singletonMap("Name", "value"));
+
+	private static WmiWbemServices mockServices(final CountDownLatch latch) throws Exception {
+		final WmiWbemServices services = mock(WmiWbemServices.class);
+		doAnswer(invocation -> {
+			if (latch != null) {
+				latch.await();
+			}
+			return RESULT;
+		}).when(services).executeWql(ArgumentMatchers.any(WqlQuery.class), ArgumentMatchers.any(Deadline.class));
+		return services;
+	}
+
+	@Test
+	void testSlowHostDoesNotHoldBack() throws Exception {
+		final CountDownLatch slowLatch = new CountDownLatch(1);
+		final WmiWbemServicesPool.SessionFactory factory = (networkResource, username, password) -> {
+			if (networkResource.startsWith("\\\\slow\\")) {
+				return mockServices(slowLatch);
+			}
+			if (networkResource.startsWith("\\\\dead\\")) {
+				throw new WmiComException("RPC server unavailable");
+			}
+			return mockServices(null);
+		};
+
+		try (WmiFanOutExecutor executor = new WmiFanOutExecutor(4, 1, factory)) {
+			final WmiFanOutExecutor.FanOut fanOut = executor.submit(
+					Arrays.asList("slow", "fast1", "dead", "fast2"),
+					"root\\cimv2",
+					"user",
+					"pwd".toCharArray(),
+					WqlQuery.newInstance("SELECT Name FROM Win32_Service"),
+					TIMEOUT);
+			assertEquals(4, fanOut.getRemainingCount());
+
+			// The three other hosts complete before the slow one
+			for (int i = 0; i < 3; i++) {
+				final WmiFanOutExecutor.HostResult hostResult = fanOut.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+				assertNotNull(hostResult);
+				assertNotEquals("slow", hostResult.getHostname());
+				if ("dead".equals(hostResult.getHostname())) {
+					assertFalse(hostResult.isSuccess());
+					assertTrue(hostResult.getException() instanceof WmiComException);
+				} else {
+					assertTrue(hostResult.isSuccess());
+					assertEquals(RESULT, hostResult.getRows());
+				}
+			}
+			assertNull(fanOut.poll(50, TimeUnit.MILLISECONDS));
+
+			slowLatch.countDown();
+			final WmiFanOutExecutor.HostResult slowResult = fanOut.take();
+			assertEquals("slow", slowResult.getHostname());
+			assertTrue(slowResult.isSuccess());
+
+			assertEquals(0, fanOut.getRemainingCount());
+			assertNull(fanOut.take());
+		}
+	}
+
+	@Test
+	void testPerHostLimit() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final WmiWbemServicesPool.SessionFactory factory = (networkResource, username, password) -> mockServices(latch);
+
+		try (WmiFanOutExecutor executor = new WmiFanOutExecutor(4, 1, factory)) {
+			final WqlQuery wqlQuery = WqlQuery.newInstance("SELECT Name FROM Win32_Service");
+			final WmiFanOutExecutor.FanOut first = executor.submit(
+					Collections.singletonList("host"), "root\\cimv2", null, null, wqlQuery, TIMEOUT);
+			Thread.sleep(50);
+
+			// The same host is already being queried: this one times out waiting for its turn
+			final WmiFanOutExecutor.FanOut second = executor.submit(
+					Collections.singletonList("HOST"), "root\\cimv2", null, null, wqlQuery, 100);
+			final WmiFanOutExecutor.HostResult secondResult = second.take();
+			assertTrue(secondResult.getException() instanceof TimeoutException);
+
+			latch.countDown();
+			assertTrue(first.take().isSuccess());
+		}
+	}
+
+	@Test
+	void testWaitingQueriesDoNotHoldThreads() throws Exception {
+		final CountDownLatch slowLatch = new CountDownLatch(1);
+		final WmiWbemServicesPool.SessionFactory factory = (networkResource, username, password) ->
+				mockServices(networkResource.startsWith("\\\\slow\\") ? slowLatch : null);
+
+		try (WmiFanOutExecutor executor = new WmiFanOutExecutor(2, 1, factory)) {
+
+			// The 2nd and 3rd queries on the slow host wait for their turn without taking the second thread
+			final WmiFanOutExecutor.FanOut fanOut = executor.submit(
+					Arrays.asList("slow", "slow", "SLOW", "fast1", "fast2"),
+					"root\\cimv2",
+					null,
+					null,
+					WqlQuery.newInstance("SELECT Name FROM Win32_Service"),
+					TIMEOUT);
+			for (int i = 0; i < 2; i++) {
+				final WmiFanOutExecutor.HostResult hostResult = fanOut.poll(5000, TimeUnit.MILLISECONDS);
+				assertNotNull(hostResult);
+				assertTrue(hostResult.getHostname().startsWith("fast"));
+			}
+
+			slowLatch.countDown();
+			assertEquals(3, fanOut.awaitAll().stream().filter(WmiFanOutExecutor.HostResult::isSuccess).count());
+
+			// The hosts are no longer listed once their queries are done
+			final long start = System.currentTimeMillis();
+			while (executor.getActiveHostCount() > 0 && System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, executor.getActiveHostCount());
+		}
+	}
+
+	@Test
+	void testCancel() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final WmiWbemServicesPool.SessionFactory factory = (networkResource, username, password) -> mockServices(latch);
+
+		try (WmiFanOutExecutor executor = new WmiFanOutExecutor(1, 1, factory)) {
+			final WmiFanOutExecutor.FanOut fanOut = executor.submit(
+					Arrays.asList("host1", "host2", "host3"),
+					"root\\cimv2",
+					null,
+					null,
+					WqlQuery.newInstance("SELECT Name FROM Win32_Service"),
+					TIMEOUT);
+			Thread.sleep(50);
+			fanOut.cancel();
+			latch.countDown();
+
+			final List<WmiFanOutExecutor.HostResult> results = fanOut.awaitAll();
+			assertEquals(3, results.size());
+			assertEquals(2, results.stream().filter(result -> !result.isSuccess()).count());
+		}
+		assertThrows(IllegalArgumentException.class, () -> new WmiFanOutExecutor(0));
+	}
+}
@@ -0,0 +1,112 @@
+package org.sentrysoftware.wmi.wbem;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.mockito.Mockito;
+
+class WmiHostSessionTest {
+
+	@Test
+	void testToRelativeNamespace() {
+		assertEquals("", WmiHostSession.toRelativeNamespace("ROOT"));
+		assertEquals("", WmiHostSession.toRelativeNamespace("root\\"));
+		assertEquals("CIMV2", WmiHostSession.toRelativeNamespace("ROOT\\CIMV2"));
+		assertEquals("cimv2", WmiHostSession.toRelativeNamespace("root/cimv2"));
+		assertEquals("Microsoft\\Windows\\Storage", WmiHostSession.toRelativeNamespace("\\Root\\Microsoft/Windows\\Storage\\"));
+		assertThrows(IllegalArgumentException.class, () -> WmiHostSession.toRelativeNamespace("CIMV2"));
+		assertThrows(IllegalArgumentException.class, () -> WmiHostSession.toRelativeNamespace("ROOTS\\CIMV2"));
+	}
+
+	@Test
+	void testGetNamespace() throws Exception {
+		final WmiWbemServices root = Mockito.mock(WmiWbemServices.class);
+		final WmiWbemServices cimv2 = Mockito.mock(WmiWbemServices.class);
+		final WmiWbemServices wmi = Mockito.mock(WmiWbemServices.class);
+		doReturn(cimv2).when(root).openNamespace("CIMV2");
+		doReturn(wmi).when(root).openNamespace("wmi");
+		doReturn("ROOT\\CIMV2").when(cimv2).getNamespace();
+		doReturn("ROOT\\wmi").when(wmi).getNamespace();
+
+		try (WmiHostSession session = new WmiHostSession(root)) {
+			assertSame(root, session.getNamespace("ROOT"));
+			assertSame(cimv2, session.getNamespace("ROOT\\CIMV2"));
+			assertSame(cimv2, session.getNamespace("root/cimv2"));
+			assertSame(wmi, session.getNamespace("root/wmi"));
+			verify(root, times(1)).openNamespace("CIMV2");
+			assertEquals(Arrays.asList("ROOT\\CIMV2", "ROOT\\wmi"), session.getOpenNamespaces());
+
+			// Closed by mistake: opened again
+			doReturn(true).when(cimv2).isClosed();
+			assertEquals(Collections.singletonList("ROOT\\wmi"), session.getOpenNamespaces());
+			session.getNamespace("ROOT\\CIMV2");
+			verify(root, times(2)).openNamespace("CIMV2");
+		}
+
+		verify(wmi).close();
+		verify(root).close();
+	}
+
+	@Test
+	void testSlowOpenDoesNotBlockCachedNamespaces() throws Exception {
+		final WmiWbemServices root = Mockito.mock(WmiWbemServices.class);
+		final WmiWbemServices cimv2 = Mockito.mock(WmiWbemServices.class);
+		final WmiWbemServices wmi = Mockito.mock(WmiWbemServices.class);
+		final CountDownLatch opening = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		doReturn(cimv2).when(root).openNamespace("CIMV2");
+		doAnswer(invocation -> {
+			opening.countDown();
+			release.await();
+			return wmi;
+		}).when(root).openNamespace("WMI");
+
+		try (WmiHostSession session = new WmiHostSession(root)) {
+			assertSame(cimv2, session.getNamespace("ROOT\\CIMV2"));
+
+			final Thread slowOpen = new Thread(() -> assertDoesNotThrow(() -> session.getNamespace("ROOT\\WMI")));
+			slowOpen.start();
+			assertTrue(opening.await(5, TimeUnit.SECONDS));
+
+			// OpenNamespace is in progress: the cached namespace is still handed out
+			assertSame(cimv2, session.getNamespace("ROOT\\CIMV2"));
+
+			release.countDown();
+			slowOpen.join();
+			assertSame(wmi, session.getNamespace("ROOT\\WMI"));
+			verify(root, times(1)).openNamespace("WMI");
+		}
+	}
+
+	@Test
+	void testClose() throws Exception {
+		final WmiWbemServices root = Mockito.mock(WmiWbemServices.class);
+		final WmiHostSession session = new WmiHostSession(root);
+		session.close();
+		session.close();
+		assertTrue(session.isClosed());
+		verify(root, times(1)).close();
+		assertThrows(IllegalStateException.class, () -> session.getNamespace("ROOT\\CIMV2"));
+	}
+
+	@Test
+	@EnabledOnOs(OS.WINDOWS)
+	void testLocalNamespaces() throws Exception {
+		try (WmiHostSession session = WmiHostSession.open(null, null, null)) {
+			final WmiWbemServices cimv2 = session.getNamespace("ROOT\\CIMV2");
+			assertEquals("ROOT\\CIMV2", cimv2.getNamespace());
+			assertEquals(1, cimv2.executeWql("SELECT Name FROM Win32_OperatingSystem", 30000).size());
+			assertEquals("ROOT\\wmi", session.getNamespace("root/wmi").getNamespace());
+			assertFalse(session.getNamespace("ROOT").executeWql("SELECT Name FROM __NAMESPACE", 30000).isEmpty());
+			assertSame(cimv2, session.getNamespace("root/cimv2"));
+		}
+	}
+}
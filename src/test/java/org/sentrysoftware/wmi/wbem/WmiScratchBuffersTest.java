@@ -0,0 +1,82 @@
+package org.sentrysoftware.wmi.wbem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EnabledOnOs(OS.WINDOWS)
+class WmiScratchBuffersTest {
+
+	@Test
+	void testAcquire() {
+
+		final WmiScratchBuffers first;
+		try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+			first = buffers;
+
+			// Nested read: the buffers of the thread are in use
+			try (WmiScratchBuffers nested = WmiScratchBuffers.acquire()) {
+				assertNotSame(first, nested);
+				assertNotSame(first.getValue(), nested.getValue());
+			}
+		}
+
+		// Released: the same buffers are reused
+		try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+			assertSame(first, buffers);
+		}
+
+		// Other threads have their own buffers
+		final WmiScratchBuffers[] other = new WmiScratchBuffers[1];
+		final Thread thread = new Thread(() -> {
+			try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+				other[0] = buffers;
+			}
+		});
+		thread.start();
+		assertDoesNotThrow(() -> thread.join());
+		assertNotNull(other[0]);
+		assertNotSame(first, other[0]);
+	}
+
+	@Test
+	void testGetFlags() {
+		try (WmiScratchBuffers buffers = WmiScratchBuffers.acquire()) {
+			final boolean[] flags = buffers.getFlags(10);
+			assertTrue(flags.length >= 10);
+			flags[0] = true;
+			flags[9] = true;
+
+			final boolean[] cleared = buffers.getFlags(10);
+			assertSame(flags, cleared);
+			for (int i = 0; i < 10; i++) {
+				assertFalse(cleared[i]);
+			}
+
+			assertTrue(buffers.getFlags(1000).length >= 1000);
+			assertTrue(buffers.getNameChars(1000).length >= 1000);
+		}
+	}
+
+	@Test
+	void testNoAllocationPerRead() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+
+			// Warm up: buffers of this thread
+			wmiWbemServices.executeWql("SELECT Name, ProcessId, ThreadCount FROM Win32_Process", 30000);
+			final long allocated = WmiScratchBuffers.getAllocatedCount();
+
+			for (int i = 0; i < 5; i++) {
+				final List<Map<String, Object>> result = wmiWbemServices.executeWql("SELECT Name, ProcessId, ThreadCount FROM Win32_Process", 30000);
+				assertFalse(result.isEmpty());
+			}
+
+			assertEquals(allocated, WmiScratchBuffers.getAllocatedCount());
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package org.sentrysoftware.wmi.wbem;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.sentrysoftware.wmi.Deadline;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class WmiWbemServicesPoolTest {
+
+	private static final String NETWORK_RESOURCE = "\\\\host\\root\\cimv2";
+	private static final String USERNAME = "user";
+	private static final char[] PASSWORD = "pwd".toCharArray();
+
+	private static WmiWbemServices mockServices(final char[] password) {
+		final WmiWbemServices services = Mockito.mock(WmiWbemServices.class);
+		doReturn(password).when(services).getPassword();
+		doReturn(true).when(services).isValid();
+		return services;
+	}
+
+	private static WmiWbemServicesPool createPool(
+			final int maxPerHost,
+			final AtomicInteger created) {
+		return new WmiWbemServicesPool(
+				maxPerHost,
+				60000,
+				true,
+				(networkResource, username, password) -> {
+					created.incrementAndGet();
+					return mockServices(password);
+				},
+				null);
+	}
+
+	@Test
+	void testReuse() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(2, created)) {
+
+			final WmiWbemServices first;
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				first = lease.getWmiWbemServices();
+				assertEquals(1, pool.getLeasedCount());
+			}
+			assertEquals(0, pool.getLeasedCount());
+			assertEquals(1, pool.getIdleCount());
+
+			// Same host, namespace and user (case insensitive)
+			try (WmiWbemServicesPool.Lease lease = pool.borrow("\\\\HOST\\root/cimv2", "USER", PASSWORD, 1000)) {
+				assertSame(first, lease.getWmiWbemServices());
+			}
+			assertEquals(1, created.get());
+
+			// Different password: new connection
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, "other".toCharArray(), 1000)) {
+				assertNotSame(first, lease.getWmiWbemServices());
+			}
+			assertEquals(2, created.get());
+			verify(first, never()).close();
+		}
+	}
+
+	@Test
+	void testLeaseClose() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(2, created)) {
+			final WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000);
+			lease.close();
+			lease.close();
+			assertEquals(1, pool.getIdleCount());
+			assertThrows(IllegalStateException.class, lease::getWmiWbemServices);
+		}
+	}
+
+	@Test
+	void testMaxPerHost() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(1, created)) {
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				assertThrows(TimeoutException.class, () -> pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 50));
+
+				// Other hosts are not affected
+				try (WmiWbemServicesPool.Lease other = pool.borrow("\\\\other\\root\\cimv2", USERNAME, PASSWORD, 50)) {
+					assertNotNull(other.getWmiWbemServices());
+				}
+			}
+		}
+	}
+
+	@Test
+	void testWaitForReturn() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(1, created)) {
+			final WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000);
+			final WmiWbemServices first = lease.getWmiWbemServices();
+
+			final Thread returner = new Thread(() -> {
+				try {
+					Thread.sleep(100);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				lease.close();
+			});
+			returner.start();
+
+			try (WmiWbemServicesPool.Lease second = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 5000)) {
+				assertSame(first, second.getWmiWbemServices());
+			}
+			returner.join();
+			assertEquals(1, created.get());
+		}
+	}
+
+	@Test
+	void testCloseWakesUpWaiters() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final WmiWbemServicesPool pool = createPool(1, created);
+		pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000);
+
+		final Thread closer = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			pool.close();
+		});
+		closer.start();
+
+		// Fails as soon as the pool is closed, not after the timeout
+		final long start = System.currentTimeMillis();
+		assertThrows(IllegalStateException.class, () -> pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 30000));
+		assertTrue(System.currentTimeMillis() - start < 10000);
+		closer.join();
+	}
+
+	@Test
+	void testStealIdle() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(1, created)) {
+			final WmiWbemServices first;
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				first = lease.getWmiWbemServices();
+			}
+
+			// Same host, other namespace: the idle connection is closed to make room
+			try (WmiWbemServicesPool.Lease lease = pool.borrow("\\\\host\\root\\wmi", USERNAME, PASSWORD, 1000)) {
+				assertNotSame(first, lease.getWmiWbemServices());
+			}
+			verify(first).close();
+			assertEquals(2, created.get());
+			assertEquals(1, pool.getIdleCount());
+		}
+	}
+
+	@Test
+	void testValidateOnBorrow() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(1, created)) {
+			final WmiWbemServices first;
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				first = lease.getWmiWbemServices();
+			}
+			doReturn(false).when(first).isValid();
+
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				assertNotSame(first, lease.getWmiWbemServices());
+			}
+			verify(first).close();
+			assertEquals(2, created.get());
+		}
+	}
+
+	@Test
+	void testClosedSessionNotReturned() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(1, created)) {
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				doReturn(true).when(lease.getWmiWbemServices()).isClosed();
+			}
+			assertEquals(0, pool.getIdleCount());
+			assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test
+	void testEvictIdle() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final WmiWbemServicesPool pool = new WmiWbemServicesPool(
+				2,
+				1,
+				false,
+				(networkResource, username, password) -> {
+					created.incrementAndGet();
+					return mockServices(password);
+				},
+				null);
+
+		final WmiWbemServices first;
+		try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+			first = lease.getWmiWbemServices();
+		}
+		Thread.sleep(20);
+		assertEquals(1, pool.evictIdle());
+		assertEquals(0, pool.getIdleCount());
+		verify(first).close();
+
+		pool.close();
+		assertTrue(pool.isClosed());
+		assertThrows(IllegalStateException.class, () -> pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000));
+	}
+
+	@Test
+	void testFactoryFailure() throws Exception {
+		try (WmiWbemServicesPool pool = new WmiWbemServicesPool(
+				1,
+				60000,
+				true,
+				(networkResource, username, password) -> {
+					throw new WmiComException("Failed");
+				},
+				null)) {
+
+			assertThrows(WmiComException.class, () -> pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000));
+
+			// The slot reserved for the failed connection has been released
+			assertThrows(WmiComException.class, () -> pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 50));
+			assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test
+	void testReconnect() throws Exception {
+		final List<Map<String, Object>> expected = Collections.singletonList(Collections.singletonMap("Name", "value"));
+		final List<WmiWbemServices> created = new ArrayList<>();
+		try (WmiWbemServicesPool pool = new WmiWbemServicesPool(
+				4,
+				60000,
+				false,
+				(networkResource, username, password) -> {
+					final WmiWbemServices services = mockServices(password);
+					if (created.isEmpty()) {
+						// The first connection is broken
+						doThrow(new WmiComException(0x800706BA, "RPC_S_SERVER_UNAVAILABLE"))
+							.when(services).executeWql(ArgumentMatchers.any(WqlQuery.class), ArgumentMatchers.any(Deadline.class));
+					} else {
+						doReturn(expected)
+							.when(services).executeWql(ArgumentMatchers.any(WqlQuery.class), ArgumentMatchers.any(Deadline.class));
+					}
+					created.add(services);
+					return services;
+				},
+				null)) {
+
+			final WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000);
+
+			// Idle connection to the same host (another user)
+			pool.borrow(NETWORK_RESOURCE, "other", PASSWORD, 1000).close();
+			assertEquals(1, pool.getIdleCount());
+
+			assertEquals(expected, lease.executeWql("SELECT Name FROM Win32_Service", 1000));
+			assertEquals(1, pool.getReconnectCount());
+			verify(created.get(0)).close();
+
+			// The idle connection to the same host has been closed too
+			verify(created.get(1)).close();
+			assertEquals(0, pool.getIdleCount());
+
+			// The new connection goes back to the pool
+			assertSame(created.get(2), lease.getWmiWbemServices());
+			lease.close();
+			assertEquals(1, pool.getIdleCount());
+			assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test
+	void testNoReconnect() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(2, created)) {
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+
+				// Access denied: not a broken connection
+				doThrow(new WmiComException(0x80041003, "WBEM_E_ACCESS_DENIED"))
+					.when(lease.getWmiWbemServices()).executeWql(ArgumentMatchers.any(WqlQuery.class), ArgumentMatchers.any(Deadline.class));
+				assertThrows(WmiComException.class, () -> lease.executeWql("SELECT Name FROM Win32_Service", 1000));
+				assertEquals(0, pool.getReconnectCount());
+
+				// Commands are never executed twice, but the broken connection is dropped
+				doThrow(new WmiComException(0x800706BE, "RPC_S_CALL_FAILED"))
+					.when(lease.getWmiWbemServices()).executeCommand(anyString(), any(), any(), anyLong());
+				assertThrows(WmiComException.class, () -> lease.executeCommand("cmd", null, StandardCharsets.UTF_8, 1000));
+				assertEquals(0, pool.getReconnectCount());
+			}
+			assertEquals(1, created.get());
+			assertEquals(0, pool.getIdleCount());
+			assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test
+	void testProbeIdle() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		try (WmiWbemServicesPool pool = createPool(2, created)) {
+			final WmiWbemServices broken;
+			try (WmiWbemServicesPool.Lease lease1 = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000);
+					WmiWbemServicesPool.Lease lease2 = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				broken = lease1.getWmiWbemServices();
+			}
+			doReturn(false).when(broken).isValid();
+			assertEquals(2, pool.getIdleCount());
+
+			assertEquals(1, pool.probeIdle());
+			verify(broken).close();
+			assertEquals(1, pool.getIdleCount());
+			assertEquals(0, pool.getLeasedCount());
+		}
+	}
+
+	@Test
+	@EnabledOnOs(OS.WINDOWS)
+	void testComExecutor() throws Exception {
+		final List<Map<String, Object>> expected = Collections.singletonList(Collections.singletonMap("Name", "value"));
+		final List<String> threadNames = Collections.synchronizedList(new ArrayList<>());
+		try (WmiComExecutor comExecutor = WmiComExecutor.newInstance(1, "test-pool");
+				WmiWbemServicesPool pool = new WmiWbemServicesPool(
+						2,
+						60000,
+						true,
+						0,
+						(networkResource, username, password) -> {
+							threadNames.add(Thread.currentThread().getName());
+							final WmiWbemServices services = mockServices(password);
+							doAnswer(invocation -> {
+								threadNames.add(Thread.currentThread().getName());
+								return expected;
+							}).when(services).executeWql(ArgumentMatchers.any(WqlQuery.class), ArgumentMatchers.any(Deadline.class));
+							return services;
+						},
+						null,
+						comExecutor)) {
+
+			assertSame(comExecutor, pool.getComExecutor());
+
+			// Connection and query on the thread of the executor
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				assertEquals(expected, lease.executeWql("SELECT Name FROM Win32_Service", 1000));
+			}
+			assertEquals(2, threadNames.size());
+			threadNames.forEach(threadName -> assertTrue(threadName.startsWith("test-pool-"), threadName));
+			assertEquals(2, comExecutor.getTotalCallCount());
+
+			// Validation on borrow too
+			try (WmiWbemServicesPool.Lease lease = pool.borrow(NETWORK_RESOURCE, USERNAME, PASSWORD, 1000)) {
+				assertEquals(3, comExecutor.getTotalCallCount());
+			}
+		}
+	}
+}
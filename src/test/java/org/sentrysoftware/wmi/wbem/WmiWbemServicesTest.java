@@ -1,8 +1,12 @@
 package org.sentrysoftware.wmi.wbem;
 
+import org.sentrysoftware.wmi.WmiResultSet;
+import org.sentrysoftware.wmi.WqlQuery;
+import org.sentrysoftware.wmi.exceptions.UncheckedWmiException;
 import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
 import org.sentrysoftware.wmi.exceptions.WmiComException;
 import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.COM.Wbemcli;
 import com.sun.jna.platform.win32.OleAuto;
 import com.sun.jna.platform.win32.Variant;
 import com.sun.jna.platform.win32.WinNT.HRESULT;
@@ -19,9 +23,15 @@ import org.mockito.Mockito;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -70,6 +80,25 @@ class WmiWbemServicesTest {
 		}
 	}
 
+	@Test
+	@Order(6)
+	void testBatchSize() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			wmiWbemServices.setBatchSize(1);
+			final int expected = wmiWbemServices.executeWql("SELECT Name FROM Win32_Service", 30000).size();
+			assertTrue(expected > 0);
+
+			wmiWbemServices.setBatchSize(7);
+			assertEquals(expected, wmiWbemServices.executeWql("SELECT Name FROM Win32_Service", 30000).size());
+
+			wmiWbemServices.setAdaptiveBatchSize(1, 64);
+			assertEquals(expected, wmiWbemServices.executeWql("SELECT Name FROM Win32_Service", 30000).size());
+
+			assertThrows(IllegalArgumentException.class, () -> wmiWbemServices.setBatchSize(0));
+			assertThrows(IllegalArgumentException.class, () -> wmiWbemServices.setAdaptiveBatchSize(8, 4));
+		}
+	}
+
 	@Test
 	@Order(7)
 	void testReconnect() throws Exception {
@@ -387,8 +416,219 @@ class WmiWbemServicesTest {
 		assertEquals("WBEM_E_ACCESS_DENIED: Current user does not have permission to perform the action. (0x80041003)", WmiWbemServices.getWmiComErrorMessage(new HRESULT(-2147217405)));
 	}
 
+	@Test
+	@Order(26)
+	void testOpenWql() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final WqlQuery wqlQuery = WqlQuery.newInstance("SELECT Name FROM Win32_Service");
+			final int expected = wmiWbemServices.executeWql(wqlQuery, 30000).size();
+
+			// Iterate over all rows
+			try (WmiResultEnumeration result = wmiWbemServices.openWql(wqlQuery, 30000)) {
+				assertEquals(expected, result.stream().peek(row -> assertTrue(row.containsKey("Name"))).count());
+				assertNull(result.nextRow());
+			}
+
+			// Stop early
+			final WmiResultEnumeration result = wmiWbemServices.openWql(wqlQuery, 30000);
+			try (Stream<Map<String, Object>> stream = result.stream()) {
+				assertEquals(2, stream.limit(2).count());
+			}
+			assertTrue(result.isClosed());
+			assertThrows(IllegalStateException.class, result::nextRow);
+
+			// Callback
+			final AtomicInteger count = new AtomicInteger();
+			assertEquals(expected, wmiWbemServices.executeWql(wqlQuery, 30000, row -> count.incrementAndGet()));
+			assertEquals(expected, count.get());
+		}
+	}
+
+	@Test
+	@Order(27)
+	void testOpenWqlInvalid() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null);
+				WmiResultEnumeration result = wmiWbemServices.openWql(WqlQuery.newInstance("SELECT Name FROM Win32_NonExistingClass"), 30000)) {
+			final UncheckedWmiException e = assertThrows(UncheckedWmiException.class, () -> result.iterator().hasNext());
+			assertTrue(e.getCause() instanceof WmiComException);
+		}
+	}
+
+	@Test
+	@Order(28)
+	void testExecuteWqlAsync() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final WqlQuery wqlQuery = WqlQuery.newInstance("SELECT Name FROM Win32_Service");
+			final int expected = wmiWbemServices.executeWql(wqlQuery, 30000).size();
+
+			final List<Map<String, Object>> result = wmiWbemServices.executeWqlAsync(wqlQuery, 30000).get(30, TimeUnit.SECONDS);
+			assertEquals(expected, result.size());
+			assertTrue(result.get(0).containsKey("Name"));
+
+			final AtomicInteger count = new AtomicInteger();
+			assertEquals(expected, wmiWbemServices.executeWqlAsync(wqlQuery, 30000, row -> count.incrementAndGet()).get(30, TimeUnit.SECONDS));
+			assertEquals(expected, count.get());
+
+			final ExecutionException e = assertThrows(
+					ExecutionException.class,
+					() -> wmiWbemServices.executeWqlAsync(WqlQuery.newInstance("SELECT Name FROM Win32_NonExistingClass"), 30000).get(30, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof WmiComException);
+		}
+	}
+
+	@Test
+	@Order(29)
+	void testMaxRows() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final WqlQuery wqlQuery = WqlQuery.newInstance("SELECT Name FROM Win32_Service");
+
+			assertEquals(1, wmiWbemServices.executeWql(wqlQuery, 30000, 1).size());
+			assertEquals(1, wmiWbemServices.executeWql("SELECT Name FROM Win32_Service", 30000, 1).size());
+
+			// Larger batches than the limit
+			wmiWbemServices.setBatchSize(16);
+			final List<Map<String, Object>> result = wmiWbemServices.executeWql(wqlQuery, 30000, 3);
+			assertEquals(3, result.size());
+			assertTrue(result.get(0).containsKey("Name"));
+
+			assertThrows(IllegalArgumentException.class, () -> wmiWbemServices.executeWql(wqlQuery, 30000, 0));
+		}
+	}
+
+	@Test
+	@Order(30)
+	void testSharedLocator() throws Exception {
+		final int initialCount = WmiSharedLocator.getReferenceCount();
+		final WmiWbemServices first = WmiWbemServices.getInstance("root/cimv2", null, null);
+		final WmiWbemServices second = WmiWbemServices.getInstance("root/wmi", null, null);
+		try {
+			assertSame(first.getWbemLocator(), second.getWbemLocator());
+			assertSame(first.getContext(), second.getContext());
+			assertEquals(initialCount + 2, WmiSharedLocator.getReferenceCount());
+		} finally {
+			first.close();
+			first.close();
+			assertEquals(initialCount + 1, WmiSharedLocator.getReferenceCount());
+			second.close();
+		}
+		assertEquals(initialCount, WmiSharedLocator.getReferenceCount());
+		if (initialCount == 0) {
+			assertNull(WmiSharedLocator.getLocator());
+		}
+	}
+
 	@Test
 	@Order(31)
+	void testConnectTimeout() throws Exception {
+		assertThrows(IllegalArgumentException.class, () -> WmiWbemServices.getInstance("root/cimv2", null, null, 0L));
+		assertThrows(IllegalArgumentException.class, () -> WmiWbemServices.getInstance("root/cimv2", "user", null, 30000L));
+
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null, 30000L)) {
+			assertEquals(1, wmiWbemServices.executeWql("SELECT Name FROM Win32_OperatingSystem", 30000).size());
+		}
+	}
+
+	@Test
+	@Order(32)
+	void testExecuteWqlResultSet() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final WqlQuery wqlQuery = WqlQuery.newInstance(
+					"SELECT Name, FreePhysicalMemory, NumberOfProcesses, Primary FROM Win32_OperatingSystem");
+
+			final WmiResultSet resultSet = wmiWbemServices.executeWqlResultSet(wqlQuery, 30000);
+			assertEquals(1, resultSet.size());
+			assertEquals(
+					Arrays.asList("Name", "FreePhysicalMemory", "NumberOfProcesses", "Primary"),
+					resultSet.getColumnNames());
+
+			// Same values as executeWql() in the Map views
+			final Map<String, Object> expected = wmiWbemServices.executeWql(wqlQuery, 30000).get(0);
+			final Map<String, Object> row = resultSet.get(0);
+			assertEquals(expected.get("Name"), row.get("Name"));
+			assertEquals(expected.get("Primary"), row.get("Primary"));
+			assertTrue(row.get("FreePhysicalMemory") instanceof String);
+			assertTrue(row.get("NumberOfProcesses") instanceof Integer);
+
+			// Typed columns
+			assertEquals(Wbemcli.CIM_UINT64, resultSet.getColumnType(1));
+			assertEquals(Wbemcli.CIM_UINT32, resultSet.getColumnType(2));
+			assertEquals(Wbemcli.CIM_BOOLEAN, resultSet.getColumnType(3));
+			assertEquals(Long.parseLong((String) row.get("FreePhysicalMemory")), resultSet.getLong(0, "FreePhysicalMemory"));
+			assertTrue(resultSet.getInt(0, "NumberOfProcesses") > 0);
+			assertTrue(resultSet.getBoolean(0, "Primary"));
+		}
+	}
+
+	@Test
+	@Order(33)
+	void testConversionPlan() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final WqlQuery wqlQuery = WqlQuery.newInstance("SELECT Name, OSType, Primary, __PATH FROM Win32_OperatingSystem");
+			assertEquals(0, wmiWbemServices.getConversionPlanCount());
+
+			final List<Map<String, Object>> result = wmiWbemServices.executeWql(wqlQuery, 30000);
+			assertEquals(1, wmiWbemServices.getConversionPlanCount());
+			final Map<String, Object> row = result.get(0);
+			assertTrue(row.get("Name") instanceof String);
+			assertTrue(row.get("OSType") instanceof Integer);
+			assertEquals(true, row.get("Primary"));
+			assertTrue(((String) row.get("__PATH")).startsWith("Win32_OperatingSystem"));
+
+			// Same plan for the next executions of the same query
+			assertEquals(result, wmiWbemServices.executeWql(wqlQuery, 30000));
+			assertEquals(row, wmiWbemServices.executeWqlResultSet(wqlQuery, 30000).get(0));
+			assertEquals(1, wmiWbemServices.getConversionPlanCount());
+
+			// Another instance of the query
+			assertEquals(result, wmiWbemServices.executeWql(
+					WqlQuery.newInstance("SELECT Name, OSType, Primary, __PATH FROM Win32_OperatingSystem"),
+					30000));
+			assertTrue(wmiWbemServices.getConversionPlanCount() >= 1);
+		}
+	}
+
+	@Test
+	@Order(34)
+	void testPropertyReadMode() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			assertEquals(WmiPropertyReadMode.GET, wmiWbemServices.getPropertyReadMode());
+			assertThrows(IllegalArgumentException.class, () -> wmiWbemServices.setPropertyReadMode(null));
+
+			final WqlQuery allProperties = WqlQuery.newInstance("SELECT * FROM Win32_BIOS");
+			final WqlQuery someProperties = WqlQuery.newInstance("SELECT Name, Version, __PATH FROM Win32_BIOS");
+
+			wmiWbemServices.setPropertyReadMode(WmiPropertyReadMode.GET);
+			final List<Map<String, Object>> expectedAll = wmiWbemServices.executeWql(allProperties, 30000);
+			final List<Map<String, Object>> expectedSome = wmiWbemServices.executeWql(someProperties, 30000);
+			assertFalse(expectedAll.isEmpty());
+			assertTrue(expectedAll.get(0).containsKey("__PATH"));
+
+			// Same values with BeginEnumeration/Next
+			for (final WmiPropertyReadMode mode : new WmiPropertyReadMode[] { WmiPropertyReadMode.ENUMERATION, WmiPropertyReadMode.AUTO }) {
+				wmiWbemServices.setPropertyReadMode(mode);
+				assertEquals(0, wmiWbemServices.getConversionPlanCount());
+				assertEquals(withArrayLists(expectedAll), withArrayLists(wmiWbemServices.executeWql(allProperties, 30000)));
+				assertEquals(withArrayLists(expectedSome), withArrayLists(wmiWbemServices.executeWql(someProperties, 30000)));
+				assertEquals(withArrayLists(expectedAll), withArrayLists(wmiWbemServices.executeWqlResultSet(allProperties, 30000)));
+			}
+		}
+	}
+
+	/**
+	 * @return the rows with their array values as lists, so that they can be compared
+	 */
+	private static List<Map<String, Object>> withArrayLists(final List<Map<String, Object>> rows) {
+		final List<Map<String, Object>> result = new ArrayList<>();
+		for (final Map<String, Object> row : rows) {
+			final Map<String, Object> copy = new HashMap<>();
+			row.forEach((key, value) -> copy.put(key, value instanceof Object[] ? Arrays.asList((Object[]) value) : value));
+			result.add(copy);
+		}
+		return result;
+	}
+
+	@Test
+	@Order(35)
 	void testMultithreadSameService() throws Exception {
 
 		final int threadCount = 100;
@@ -441,7 +681,7 @@ class WmiWbemServicesTest {
 	}
 
 	@Test
-	@Order(32)
+	@Order(36)
 	void testMultithreadSuccess() throws Exception {
 
 		final int threadCount = 1000;
@@ -509,4 +749,31 @@ class WmiWbemServicesTest {
 		assertEquals(threadCount / 2, failureCount.get(), "Exception must have been thrown for each failed query");
 		assertEquals(threadCount / 2, resultCount.get(), "Each successful query must have returned 1 record");
 	}
+
+	@Test
+	@Order(37)
+	void testInterruptExecuteWql() throws Exception {
+		try (WmiWbemServices wmiWbemServices = WmiWbemServices.getInstance("root/cimv2", null, null)) {
+			final List<Throwable> thrown = new ArrayList<>();
+			final Thread queryThread = new Thread(() -> {
+				try {
+					// Enumerates all the files of the system: much longer than the interruption delay
+					wmiWbemServices.executeWql("SELECT Name FROM CIM_DataFile", 600000);
+				} catch (final Throwable t) {
+					thrown.add(t);
+				}
+			});
+			queryThread.start();
+			Thread.sleep(1000);
+
+			final long interruptedAt = System.currentTimeMillis();
+			queryThread.interrupt();
+			queryThread.join(30000);
+
+			assertFalse(queryThread.isAlive());
+			assertTrue(System.currentTimeMillis() - interruptedAt < 10000);
+			assertEquals(1, thrown.size());
+			assertTrue(thrown.get(0) instanceof CancellationException, thrown.get(0).toString());
+		}
+	}
 }
@@ -0,0 +1,154 @@
+package org.sentrysoftware.wmi.windows.remote;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.sentrysoftware.wmi.Utils;
+import org.sentrysoftware.wmi.exceptions.WqlQuerySyntaxException;
+
+class CachingWindowsRemoteExecutorTest {
+
+	private static final long TIMEOUT = 30000;
+	private static final String OS_QUERY = "SELECT Caption FROM Win32_OperatingSystem";
+	private static final List<Map<String, Object>> OS_RESULT =
+			Collections.singletonList(Collections.singletonMap("Caption", "Windows"));
+
+	private static WindowsRemoteExecutor mockExecutor(final String hostname) throws Exception {
+		final WindowsRemoteExecutor executor = Mockito.mock(WindowsRemoteExecutor.class);
+		Mockito.doReturn(hostname).when(executor).getHostname();
+		Mockito.doReturn("root\\cimv2").when(executor).getNamespace();
+		Mockito.doReturn("user").when(executor).getUsername();
+		Mockito.doReturn(OS_RESULT).when(executor).executeWql(Mockito.anyString(), Mockito.anyLong());
+		Mockito.doReturn(OS_RESULT).when(executor).executeWql(Mockito.anyString(), Mockito.anyLong(), Mockito.anyInt());
+		return executor;
+	}
+
+	@Test
+	void testCache() throws Exception {
+		final WqlResultCache cache = new WqlResultCache();
+		final WindowsRemoteExecutor delegate = mockExecutor("host");
+		final CachingWindowsRemoteExecutor executor = new CachingWindowsRemoteExecutor(delegate, cache);
+
+		assertEquals(OS_RESULT, executor.executeWql(OS_QUERY, TIMEOUT));
+
+		// Same query, written differently
+		assertEquals(OS_RESULT, executor.executeWql("select   caption from win32_operatingsystem", TIMEOUT));
+		Mockito.verify(delegate, Mockito.times(1)).executeWql(Mockito.anyString(), Mockito.anyLong());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// Cached rows can't be modified
+		assertThrows(UnsupportedOperationException.class, () -> executor.executeWql(OS_QUERY, TIMEOUT).clear());
+		assertThrows(UnsupportedOperationException.class, () -> executor.executeWql(OS_QUERY, TIMEOUT).get(0).put("key", "value"));
+
+		// Another host sharing the cache
+		final WindowsRemoteExecutor otherDelegate = mockExecutor("other");
+		new CachingWindowsRemoteExecutor(otherDelegate, cache).executeWql(OS_QUERY, TIMEOUT);
+		Mockito.verify(otherDelegate, Mockito.times(1)).executeWql(Mockito.anyString(), Mockito.anyLong());
+		assertEquals(2, cache.size());
+
+		// maxRows is part of the key
+		executor.executeWql(OS_QUERY, TIMEOUT, 1);
+		executor.executeWql(OS_QUERY, TIMEOUT, 1);
+		Mockito.verify(delegate, Mockito.times(1)).executeWql(OS_QUERY, TIMEOUT, 1);
+	}
+
+	@Test
+	void testNotCachedClass() throws Exception {
+		final WqlResultCache cache = new WqlResultCache();
+		final WindowsRemoteExecutor delegate = mockExecutor("host");
+		final CachingWindowsRemoteExecutor executor = new CachingWindowsRemoteExecutor(delegate, cache);
+
+		executor.executeWql("SELECT Name FROM Win32_Process", TIMEOUT);
+		executor.executeWql("SELECT Name FROM Win32_Process", TIMEOUT);
+		executor.executeWql("ASSOCIATORS OF {Win32_Process.ProcessId=1}", TIMEOUT);
+		Mockito.verify(delegate, Mockito.times(3)).executeWql(Mockito.anyString(), Mockito.anyLong());
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMissCount());
+
+		assertThrows(WqlQuerySyntaxException.class, () -> executor.executeWql("SELECT FROM", TIMEOUT));
+	}
+
+	@Test
+	void testExpiration() throws Exception {
+		final AtomicLong time = new AtomicLong(1000);
+		try (MockedStatic<Utils> mockedUtils = Mockito.mockStatic(Utils.class, Mockito.CALLS_REAL_METHODS)) {
+			mockedUtils.when(Utils::getCurrentTimeMillis).thenAnswer(invocation -> time.get());
+
+			final Map<String, Long> classTtls = new HashMap<>();
+			classTtls.put("win32_operatingsystem", 100L);
+			final WqlResultCache cache = new WqlResultCache(classTtls, 10);
+			final WindowsRemoteExecutor delegate = mockExecutor("host");
+			final CachingWindowsRemoteExecutor executor = new CachingWindowsRemoteExecutor(delegate, cache);
+
+			executor.executeWql(OS_QUERY, TIMEOUT);
+			time.addAndGet(99);
+			executor.executeWql(OS_QUERY, TIMEOUT);
+			Mockito.verify(delegate, Mockito.times(1)).executeWql(Mockito.anyString(), Mockito.anyLong());
+
+			time.addAndGet(1);
+			executor.executeWql(OS_QUERY, TIMEOUT);
+			Mockito.verify(delegate, Mockito.times(2)).executeWql(Mockito.anyString(), Mockito.anyLong());
+		}
+	}
+
+	@Test
+	void testEviction() throws Exception {
+		final Map<String, Long> classTtls = WqlResultCache.getDefaultClassTtls();
+		final WqlResultCache cache = new WqlResultCache(classTtls, 2);
+		final WindowsRemoteExecutor delegate = mockExecutor("host");
+		final CachingWindowsRemoteExecutor executor = new CachingWindowsRemoteExecutor(delegate, cache);
+
+		executor.executeWql("SELECT Caption FROM Win32_OperatingSystem", TIMEOUT);
+		executor.executeWql("SELECT Name FROM Win32_ComputerSystem", TIMEOUT);
+
+		// Win32_OperatingSystem becomes the most recently used
+		executor.executeWql("SELECT Caption FROM Win32_OperatingSystem", TIMEOUT);
+		executor.executeWql("SELECT Version FROM Win32_BIOS", TIMEOUT);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+
+		// Win32_ComputerSystem has been evicted
+		executor.executeWql("SELECT Caption FROM Win32_OperatingSystem", TIMEOUT);
+		executor.executeWql("SELECT Name FROM Win32_ComputerSystem", TIMEOUT);
+		Mockito.verify(delegate, Mockito.times(2)).executeWql("SELECT Name FROM Win32_ComputerSystem", TIMEOUT);
+		Mockito.verify(delegate, Mockito.times(1)).executeWql("SELECT Caption FROM Win32_OperatingSystem", TIMEOUT);
+	}
+
+	@Test
+	void testInvalidate() throws Exception {
+		final WqlResultCache cache = new WqlResultCache();
+		final CachingWindowsRemoteExecutor executor = new CachingWindowsRemoteExecutor(mockExecutor("HOST"), cache);
+		final CachingWindowsRemoteExecutor otherExecutor = new CachingWindowsRemoteExecutor(mockExecutor("other"), cache);
+
+		executor.executeWql("SELECT Caption FROM Win32_OperatingSystem", TIMEOUT);
+		executor.executeWql("SELECT Name FROM Win32_ComputerSystem", TIMEOUT);
+		otherExecutor.executeWql("SELECT Caption FROM Win32_OperatingSystem", TIMEOUT);
+		assertEquals(3, cache.size());
+
+		assertEquals(1, cache.invalidate("host", "WIN32_OPERATINGSYSTEM"));
+		assertEquals(2, cache.size());
+
+		assertEquals(1, executor.invalidate());
+		assertEquals(1, cache.size());
+
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void testArguments() throws Exception {
+		assertThrows(IllegalArgumentException.class, () -> new CachingWindowsRemoteExecutor(null, new WqlResultCache()));
+		assertThrows(IllegalArgumentException.class, () -> new CachingWindowsRemoteExecutor(mockExecutor("host"), null));
+		assertThrows(IllegalArgumentException.class, () -> new WqlResultCache(new HashMap<>(), 0));
+		assertThrows(IllegalArgumentException.class, () -> new WqlResultCache(null, 10));
+	}
+}
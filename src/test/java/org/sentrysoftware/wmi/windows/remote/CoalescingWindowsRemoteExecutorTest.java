@@ -0,0 +1,180 @@
+package org.sentrysoftware.wmi.windows.remote;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.sentrysoftware.wmi.exceptions.WmiComException;
+
+class CoalescingWindowsRemoteExecutorTest {
+
+	private static final long TIMEOUT = 30000;
+	private static final String QUERY = "SELECT Name FROM Win32_Process";
+
+	private static WindowsRemoteExecutor mockExecutor(final String hostname, final char[] password) {
+		final WindowsRemoteExecutor executor = Mockito.mock(WindowsRemoteExecutor.class);
+		Mockito.doReturn(hostname).when(executor).getHostname();
+		Mockito.doReturn("root\\cimv2").when(executor).getNamespace();
+		Mockito.doReturn("user").when(executor).getUsername();
+		Mockito.doReturn(password).when(executor).getPassword();
+		return executor;
+	}
+
+	private static List<Map<String, Object>> createResult() {
+		final Map<String, Object> row = new LinkedHashMap<>();
+		row.put("Name", "System");
+		final List<Map<String, Object>> result = new ArrayList<>();
+		result.add(row);
+		return result;
+	}
+
+	/**
+	 * Wait until the specified number of callers are waiting for the leader
+	 */
+	private static void waitForCoalesced(final WqlQueryCoalescer coalescer, final long count) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		while (coalescer.getCoalescedCount() < count && System.currentTimeMillis() - start < TIMEOUT) {
+			Thread.sleep(5);
+		}
+		// Let the waiters reach Future.get()
+		Thread.sleep(20);
+	}
+
+	@Test
+	void testCoalescing() throws Exception {
+		final WqlQueryCoalescer coalescer = new WqlQueryCoalescer();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final WindowsRemoteExecutor delegate = mockExecutor("host", "pwd".toCharArray());
+		Mockito.doAnswer(invocation -> {
+			release.await();
+			return createResult();
+		}).when(delegate).executeWql(Mockito.anyString(), Mockito.anyLong());
+		final WindowsRemoteExecutor otherDelegate = mockExecutor("HOST", "pwd".toCharArray());
+
+		final ExecutorService threads = Executors.newFixedThreadPool(3);
+		try {
+			final Future<List<Map<String, Object>>> leader = threads.submit(
+					() -> new CoalescingWindowsRemoteExecutor(delegate, coalescer).executeWql(QUERY, TIMEOUT));
+			while (coalescer.getInFlightCount() == 0) {
+				Thread.sleep(5);
+			}
+
+			// Same query, written differently, through another connection to the same host
+			final Future<List<Map<String, Object>>> waiter1 = threads.submit(
+					() -> new CoalescingWindowsRemoteExecutor(otherDelegate, coalescer).executeWql("select name from win32_process", TIMEOUT));
+			final Future<List<Map<String, Object>>> waiter2 = threads.submit(
+					() -> new CoalescingWindowsRemoteExecutor(delegate, coalescer).executeWql(QUERY, TIMEOUT));
+			waitForCoalesced(coalescer, 2);
+			release.countDown();
+
+			final List<Map<String, Object>> expected = createResult();
+			assertEquals(expected, leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertEquals(expected, waiter1.get(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertEquals(expected, waiter2.get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+			// Each caller gets its own copy
+			assertNotSame(waiter1.get(), waiter2.get());
+
+			Mockito.verify(delegate, Mockito.times(1)).executeWql(Mockito.anyString(), Mockito.anyLong());
+			Mockito.verify(otherDelegate, Mockito.never()).executeWql(Mockito.anyString(), Mockito.anyLong());
+			assertEquals(1, coalescer.getExecutedCount());
+			assertEquals(2, coalescer.getCoalescedCount());
+			assertEquals(0, coalescer.getInFlightCount());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	void testException() throws Exception {
+		final WqlQueryCoalescer coalescer = new WqlQueryCoalescer();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final WindowsRemoteExecutor delegate = mockExecutor("host", "pwd".toCharArray());
+		Mockito.doAnswer(invocation -> {
+			release.await();
+			throw new WmiComException("Failed");
+		}).when(delegate).executeWql(Mockito.anyString(), Mockito.anyLong());
+
+		final ExecutorService threads = Executors.newFixedThreadPool(2);
+		try {
+			final Future<List<Map<String, Object>>> leader = threads.submit(
+					() -> new CoalescingWindowsRemoteExecutor(delegate, coalescer).executeWql(QUERY, TIMEOUT));
+			while (coalescer.getInFlightCount() == 0) {
+				Thread.sleep(5);
+			}
+			final Future<List<Map<String, Object>>> waiter = threads.submit(
+					() -> new CoalescingWindowsRemoteExecutor(delegate, coalescer).executeWql(QUERY, TIMEOUT));
+			waitForCoalesced(coalescer, 1);
+			release.countDown();
+
+			final ExecutionException leaderException = assertThrows(ExecutionException.class, () -> leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertTrue(leaderException.getCause() instanceof WmiComException);
+			final ExecutionException waiterException = assertThrows(ExecutionException.class, () -> waiter.get(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertTrue(waiterException.getCause() instanceof WmiComException);
+			assertEquals(0, coalescer.getInFlightCount());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	void testWaiterTimeout() throws Exception {
+		final WqlQueryCoalescer coalescer = new WqlQueryCoalescer();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final WindowsRemoteExecutor delegate = mockExecutor("host", "pwd".toCharArray());
+		Mockito.doAnswer(invocation -> {
+			release.await();
+			return createResult();
+		}).when(delegate).executeWql(Mockito.anyString(), Mockito.anyLong());
+
+		final ExecutorService threads = Executors.newFixedThreadPool(1);
+		try {
+			final Future<List<Map<String, Object>>> leader = threads.submit(
+					() -> new CoalescingWindowsRemoteExecutor(delegate, coalescer).executeWql(QUERY, TIMEOUT));
+			while (coalescer.getInFlightCount() == 0) {
+				Thread.sleep(5);
+			}
+
+			assertThrows(TimeoutException.class, () -> new CoalescingWindowsRemoteExecutor(delegate, coalescer).executeWql(QUERY, 50));
+
+			release.countDown();
+			assertEquals(createResult(), leader.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	void testSequentialAndFingerprint() throws Exception {
+		final WqlQueryCoalescer coalescer = new WqlQueryCoalescer();
+		final WindowsRemoteExecutor delegate = mockExecutor("host", "pwd".toCharArray());
+		Mockito.doReturn(Collections.emptyList()).when(delegate).executeWql(Mockito.anyString(), Mockito.anyLong());
+
+		// Sequential queries are never coalesced
+		final CoalescingWindowsRemoteExecutor executor = new CoalescingWindowsRemoteExecutor(delegate, coalescer);
+		executor.executeWql(QUERY, TIMEOUT);
+		executor.executeWql(QUERY, TIMEOUT);
+		Mockito.verify(delegate, Mockito.times(2)).executeWql(Mockito.anyString(), Mockito.anyLong());
+		assertEquals(0, coalescer.getCoalescedCount());
+
+		assertEquals(WqlQueryCoalescer.fingerprint("pwd".toCharArray()), WqlQueryCoalescer.fingerprint("pwd".toCharArray()));
+		assertNotEquals(WqlQueryCoalescer.fingerprint("pwd".toCharArray()), WqlQueryCoalescer.fingerprint("other".toCharArray()));
+		assertEquals("", WqlQueryCoalescer.fingerprint(null));
+	}
+}
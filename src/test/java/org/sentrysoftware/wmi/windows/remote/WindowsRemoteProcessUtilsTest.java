@@ -73,13 +73,13 @@ class WindowsRemoteProcessUtilsTest {
 		// check CodeSet absent from Win32_OperatingSystem
 		{
 			final WindowsRemoteExecutor windowsRemoteExecutor = Mockito.mock(WindowsRemoteExecutor.class);
-			Mockito.doReturn(Collections.emptyList()).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout);
+			Mockito.doReturn(Collections.emptyList()).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout, 1);
 
 			assertEquals(DEFAULT_WINDOWS_CHARSET, WindowsRemoteProcessUtils.getWindowsEncodingCharset(windowsRemoteExecutor, timeout));
 		}
 		{
 			final WindowsRemoteExecutor windowsRemoteExecutor = Mockito.mock(WindowsRemoteExecutor.class);
-			Mockito.doReturn(Collections.singletonList(Collections.emptyMap())).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout);
+			Mockito.doReturn(Collections.singletonList(Collections.emptyMap())).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout, 1);
 
 			assertEquals(DEFAULT_WINDOWS_CHARSET, WindowsRemoteProcessUtils.getWindowsEncodingCharset(windowsRemoteExecutor, timeout));
 		}
@@ -87,7 +87,7 @@ class WindowsRemoteProcessUtilsTest {
 		// check CodeSet unknown
 		{
 			final WindowsRemoteExecutor windowsRemoteExecutor = Mockito.mock(WindowsRemoteExecutor.class);
-			Mockito.doReturn(Collections.singletonList(Collections.singletonMap("CodeSet", "999999"))).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout);
+			Mockito.doReturn(Collections.singletonList(Collections.singletonMap("CodeSet", "999999"))).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout, 1);
 
 			assertEquals(DEFAULT_WINDOWS_CHARSET, WindowsRemoteProcessUtils.getWindowsEncodingCharset(windowsRemoteExecutor, timeout));
 		}
@@ -95,7 +95,7 @@ class WindowsRemoteProcessUtilsTest {
 		// check map values
 		{
 			final WindowsRemoteExecutor windowsRemoteExecutor = Mockito.mock(WindowsRemoteExecutor.class);
-			Mockito.doReturn(Collections.singletonList(Collections.singletonMap("CodeSet", "1250"))).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout);
+			Mockito.doReturn(Collections.singletonList(Collections.singletonMap("CodeSet", "1250"))).when(windowsRemoteExecutor).executeWql("SELECT CodeSet FROM Win32_OperatingSystem", timeout, 1);
 
 			assertEquals(Charset.forName("windows-1250"), WindowsRemoteProcessUtils.getWindowsEncodingCharset(windowsRemoteExecutor, timeout));
 		}
@@ -269,7 +269,7 @@ class WindowsTempShareTest {
 		{
 			final WindowsRemoteExecutor windowsRemoteExecutor = Mockito.mock(WindowsRemoteExecutor.class);
 			Mockito.doThrow(WqlQuerySyntaxException.class)
-			.when(windowsRemoteExecutor).executeWql(Mockito.anyString(), Mockito.anyLong());
+			.when(windowsRemoteExecutor).executeWql(Mockito.anyString(), Mockito.anyLong(), Mockito.anyInt());
 
 			Assertions.assertThrows(
 					WindowsRemoteException.class,
@@ -282,7 +282,8 @@ class WindowsTempShareTest {
 			Mockito.doReturn(Collections.emptyList())
 			.when(windowsRemoteExecutor).executeWql(
 					Mockito.eq("SELECT WindowsDirectory FROM Win32_OperatingSystem"),
-					Mockito.anyLong());
+					Mockito.anyLong(),
+					Mockito.eq(1));
 
 			Assertions.assertThrows(
 					WindowsRemoteException.class,
@@ -295,7 +296,8 @@ class WindowsTempShareTest {
 			Mockito.doReturn(Collections.singletonList(Collections.singletonMap("key", "value")))
 			.when(windowsRemoteExecutor).executeWql(
 					Mockito.eq("SELECT WindowsDirectory FROM Win32_OperatingSystem"),
-					Mockito.anyLong());
+					Mockito.anyLong(),
+					Mockito.eq(1));
 
 			Assertions.assertThrows(
 					WindowsRemoteException.class,
@@ -310,7 +312,8 @@ class WindowsTempShareTest {
 			Mockito.doReturn(Collections.singletonList(Collections.singletonMap("WindowsDirectory", winDirectory)))
 			.when(windowsRemoteExecutor).executeWql(
 					Mockito.eq("SELECT WindowsDirectory FROM Win32_OperatingSystem"),
-					Mockito.anyLong());
+					Mockito.anyLong(),
+					Mockito.eq(1));
 
 			Assertions.assertEquals(
 					winDirectory,